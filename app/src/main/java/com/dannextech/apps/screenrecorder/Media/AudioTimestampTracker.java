@@ -0,0 +1,188 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+/**
+ * Generate presentation time of PCM reads from the number of samples already read.
+ * The time line is anchored at the first read and is periodically re-synced with
+ * AudioRecord#getTimestamp(or with the read time when it is not available),
+ * so scheduling jitter of the reading thread does not reach the timestamps
+ * but long term drift between audio clock and system clock is still corrected.
+ * All times are in the time base of PresentationClock#getSourceTimeUs.
+ */
+public class AudioTimestampTracker {
+    /**
+     * duration of audio between re-sync
+     */
+    public static final long DEFAULT_RESYNC_INTERVAL_US = 1000000L;
+    /**
+     * maximum correction at each re-sync, this should be far smaller than duration of one read
+     * otherwise timestamps may go backward
+     */
+    public static final long DEFAULT_MAX_SLEW_US = 2000L;
+    /**
+     * drift smaller than this is ignored
+     */
+    private static final long DRIFT_TOLERANCE_US = 250L;
+
+    private final int mSampleRate;
+    private final long mResyncIntervalUs;
+    private final long mMaxSlewUs;
+
+    private boolean mIsAnchored;
+    private long mAnchorUs;
+    private long mFramesRead;
+    // drift observation of current re-sync window
+    private boolean mHasHardwareTimestamp;
+    // hardware frame position that corresponds to the first frame read after reset
+    private long mPositionBase;
+    private long mWindowDriftUs;
+    private boolean mHasWindowDrift;
+    private long mNextResyncFrames;
+    // statistics
+    private long mLastDriftUs;
+    private long mMaxDriftUs;
+    private long mTotalCorrectionUs;
+    private int mResyncCount;
+
+    public AudioTimestampTracker(final int sampleRate) {
+        this(sampleRate, DEFAULT_RESYNC_INTERVAL_US, DEFAULT_MAX_SLEW_US);
+    }
+
+    public AudioTimestampTracker(final int sampleRate, final long resyncIntervalUs, final long maxSlewUs) {
+        if (sampleRate <= 0) throw new IllegalArgumentException("sampleRate should be positive");
+        mSampleRate = sampleRate;
+        mResyncIntervalUs = resyncIntervalUs;
+        mMaxSlewUs = maxSlewUs;
+    }
+
+    /**
+     * start new time line, call this when AudioRecord#startRecording is called
+     */
+    public synchronized void reset() {
+        mIsAnchored = false;
+        mFramesRead = 0;
+        mHasHardwareTimestamp = mHasWindowDrift = false;
+        mNextResyncFrames = 0;
+    }
+
+    /**
+     * account a PCM read and get its presentation time
+     * @param frames number of frames(samples per channel) read
+     * @param readTimeUs time when the read returned
+     * @return capture time of the first frame of this read
+     */
+    public synchronized long onRead(final int frames, final long readTimeUs) {
+        if (!mIsAnchored) {
+            mAnchorUs = readTimeUs - framesToUs(frames);
+            mIsAnchored = true;
+            mNextResyncFrames = usToFrames(mResyncIntervalUs);
+        }
+        final long result = mAnchorUs + framesToUs(mFramesRead);
+        mFramesRead += frames;
+        if (!mHasHardwareTimestamp) {
+            // read time is late by scheduling jitter, so the smallest difference
+            // within the window is the best estimation of drift
+            observeDrift(readTimeUs - (mAnchorUs + framesToUs(mFramesRead)), true);
+        }
+        if (mFramesRead >= mNextResyncFrames) {
+            resync();
+            mNextResyncFrames = mFramesRead + usToFrames(mResyncIntervalUs);
+        }
+        return result;
+    }
+
+    /**
+     * give a timestamp from AudioRecord#getTimestamp, once this is called
+     * read time is not used for drift estimation anymore.
+     * AudioRecord does not always restart its frame position from 0 after stop/startRecording,
+     * so the position of the first timestamp after #reset is taken as the number of frames
+     * already read and later positions are counted from there.
+     * Call this right after a read so that the first timestamp has little buffered audio.
+     * @param framePosition frame position reported by AudioRecord
+     * @param timeUs capture time of the frame
+     */
+    public synchronized void onHardwareTimestamp(final long framePosition, final long timeUs) {
+        if (!mIsAnchored) return;
+        if (!mHasHardwareTimestamp) {
+            mHasHardwareTimestamp = true;
+            mHasWindowDrift = false;
+            mPositionBase = framePosition - mFramesRead;
+        }
+        observeDrift(timeUs - (mAnchorUs + framesToUs(framePosition - mPositionBase)), false);
+    }
+
+    private void observeDrift(final long driftUs, final boolean takeMin) {
+        if (!mHasWindowDrift || !takeMin || (driftUs < mWindowDriftUs)) {
+            mWindowDriftUs = driftUs;
+            mHasWindowDrift = true;
+        }
+    }
+
+    private void resync() {
+        if (!mHasWindowDrift) return;
+        final long drift = mWindowDriftUs;
+        mHasWindowDrift = false;
+        mResyncCount++;
+        mLastDriftUs = drift;
+        if (Math.abs(drift) > mMaxDriftUs)
+            mMaxDriftUs = Math.abs(drift);
+        if (Math.abs(drift) > DRIFT_TOLERANCE_US) {
+            // slew gradually so that the time line stays monotonic and smooth
+            final long correction = Math.max(-mMaxSlewUs, Math.min(mMaxSlewUs, drift));
+            mAnchorUs += correction;
+            mTotalCorrectionUs += correction;
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public synchronized long getFramesRead() {
+        return mFramesRead;
+    }
+
+    /**
+     * drift between sample count based time line and the reference observed at last re-sync
+     * @return
+     */
+    public synchronized long getLastDriftUs() {
+        return mLastDriftUs;
+    }
+
+    public synchronized long getMaxDriftUs() {
+        return mMaxDriftUs;
+    }
+
+    /**
+     * total correction applied to the time line
+     * @return
+     */
+    public synchronized long getTotalCorrectionUs() {
+        return mTotalCorrectionUs;
+    }
+
+    public synchronized int getResyncCount() {
+        return mResyncCount;
+    }
+
+    public synchronized boolean isHardwareTimestampUsed() {
+        return mHasHardwareTimestamp;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AudioTimestampTracker:frames=" + mFramesRead
+            + ",resync=" + mResyncCount
+            + ",lastDrift=" + mLastDriftUs + "[us],maxDrift=" + mMaxDriftUs
+            + "[us],correction=" + mTotalCorrectionUs
+            + "[us],hwTimestamp=" + mHasHardwareTimestamp;
+    }
+
+    private long framesToUs(final long frames) {
+        return frames * 1000000L / mSampleRate;
+    }
+
+    private long usToFrames(final long us) {
+        return us * mSampleRate / 1000000L;
+    }
+}
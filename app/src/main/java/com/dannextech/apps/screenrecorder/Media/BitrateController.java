@@ -0,0 +1,250 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Closed loop controller of video bit rate, pure java so that the logic can be tested on JVM.
+ * Sizes of encoded frames, depth of the writer queue(drain backlog) and write latency
+ * of the output are fed, and the target bit rate is decided once per interval:
+ * - backlog or write latency exceeds its limit: decrease multiplicatively(storage can not keep up)
+ * - encoded bit rate is close to the target: increase(content is starved, e.g. fast scrolling)
+ * - encoded bit rate is far below the target: decrease toward the encoded rate(static screen)
+ * The result is always kept between min and max bit rate. Every decision is kept in the trace.
+ */
+public class BitrateController {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "BitrateController";
+
+    public static class Config {
+        public int minBitRate = 500000;
+        public int maxBitRate = 16000000;
+        /**
+         * decision interval in presentation time
+         */
+        public long intervalUs = 1000000L;
+        /**
+         * decrease when the writer queue has more samples than this
+         */
+        public int maxBacklog = 30;
+        /**
+         * decrease when a write to the output took longer than this
+         */
+        public long maxWriteLatencyUs = 200000L;
+        /**
+         * multiplier on congestion
+         */
+        public float decreaseFactor = 0.7f;
+        /**
+         * multiplier when the encoder is saturated
+         */
+        public float increaseFactor = 1.2f;
+        /**
+         * encoded rate / target rate above this is treated as saturated
+         */
+        public float saturatedRatio = 0.9f;
+        /**
+         * encoded rate / target rate below this is treated as underused
+         */
+        public float underusedRatio = 0.5f;
+        /**
+         * target rate is set to encoded rate * this when underused, so the encoder still has headroom
+         */
+        public float headroom = 1.5f;
+        /**
+         * changes smaller than this ratio are not applied to avoid useless codec reconfiguration,
+         * except the change to min/max bit rate
+         */
+        public float minChangeRatio = 0.05f;
+        /**
+         * number of decisions kept in the trace
+         */
+        public int traceSize = 256;
+    }
+
+    public enum Reason {
+        CONGESTION, SATURATED, UNDERUSED,
+    }
+
+    /**
+     * one decision of the controller
+     */
+    public static class Decision {
+        public final long timeUs;
+        public final int oldBitRate;
+        public final int newBitRate;
+        public final int encodedBitRate;
+        public final int backlog;
+        public final long writeLatencyUs;
+        public final Reason reason;
+
+        private Decision(final long timeUs, final int oldBitRate, final int newBitRate, final int encodedBitRate,
+            final int backlog, final long writeLatencyUs, final Reason reason) {
+
+            this.timeUs = timeUs;
+            this.oldBitRate = oldBitRate;
+            this.newBitRate = newBitRate;
+            this.encodedBitRate = encodedBitRate;
+            this.backlog = backlog;
+            this.writeLatencyUs = writeLatencyUs;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d[us]:%s %d->%d(encoded=%d,backlog=%d,write=%d[us])",
+                timeUs, reason, oldBitRate, newBitRate, encodedBitRate, backlog, writeLatencyUs);
+        }
+    }
+
+    private final Config mConfig;
+    private final ArrayDeque<Decision> mTrace = new ArrayDeque<Decision>();
+    private int mBitRate;
+    private long mWindowStartUs = -1;
+    private long mWindowBytes;
+    private int mMaxBacklog;
+    private long mMaxWriteLatencyUs;
+    private int mDecisionCount;
+
+    /**
+     * the bit rate starts from max bit rate of config until #reset is called,
+     * MediaVideoEncoderBase calls it with the configured bit rate on prepare
+     * @param config
+     */
+    public BitrateController(final Config config) {
+        this(config, config.maxBitRate);
+    }
+
+    /**
+     * @param config
+     * @param initialBitRate bit rate that the codec is configured with, clamped to the range of config
+     */
+    public BitrateController(final Config config, final int initialBitRate) {
+        if (config.minBitRate <= 0) throw new IllegalArgumentException("min bit rate should be positive");
+        if (config.maxBitRate < config.minBitRate) throw new IllegalArgumentException("max bit rate is less than min");
+        if (config.intervalUs <= 0) throw new IllegalArgumentException("interval should be positive");
+        mConfig = config;
+        mBitRate = clamp(initialBitRate);
+    }
+
+    /**
+     * restart with the bit rate that the codec is configured with, the trace is kept
+     * @param bitRate clamped to the range of config
+     */
+    public synchronized void reset(final int bitRate) {
+        mBitRate = clamp(bitRate);
+        mWindowStartUs = -1;
+        mWindowBytes = 0;
+        mMaxBacklog = 0;
+        mMaxWriteLatencyUs = 0;
+    }
+
+    /**
+     * @return current target bit rate
+     */
+    public synchronized int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * account drain backlog, e.g. depth of the writer queue
+     * @param depth
+     */
+    public synchronized void onBacklog(final int depth) {
+        if (depth > mMaxBacklog) mMaxBacklog = depth;
+    }
+
+    /**
+     * account time spent for writing to the output
+     * @param latencyUs
+     */
+    public synchronized void onWriteLatency(final long latencyUs) {
+        if (latencyUs > mMaxWriteLatencyUs) mMaxWriteLatencyUs = latencyUs;
+    }
+
+    /**
+     * account one encoded frame and decide the bit rate when the interval passed
+     * @param presentationTimeUs
+     * @param size size of encoded frame in bytes
+     * @return new bit rate that should be set to the codec, 0 if no change
+     */
+    public synchronized int onFrame(final long presentationTimeUs, final int size) {
+        if (mWindowStartUs < 0) {
+            mWindowStartUs = presentationTimeUs;
+        }
+        final long elapsedUs = presentationTimeUs - mWindowStartUs;
+        if (elapsedUs < mConfig.intervalUs) {
+            mWindowBytes += size;
+            return 0;
+        }
+        // the frame starts next window
+        final int encoded = (int)Math.min(Integer.MAX_VALUE, mWindowBytes * 8 * 1000000L / elapsedUs);
+        final int result = decide(presentationTimeUs, encoded);
+        mWindowStartUs = presentationTimeUs;
+        mWindowBytes = size;
+        mMaxBacklog = 0;
+        mMaxWriteLatencyUs = 0;
+        return result;
+    }
+
+    /**
+     * @return decisions in time order, oldest ones are removed when exceeding Config#traceSize
+     */
+    public synchronized List<Decision> getTrace() {
+        return new ArrayList<Decision>(mTrace);
+    }
+
+    /**
+     * @return number of decisions including removed ones from the trace
+     */
+    public synchronized int getDecisionCount() {
+        return mDecisionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{bitRate=" + mBitRate + ",decisions=" + mDecisionCount
+            + ",last=" + mTrace.peekLast() + "}";
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private int decide(final long timeUs, final int encoded) {
+        final Config c = mConfig;
+        final Reason reason;
+        final int target;
+        if ((mMaxBacklog > c.maxBacklog) || (mMaxWriteLatencyUs > c.maxWriteLatencyUs)) {
+            reason = Reason.CONGESTION;
+            target = clamp((long)(mBitRate * c.decreaseFactor));
+        } else if (encoded >= mBitRate * c.saturatedRatio) {
+            reason = Reason.SATURATED;
+            target = clamp((long)(mBitRate * c.increaseFactor));
+        } else if (encoded < mBitRate * c.underusedRatio) {
+            reason = Reason.UNDERUSED;
+            target = clamp((long)(encoded * c.headroom));
+        } else {
+            return 0;
+        }
+        if ((target == mBitRate)
+            || ((Math.abs(target - mBitRate) < mBitRate * c.minChangeRatio)
+                && (target != c.minBitRate) && (target != c.maxBitRate))) {
+            // too small change, but reaching the bounds is always applied
+            return 0;
+        }
+        final Decision decision = new Decision(timeUs, mBitRate, target, encoded, mMaxBacklog, mMaxWriteLatencyUs, reason);
+        if (mTrace.size() >= Math.max(1, c.traceSize)) mTrace.removeFirst();
+        mTrace.addLast(decision);
+        mDecisionCount++;
+        mBitRate = target;
+        if (DEBUG) Log.v(TAG, "decide:" + decision);
+        return target;
+    }
+
+    private int clamp(final long bitRate) {
+        return (int)Math.max(mConfig.minBitRate, Math.min(mConfig.maxBitRate, bitRate));
+    }
+}
@@ -0,0 +1,329 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential file writer for recorded media.
+ * Small writes are coalesced into large blocks that are written at block aligned offsets
+ * with FileChannel, space is preallocated ahead of the write position
+ * to reduce fragmentation of file system, and data is synced to the storage
+ * by configurable policy instead of every write or never.
+ * Latency of writes and syncs are recorded so that the policy can be tuned per device.
+ */
+public class BlockFileWriter implements Closeable {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "BlockFileWriter";
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final int ALIGNMENT = 4096;
+
+    /**
+     * write and sync policy
+     */
+    public static class Config {
+        /**
+         * size of each write, this is rounded up to multiple of 4096
+         */
+        public int blockSize = DEFAULT_BLOCK_SIZE;
+        /**
+         * expected bit rate of the output, used to decide how much space is preallocated.
+         * 0 means unknown
+         */
+        public int bitRate = 0;
+        /**
+         * space for this duration at bitRate is preallocated ahead of the write position
+         */
+        public int preallocateSeconds = 10;
+        /**
+         * minimum size of each preallocation, 0 disables preallocation
+         */
+        public long minPreallocateBytes = 8 * 1024 * 1024;
+        /**
+         * sync after this bytes are written since last sync, 0 means no limit by size
+         */
+        public long syncBytes = 8 * 1024 * 1024;
+        /**
+         * sync when this time passed since last sync, 0 means no limit by time
+         */
+        public long syncIntervalMs = 5000;
+
+        public Config copy() {
+            final Config result = new Config();
+            result.blockSize = blockSize;
+            result.bitRate = bitRate;
+            result.preallocateSeconds = preallocateSeconds;
+            result.minPreallocateBytes = minPreallocateBytes;
+            result.syncBytes = syncBytes;
+            result.syncIntervalMs = syncIntervalMs;
+            return result;
+        }
+    }
+
+    private final String mPath;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBlock;
+    private final long mPreallocateBytes;
+    private final long mSyncBytes;
+    private final long mSyncIntervalNs;
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram("write");
+    private final LatencyHistogram mSyncLatency = new LatencyHistogram("sync");
+    /**
+     * file offset of the first byte in mBlock, always multiple of block size
+     */
+    private long mBlockStart;
+    private long mAllocated;
+    private boolean mPreallocate;
+    private long mUnsyncedBytes;
+    private long mLastSyncNs;
+    private int mSyncCount;
+    private boolean mClosed;
+
+    public BlockFileWriter(final String path) throws IOException {
+        this(path, new Config());
+    }
+
+    /**
+     * @param path this is truncated if exists
+     * @param config
+     * @throws IOException
+     */
+    public BlockFileWriter(final String path, final Config config) throws IOException {
+        if (config.blockSize <= 0) throw new IllegalArgumentException("block size should be positive");
+        mPath = path;
+        final int blockSize = (config.blockSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        mPreallocateBytes = config.minPreallocateBytes > 0
+            ? roundUp(Math.max(config.minPreallocateBytes, (long)config.bitRate / 8 * config.preallocateSeconds), blockSize)
+            : 0;
+        mPreallocate = mPreallocateBytes > 0;
+        mSyncBytes = config.syncBytes;
+        mSyncIntervalNs = config.syncIntervalMs * 1000000L;
+        mFile = new RandomAccessFile(path, "rw");
+        try {
+            mFile.setLength(0);
+        } catch (final IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mChannel = mFile.getChannel();
+        mBlock = ByteBuffer.allocateDirect(blockSize);
+        mLastSyncNs = System.nanoTime();
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return logical size of the file, including data that is not written yet
+     */
+    public synchronized long getPosition() {
+        return mBlockStart + mBlock.position();
+    }
+
+    /**
+     * append data
+     * @param srcs
+     * @throws IOException
+     */
+    public synchronized void write(final ByteBuffer... srcs) throws IOException {
+        if (mClosed) throw new IOException("already closed");
+        for (final ByteBuffer buf: srcs) {
+            final ByteBuffer src = buf.duplicate();
+            while (src.hasRemaining()) {
+                final int n = Math.min(src.remaining(), mBlock.remaining());
+                final int limit = src.limit();
+                src.limit(src.position() + n);
+                mBlock.put(src);
+                src.limit(limit);
+                if (!mBlock.hasRemaining()) {
+                    writeBlock();
+                    mBlockStart += mBlock.capacity();
+                    mBlock.clear();
+                }
+            }
+            buf.position(buf.limit());
+        }
+    }
+
+    /**
+     * overwrite data that is already appended, e.g. to fix size of box
+     * @param position
+     * @param src
+     * @throws IOException
+     */
+    public synchronized void writeAt(final long position, final ByteBuffer src) throws IOException {
+        if (mClosed) throw new IOException("already closed");
+        final int size = src.remaining();
+        if ((position < 0) || (position + size > getPosition()))
+            throw new IllegalArgumentException("out of written range");
+        if (position >= mBlockStart) {
+            // still on memory
+            final ByteBuffer dst = mBlock.duplicate();
+            dst.position((int)(position - mBlockStart));
+            dst.put(src);
+        } else {
+            final int limit = src.limit();
+            final long inFile = Math.min(size, mBlockStart - position);
+            src.limit(src.position() + (int)inFile);
+            long pos = position;
+            while (src.hasRemaining()) {
+                pos += mChannel.write(src, pos);
+            }
+            src.limit(limit);
+            if (src.hasRemaining()) {
+                final ByteBuffer dst = mBlock.duplicate();
+                dst.position(0);
+                dst.put(src);
+            }
+            mUnsyncedBytes += inFile;
+        }
+    }
+
+    /**
+     * write buffered data to the file without waiting for the block to be filled.
+     * The partial block is written again when it is filled, so the alignment is kept.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (mClosed) throw new IOException("already closed");
+        if (mBlock.position() > 0) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * flush and sync to the storage regardless of the policy
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        flush();
+        force();
+    }
+
+    /**
+     * flush, sync and close. Preallocated space after the data is released.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        try {
+            if (mBlock.position() > 0) {
+                writeBlock();
+            }
+            mChannel.truncate(getPosition());
+            force();
+        } finally {
+            mClosed = true;
+            mFile.close();
+            if (DEBUG) Log.v(TAG, "close:" + this);
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @return latency of each write call to the file
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * @return latency of each sync
+     */
+    public LatencyHistogram getSyncLatency() {
+        return mSyncLatency;
+    }
+
+    public synchronized int getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * @return size of the space that is allocated for the file, 0 if preallocation is not available
+     */
+    public synchronized long getAllocatedBytes() {
+        return mPreallocate ? mAllocated : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BlockFileWriter{size=" + getPosition() + ",allocated=" + getAllocatedBytes()
+            + ",syncs=" + mSyncCount + "," + mWriteLatency + "," + mSyncLatency + "}";
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private static long roundUp(final long value, final int unit) {
+        return (value + unit - 1) / unit * unit;
+    }
+
+    /**
+     * write whole content of mBlock at mBlockStart, apply preallocation and sync policy
+     * @throws IOException
+     */
+    private void writeBlock() throws IOException {
+        final int size = mBlock.position();
+        preallocate(mBlockStart + size);
+        final ByteBuffer buf = mBlock.duplicate();
+        buf.flip();
+        final long startNs = System.nanoTime();
+        long pos = mBlockStart;
+        while (buf.hasRemaining()) {
+            pos += mChannel.write(buf, pos);
+        }
+        final long endNs = System.nanoTime();
+        mWriteLatency.record((endNs - startNs) / 1000L);
+        mUnsyncedBytes += size;
+        if (((mSyncBytes > 0) && (mUnsyncedBytes >= mSyncBytes))
+            || ((mSyncIntervalNs > 0) && (endNs - mLastSyncNs >= mSyncIntervalNs))) {
+
+            force();
+        }
+    }
+
+    /**
+     * allocate space ahead so that the file system can give contiguous extents
+     * and writes do not wait for block allocation.
+     * The file size is extended by this and truncated when closing.
+     * @param end
+     */
+    private void preallocate(final long end) {
+        if (!mPreallocate || (end <= mAllocated)) return;
+        final long length = roundUp(end - mAllocated, (int)Math.min(mPreallocateBytes, Integer.MAX_VALUE));
+        try {
+            Os.posix_fallocate(mFile.getFD(), mAllocated, length);
+            mAllocated += length;
+            if (DEBUG) Log.v(TAG, "preallocate:allocated=" + mAllocated);
+        } catch (final ErrnoException e) {
+            // e.g. the file system does not support, give up preallocation
+            Log.w(TAG, "preallocate:" + e);
+            mPreallocate = false;
+        } catch (final IOException e) {
+            Log.w(TAG, "preallocate:" + e);
+            mPreallocate = false;
+        }
+    }
+
+    private void force() throws IOException {
+        final long startNs = System.nanoTime();
+        mChannel.force(false);
+        final long endNs = System.nanoTime();
+        mSyncLatency.record((endNs - startNs) / 1000L);
+        mUnsyncedBytes = 0;
+        mLastSyncNs = endNs;
+        mSyncCount++;
+    }
+}
@@ -0,0 +1,116 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder that MediaEncoder talks to. MediaCodecBackend is the default implementation
+ * and FakeCodecBackend emits synthetic samples so the encoder pipeline can run on JVM.
+ * Methods and return values follow MediaCodec.
+ */
+public interface CodecBackend {
+    public static final int INFO_TRY_AGAIN_LATER = MediaCodec.INFO_TRY_AGAIN_LATER;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED;
+
+    /**
+     * create backend for encoder
+     */
+    public interface Factory {
+        /**
+         * @param mime
+         * @param surfaceInput true if the encoder receives its input from Surface
+         * @return
+         * @throws IOException
+         * @throws IllegalArgumentException if no encoder is available for the MIME type
+         */
+        public CodecBackend createEncoder(String mime, boolean surfaceInput) throws IOException;
+    }
+
+    /**
+     * event driven interface, same as MediaCodec.Callback
+     */
+    public interface Callback {
+        public void onInputBufferAvailable(CodecBackend codec, int index);
+        /**
+         * @param codec
+         * @param index
+         * @param info only valid while this method is running
+         */
+        public void onOutputBufferAvailable(CodecBackend codec, int index, SampleInfo info);
+        public void onOutputFormatChanged(CodecBackend codec, TrackFormat format);
+        public void onError(CodecBackend codec, Exception e);
+    }
+
+    public String getName();
+
+    /**
+     * @return true if #setCallback can be used
+     */
+    public boolean isCallbackSupported();
+
+    /**
+     * switch to event driven mode, this should be called before #configure
+     * @param callback
+     */
+    public void setCallback(Callback callback);
+
+    public void configure(TrackFormat format);
+
+    /**
+     * this can be called only between #configure and #start
+     * @return
+     */
+    public Surface createInputSurface();
+
+    public void start();
+
+    public void stop();
+
+    public void release();
+
+    public int dequeueInputBuffer(long timeoutUs);
+
+    public ByteBuffer getInputBuffer(int index);
+
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @param info
+     * @param timeoutUs
+     * @return index of output buffer or INFO_XXX
+     */
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    public ByteBuffer getOutputBuffer(int index);
+
+    public void releaseOutputBuffer(int index);
+
+    public TrackFormat getOutputFormat();
+
+    /**
+     * only for Surface input
+     */
+    public void signalEndOfInputStream();
+
+    /**
+     * request the encoder to output a sync(key) frame soon, this can be called while encoding
+     */
+    public void requestSyncFrame();
+
+    /**
+     * change target bit rate of video encoder while encoding
+     * @param bitRate [bits/sec]
+     */
+    public void setVideoBitrate(int bitRate);
+
+    /**
+     * drop frames that are rendered into the input surface while suspended,
+     * this is used when the surface is fed by other producer directly(e.g. VirtualDisplay)
+     * @param suspended
+     */
+    public void setInputSuspended(boolean suspended);
+}
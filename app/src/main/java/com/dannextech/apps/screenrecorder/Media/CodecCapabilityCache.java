@@ -0,0 +1,541 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Capabilities of encoders kept in a small file, so that recording does not walk MediaCodecList
+ * and query MediaCodecInfo#getCapabilitiesForType every time it starts(this takes hundreds of
+ * milliseconds on some devices). The file is keyed by build fingerprint, it is scanned again
+ * when the OS is updated. #init starts loading on a private thread when the app starts,
+ * #getDefault waits for it or loads synchronously when #init was not called.
+ * Frame rates measured by EncoderProbe are kept in the same file, #findEncoder prefers
+ * the fastest encoder when they are available.
+ */
+public class CodecCapabilityCache {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "CodecCapabilityCache";
+
+    private static final int MAGIC = 0x53524343;    // "SRCC"
+    private static final int VERSION = 3;
+    /*package*/ static final String FILE_NAME = "codec_capabilities.bin";
+
+    /**
+     * capabilities of one encoder for one MIME type
+     */
+    public static class Entry {
+        public final String name;
+        public final String mime;
+        public final int[] colorFormats;
+        /**
+         * pairs of profile and level
+         */
+        public final int[] profileLevels;
+        /**
+         * {min, max} of width, height and bit rate, 0 if unknown(e.g. audio)
+         */
+        public final int minWidth, maxWidth;
+        public final int minHeight, maxHeight;
+        public final int minBitRate, maxBitRate;
+        /**
+         * bit mask of supported BITRATE_MODE_XXX(1 << mode), 0 if unknown
+         */
+        public final int bitrateModes;
+        /**
+         * {min, max} of quality for BITRATE_MODE_CQ, 0 if unknown
+         */
+        public final int minQuality, maxQuality;
+
+        public Entry(final String name, final String mime, final int[] colorFormats, final int[] profileLevels,
+            final int minWidth, final int maxWidth, final int minHeight, final int maxHeight,
+            final int minBitRate, final int maxBitRate) {
+
+            this(name, mime, colorFormats, profileLevels, minWidth, maxWidth, minHeight, maxHeight,
+                minBitRate, maxBitRate, 0, 0, 0);
+        }
+
+        public Entry(final String name, final String mime, final int[] colorFormats, final int[] profileLevels,
+            final int minWidth, final int maxWidth, final int minHeight, final int maxHeight,
+            final int minBitRate, final int maxBitRate, final int bitrateModes,
+            final int minQuality, final int maxQuality) {
+
+            this.name = name;
+            this.mime = mime;
+            this.colorFormats = colorFormats != null ? colorFormats : new int[0];
+            this.profileLevels = profileLevels != null ? profileLevels : new int[0];
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            this.minBitRate = minBitRate;
+            this.maxBitRate = maxBitRate;
+            this.bitrateModes = bitrateModes;
+            this.minQuality = minQuality;
+            this.maxQuality = maxQuality;
+        }
+
+        public boolean hasColorFormat(final int colorFormat) {
+            for (final int format: colorFormats) {
+                if (format == colorFormat) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return true if the size is within the range, unknown range is treated as supported
+         */
+        public boolean isSizeSupported(final int width, final int height) {
+            return ((maxWidth <= 0) || ((width >= minWidth) && (width <= maxWidth)))
+                && ((maxHeight <= 0) || ((height >= minHeight) && (height <= maxHeight)));
+        }
+
+        /**
+         * @param profile
+         * @param level 0 means any level
+         * @return true if the encoder has the profile at the level or higher, unknown profiles are treated as supported
+         */
+        public boolean isProfileLevelSupported(final int profile, final int level) {
+            if (profileLevels.length == 0) return true;
+            for (int i = 0; i + 1 < profileLevels.length; i += 2) {
+                if ((profileLevels[i] == profile) && (profileLevels[i + 1] >= level)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @param mode MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_XXX
+         * @return true if the mode is supported, unknown modes are treated as supported
+         */
+        public boolean isBitrateModeSupported(final int mode) {
+            return (bitrateModes == 0) || ((bitrateModes & (1 << mode)) != 0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s(%s,%dx%d-%dx%d,%d-%d[bps])", name, mime,
+                minWidth, minHeight, maxWidth, maxHeight, minBitRate, maxBitRate);
+        }
+    }
+
+    /**
+     * frame rate that an encoder sustained at a size
+     */
+    /*package*/ static class Probe {
+        final String name;
+        final int width, height;
+        final float fps;
+
+        Probe(final String name, final int width, final int height, final float fps) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+        }
+    }
+
+    /**
+     * source of entries when the file is missing or stale
+     */
+    public interface Scanner {
+        /**
+         * @return entries in preferred order
+         */
+        public List<Entry> scan();
+    }
+
+    /**
+     * walk MediaCodecList, encoders only
+     */
+    public static final Scanner MEDIA_CODEC_LIST_SCANNER = new Scanner() {
+        @SuppressWarnings("deprecation")
+        @Override
+        public List<Entry> scan() {
+            final List<Entry> result = new ArrayList<Entry>();
+            final int numCodecs = MediaCodecList.getCodecCount();
+            for (int i = 0; i < numCodecs; i++) {
+                final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+                if (!codecInfo.isEncoder()) continue;
+                for (final String type: codecInfo.getSupportedTypes()) {
+                    try {
+                        result.add(toEntry(codecInfo.getName(), type, codecInfo.getCapabilitiesForType(type)));
+                    } catch (final RuntimeException e) {
+                        // some vendor codecs throw for their own types
+                        Log.w(TAG, "scan:" + codecInfo.getName() + "," + type, e);
+                    }
+                }
+            }
+            return result;
+        }
+    };
+
+    private static final Object sSync = new Object();
+    private static File sFile;
+    private static CodecCapabilityCache sDefault;
+
+    /**
+     * start loading the cache on a private thread, this should be called when the app starts
+     * @param context
+     */
+    public static void init(final Context context) {
+        synchronized (sSync) {
+            if ((sFile != null) || (sDefault != null)) return;
+            sFile = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    getDefault();
+                }
+            }, TAG).start();
+        }
+    }
+
+    /**
+     * @return cache of this device, loaded(or scanned and saved) on the first call
+     */
+    public static CodecCapabilityCache getDefault() {
+        synchronized (sSync) {
+            if (sDefault == null) {
+                sDefault = load(sFile, Build.FINGERPRINT, MEDIA_CODEC_LIST_SCANNER);
+                Log.i(TAG, "getDefault:" + sDefault);
+            }
+            return sDefault;
+        }
+    }
+
+    /**
+     * load entries from the file, or scan and save them when the file is missing, broken
+     * or written by other build
+     * @param file null: always scan and never save
+     * @param fingerprint build fingerprint
+     * @param scanner
+     * @return
+     */
+    public static CodecCapabilityCache load(final File file, final String fingerprint, final Scanner scanner) {
+        final long startNs = System.nanoTime();
+        if ((file != null) && file.isFile()) {
+            try {
+                final List<Probe> probes = new ArrayList<Probe>();
+                final List<Entry> entries = read(file, fingerprint, probes);
+                if (entries != null) {
+                    final CodecCapabilityCache result = new CodecCapabilityCache(file, fingerprint, entries,
+                        true, (System.nanoTime() - startNs) / 1000L);
+                    for (final Probe probe: probes) {
+                        result.mProbes.put(probeKey(probe.name, probe.width, probe.height), probe);
+                    }
+                    return result;
+                }
+                if (DEBUG) Log.v(TAG, "load:fingerprint changed");
+            } catch (final IOException e) {
+                Log.w(TAG, "load:broken cache", e);
+            }
+        }
+        final List<Entry> entries = scanner.scan();
+        if (file != null) {
+            try {
+                write(file, fingerprint, entries, Collections.<Probe>emptyList());
+            } catch (final IOException e) {
+                Log.w(TAG, "load:failed to save cache", e);
+            }
+        }
+        return new CodecCapabilityCache(file, fingerprint, entries, false, (System.nanoTime() - startNs) / 1000L);
+    }
+
+    private final File mFile;
+    private final String mFingerprint;
+    private final List<Entry> mEntries;
+    private final boolean mFromFile;
+    private final long mLoadTimeUs;
+    /**
+     * probe results by name@WxH, guarded by itself
+     */
+    private final Map<String, Probe> mProbes = new LinkedHashMap<String, Probe>();
+
+    private CodecCapabilityCache(final File file, final String fingerprint, final List<Entry> entries,
+        final boolean fromFile, final long loadTimeUs) {
+
+        mFile = file;
+        mFingerprint = fingerprint;
+        mEntries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+        mFromFile = fromFile;
+        mLoadTimeUs = loadTimeUs;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return true if loaded from the file(warm), false if scanned(cold)
+     */
+    public boolean isFromFile() {
+        return mFromFile;
+    }
+
+    public long getLoadTimeUs() {
+        return mLoadTimeUs;
+    }
+
+    /**
+     * @param mime
+     * @param surfaceInput true if the encoder should accept COLOR_FormatSurface
+     * @return all encoders for the MIME type in preferred order
+     */
+    public List<Entry> findEncoders(final String mime, final boolean surfaceInput) {
+        final List<Entry> result = new ArrayList<Entry>();
+        for (final Entry entry: mEntries) {
+            if (!entry.mime.equalsIgnoreCase(mime)) continue;
+            if (surfaceInput && !entry.hasColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)) continue;
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * @return the encoder of #findEncoders that sustained the highest frame rate at the largest probed size,
+     * the first one if they are not probed yet, null if no encoder is available
+     */
+    public Entry findEncoder(final String mime, final boolean surfaceInput) {
+        final List<Entry> entries = findEncoders(mime, surfaceInput);
+        if (entries.isEmpty()) return null;
+        Entry result = entries.get(0);
+        synchronized (mProbes) {
+            // largest size that any candidate was probed with
+            Probe largest = null;
+            for (final Probe probe: mProbes.values()) {
+                if (!contains(entries, probe.name)) continue;
+                if ((largest == null) || (probe.width * probe.height > largest.width * largest.height)) {
+                    largest = probe;
+                }
+            }
+            if (largest == null) return result;
+            float best = 0;
+            for (final Entry entry: entries) {
+                final Probe probe = mProbes.get(probeKey(entry.name, largest.width, largest.height));
+                if ((probe != null) && (probe.fps > best)) {
+                    best = probe.fps;
+                    result = entry;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return frame rate that the encoder sustained at the size, -1 if not probed yet, 0 if it failed
+     */
+    public float getProbedFps(final String name, final int width, final int height) {
+        synchronized (mProbes) {
+            final Probe probe = mProbes.get(probeKey(name, width, height));
+            return probe != null ? probe.fps : -1;
+        }
+    }
+
+    /**
+     * keep the result of EncoderProbe, #save writes it to the file
+     * @param fps 0 if the encoder failed
+     */
+    public void putProbedFps(final String name, final int width, final int height, final float fps) {
+        synchronized (mProbes) {
+            mProbes.put(probeKey(name, width, height), new Probe(name, width, height, Math.max(0, fps)));
+        }
+    }
+
+    /**
+     * write entries and probe results to the file that this cache was loaded from
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (mFile == null) return;
+        final List<Probe> probes;
+        synchronized (mProbes) {
+            probes = new ArrayList<Probe>(mProbes.values());
+        }
+        write(mFile, mFingerprint, mEntries, probes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s{%s,entries=%d,%s in %d[us]}", TAG, mFingerprint,
+            mEntries.size(), mFromFile ? "loaded" : "scanned", mLoadTimeUs);
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private static String probeKey(final String name, final int width, final int height) {
+        return name + "@" + width + "x" + height;
+    }
+
+    private static boolean contains(final List<Entry> entries, final String name) {
+        for (final Entry entry: entries) {
+            if (entry.name.equals(name)) return true;
+        }
+        return false;
+    }
+
+    private static Entry toEntry(final String name, final String type, final MediaCodecInfo.CodecCapabilities caps) {
+        final int n = caps.profileLevels != null ? caps.profileLevels.length : 0;
+        final int[] profileLevels = new int[n * 2];
+        for (int i = 0; i < n; i++) {
+            profileLevels[i * 2] = caps.profileLevels[i].profile;
+            profileLevels[i * 2 + 1] = caps.profileLevels[i].level;
+        }
+        final MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities(); // API >= 21
+        if (video != null) {
+            final Range<Integer> widths = video.getSupportedWidths();
+            final Range<Integer> heights = video.getSupportedHeights();
+            final Range<Integer> bitRates = video.getBitrateRange();
+            int bitrateModes = 0;
+            int minQuality = 0, maxQuality = 0;
+            final MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+            if (encoder != null) {
+                final int[] modes = {
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR,
+                };
+                for (final int mode: modes) {
+                    if (encoder.isBitrateModeSupported(mode)) bitrateModes |= 1 << mode;
+                }
+                final Range<Integer> quality = Build.VERSION.SDK_INT >= 28 ? getQualityRange(encoder) : null;
+                if (quality != null) {
+                    minQuality = quality.getLower();
+                    maxQuality = quality.getUpper();
+                }
+            }
+            return new Entry(name, type, caps.colorFormats, profileLevels,
+                widths.getLower(), widths.getUpper(), heights.getLower(), heights.getUpper(),
+                bitRates.getLower(), bitRates.getUpper(), bitrateModes, minQuality, maxQuality);
+        }
+        final MediaCodecInfo.AudioCapabilities audio = caps.getAudioCapabilities();
+        final Range<Integer> bitRates = audio != null ? audio.getBitrateRange() : null;
+        return new Entry(name, type, caps.colorFormats, profileLevels, 0, 0, 0, 0,
+            bitRates != null ? bitRates.getLower() : 0, bitRates != null ? bitRates.getUpper() : 0);
+    }
+
+    /**
+     * EncoderCapabilities#getQualityRange is API 28, newer than compileSdkVersion
+     * @return null if not available
+     */
+    @SuppressWarnings("unchecked")
+    private static Range<Integer> getQualityRange(final MediaCodecInfo.EncoderCapabilities encoder) {
+        try {
+            final Method method = encoder.getClass().getMethod("getQualityRange");
+            return (Range<Integer>)method.invoke(encoder);
+        } catch (final Exception e) {
+            Log.w(TAG, "getQualityRange:", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param probes probe results in the file are added
+     * @return null if the file was written by other build
+     */
+    /*package*/ static List<Entry> read(final File file, final String fingerprint, final List<Probe> probes) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) throw new IOException("not a cache file");
+            if (!in.readUTF().equals(fingerprint)) return null;
+            final int count = in.readInt();
+            if ((count < 0) || (count > 4096)) throw new IOException("wrong entry count " + count);
+            final List<Entry> result = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                final String name = in.readUTF();
+                final String mime = in.readUTF();
+                final int[] colorFormats = readInts(in);
+                final int[] profileLevels = readInts(in);
+                result.add(new Entry(name, mime, colorFormats, profileLevels,
+                    in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readInt()));
+            }
+            final int probeCount = in.readInt();
+            if ((probeCount < 0) || (probeCount > 4096)) throw new IOException("wrong probe count " + probeCount);
+            for (int i = 0; i < probeCount; i++) {
+                probes.add(new Probe(in.readUTF(), in.readInt(), in.readInt(), in.readFloat()));
+            }
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * write to temporary file and rename it, so that a reader never sees partial file
+     */
+    /*package*/ static void write(final File file, final String fingerprint,
+        final List<Entry> entries, final List<Probe> probes) throws IOException {
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(entries.size());
+            for (final Entry entry: entries) {
+                out.writeUTF(entry.name);
+                out.writeUTF(entry.mime);
+                writeInts(out, entry.colorFormats);
+                writeInts(out, entry.profileLevels);
+                out.writeInt(entry.minWidth);
+                out.writeInt(entry.maxWidth);
+                out.writeInt(entry.minHeight);
+                out.writeInt(entry.maxHeight);
+                out.writeInt(entry.minBitRate);
+                out.writeInt(entry.maxBitRate);
+                out.writeInt(entry.bitrateModes);
+                out.writeInt(entry.minQuality);
+                out.writeInt(entry.maxQuality);
+            }
+            out.writeInt(probes.size());
+            for (final Probe probe: probes) {
+                out.writeUTF(probe.name);
+                out.writeInt(probe.width);
+                out.writeInt(probe.height);
+                out.writeFloat(probe.fps);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("failed to rename " + tmp);
+        }
+    }
+
+    private static int[] readInts(final DataInputStream in) throws IOException {
+        final int n = in.readUnsignedShort();
+        final int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = in.readInt();
+        }
+        return result;
+    }
+
+    private static void writeInts(final DataOutputStream out, final int[] values) throws IOException {
+        out.writeShort(values.length);
+        for (final int value: values) {
+            out.writeInt(value);
+        }
+    }
+}
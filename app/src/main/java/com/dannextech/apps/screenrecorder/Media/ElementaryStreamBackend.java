@@ -0,0 +1,341 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MuxerBackend that skips MP4 muxing and writes raw elementary streams.
+ * H.264 is written as Annex-B byte stream("xxx.h264") and AAC as ADTS frames("xxx.aac"),
+ * each into its own append-only file. SPS/PPS are repeated before every key frame,
+ * so both streams are self-delimiting and decodable from any key frame/ADTS header.
+ * Each stream has a tiny index("xxx.h264.idx") that holds the track format and
+ * fixed size records of offset, size, presentation time and flags of each sample.
+ * Index records are written after the data they refer to, so truncating either file
+ * at any byte leaves a consistent prefix. ElementaryStreamRemuxer converts them into MP4.
+ */
+public class ElementaryStreamBackend implements MuxerBackend {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "ElementaryStreamBackend";
+
+    public static final String EXT_H264 = ".h264";
+    public static final String EXT_AAC = ".aac";
+    public static final String EXT_INDEX = ".idx";
+    /**
+     * data and index are written at least this interval of presentation time
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_US = 1000000L;
+
+    /*package*/ static final int INDEX_MAGIC = 0x53525831;    // "SRX1"
+    /**
+     * offset, presentation time, size and flags
+     */
+    /*package*/ static final int INDEX_RECORD_SIZE = 8 + 8 + 4 + 4;
+    /*package*/ static final int ADTS_HEADER_SIZE = 7;
+    private static final int MAX_ADTS_FRAME_SIZE = 0x1fff;
+    private static final int INDEX_BATCH_SIZE = 4096;
+
+    private static final int[] SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350,
+    };
+
+    private static class Stream {
+        final TrackFormat format;
+        final String path;
+        /**
+         * SPS/PPS in Annex-B written before each key frame, null for audio
+         */
+        ByteBuffer parameterSets;
+        /**
+         * ADTS header template, null for video
+         */
+        ByteBuffer adtsHeader;
+        BlockFileWriter output;
+        FileOutputStream indexStream;
+        FileChannel index;
+        final ByteBuffer indexBatch = ByteBuffer.allocateDirect(INDEX_BATCH_SIZE);
+        long indexSize;
+
+        Stream(final TrackFormat format, final String path) {
+            this.format = new TrackFormat(format);
+            this.path = path;
+        }
+    }
+
+    private final String mBasePath;
+    private final BlockFileWriter.Config mOutputConfig;
+    private final List<Stream> mStreams = new ArrayList<Stream>();
+    private long mFlushIntervalUs = DEFAULT_FLUSH_INTERVAL_US;
+    private long mLastFlushPts = -1;
+    private boolean mIsStarted;
+
+    public ElementaryStreamBackend(final String basePath) {
+        this(basePath, null);
+    }
+
+    /**
+     * @param basePath output path without extension, ".h264" and ".aac" are appended
+     * @param outputConfig write and sync policy of stream files, null means default
+     */
+    public ElementaryStreamBackend(final String basePath, final BlockFileWriter.Config outputConfig) {
+        if (basePath == null) throw new NullPointerException("base path is null");
+        mBasePath = basePath;
+        mOutputConfig = outputConfig != null ? outputConfig : new BlockFileWriter.Config();
+    }
+
+    /**
+     * @param intervalUs how often data and index are written to the file in presentation time
+     */
+    public synchronized void setFlushInterval(final long intervalUs) {
+        mFlushIntervalUs = Math.max(0, intervalUs);
+    }
+
+    @Override
+    public synchronized int addTrack(final TrackFormat format) {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        Mp4Format.checkSupported(format);
+        final String path = mBasePath + (format.isVideo() ? EXT_H264 : EXT_AAC);
+        for (final Stream stream: mStreams) {
+            if (stream.path.equals(path)) throw new IllegalArgumentException("only one track per type:" + path);
+        }
+        final Stream stream = new Stream(format, path);
+        if (format.isVideo()) {
+            stream.parameterSets = createParameterSets(format);
+        } else {
+            stream.adtsHeader = createAdtsHeader(format);
+        }
+        mStreams.add(stream);
+        return mStreams.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        if (mStreams.isEmpty()) throw new IllegalStateException("no track");
+        try {
+            for (final Stream stream: mStreams) {
+                final BlockFileWriter.Config config = mOutputConfig.copy();
+                if (config.bitRate <= 0) {
+                    config.bitRate = stream.format.getInteger(MediaFormat.KEY_BIT_RATE, 0);
+                }
+                stream.output = new BlockFileWriter(stream.path, config);
+                stream.indexStream = new FileOutputStream(stream.path + EXT_INDEX);
+                stream.index = stream.indexStream.getChannel();
+                final byte[] format = Mp4Journal.serialize(stream.format);
+                final ByteBuffer header = ByteBuffer.allocate(8 + format.length);
+                header.putInt(INDEX_MAGIC).putInt(format.length).put(format).flip();
+                while (header.hasRemaining()) {
+                    stream.indexSize += stream.index.write(header);
+                }
+            }
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+        mIsStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        // codec config is already written before each key frame/in each ADTS header
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        if (info.size <= 0) return;
+        final Stream stream = mStreams.get(trackIndex);
+        final ByteBuffer data = byteBuf.duplicate();
+        data.limit(info.offset + info.size).position(info.offset);
+        final long offset = stream.output.getPosition();
+        int size = info.size;
+        if (stream.adtsHeader != null) {
+            if (info.size + ADTS_HEADER_SIZE > MAX_ADTS_FRAME_SIZE) {
+                Log.w(TAG, "too large AAC frame, dropped:" + info.size);
+                return;
+            }
+            setFrameLength(stream.adtsHeader, info.size + ADTS_HEADER_SIZE);
+            stream.adtsHeader.rewind();
+            stream.output.write(stream.adtsHeader, data);
+            size += ADTS_HEADER_SIZE;
+        } else if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            stream.parameterSets.rewind();
+            size += stream.parameterSets.remaining();
+            stream.output.write(stream.parameterSets, data);
+        } else {
+            stream.output.write(data);
+        }
+        if (stream.indexBatch.remaining() < INDEX_RECORD_SIZE) {
+            flush();
+        }
+        stream.indexBatch.putLong(offset).putLong(info.presentationTimeUs).putInt(size).putInt(info.flags);
+        if (mLastFlushPts < 0) {
+            mLastFlushPts = info.presentationTimeUs;
+        } else if (info.presentationTimeUs - mLastFlushPts >= mFlushIntervalUs) {
+            flush();
+            mLastFlushPts = info.presentationTimeUs;
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        mIsStarted = false;
+        try {
+            flush();
+        } finally {
+            close();
+        }
+        if (DEBUG) Log.v(TAG, "stop:" + mBasePath);
+    }
+
+    @Override
+    public synchronized void release() {
+        mIsStarted = false;
+        try {
+            close();
+        } catch (final IOException e) {
+            Log.w(TAG, "release", e);
+        }
+    }
+
+    /**
+     * @return base path without extension
+     */
+    @Override
+    public String getOutputPath() {
+        return mBasePath;
+    }
+
+    /**
+     * @return paths of stream files in the order of tracks
+     */
+    public synchronized List<String> getStreamPaths() {
+        final List<String> result = new ArrayList<String>();
+        for (final Stream stream: mStreams) {
+            result.add(stream.path);
+        }
+        return result;
+    }
+
+    /**
+     * @return total bytes of indexes written so far
+     */
+    public synchronized long getIndexSize() {
+        long result = 0;
+        for (final Stream stream: mStreams) {
+            result += stream.indexSize;
+        }
+        return result;
+    }
+
+//********************************************************************************
+//********************************************************************************
+    /**
+     * write data of all streams first, then index records that refer them
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        for (final Stream stream: mStreams) {
+            stream.output.flush();
+        }
+        for (final Stream stream: mStreams) {
+            final ByteBuffer batch = stream.indexBatch;
+            batch.flip();
+            while (batch.hasRemaining()) {
+                stream.indexSize += stream.index.write(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private void close() throws IOException {
+        IOException error = null;
+        for (final Stream stream: mStreams) {
+            try {
+                if ((stream.output != null) && !stream.output.isClosed()) stream.output.close();
+            } catch (final IOException e) {
+                error = e;
+            }
+            try {
+                if (stream.indexStream != null) stream.indexStream.close();
+            } catch (final IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    /**
+     * @return SPS and PPS in the codec specific data, each with 4 bytes start code
+     */
+    private static ByteBuffer createParameterSets(final TrackFormat format) {
+        final byte[] csd0 = format.getBytes(TrackFormat.KEY_CSD_0);
+        final byte[] csd1 = format.getBytes(TrackFormat.KEY_CSD_1);
+        final ByteBuffer result = ByteBuffer.allocateDirect(
+            (csd0 != null ? csd0.length + 4 : 0) + (csd1 != null ? csd1.length + 4 : 0));
+        putWithStartCode(result, csd0);
+        putWithStartCode(result, csd1);
+        result.flip();
+        return result;
+    }
+
+    private static void putWithStartCode(final ByteBuffer dst, final byte[] nal) {
+        if (nal == null) return;
+        final boolean hasStartCode = (nal.length >= 4) && (nal[0] == 0) && (nal[1] == 0)
+            && ((nal[2] == 1) || ((nal[2] == 0) && (nal[3] == 1)));
+        if (!hasStartCode) {
+            dst.putInt(1);
+        }
+        dst.put(nal);
+    }
+
+    /**
+     * @return ADTS header of AAC without CRC, frame length is set for each frame
+     */
+    private static ByteBuffer createAdtsHeader(final TrackFormat format) {
+        final byte[] asc = format.getBytes(TrackFormat.KEY_CSD_0);
+        int objectType = 2;     // AAC-LC
+        int freqIndex = 15;
+        int channelConfig = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+        if ((asc != null) && (asc.length >= 2)) {
+            objectType = (asc[0] & 0xff) >> 3;
+            freqIndex = ((asc[0] & 0x07) << 1) | ((asc[1] & 0xff) >> 7);
+            channelConfig = (asc[1] >> 3) & 0x0f;
+        }
+        if ((objectType < 1) || (objectType > 4)) {
+            // ADTS can carry only main, LC, SSR and LTP
+            objectType = 2;
+        }
+        if (freqIndex >= SAMPLE_RATES.length) {
+            freqIndex = 4;
+            final int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
+            for (int i = 0; i < SAMPLE_RATES.length; i++) {
+                if (SAMPLE_RATES[i] == sampleRate) {
+                    freqIndex = i;
+                    break;
+                }
+            }
+        }
+        final ByteBuffer result = ByteBuffer.allocateDirect(ADTS_HEADER_SIZE);
+        result.put((byte)0xff);
+        result.put((byte)0xf1);     // MPEG-4, layer 0, protection absent
+        result.put((byte)(((objectType - 1) << 6) | (freqIndex << 2) | ((channelConfig >> 2) & 0x01)));
+        result.put((byte)((channelConfig & 0x03) << 6));
+        result.put((byte)0);
+        result.put((byte)0x1f);     // buffer fullness 0x7ff(variable bit rate)
+        result.put((byte)0xfc);
+        result.flip();
+        return result;
+    }
+
+    private static void setFrameLength(final ByteBuffer header, final int length) {
+        header.put(3, (byte)((header.get(3) & 0xfc) | ((length >> 11) & 0x03)));
+        header.put(4, (byte)(length >> 3));
+        header.put(5, (byte)(((length & 0x07) << 5) | 0x1f));
+    }
+}
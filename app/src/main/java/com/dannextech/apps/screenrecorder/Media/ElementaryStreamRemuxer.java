@@ -0,0 +1,207 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Convert elementary streams written by ElementaryStreamBackend into MP4.
+ * Samples are read by their index records, records that refer data beyond the end of
+ * the stream file(e.g. the app died while recording) and incomplete records are ignored.
+ */
+public class ElementaryStreamRemuxer {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "ElementaryStreamRemuxer";
+
+    private static class Stream {
+        final String path;
+        final TrackFormat format;
+        long[] offsets = new long[256];
+        long[] pts = new long[256];
+        int[] sizes = new int[256];
+        int[] flags = new int[256];
+        int count;
+        int next;
+        int trackIndex;
+
+        Stream(final String path, final TrackFormat format) {
+            this.path = path;
+            this.format = format;
+        }
+
+        void add(final long offset, final long presentationTimeUs, final int size, final int flag) {
+            if (count == offsets.length) {
+                final int n = count * 2;
+                final long[] o = new long[n];
+                System.arraycopy(offsets, 0, o, 0, count);
+                offsets = o;
+                final long[] p = new long[n];
+                System.arraycopy(pts, 0, p, 0, count);
+                pts = p;
+                final int[] s = new int[n];
+                System.arraycopy(sizes, 0, s, 0, count);
+                sizes = s;
+                final int[] f = new int[n];
+                System.arraycopy(flags, 0, f, 0, count);
+                flags = f;
+            }
+            offsets[count] = offset;
+            pts[count] = presentationTimeUs;
+            sizes[count] = size;
+            flags[count] = flag;
+            count++;
+        }
+    }
+
+    private ElementaryStreamRemuxer() {
+        // never be instantiated
+    }
+
+    /**
+     * remux into MP4 file
+     * @param basePath base path that was passed to ElementaryStreamBackend
+     * @param outputPath
+     * @return number of samples written
+     * @throws IOException
+     */
+    public static int remux(final String basePath, final String outputPath) throws IOException {
+        final Mp4Writer writer = new Mp4Writer(outputPath, false, null);
+        try {
+            return remux(basePath, writer);
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * remux into the muxer, samples of all streams are written in presentation time order.
+     * The muxer is started and stopped by this method, but not released.
+     * @param basePath base path that was passed to ElementaryStreamBackend
+     * @param output
+     * @return number of samples written
+     * @throws IOException
+     * @throws IllegalArgumentException no stream found
+     */
+    public static int remux(final String basePath, final MuxerBackend output) throws IOException {
+        final List<Stream> streams = new ArrayList<Stream>();
+        final String[] exts = { ElementaryStreamBackend.EXT_H264, ElementaryStreamBackend.EXT_AAC };
+        for (final String ext: exts) {
+            final Stream stream = readIndex(basePath + ext);
+            if ((stream != null) && (stream.count > 0)) streams.add(stream);
+        }
+        if (streams.isEmpty()) throw new IllegalArgumentException("no stream found:" + basePath);
+        for (final Stream stream: streams) {
+            stream.trackIndex = output.addTrack(stream.format);
+        }
+        final List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+        int result = 0;
+        try {
+            for (final Stream stream: streams) {
+                files.add(new RandomAccessFile(stream.path, "r"));
+            }
+            output.start();
+            ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+            final SampleInfo info = new SampleInfo();
+            for ( ; ; ) {
+                // stream that has the earliest sample
+                int index = -1;
+                for (int i = 0; i < streams.size(); i++) {
+                    final Stream stream = streams.get(i);
+                    if ((stream.next < stream.count)
+                        && ((index < 0) || (stream.pts[stream.next] < streams.get(index).pts[streams.get(index).next]))) {
+                        index = i;
+                    }
+                }
+                if (index < 0) break;
+                final Stream stream = streams.get(index);
+                final int i = stream.next++;
+                if (buf.capacity() < stream.sizes[i]) {
+                    buf = ByteBuffer.allocateDirect(stream.sizes[i]);
+                }
+                buf.clear();
+                buf.limit(stream.sizes[i]);
+                final FileChannel channel = files.get(index).getChannel();
+                long pos = stream.offsets[i];
+                while (buf.hasRemaining()) {
+                    final int n = channel.read(buf, pos);
+                    if (n < 0) throw new EOFException("unexpected end of " + stream.path);
+                    pos += n;
+                }
+                buf.flip();
+                int offset = 0;
+                if (!stream.format.isVideo()) {
+                    // ADTS header is 9 bytes when CRC is present
+                    offset = (buf.get(1) & 0x01) != 0
+                        ? ElementaryStreamBackend.ADTS_HEADER_SIZE : ElementaryStreamBackend.ADTS_HEADER_SIZE + 2;
+                    if (offset >= stream.sizes[i]) continue;
+                }
+                info.set(offset, stream.sizes[i] - offset, stream.pts[i], stream.flags[i]);
+                output.writeSampleData(stream.trackIndex, buf, info);
+                result++;
+            }
+            output.stop();
+        } finally {
+            for (final RandomAccessFile file: files) {
+                try {
+                    file.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+        if (DEBUG) Log.v(TAG, "remux:" + basePath + ",samples=" + result);
+        return result;
+    }
+
+//********************************************************************************
+//********************************************************************************
+    /**
+     * @param path path of the stream file
+     * @return null if the stream or its index does not exist
+     * @throws IOException
+     */
+    private static Stream readIndex(final String path) throws IOException {
+        final File file = new File(path);
+        final File indexFile = new File(path + ElementaryStreamBackend.EXT_INDEX);
+        if (!file.exists() || !indexFile.exists()) return null;
+        final long length = file.length();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            final Stream result;
+            try {
+                if (in.readInt() != ElementaryStreamBackend.INDEX_MAGIC) throw new IOException("not an index:" + indexFile);
+                final byte[] format = new byte[in.readInt()];
+                in.readFully(format);
+                result = new Stream(path, Mp4Journal.deserialize(format));
+            } catch (final EOFException e) {
+                Log.w(TAG, "incomplete index header:" + indexFile);
+                return null;
+            }
+            for ( ; ; ) {
+                try {
+                    final long offset = in.readLong();
+                    final long pts = in.readLong();
+                    final int size = in.readInt();
+                    final int flags = in.readInt();
+                    if ((offset < 0) || (size <= 0) || (offset + size > length)) break;
+                    result.add(offset, pts, size, flags);
+                } catch (final EOFException e) {
+                    break;  // the app died while writing this record
+                }
+            }
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copy of one encoded sample that waits in SampleQueue until it is written to the muxer.
+ * The data is kept in a pooled direct ByteBuffer, so instances should be returned
+ * to the pool with SampleQueue#recycle after use.
+ */
+public class EncodedSample {
+    public int trackIndex;
+    public long presentationTimeUs;
+    public int flags;
+    public int size;
+    /**
+     * encoded data, position is 0 and limit is size while the sample is queued
+     */
+    public ByteBuffer data;
+
+    /*package*/ EncodedSample(final int capacity) {
+        data = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * copy encoded data into this sample, backing buffer is expanded when it is too small
+     * @param src encoded data, its position and limit are not changed
+     * @param offset
+     * @param size
+     */
+    /*package*/ void set(final int trackIndex, final ByteBuffer src, final int offset, final int size,
+        final long presentationTimeUs, final int flags) {
+
+        if (data.capacity() < size) {
+            data = ByteBuffer.allocateDirect(SampleQueue.roundUpCapacity(size));
+        }
+        final int position = src.position();
+        final int limit = src.limit();
+        data.clear();
+        src.limit(offset + size).position(offset);
+        data.put(src);
+        data.flip();
+        src.limit(limit).position(position);
+        this.trackIndex = trackIndex;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+}
@@ -0,0 +1,378 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+import com.dannextech.apps.screenrecorder.Glutils.EglCore;
+import com.dannextech.apps.screenrecorder.Glutils.WindowSurface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measure frame rate that each encoder can sustain by encoding a short synthetic clip,
+ * because the first encoder with COLOR_FormatSurface is a software encoder on some devices
+ * and it can not keep up with the screen at full resolution.
+ * Results are kept in CodecCapabilityCache, so the probe runs once per build.
+ * #compare encodes the same clip with each VideoProfile to compare size and encode time.
+ */
+public class EncoderProbe {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "EncoderProbe";
+
+    private static final int DEFAULT_FRAME_COUNT = 60;
+    private static final int FRAME_RATE = 30;
+    private static final float BPP = 0.25f;
+    private static final long DRAIN_TIMEOUT_US = 10000;
+    private static final long EOS_TIMEOUT_MS = 3000;
+
+    /**
+     * create codec with its name
+     */
+    public interface CodecCreator {
+        public CodecBackend create(String name) throws IOException;
+    }
+
+    /**
+     * renders synthetic frames into the input of the codec
+     */
+    public interface FrameSource {
+        /**
+         * called after the codec is configured, before it starts
+         * @param codec
+         * @param surface input surface of the codec
+         * @param width
+         * @param height
+         */
+        public void prepare(CodecBackend codec, Surface surface, int width, int height);
+        public void render(int frame, long presentationTimeUs);
+        public void release();
+    }
+
+    public interface FrameSourceFactory {
+        public FrameSource create();
+    }
+
+    public static final CodecCreator MEDIA_CODEC_CREATOR = new CodecCreator() {
+        @Override
+        public CodecBackend create(final String name) throws IOException {
+            return new MediaCodecBackend(MediaCodec.createByCodecName(name));
+        }
+    };
+
+    /**
+     * clear the frame with changing color and a moving box, so that every frame has something to encode
+     */
+    public static final FrameSourceFactory GL_FRAME_SOURCE = new FrameSourceFactory() {
+        @Override
+        public FrameSource create() {
+            return new FrameSource() {
+                private EglCore mEglCore;
+                private WindowSurface mSurface;
+                private int mWidth, mHeight;
+
+                @Override
+                public void prepare(final CodecBackend codec, final Surface surface, final int width, final int height) {
+                    mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+                    mSurface = new WindowSurface(mEglCore, surface);
+                    mSurface.makeCurrent();
+                    mWidth = width;
+                    mHeight = height;
+                }
+
+                @Override
+                public void render(final int frame, final long presentationTimeUs) {
+                    final float phase = (frame % FRAME_RATE) / (float)FRAME_RATE;
+                    GLES20.glClearColor(phase, 1.0f - phase, 0.5f, 1.0f);
+                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                    final int size = Math.min(mWidth, mHeight) / 4;
+                    GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+                    GLES20.glScissor((int)((mWidth - size) * phase), (int)((mHeight - size) * phase), size, size);
+                    GLES20.glClearColor(1.0f, 1.0f - phase, phase, 1.0f);
+                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                    GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                    mSurface.setPresentationTime(presentationTimeUs * 1000L);
+                    // this blocks while the codec has no free input, so the loop runs at the speed of the encoder
+                    mSurface.swapBuffers();
+                }
+
+                @Override
+                public void release() {
+                    if (mSurface != null) {
+                        mSurface.release();
+                        mSurface = null;
+                    }
+                    if (mEglCore != null) {
+                        mEglCore.release();
+                        mEglCore = null;
+                    }
+                }
+            };
+        }
+    };
+
+    /**
+     * result of one encoder at one size
+     */
+    public static class Result {
+        public final String name;
+        public final int width;
+        public final int height;
+        /**
+         * 0 if the encoder failed
+         */
+        public final float fps;
+
+        private Result(final String name, final int width, final int height, final float fps) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s@%dx%d:%.1f[fps]", name, width, height, fps);
+        }
+    }
+
+    /**
+     * result of one profile of #compare
+     */
+    public static class Comparison {
+        /**
+         * resolved profile
+         */
+        public final VideoProfile profile;
+        /**
+         * null if the codec of the profile is not available
+         */
+        public final String name;
+        public final int frames;
+        public final long bytes;
+        /**
+         * time from the first input until the end of stream[ms]
+         */
+        public final long encodeTimeMs;
+
+        private Comparison(final VideoProfile profile, final String name,
+            final int frames, final long bytes, final long encodeTimeMs) {
+
+            this.profile = profile;
+            this.name = name;
+            this.frames = frames;
+            this.bytes = bytes;
+            this.encodeTimeMs = encodeTimeMs;
+        }
+
+        @Override
+        public String toString() {
+            if (name == null) return profile.name + ":not available";
+            return String.format(Locale.US, "%s@%s:frames=%d,%d[bytes],%d[ms]",
+                profile.name, name, frames, bytes, encodeTimeMs);
+        }
+    }
+
+    /**
+     * counters of one encoding
+     */
+    private static class Run {
+        int outputs;
+        long bytes;
+        /**
+         * time of the first and the last output
+         */
+        final long[] outputTimes = new long[2];
+        long startNs, endNs;
+    }
+
+    private final CodecCreator mCreator;
+    private final FrameSourceFactory mSourceFactory;
+    private int mFrameCount = DEFAULT_FRAME_COUNT;
+
+    public EncoderProbe() {
+        this(MEDIA_CODEC_CREATOR, GL_FRAME_SOURCE);
+    }
+
+    public EncoderProbe(final CodecCreator creator, final FrameSourceFactory sourceFactory) {
+        mCreator = creator;
+        mSourceFactory = sourceFactory;
+    }
+
+    /**
+     * set number of frames of the synthetic clip
+     * @param frameCount
+     */
+    public void setFrameCount(final int frameCount) {
+        if (frameCount < 2) throw new IllegalArgumentException("at least 2 frames are needed");
+        mFrameCount = frameCount;
+    }
+
+    /**
+     * probe every surface input encoder of the MIME type at each size that is not probed yet,
+     * and save the results to the cache file
+     * @param cache
+     * @param mime
+     * @param sizes pairs of width and height
+     * @return results of this call, empty if everything was probed before
+     */
+    public List<Result> probeAll(final CodecCapabilityCache cache, final String mime, final int... sizes) {
+        final List<Result> results = new ArrayList<Result>();
+        for (final CodecCapabilityCache.Entry entry: cache.findEncoders(mime, true)) {
+            for (int i = 0; i + 1 < sizes.length; i += 2) {
+                final int width = sizes[i], height = sizes[i + 1];
+                if (cache.getProbedFps(entry.name, width, height) >= 0) continue;
+                final float fps = entry.isSizeSupported(width, height) ? measure(entry.name, mime, width, height) : 0;
+                cache.putProbedFps(entry.name, width, height, fps);
+                results.add(new Result(entry.name, width, height, fps));
+            }
+        }
+        if (!results.isEmpty()) {
+            try {
+                cache.save();
+            } catch (final IOException e) {
+                Log.w(TAG, "probeAll:failed to save", e);
+            }
+            Log.i(TAG, "probeAll:" + results);
+        }
+        return results;
+    }
+
+    /**
+     * encode the synthetic clip as fast as possible
+     * @param name
+     * @param mime
+     * @param width
+     * @param height
+     * @return frames per second between the first and the last output, 0 if the encoder failed
+     */
+    public float measure(final String name, final String mime, final int width, final int height) {
+        final TrackFormat format = TrackFormat.createVideoFormat(mime, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, (int)(BPP * FRAME_RATE * width * height));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        final Run run = encode(name, format, width, height, FRAME_RATE);
+        if ((run == null) || (run.outputs < 2)) return 0;
+        final long elapsedNs = run.outputTimes[1] - run.outputTimes[0];
+        final float fps = elapsedNs > 0 ? (run.outputs - 1) * 1000000000f / elapsedNs : 0;
+        if (DEBUG) Log.v(TAG, "measure:" + name + "@" + width + "x" + height + "=" + fps);
+        return fps;
+    }
+
+    /**
+     * encode the synthetic clip with each profile and the encoder that recording would use,
+     * options that the encoder does not support are dropped as recording does
+     * @param cache
+     * @param profiles
+     * @param width
+     * @param height
+     * @return results in the same order as profiles
+     */
+    public List<Comparison> compare(final CodecCapabilityCache cache, final List<VideoProfile> profiles,
+        final int width, final int height) {
+
+        final List<Comparison> results = new ArrayList<Comparison>();
+        for (final VideoProfile src: profiles) {
+            final CodecCapabilityCache.Entry entry = cache.findEncoder(src.codec.mime, true);
+            if ((entry == null) || !entry.isSizeSupported(width, height)) {
+                results.add(new Comparison(src, null, 0, 0, 0));
+                continue;
+            }
+            final VideoProfile profile = src.resolve(cache, width, height);
+            final TrackFormat format = TrackFormat.createVideoFormat(profile.codec.mime, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, profile.bitRate > 0
+                ? profile.bitRate : (int)(BPP * profile.frameRate * width * height));
+            profile.applyTo(format);
+            final Run run = encode(entry.name, format, width, height, profile.frameRate);
+            results.add(run != null
+                ? new Comparison(profile, entry.name, run.outputs, run.bytes, (run.endNs - run.startNs) / 1000000L)
+                : new Comparison(profile, entry.name, 0, 0, 0));
+        }
+        Log.i(TAG, "compare:" + results);
+        return results;
+    }
+
+//********************************************************************************
+//********************************************************************************
+    /**
+     * encode the synthetic clip as fast as possible
+     * @return null if the encoder failed
+     */
+    private Run encode(final String name, final TrackFormat format, final int width, final int height,
+        final int frameRate) {
+
+        CodecBackend codec = null;
+        FrameSource source = null;
+        try {
+            codec = mCreator.create(name);
+            codec.configure(format);
+            final Surface surface = codec.createInputSurface();
+            source = mSourceFactory.create();
+            source.prepare(codec, surface, width, height);
+            codec.start();
+
+            final Run run = new Run();
+            final SampleInfo info = new SampleInfo();
+            run.startNs = System.nanoTime();
+            for (int i = 0; i < mFrameCount; i++) {
+                source.render(i, i * 1000000L / frameRate);
+                drain(codec, info, 0, run);
+            }
+            codec.signalEndOfInputStream();
+            final long limit = System.currentTimeMillis() + EOS_TIMEOUT_MS;
+            while (((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0)
+                && (System.currentTimeMillis() < limit)) {
+
+                drain(codec, info, DRAIN_TIMEOUT_US, run);
+            }
+            run.endNs = System.nanoTime();
+            return run;
+        } catch (final Exception e) {
+            // some encoders fail to configure at the size or with the options
+            Log.w(TAG, "encode:" + name, e);
+            return null;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (final Exception e) {
+                    // ignore
+                }
+                codec.release();
+            }
+            if (source != null) {
+                source.release();
+            }
+        }
+    }
+
+    /**
+     * drain available outputs, encoded frames are counted to the run
+     */
+    private static void drain(final CodecBackend codec, final SampleInfo info, final long timeoutUs, final Run run) {
+        boolean drained = false;
+        for ( ; ; ) {
+            final int index = codec.dequeueOutputBuffer(info, drained ? 0 : timeoutUs);
+            if (index == CodecBackend.INFO_TRY_AGAIN_LATER) break;
+            drained = true;
+            if (index < 0) continue;    // format or buffers changed
+            if ((info.size > 0) && ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0)) {
+                final long now = System.nanoTime();
+                if (run.outputs == 0) run.outputTimes[0] = now;
+                run.outputTimes[1] = now;
+                run.outputs++;
+                run.bytes += info.size;
+            }
+            codec.releaseOutputBuffer(index);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+        }
+    }
+}
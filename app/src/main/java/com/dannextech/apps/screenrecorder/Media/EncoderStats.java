@@ -0,0 +1,79 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.util.Locale;
+
+/**
+ * Counters collected by MediaEncoder while it drains its codec.
+ * They are dumped when the encoder is released so that the polling mode
+ * and the callback mode can be compared on the same device.
+ */
+public class EncoderStats {
+    private final String mName;
+    private String mMode = "";
+    private long mSamples;
+    private long mBytes;
+    private long mCpuTimeNs;
+    private long mLatencySumUs;
+    private long mMaxLatencyUs;
+
+    public EncoderStats(final String name) {
+        mName = name;
+    }
+
+    /*package*/ synchronized void setMode(final String mode) {
+        mMode = mode;
+    }
+
+    /**
+     * account one encoded sample that was passed to the muxer
+     * @param size size of encoded data in bytes
+     * @param latencyUs time from input of the sample to the codec until it was written, negative value is ignored
+     */
+    public synchronized void addSample(final int size, final long latencyUs) {
+        mSamples++;
+        mBytes += size;
+        if (latencyUs >= 0) {
+            mLatencySumUs += latencyUs;
+            if (latencyUs > mMaxLatencyUs)
+                mMaxLatencyUs = latencyUs;
+        }
+    }
+
+    /**
+     * account cpu time that the draining thread spent
+     * @param cpuTimeNs
+     */
+    public synchronized void addCpuTime(final long cpuTimeNs) {
+        if (cpuTimeNs > 0)
+            mCpuTimeNs += cpuTimeNs;
+    }
+
+    public synchronized long getSamples() {
+        return mSamples;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getCpuTimeNs() {
+        return mCpuTimeNs;
+    }
+
+    public synchronized long getAverageLatencyUs() {
+        return mSamples > 0 ? mLatencySumUs / mSamples : 0;
+    }
+
+    public synchronized long getMaxLatencyUs() {
+        return mMaxLatencyUs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "%s[%s]:samples=%d,bytes=%d,cpu=%.2f[ms](%.1f[us/sample]),latency avg=%d[us],max=%d[us]",
+                mName, mMode, mSamples, mBytes, mCpuTimeNs / 1000000f,
+                mSamples > 0 ? mCpuTimeNs / 1000f / mSamples : 0f,
+                getAverageLatencyUs(), mMaxLatencyUs);
+    }
+}
@@ -0,0 +1,600 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Deterministic CodecBackend that emits synthetic encoded samples without Android framework.
+ * Encoding latency, jitter and format change events can be configured so that
+ * threading, draining and timestamp handling of encoder and muxer can be tested
+ * and benchmarked on JVM.
+ * Video samples are Annex-B H.264 like NAL units with synthetic SPS/PPS,
+ * audio samples are AAC like frames with AudioSpecificConfig.
+ */
+public class FakeCodecBackend implements CodecBackend {
+
+    /**
+     * behaviour of fake codec
+     */
+    public static class Config {
+        /**
+         * time from input to output
+         */
+        public long latencyUs = 20000;
+        /**
+         * latency varies randomly within +-jitterUs
+         */
+        public long jitterUs = 0;
+        /**
+         * seed of random numbers for jitter and sample size
+         */
+        public long seed = 0;
+        /**
+         * report output format again after this number of samples, negative value means never
+         */
+        public int extraFormatChangeAt = -1;
+        /**
+         * limit output rate like a slow(e.g. software) encoder, 0 means unlimited
+         */
+        public int maxOutputFps = 0;
+        /**
+         * on callback mode, report Callback#onError instead of output after this number of samples
+         * and stop delivering events like a broken codec, negative value means never
+         */
+        public int errorAt = -1;
+        public int inputBufferCount = 4;
+        public int outputBufferCount = 8;
+        public boolean callbackSupported = true;
+        public PresentationClock.TimeSource timeSource = PresentationClock.SYSTEM_TIME_SOURCE;
+    }
+
+    /**
+     * create factory that creates FakeCodecBackend
+     * @param config this is shared by all codecs created by the factory
+     * @return
+     */
+    public static Factory factory(final Config config) {
+        return new Factory() {
+            @Override
+            public CodecBackend createEncoder(final String mime, final boolean surfaceInput) {
+                return new FakeCodecBackend(mime, surfaceInput, config);
+            }
+        };
+    }
+
+    private static final int DEFAULT_VIDEO_BIT_RATE = 2000000;
+    private static final int DEFAULT_AUDIO_BIT_RATE = 64000;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+    private static final byte[] SPS = { 0x67, 0x42, (byte)0xc0, 0x1f, (byte)0xda, 0x01, 0x40, 0x16, (byte)0xe8, 0x06, (byte)0xd0, (byte)0xa1, 0x35 };
+    private static final byte[] PPS = { 0x68, (byte)0xce, 0x06, (byte)0xe2 };
+    private static final int[] SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350,
+    };
+
+    private static class Pending {
+        long readyAtUs;
+        long presentationTimeUs;
+        int size;
+        int flags;
+    }
+
+    private final String mMime;
+    private final boolean mIsVideo;
+    private final boolean mSurfaceInput;
+    private final Config mConfig;
+    private final Random mRandom;
+    private final Object mSync = new Object();
+    private final ArrayDeque<Pending> mPending = new ArrayDeque<Pending>();
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<Integer>();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private boolean[] mOutputInUse;
+    private TrackFormat mInputFormat;
+    private TrackFormat mOutputFormat;
+    private Callback mCallback;
+    private Thread mCallbackThread;
+    private boolean mIsRunning;
+    private boolean mIsFailed;
+    private boolean mFormatReported;
+    private boolean mExtraFormatReported;
+    private boolean mInputEOS;
+    private boolean mConfigSent;
+    private long mLastReadyAtUs;
+    private long mOutputCount;
+    private long mInputCount;
+    private int mBitRate;
+    private int mContentBitRate;
+    private int mFrameRate;
+    private int mKeyFrameInterval;
+    private long mFrameCount;
+    private boolean mRequestKeyFrame;
+    private boolean mInputSuspended;
+
+    public FakeCodecBackend(final String mime, final boolean surfaceInput, final Config config) {
+        mMime = mime;
+        mIsVideo = (mime != null) && mime.startsWith("video/");
+        mSurfaceInput = surfaceInput;
+        mConfig = config != null ? config : new Config();
+        mRandom = new Random(mConfig.seed);
+    }
+
+    @Override
+    public String getName() {
+        return "fake." + mMime;
+    }
+
+    @Override
+    public boolean isCallbackSupported() {
+        return mConfig.callbackSupported;
+    }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        if (!mConfig.callbackSupported)
+            throw new UnsupportedOperationException("callback mode is not supported");
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(final TrackFormat format) {
+        mInputFormat = new TrackFormat(format);
+        mBitRate = format.getInteger(MediaFormat.KEY_BIT_RATE, mIsVideo ? DEFAULT_VIDEO_BIT_RATE : DEFAULT_AUDIO_BIT_RATE);
+        mFrameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE, DEFAULT_FRAME_RATE);
+        mKeyFrameInterval = Math.max(1, format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1) * mFrameRate);
+        final int maxSampleSize = Math.max(4096, maxSampleSize());
+        mInputBuffers = new ByteBuffer[mConfig.inputBufferCount];
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 8192));
+        }
+        mOutputBuffers = new ByteBuffer[mConfig.outputBufferCount];
+        mOutputInUse = new boolean[mOutputBuffers.length];
+        for (int i = 0; i < mOutputBuffers.length; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(maxSampleSize);
+        }
+        mOutputFormat = createOutputFormat(format);
+    }
+
+    /**
+     * there is no Surface on JVM, use #submitFrame to simulate a frame rendered into the input surface
+     * @return always null
+     */
+    @Override
+    public Surface createInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void start() {
+        synchronized (mSync) {
+            mIsRunning = true;
+            for (int i = 0; i < mInputBuffers.length; i++) {
+                mFreeInputs.add(i);
+            }
+        }
+        if ((mCallback != null) && (mConfig.timeSource == PresentationClock.SYSTEM_TIME_SOURCE)) {
+            mCallbackThread = new Thread(mCallbackTask, getName());
+            mCallbackThread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (mSync) {
+            mIsRunning = false;
+            mSync.notifyAll();
+        }
+        if ((mCallbackThread != null) && (mCallbackThread != Thread.currentThread())) {
+            try {
+                mCallbackThread.join();
+            } catch (final InterruptedException e) {
+                // ignore
+            }
+        }
+        mCallbackThread = null;
+    }
+
+    @Override
+    public void release() {
+        stop();
+        synchronized (mSync) {
+            mPending.clear();
+            mFreeInputs.clear();
+        }
+    }
+
+    /**
+     * simulate a frame that is rendered into the input surface
+     * @param presentationTimeUs
+     */
+    public void submitFrame(final long presentationTimeUs) {
+        if (!mSurfaceInput) throw new IllegalStateException("not a surface input codec");
+        synchronized (mSync) {
+            if (mInputSuspended) return;
+            schedule(presentationTimeUs, nextSampleSize(), 0);
+        }
+    }
+
+    /**
+     * frames submitted while suspended are dropped
+     */
+    @Override
+    public void setInputSuspended(final boolean suspended) {
+        synchronized (mSync) {
+            mInputSuspended = suspended;
+        }
+    }
+
+    /**
+     * the next video frame will be a key frame
+     */
+    @Override
+    public void requestSyncFrame() {
+        synchronized (mSync) {
+            mRequestKeyFrame = true;
+        }
+    }
+
+    /**
+     * change bit rate of following samples, samples are limited to the size of output buffers
+     * that were allocated with the bit rate of #configure
+     */
+    @Override
+    public void setVideoBitrate(final int bitRate) {
+        if (bitRate <= 0) throw new IllegalArgumentException("bit rate should be positive");
+        synchronized (mSync) {
+            mBitRate = bitRate;
+        }
+    }
+
+    /**
+     * simulate content that needs only this bit rate(e.g. static screen), video samples become
+     * smaller than the target bit rate when the target exceeds this
+     * @param bitRate 0 means the content always needs more than the target
+     */
+    public void setContentBitRate(final int bitRate) {
+        synchronized (mSync) {
+            mContentBitRate = bitRate;
+        }
+    }
+
+    public int getBitRate() {
+        synchronized (mSync) {
+            return mBitRate;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        synchronized (mSync) {
+            final Integer index = mFreeInputs.poll();
+            return index != null ? index : INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        synchronized (mSync) {
+            if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                scheduleEOS(presentationTimeUs);
+            } else {
+                schedule(presentationTimeUs, nextSampleSize(size), 0);
+            }
+            // input is consumed immediately, latency is applied to output
+            mFreeInputs.add(index);
+            mSync.notifyAll();
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (mSync) {
+            scheduleEOS(mLastReadyAtUs);
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final SampleInfo info, final long timeoutUs) {
+        synchronized (mSync) {
+            if (!mFormatReported) {
+                mFormatReported = true;
+                return INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            if (!mExtraFormatReported && (mConfig.extraFormatChangeAt >= 0)
+                && (mOutputCount >= mConfig.extraFormatChangeAt)) {
+                mExtraFormatReported = true;
+                return INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            final long limitUs = nowUs() + timeoutUs;
+            for ( ; ; ) {
+                final int index = dequeueReadyLocked(info);
+                if (index != INFO_TRY_AGAIN_LATER) return index;
+                final long waitUs = waitTimeLocked(limitUs);
+                if (waitUs <= 0) return INFO_TRY_AGAIN_LATER;
+                try {
+                    mSync.wait(Math.max(1, waitUs / 1000), 0);
+                } catch (final InterruptedException e) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        synchronized (mSync) {
+            mOutputInUse[index] = false;
+            mSync.notifyAll();
+        }
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return new TrackFormat(mOutputFormat);
+    }
+
+    public TrackFormat getInputFormat() {
+        return mInputFormat;
+    }
+
+    public long getInputCount() {
+        synchronized (mSync) {
+            return mInputCount;
+        }
+    }
+
+    public long getOutputCount() {
+        synchronized (mSync) {
+            return mOutputCount;
+        }
+    }
+
+    /**
+     * deliver callback events that are ready on the caller thread.
+     * On callback mode with a fake time source, tests should call this after advancing time.
+     * @return number of output buffers delivered
+     */
+    public int pump() {
+        final Callback callback = mCallback;
+        if (callback == null) return 0;
+        int result = 0;
+        final SampleInfo info = new SampleInfo();
+        for ( ; ; ) {
+            int index;
+            Integer input;
+            final boolean failed;
+            synchronized (mSync) {
+                if (!mIsRunning || mIsFailed) break;
+                failed = mIsFailed = (mConfig.errorAt >= 0) && (mOutputCount >= mConfig.errorAt);
+                input = failed ? null : mFreeInputs.poll();
+                index = (failed || (input != null)) ? INFO_TRY_AGAIN_LATER : dequeueOutputBuffer(info, 0);
+            }
+            if (failed) {
+                callback.onError(this, new IllegalStateException("fake codec error"));
+                break;
+            } else if (input != null) {
+                callback.onInputBufferAvailable(this, input);
+            } else if (index == INFO_OUTPUT_FORMAT_CHANGED) {
+                callback.onOutputFormatChanged(this, getOutputFormat());
+            } else if (index >= 0) {
+                callback.onOutputBufferAvailable(this, index, info);
+                result++;
+            } else {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private final Runnable mCallbackTask = new Runnable() {
+        @Override
+        public void run() {
+            for ( ; ; ) {
+                pump();
+                synchronized (mSync) {
+                    if (!mIsRunning) break;
+                    final long waitUs = waitTimeLocked(nowUs() + 10000);
+                    if (waitUs > 0) {
+                        try {
+                            mSync.wait(Math.max(1, waitUs / 1000), 0);
+                        } catch (final InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    };
+
+//********************************************************************************
+//********************************************************************************
+    private long nowUs() {
+        return mConfig.timeSource.nanoTime() / 1000L;
+    }
+
+    /**
+     * @param limitUs
+     * @return time to wait until next output is ready or limit, 0 if waiting is not possible
+     */
+    private long waitTimeLocked(final long limitUs) {
+        // with a fake time source, time does not advance while waiting
+        if (!mIsRunning || (mConfig.timeSource != PresentationClock.SYSTEM_TIME_SOURCE)) return 0;
+        final long now = nowUs();
+        long until = limitUs;
+        final Pending head = mPending.peek();
+        if ((head != null) && (head.readyAtUs < until))
+            until = head.readyAtUs;
+        return until - now;
+    }
+
+    private int dequeueReadyLocked(final SampleInfo info) {
+        final Pending head = mPending.peek();
+        if ((head == null) || (head.readyAtUs > nowUs())) return INFO_TRY_AGAIN_LATER;
+        int index = -1;
+        for (int i = 0; i < mOutputInUse.length; i++) {
+            if (!mOutputInUse[i]) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) return INFO_TRY_AGAIN_LATER;
+        mPending.poll();
+        mOutputInUse[index] = true;
+        final ByteBuffer buf = mOutputBuffers[index];
+        buf.clear();
+        if (!mConfigSent && (head.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+            // first output is codec specific data like MediaCodec
+            mConfigSent = true;
+            writeCodecConfig(buf);
+            buf.flip();
+            info.set(0, buf.limit(), head.presentationTimeUs, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            mPending.addFirst(head);
+            return index;
+        }
+        if (head.size > 0) {
+            writePayload(buf, Math.min(head.size, buf.capacity()), (head.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        }
+        buf.flip();
+        info.set(0, buf.limit(), head.presentationTimeUs, head.flags);
+        mOutputCount++;
+        return index;
+    }
+
+    private void schedule(final long presentationTimeUs, final int size, final int flags) {
+        int sampleFlags = flags;
+        if (mIsVideo) {
+            if (mRequestKeyFrame || (mFrameCount % mKeyFrameInterval == 0)) {
+                sampleFlags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+                mRequestKeyFrame = false;
+                // restart GOP from this frame
+                mFrameCount = 0;
+            }
+            mFrameCount++;
+        } else {
+            sampleFlags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        }
+        final Pending pending = new Pending();
+        pending.presentationTimeUs = presentationTimeUs;
+        pending.size = (sampleFlags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 && mIsVideo ? size * 4 : size;
+        pending.flags = sampleFlags;
+        pending.readyAtUs = nextReadyTime();
+        mPending.add(pending);
+        mInputCount++;
+        mSync.notifyAll();
+    }
+
+    private void scheduleEOS(final long presentationTimeUs) {
+        if (mInputEOS) return;
+        mInputEOS = true;
+        final Pending pending = new Pending();
+        pending.presentationTimeUs = presentationTimeUs;
+        pending.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        pending.readyAtUs = nextReadyTime();
+        mPending.add(pending);
+        mSync.notifyAll();
+    }
+
+    /**
+     * outputs are delivered in input order even with jitter
+     * @return
+     */
+    private long nextReadyTime() {
+        long latency = mConfig.latencyUs;
+        if (mConfig.jitterUs > 0) {
+            latency += (long)((mRandom.nextDouble() * 2 - 1) * mConfig.jitterUs);
+        }
+        final long minIntervalUs = mConfig.maxOutputFps > 0 ? 1000000L / mConfig.maxOutputFps : 0;
+        final long readyAt = Math.max(mLastReadyAtUs + minIntervalUs, nowUs() + Math.max(0, latency));
+        mLastReadyAtUs = readyAt;
+        return readyAt;
+    }
+
+    private int nextSampleSize() {
+        // average size of non key frames, key frames are 4 times larger
+        final int bitRate = mContentBitRate > 0 ? Math.min(mBitRate, mContentBitRate) : mBitRate;
+        final int base = (int)((long)bitRate / 8 / mFrameRate * mKeyFrameInterval / (mKeyFrameInterval + 3));
+        return Math.max(START_CODE.length + 2, (int)(base * (0.9 + mRandom.nextDouble() * 0.2)));
+    }
+
+    private int nextSampleSize(final int inputSize) {
+        if (mIsVideo) return nextSampleSize();
+        // 16bit mono PCM in, AAC out
+        final int samples = Math.max(1, inputSize / 2);
+        final int sampleRate = Math.max(1, mInputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE, 44100));
+        return Math.max(4, (int)((long)mBitRate * samples / sampleRate / 8));
+    }
+
+    private int maxSampleSize() {
+        if (mIsVideo) {
+            return (int)((long)mBitRate / 8 / Math.max(1, mFrameRate) * 6) + 1024;
+        } else {
+            return Math.max(1024, (int)((long)mBitRate * AAC_FRAME_SAMPLES * 8 / 44100 / 8));
+        }
+    }
+
+    private void writeCodecConfig(final ByteBuffer buf) {
+        if (mIsVideo) {
+            buf.put(START_CODE).put(SPS).put(START_CODE).put(PPS);
+        } else {
+            buf.put(mOutputFormat.getByteBuffer(TrackFormat.KEY_CSD_0));
+        }
+    }
+
+    private void writePayload(final ByteBuffer buf, final int size, final boolean isKeyFrame) {
+        int remain = size;
+        if (mIsVideo) {
+            buf.put(START_CODE);
+            buf.put((byte)(isKeyFrame ? 0x65 : 0x41));
+            remain -= START_CODE.length + 1;
+        }
+        // filler never contains zero bytes, so it never looks like a start code
+        for (int i = 0; i < remain; i++) {
+            buf.put((byte)(0x80 | (i & 0x7f)));
+        }
+    }
+
+    private TrackFormat createOutputFormat(final TrackFormat input) {
+        final TrackFormat result = new TrackFormat(input);
+        if (mIsVideo) {
+            final ByteBuffer sps = ByteBuffer.allocate(START_CODE.length + SPS.length);
+            sps.put(START_CODE).put(SPS).flip();
+            final ByteBuffer pps = ByteBuffer.allocate(START_CODE.length + PPS.length);
+            pps.put(START_CODE).put(PPS).flip();
+            result.setByteBuffer(TrackFormat.KEY_CSD_0, sps);
+            result.setByteBuffer(TrackFormat.KEY_CSD_1, pps);
+        } else {
+            final int sampleRate = input.getInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
+            final int channels = input.getInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+            int freqIndex = 4;
+            for (int i = 0; i < SAMPLE_RATES.length; i++) {
+                if (SAMPLE_RATES[i] == sampleRate) {
+                    freqIndex = i;
+                    break;
+                }
+            }
+            // AudioSpecificConfig of AAC-LC
+            final ByteBuffer asc = ByteBuffer.allocate(2);
+            asc.put((byte)((2 << 3) | (freqIndex >> 1)));
+            asc.put((byte)(((freqIndex & 1) << 7) | (channels << 3)));
+            asc.flip();
+            result.setByteBuffer(TrackFormat.KEY_CSD_0, asc);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,303 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Moves moov box of MP4 file in front of mdat(so called faststart) for progressive playback.
+ * Chunk offsets in stco/co64 are patched, stco is upgraded to co64 when the offsets exceed 32 bits.
+ * Only moov is loaded on memory, other boxes including mdat are copied
+ * with FileChannel#transferTo so that the kernel can copy them without heap buffers.
+ */
+public class FastStartFinalizer {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "FastStartFinalizer";
+
+    private static final long MAX_U32 = 0xffffffffL;
+    /**
+     * boxes that contain stco/co64 in their descendants
+     */
+    private static final String[] CONTAINERS = { "moov", "trak", "mdia", "minf", "stbl" };
+
+    private static ExecutorService sExecutor;
+
+    private FastStartFinalizer() {
+        // never be instantiated
+    }
+
+    /**
+     * move moov to the front of the file on background thread, the file is replaced.
+     * Files are processed one by one in the order of submission.
+     * @param file
+     * @return true if the file was rewritten, false if moov is already in front of mdat
+     */
+    public static Future<Boolean> submit(final File file) {
+        synchronized (FastStartFinalizer.class) {
+            if (sExecutor == null) {
+                sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return sExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        return process(file);
+                    } catch (final IOException e) {
+                        Log.e(TAG, "failed to finalize " + file, e);
+                        throw e;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * move moov to the front of the file, the file is replaced via temporary file in the same directory
+     * @param file
+     * @return true if the file was rewritten, false if moov is already in front of mdat
+     * @throws IOException
+     */
+    public static boolean process(final File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".faststart");
+        final boolean result;
+        try {
+            result = process(file, tmp);
+        } catch (final IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (result && !tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("failed to replace " + file);
+        }
+        return result;
+    }
+
+    /**
+     * write the input with moov moved to the front into the output
+     * @param input
+     * @param output this is not created if the result is false
+     * @return true if the output was written, false if moov is already in front of mdat
+     * @throws IOException
+     */
+    public static boolean process(final File input, final File output) throws IOException {
+        final long startNs = System.nanoTime();
+        final FileInputStream in = new FileInputStream(input);
+        try {
+            final FileChannel src = in.getChannel();
+            final long fileSize = src.size();
+            // find top level boxes
+            long insertPos = 0, moovStart = -1, moovEnd = -1, mdatStart = -1;
+            final ByteBuffer header = ByteBuffer.allocate(16);
+            for (long pos = 0; pos < fileSize; ) {
+                final long[] box = readBoxHeader(src, pos, fileSize, header);
+                final long end = pos + box[1];
+                if (box[0] == fourcc("ftyp") && (pos == 0)) {
+                    insertPos = end;
+                } else if (box[0] == fourcc("moov")) {
+                    moovStart = pos;
+                    moovEnd = end;
+                } else if ((box[0] == fourcc("mdat")) && (mdatStart < 0)) {
+                    mdatStart = pos;
+                }
+                pos = end;
+            }
+            if (moovStart < 0) throw new IOException("moov not found");
+            if ((mdatStart < 0) || (moovStart < mdatStart)) return false;
+            if (moovEnd - moovStart > Integer.MAX_VALUE) throw new IOException("moov is too large");
+
+            final ByteBuffer moov = ByteBuffer.allocate((int)(moovEnd - moovStart));
+            readFully(src, moovStart, moov);
+            final byte[] moovBytes = moov.array();
+            final Mp4BoxWriter w = new Mp4BoxWriter(moovBytes.length + 1024);
+            final Relocation relocation = new Relocation(moovStart, moovEnd - moovStart);
+            // size of new moov does not depend on the offsets, measure it first
+            rewrite(moovBytes, 0, moovBytes.length, w, relocation);
+            relocation.newSize = w.size();
+            w.reset();
+            rewrite(moovBytes, 0, moovBytes.length, w, relocation);
+            if (relocation.overflow) {
+                // some offsets do not fit in 32 bits after moving, use co64 for all tracks
+                relocation.force64 = true;
+                relocation.overflow = false;
+                w.reset();
+                rewrite(moovBytes, 0, moovBytes.length, w, relocation);
+                relocation.newSize = w.size();
+                w.reset();
+                rewrite(moovBytes, 0, moovBytes.length, w, relocation);
+            }
+
+            final FileOutputStream out = new FileOutputStream(output);
+            try {
+                final FileChannel dst = out.getChannel();
+                transfer(src, 0, insertPos, dst);
+                final ByteBuffer buf = w.asByteBuffer();
+                while (buf.hasRemaining()) {
+                    dst.write(buf);
+                }
+                transfer(src, insertPos, moovStart - insertPos, dst);
+                transfer(src, moovEnd, fileSize - moovEnd, dst);
+                dst.force(false);
+            } finally {
+                out.close();
+            }
+            if (DEBUG) Log.v(TAG, "process:" + input + "(" + fileSize + " bytes) in "
+                + (System.nanoTime() - startNs) / 1000000L + "ms");
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+//********************************************************************************
+//********************************************************************************
+    /**
+     * how chunk offsets are changed by moving moov
+     */
+    private static class Relocation {
+        private final long oldStart;
+        private final long oldSize;
+        private long newSize;
+        private boolean force64;
+        private boolean overflow;
+
+        private Relocation(final long oldStart, final long oldSize) {
+            this.oldStart = oldStart;
+            this.oldSize = oldSize;
+        }
+
+        private long apply(final long offset) {
+            // data before old moov is shifted by new moov, data after it is shifted by the difference
+            return offset < oldStart ? offset + newSize : offset + newSize - oldSize;
+        }
+    }
+
+    private static int fourcc(final String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static String typeOf(final int fourcc) {
+        return new String(new char[] {
+            (char)((fourcc >>> 24) & 0xff), (char)((fourcc >>> 16) & 0xff),
+            (char)((fourcc >>> 8) & 0xff), (char)(fourcc & 0xff) });
+    }
+
+    /**
+     * @return {type, size} of the box at pos
+     */
+    private static long[] readBoxHeader(final FileChannel src, final long pos, final long fileSize,
+        final ByteBuffer header) throws IOException {
+
+        header.clear();
+        header.limit((int)Math.min(16, fileSize - pos));
+        if (header.limit() < 8) throw new IOException("truncated box at " + pos);
+        readFully(src, pos, header);
+        long size = header.getInt(0) & MAX_U32;
+        final int type = header.getInt(4);
+        if (size == 1) {
+            if (header.limit() < 16) throw new IOException("truncated box at " + pos);
+            size = header.getLong(8);
+        } else if (size == 0) {
+            size = fileSize - pos;
+        }
+        if ((size < 8) || (pos + size > fileSize))
+            throw new IOException("invalid box " + typeOf(type) + " at " + pos + ",size=" + size);
+        return new long[] { type, size };
+    }
+
+    private static void readFully(final FileChannel src, final long pos, final ByteBuffer dst) throws IOException {
+        long p = pos;
+        while (dst.hasRemaining()) {
+            final int n = src.read(dst, p);
+            if (n < 0) throw new IOException("unexpected end of file");
+            p += n;
+        }
+    }
+
+    private static void transfer(final FileChannel src, final long pos, final long count, final FileChannel dst)
+        throws IOException {
+
+        long done = 0;
+        while (done < count) {
+            final long n = src.transferTo(pos + done, count - done, dst);
+            if (n <= 0) throw new IOException("transfer failed at " + (pos + done));
+            done += n;
+        }
+    }
+
+    private static boolean isContainer(final String type) {
+        for (final String container: CONTAINERS) {
+            if (container.equals(type)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * copy boxes in src[offset, end) into w, containers on the way to stco/co64 are rebuilt
+     */
+    private static void rewrite(final byte[] src, final int offset, final int end,
+        final Mp4BoxWriter w, final Relocation relocation) throws IOException {
+
+        final ByteBuffer buf = ByteBuffer.wrap(src);
+        int pos = offset;
+        while (pos + 8 <= end) {
+            long size = buf.getInt(pos) & MAX_U32;
+            final String type = typeOf(buf.getInt(pos + 4));
+            int headerSize = 8;
+            if (size == 1) {
+                size = buf.getLong(pos + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if ((size < headerSize) || (pos + size > end))
+                throw new IOException("invalid box " + type + " in moov");
+            final int boxEnd = (int)(pos + size);
+            if (isContainer(type)) {
+                final int box = w.start(type);
+                rewrite(src, pos + headerSize, boxEnd, w, relocation);
+                w.end(box);
+            } else if ("stco".equals(type) || "co64".equals(type)) {
+                final boolean is64 = "co64".equals(type);
+                final int count = buf.getInt(pos + 12);
+                if ((count < 0) || (pos + 16 + (long)count * (is64 ? 8 : 4) > boxEnd))
+                    throw new IOException("invalid " + type);
+                final boolean write64 = is64 || relocation.force64;
+                final int box = w.startFull(write64 ? "co64" : "stco", 0, 0);
+                w.u32(count);
+                for (int i = 0; i < count; i++) {
+                    final long offsetValue = is64 ? buf.getLong(pos + 16 + i * 8)
+                        : buf.getInt(pos + 16 + i * 4) & MAX_U32;
+                    final long relocated = relocation.apply(offsetValue);
+                    if (write64) {
+                        w.u64(relocated);
+                    } else {
+                        if (relocated > MAX_U32) relocation.overflow = true;
+                        w.u32(relocated);
+                    }
+                }
+                w.end(box);
+            } else {
+                w.bytes(src, pos, boxEnd - pos);
+            }
+            pos = boxEnd;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pure java MuxerBackend that writes fragmented MP4(ISO BMFF with moof/mdat fragments).
+ * ftyp and moov without samples are written on #start, then samples are buffered on memory
+ * and written as a moof/mdat fragment at the first video key frame after the fragment duration.
+ * So memory usage is bounded by the fragment duration regardless of recording duration,
+ * and all fragments that are already written stay playable even if the process is killed.
+ */
+public class FragmentedMp4Writer implements MuxerBackend {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "FragmentedMp4Writer";
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 2000000L;
+    /**
+     * fragment is written regardless of key frame when buffered data exceeds this size
+     */
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 16 * 1024 * 1024;
+    /**
+     * key frame slightly before the fragment boundary due to timestamp jitter also starts new fragment
+     */
+    private static final long FRAGMENT_DURATION_TOLERANCE_US = 20000L;
+
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    /**
+     * sample_depends_on=2(does not depend on others)
+     */
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    /**
+     * sample_depends_on=1, sample_is_non_sync_sample=1
+     */
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    /**
+     * samples of one track in current fragment.
+     * Presentation time is kept as is and converted into decode time when the fragment is written,
+     * because the start of the file is not known until all tracks delivered their first sample.
+     */
+    private static class Track {
+        final int trackId;
+        final TrackFormat format;
+        final int timescale;
+        final Mp4BoxWriter data = new Mp4BoxWriter(64 * 1024);
+        long[] pts = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        int count;
+        /**
+         * presentation time of the first sample of this track[us], negative until it comes
+         */
+        long firstPts = -1;
+        /**
+         * presentation time of the first sample of the next fragment[us],
+         * duration of the last sample is estimated if this is negative
+         */
+        long nextPts = -1;
+        int lastDuration;
+
+        Track(final int trackId, final TrackFormat format) {
+            this.trackId = trackId;
+            this.format = new TrackFormat(format);
+            timescale = Mp4Format.getTimescale(format);
+        }
+
+        void add(final long presentationTimeUs, final int size, final int sampleFlags) {
+            if (count == sizes.length) {
+                final int n = count * 2;
+                final long[] ptsArray = new long[n];
+                System.arraycopy(pts, 0, ptsArray, 0, count);
+                pts = ptsArray;
+                sizes = copyOf(sizes, n);
+                flags = copyOf(flags, n);
+            }
+            if (firstPts < 0) firstPts = presentationTimeUs;
+            pts[count] = presentationTimeUs;
+            sizes[count] = size;
+            flags[count] = sampleFlags;
+            count++;
+        }
+
+        /**
+         * @param startPts presentation time of the start of the file[us]
+         * @return decode time of the sample
+         */
+        long ticksOf(final int index, final long startPts) {
+            return toTicks(pts[index], startPts);
+        }
+
+        /**
+         * duration of the last sample is the one of previous sample if next fragment is unknown yet
+         * @param startPts presentation time of the start of the file[us]
+         */
+        int durationOf(final int index, final long startPts) {
+            final long next;
+            if (index + 1 < count) {
+                next = ticksOf(index + 1, startPts);
+            } else if (nextPts >= 0) {
+                next = toTicks(nextPts, startPts);
+            } else {
+                return lastDuration > 0 ? lastDuration : (format.isVideo() ? timescale / 30 : 1024);
+            }
+            lastDuration = (int)Math.max(1, next - ticksOf(index, startPts));
+            return lastDuration;
+        }
+
+        void clear() {
+            count = 0;
+            nextPts = -1;
+            data.reset();
+        }
+
+        private long toTicks(final long presentationTimeUs, final long startPts) {
+            return Mp4Format.toTicks(Math.max(0, presentationTimeUs - startPts), timescale);
+        }
+
+        private static int[] copyOf(final int[] src, final int length) {
+            final int[] result = new int[length];
+            System.arraycopy(src, 0, result, 0, src.length);
+            return result;
+        }
+    }
+
+    private final String mOutputPath;
+    private final long mFragmentDurationUs;
+    private final int mMaxFragmentBytes;
+    private final List<Track> mTracks = new ArrayList<Track>();
+    private final Mp4BoxWriter mHeader = new Mp4BoxWriter(4096);
+    private final BlockFileWriter.Config mOutputConfig;
+    private BlockFileWriter mOutput;
+    private boolean mHasVideo;
+    /**
+     * earliest presentation time of the first samples of all tracks[us], decode time of all tracks is relative to this.
+     * Negative until all tracks delivered a sample or the first fragment is written.
+     */
+    private long mStartPts = -1;
+    private long mFragmentStartUs = -1;
+    private int mBufferedBytes;
+    private int mSequenceNumber;
+    private long mFileSize;
+
+    public FragmentedMp4Writer(final String outputPath) {
+        this(outputPath, DEFAULT_FRAGMENT_DURATION_US, DEFAULT_MAX_FRAGMENT_BYTES, null);
+    }
+
+    /**
+     * @param outputPath
+     * @param fragmentDurationUs minimum duration of each fragment
+     * @param maxFragmentBytes fragment is written without waiting key frame when buffered data exceeds this
+     */
+    public FragmentedMp4Writer(final String outputPath, final long fragmentDurationUs, final int maxFragmentBytes) {
+        this(outputPath, fragmentDurationUs, maxFragmentBytes, null);
+    }
+
+    /**
+     * @param outputPath
+     * @param fragmentDurationUs minimum duration of each fragment
+     * @param maxFragmentBytes fragment is written without waiting key frame when buffered data exceeds this
+     * @param outputConfig write and sync policy of the output file, null means default.
+     * If bit rate is not set, it is estimated from the bit rate of tracks.
+     */
+    public FragmentedMp4Writer(final String outputPath, final long fragmentDurationUs, final int maxFragmentBytes,
+        final BlockFileWriter.Config outputConfig) {
+
+        if (fragmentDurationUs <= 0) throw new IllegalArgumentException("fragment duration should be positive");
+        if (maxFragmentBytes <= 0) throw new IllegalArgumentException("max fragment bytes should be positive");
+        mOutputPath = outputPath;
+        mFragmentDurationUs = fragmentDurationUs;
+        mMaxFragmentBytes = maxFragmentBytes;
+        mOutputConfig = outputConfig != null ? outputConfig : new BlockFileWriter.Config();
+    }
+
+    @Override
+    public synchronized int addTrack(final TrackFormat format) {
+        if (mOutput != null) throw new IllegalStateException("already started");
+        Mp4Format.checkSupported(format);
+        final Track track = new Track(mTracks.size() + 1, format);
+        mTracks.add(track);
+        mHasVideo |= format.isVideo();
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (mOutput != null) throw new IllegalStateException("already started");
+        if (mTracks.isEmpty()) throw new IllegalStateException("no track");
+        mOutput = new BlockFileWriter(mOutputPath, outputConfig());
+        final Mp4BoxWriter w = mHeader;
+        w.reset();
+        Mp4Format.writeFtyp(w, "iso6", "iso6", "isom", "mp41", "dash");
+        final int moov = w.start("moov");
+        Mp4Format.writeMvhd(w, 0, mTracks.size() + 1);
+        for (final Track track: mTracks) {
+            Mp4Format.writeTrak(w, track.trackId, track.format, 0, 0, 0, Mp4Format.EMPTY_SAMPLE_TABLE);
+        }
+        final int mvex = w.start("mvex");
+        for (final Track track: mTracks) {
+            final int trex = w.startFull("trex", 0, 0);
+            w.u32(track.trackId).u32(1).u32(0).u32(0).u32(0);
+            w.end(trex);
+        }
+        w.end(mvex);
+        w.end(moov);
+        write(w.asByteBuffer());
+    }
+
+    @Override
+    public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        if ((mOutput == null) || mOutput.isClosed()) throw new IllegalStateException("not started");
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;    // already in moov
+        if (info.size <= 0) return;
+        final Track track = mTracks.get(trackIndex);
+        final boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if ((mStartPts >= 0) && (info.presentationTimeUs < mStartPts)) {
+            // a track that did not deliver anything until the first fragment was written
+            Log.w(TAG, "writeSampleData:sample before the start of the file, track=" + trackIndex
+                + ",pts=" + info.presentationTimeUs + ",start=" + mStartPts);
+        }
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = info.presentationTimeUs;
+        } else if (shouldFlush(track, isSync, info.presentationTimeUs)) {
+            // duration of the last sample of this track is known now
+            track.nextPts = info.presentationTimeUs;
+            flushFragment();
+            mFragmentStartUs = info.presentationTimeUs;
+        }
+        final int size;
+        if (track.format.isVideo()) {
+            size = Mp4Format.writeLengthPrefixed(byteBuf, info.offset, info.size, track.data);
+        } else {
+            final ByteBuffer src = byteBuf.duplicate();
+            src.limit(info.offset + info.size).position(info.offset);
+            track.data.bytes(src);
+            size = info.size;
+        }
+        track.add(info.presentationTimeUs, size, (isSync || !track.format.isVideo()) ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        mBufferedBytes += size;
+        if ((mStartPts < 0) && (track.count == 1)) {
+            updateStartPts(false);
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        if ((mOutput == null) || mOutput.isClosed()) throw new IllegalStateException("not started");
+        try {
+            flushFragment();
+        } finally {
+            closeOutput();
+        }
+        if (DEBUG) Log.v(TAG, "stop:fragments=" + mSequenceNumber + ",size=" + mFileSize);
+    }
+
+    @Override
+    public synchronized void release() {
+        try {
+            closeOutput();
+        } catch (final IOException e) {
+            Log.w(TAG, "release", e);
+        }
+    }
+
+    @Override
+    public String getOutputPath() {
+        return mOutputPath;
+    }
+
+    /**
+     * @return number of bytes that are buffered on memory and not written yet
+     */
+    public synchronized int getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    /**
+     * @return output file writer for write/sync latency, null if not started
+     */
+    public synchronized BlockFileWriter getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * @return number of fragments that are written
+     */
+    public synchronized int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private BlockFileWriter.Config outputConfig() {
+        if (mOutputConfig.bitRate > 0) return mOutputConfig;
+        final BlockFileWriter.Config config = mOutputConfig.copy();
+        for (final Track track: mTracks) {
+            config.bitRate += track.format.getInteger(MediaFormat.KEY_BIT_RATE, 0);
+        }
+        return config;
+    }
+
+    private boolean shouldFlush(final Track track, final boolean isSync, final long presentationTimeUs) {
+        if (mBufferedBytes >= mMaxFragmentBytes) return true;
+        if (presentationTimeUs - mFragmentStartUs < mFragmentDurationUs - FRAGMENT_DURATION_TOLERANCE_US) return false;
+        // fragments of video start with key frame for seeking
+        return !mHasVideo || (track.format.isVideo() && isSync);
+    }
+
+    /**
+     * Samples of a track may come before earlier samples of other tracks when SampleInterleaver
+     * released them without waiting, so the start is fixed when all tracks delivered a sample.
+     * @param force true: fix the start with the tracks that delivered a sample so far
+     */
+    private void updateStartPts(final boolean force) {
+        long start = -1;
+        for (final Track track: mTracks) {
+            if (track.firstPts < 0) {
+                if (!force) return;
+            } else if ((start < 0) || (track.firstPts < start)) {
+                start = track.firstPts;
+            }
+        }
+        mStartPts = start;
+    }
+
+    private void flushFragment() throws IOException {
+        int totalSize = 0;
+        for (final Track track: mTracks) {
+            totalSize += track.data.size();
+        }
+        if (totalSize == 0) return;
+        if (mStartPts < 0) {
+            // some tracks did not deliver any sample within the first fragment
+            updateStartPts(true);
+        }
+        mSequenceNumber++;
+        final Mp4BoxWriter w = mHeader;
+        w.reset();
+        final int moof = w.start("moof");
+        final int mfhd = w.startFull("mfhd", 0, 0);
+        w.u32(mSequenceNumber);
+        w.end(mfhd);
+        final int[] dataOffsetPositions = new int[mTracks.size()];
+        for (int i = 0; i < mTracks.size(); i++) {
+            final Track track = mTracks.get(i);
+            if (track.count == 0) {
+                dataOffsetPositions[i] = -1;
+                continue;
+            }
+            final int traf = w.start("traf");
+            int pos = w.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            w.u32(track.trackId);
+            w.end(pos);
+            pos = w.startFull("tfdt", 1, 0);
+            w.u64(track.ticksOf(0, mStartPts));
+            w.end(pos);
+            pos = w.startFull("trun", 0, TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS);
+            w.u32(track.count);
+            dataOffsetPositions[i] = w.size();
+            w.u32(0);   // data_offset, fixed later
+            for (int j = 0; j < track.count; j++) {
+                w.u32(track.durationOf(j, mStartPts)).u32(track.sizes[j]).u32(track.flags[j]);
+            }
+            w.end(pos);
+            w.end(traf);
+        }
+        w.end(moof);
+        // data offset is relative to the start of moof
+        long dataOffset = w.size() - moof + 8;
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (dataOffsetPositions[i] >= 0) {
+                w.putU32(dataOffsetPositions[i], dataOffset);
+                dataOffset += mTracks.get(i).data.size();
+            }
+        }
+        w.u32(8 + totalSize).fourcc("mdat");
+        final ByteBuffer[] buffers = new ByteBuffer[mTracks.size() + 1];
+        buffers[0] = w.asByteBuffer();
+        for (int i = 0; i < mTracks.size(); i++) {
+            buffers[i + 1] = mTracks.get(i).data.asByteBuffer();
+        }
+        write(buffers);
+        // fragments should be in the file when the app crashes, the partial block is written again later
+        mOutput.flush();
+        for (final Track track: mTracks) {
+            track.clear();
+        }
+        mBufferedBytes = 0;
+        if (DEBUG) Log.v(TAG, "fragment " + mSequenceNumber + " written, size=" + (w.size() + totalSize));
+    }
+
+    private void write(final ByteBuffer... buffers) throws IOException {
+        for (final ByteBuffer buf: buffers) {
+            mFileSize += buf.remaining();
+        }
+        mOutput.write(buffers);
+    }
+
+    private void closeOutput() throws IOException {
+        if ((mOutput != null) && !mOutput.isClosed()) {
+            mOutput.close();
+            if (DEBUG) Log.v(TAG, "closeOutput:" + mOutput);
+        }
+    }
+}
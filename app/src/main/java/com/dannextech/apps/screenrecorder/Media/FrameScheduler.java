@@ -0,0 +1,156 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.util.Locale;
+
+/**
+ * Pace captured frames on absolute deadlines of a fixed frame rate.
+ * Deadlines are slots on a grid anchored at the first frame, so waiting late
+ * does not shift later deadlines. A frame is drawn at the first free slot after it arrived,
+ * frames that arrive while one is pending are merged into it, and slots that were missed
+ * because the render thread was late are dropped instead of drawn in a burst.
+ */
+public class FrameScheduler {
+    private final PresentationClock.TimeSource mTimeSource;
+    private final long mPeriodNs;
+    /**
+     * time of the first frame, origin of the grid[ns], negative before the first frame
+     */
+    private long mAnchorNs = -1;
+    /**
+     * slot of the last drawn frame[ns]
+     */
+    private long mLastSlotNs = Long.MIN_VALUE;
+    /**
+     * deadline of the pending frame[ns], negative if no frame is pending
+     */
+    private long mDeadlineNs = -1;
+    private long mPrevLatenessNs = -1;
+    private long mFrames;
+    private long mMerged;
+    private long mDropped;
+    private final LatencyHistogram mLateness = new LatencyHistogram("lateness");
+    private final LatencyHistogram mJitter = new LatencyHistogram("jitter");
+
+    /**
+     * @param frameRate
+     * @param timeSource
+     */
+    public FrameScheduler(final float frameRate, final PresentationClock.TimeSource timeSource) {
+        if (frameRate <= 0) throw new IllegalArgumentException("frame rate should be positive");
+        if (timeSource == null) throw new NullPointerException("timeSource is null");
+        mPeriodNs = (long)(1000000000L / frameRate);
+        mTimeSource = timeSource;
+    }
+
+    public long getPeriodNs() {
+        return mPeriodNs;
+    }
+
+    /**
+     * called when the source delivered a new frame, it is scheduled to the next free slot
+     * or merged into the pending frame
+     */
+    public synchronized void onFrameAvailable() {
+        if (mDeadlineNs >= 0) {
+            mMerged++;
+            return;
+        }
+        final long nowNs = mTimeSource.nanoTime();
+        if (mAnchorNs < 0) {
+            mAnchorNs = nowNs;
+        }
+        final long slots = (nowNs - mAnchorNs + mPeriodNs - 1) / mPeriodNs;
+        mDeadlineNs = Math.max(mAnchorNs + slots * mPeriodNs,
+            mLastSlotNs != Long.MIN_VALUE ? mLastSlotNs + mPeriodNs : mAnchorNs);
+    }
+
+    public synchronized boolean hasPendingFrame() {
+        return mDeadlineNs >= 0;
+    }
+
+    /**
+     * @return deadline of the pending frame[ns], negative if no frame is pending
+     */
+    public synchronized long getDeadlineNs() {
+        return mDeadlineNs;
+    }
+
+    /**
+     * @param maxWaitMs
+     * @return time until the deadline of the pending frame[ms], 0 if it is due,
+     *      maxWaitMs if no frame is pending
+     */
+    public synchronized long getWaitMs(final long maxWaitMs) {
+        if (mDeadlineNs < 0) return maxWaitMs;
+        final long remainNs = mDeadlineNs - mTimeSource.nanoTime();
+        return remainNs > 0 ? Math.min(maxWaitMs, (remainNs + 999999L) / 1000000L) : 0;
+    }
+
+    /**
+     * take the pending frame when its deadline is reached, lateness is recorded
+     * @return true if the pending frame should be drawn now
+     */
+    public synchronized boolean poll() {
+        if (mDeadlineNs < 0) return false;
+        final long nowNs = mTimeSource.nanoTime();
+        final long latenessNs = nowNs - mDeadlineNs;
+        if (latenessNs < 0) return false;
+        long slotNs = mDeadlineNs;
+        if (latenessNs >= mPeriodNs) {
+            // missed slots are dropped, the frame takes the slot of now
+            final long missed = latenessNs / mPeriodNs;
+            mDropped += missed;
+            slotNs += missed * mPeriodNs;
+        }
+        mLateness.record(latenessNs / 1000L);
+        if (mPrevLatenessNs >= 0) {
+            mJitter.record(Math.abs(latenessNs - mPrevLatenessNs) / 1000L);
+        }
+        mPrevLatenessNs = latenessNs;
+        mLastSlotNs = slotNs;
+        mDeadlineNs = -1;
+        mFrames++;
+        return true;
+    }
+
+    /**
+     * @return number of frames that were taken by #poll
+     */
+    public synchronized long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of source frames that were merged into a pending frame
+     */
+    public synchronized long getMerged() {
+        return mMerged;
+    }
+
+    /**
+     * @return number of slots that were missed because the render thread was late
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return histogram of time from deadline until #poll took the frame[us]
+     */
+    public LatencyHistogram getLateness() {
+        return mLateness;
+    }
+
+    /**
+     * @return histogram of difference of lateness between consecutive frames[us]
+     */
+    public LatencyHistogram getJitter() {
+        return mJitter;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "FrameScheduler:frames=%d,merged=%d,dropped=%d,%s,%s",
+            mFrames, mMerged, mDropped, mLateness, mJitter);
+    }
+}
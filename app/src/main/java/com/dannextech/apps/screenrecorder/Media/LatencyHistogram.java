@@ -0,0 +1,94 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.util.Locale;
+
+/**
+ * Histogram of latency values in microseconds with fixed memory.
+ * Each power of two range is divided into 8 buckets, so percentiles are
+ * accurate within about 12%. Values are recorded without allocation.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * 64;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mSumUs;
+    private long mMaxUs;
+
+    public LatencyHistogram(final String name) {
+        mName = name;
+    }
+
+    /**
+     * @param latencyUs negative value is counted as 0
+     */
+    public synchronized void record(final long latencyUs) {
+        final long value = Math.max(0, latencyUs);
+        mCounts[bucketOf(value)]++;
+        mCount++;
+        mSumUs += value;
+        if (value > mMaxUs) mMaxUs = value;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = mSumUs = mMaxUs = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxUs() {
+        return mMaxUs;
+    }
+
+    public synchronized long getAverageUs() {
+        return mCount > 0 ? mSumUs / mCount : 0;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return upper bound of the bucket that contains the percentile, 0 if nothing is recorded
+     */
+    public synchronized long getPercentileUs(final double percentile) {
+        if (mCount == 0) return 0;
+        final long rank = Math.max(1, (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * mCount));
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += mCounts[i];
+            if (n >= rank) {
+                return Math.min(upperBoundOf(i), mMaxUs);
+            }
+        }
+        return mMaxUs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s:count=%d,avg=%d,p50=%d,p90=%d,p99=%d,max=%d[us]",
+            mName, mCount, getAverageUs(), getPercentileUs(50), getPercentileUs(90),
+            getPercentileUs(99), mMaxUs);
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) return (int)value;
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int)(value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int sub = bucket % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+}
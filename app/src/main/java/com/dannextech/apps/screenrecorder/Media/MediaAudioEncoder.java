@@ -2,11 +2,12 @@ package com.dannextech.apps.screenrecorder.Media;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
+import android.media.AudioTimestamp;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.IOException;
@@ -25,8 +26,14 @@ public class MediaAudioEncoder extends MediaEncoder {
     private static final int BIT_RATE = 64000;
     public static final int SAMPLES_PER_FRAME = 1024; // AAC, bytes/frame/channel
     public static final int FRAMES_PER_BUFFER = 25;  // AAC, frame/buffer/sec
+    private static final int BYTES_PER_SAMPLE = 2;    // 16bit PCM, mono
+    /**
+     * AudioRecord#getTimestamp is queried every this number of reads
+     */
+    private static final int HW_TIMESTAMP_INTERVAL = 16;
 
     private AudioThread mAudioThread = null;
+    private final AudioTimestampTracker mTimestampTracker = new AudioTimestampTracker(SAMPLE_RATE);
 
     public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
         super(muxer, listener);
@@ -37,15 +44,16 @@ public class MediaAudioEncoder extends MediaEncoder {
         if (DEBUG) Log.v(TAG, "prepare:");
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
-        // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-        if (audioCodecInfo == null) {
+        // prepare codec for AAC encoding of audio data from inernal mic.
+        try {
+            mCodec = mCodecFactory.createEncoder(MIME_TYPE, false);
+        } catch (final IllegalArgumentException e) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-        if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
+        if (DEBUG) Log.i(TAG, "selected codec: " + mCodec.getName());
 
-        final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
+        final TrackFormat audioFormat = TrackFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
@@ -53,9 +61,9 @@ public class MediaAudioEncoder extends MediaEncoder {
 //  audioFormat.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
         if (DEBUG) Log.i(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mMediaCodec.start();
+        setupCodecCallback();
+        mCodec.configure(audioFormat);
+        mCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
         if (mListener != null) {
             try {
@@ -79,9 +87,18 @@ public class MediaAudioEncoder extends MediaEncoder {
     @Override
     protected void release() {
         mAudioThread = null;
+        Log.i(TAG, mTimestampTracker.toString());
         super.release();
     }
 
+    /**
+     * get drift statistics of audio timestamps
+     * @return
+     */
+    public AudioTimestampTracker getTimestampTracker() {
+        return mTimestampTracker;
+    }
+
     private static final int[] AUDIO_SOURCES = new int[] {
             MediaRecorder.AudioSource.MIC,
             MediaRecorder.AudioSource.DEFAULT,
@@ -120,6 +137,8 @@ public class MediaAudioEncoder extends MediaEncoder {
                     if (audioRecord != null) break;
                 }
                 if (audioRecord != null) {
+                    // AudioRecord#getTimestamp is available on API >= 24
+                    final boolean hasTimestamp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
                     try {
                         for ( ; mIsCapturing ; ) {
                             synchronized (mSync) {
@@ -135,18 +154,30 @@ public class MediaAudioEncoder extends MediaEncoder {
                             if (mIsCapturing && !mRequestStop && !mRequestPause) {
                                 if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
                                 final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
-                                int readBytes;
+                                final AudioTimestamp timestamp = hasTimestamp ? new AudioTimestamp() : null;
+                                int readBytes, readCount = 0;
                                 audioRecord.startRecording();
+                                // the time line restarts from here
+                                mTimestampTracker.reset();
                                 try {
                                     for (; mIsCapturing && !mRequestStop && !mRequestPause && !mIsEOS ;) {
                                         // read audio data from internal mic
                                         buf.clear();
                                         readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
                                         if (readBytes > 0) {
+                                            // timestamp is derived from number of samples, not from read time
+                                            final long captureTimeUs = mTimestampTracker.onRead(
+                                                readBytes / BYTES_PER_SAMPLE, mClock.getSourceTimeUs());
+                                            // first timestamp after startRecording gives the base of frame position
+                                            if (hasTimestamp && ((readCount++ % HW_TIMESTAMP_INTERVAL) == 0)
+                                                && (audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS)) {
+
+                                                mTimestampTracker.onHardwareTimestamp(timestamp.framePosition, timestamp.nanoTime / 1000L);
+                                            }
                                             // set audio data to encoder
                                             buf.position(readBytes);
                                             buf.flip();
-                                            encode(buf, readBytes, getPTSUs());
+                                            encode(buf, readBytes, mClock.toPresentationUs(captureTimeUs));
                                             frameAvailableSoon();
                                         }
                                     }
@@ -174,7 +205,7 @@ public class MediaAudioEncoder extends MediaEncoder {
      * @param mimeType
      * @return
      */
-    private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
+    /*package*/ static final MediaCodecInfo selectAudioCodec(final String mimeType) {
         if (DEBUG) Log.v(TAG, "selectAudioCodec:");
 
         MediaCodecInfo result = null;
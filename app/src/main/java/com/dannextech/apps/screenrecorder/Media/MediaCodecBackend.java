@@ -0,0 +1,256 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * CodecBackend implementation with android.media.MediaCodec
+ */
+public class MediaCodecBackend implements CodecBackend {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "MediaCodecBackend";
+
+    /**
+     * keys that are copied from MediaFormat, MediaFormat#getKeys is only available on API >= 29
+     */
+    private static final String[] INTEGER_KEYS = {
+        MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT, MediaFormat.KEY_COLOR_FORMAT,
+        MediaFormat.KEY_BIT_RATE, MediaFormat.KEY_FRAME_RATE, MediaFormat.KEY_I_FRAME_INTERVAL,
+        MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT, MediaFormat.KEY_CHANNEL_MASK,
+        MediaFormat.KEY_AAC_PROFILE, MediaFormat.KEY_MAX_INPUT_SIZE, MediaFormat.KEY_PROFILE,
+        MediaFormat.KEY_LEVEL,
+    };
+    private static final String[] BUFFER_KEYS = {
+        TrackFormat.KEY_CSD_0, TrackFormat.KEY_CSD_1, "csd-2",
+    };
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public CodecBackend createEncoder(final String mime, final boolean surfaceInput) throws IOException {
+            // cached capabilities instead of walking MediaCodecList on every start
+            final CodecCapabilityCache.Entry entry = CodecCapabilityCache.getDefault()
+                .findEncoder(mime, surfaceInput && mime.startsWith("video/"));
+            if (entry == null) {
+                throw new IllegalArgumentException("Unable to find an appropriate codec for " + mime);
+            }
+            if (DEBUG) Log.i(TAG, "selected codec: " + entry.name);
+            return new MediaCodecBackend(MediaCodec.createByCodecName(entry.name));
+        }
+    };
+
+    private final MediaCodec mMediaCodec;
+    private HandlerThread mCallbackThread;
+    private Callback mCallback;
+    private final SampleInfo mCallbackInfo = new SampleInfo();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    public MediaCodecBackend(final MediaCodec codec) {
+        if (codec == null) throw new NullPointerException("codec is null");
+        mMediaCodec = codec;
+    }
+
+    public MediaCodec getMediaCodec() {
+        return mMediaCodec;
+    }
+
+    @Override
+    public String getName() {
+        return mMediaCodec.getName();
+    }
+
+    /**
+     * MediaCodec#setCallback(Callback, Handler) is only available on API >= 23
+     */
+    @Override
+    public boolean isCallbackSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        if (!isCallbackSupported())
+            throw new UnsupportedOperationException("callback mode is not supported");
+        mCallback = callback;
+        mCallbackThread = new HandlerThread(TAG);
+        mCallbackThread.start();
+        mMediaCodec.setCallback(mCodecCallback, new Handler(mCallbackThread.getLooper()));
+    }
+
+    @Override
+    public void configure(final TrackFormat format) {
+        mMediaCodec.configure(toMediaFormat(format), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mMediaCodec.createInputSurface(); // API >= 18
+    }
+
+    @Override
+    public void start() {
+        mMediaCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mMediaCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaCodec.release();
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        return mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mMediaCodec.getInputBuffer(index); // API >= 21
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final SampleInfo info, final long timeoutUs) {
+        final int result = mMediaCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        if (result >= 0) {
+            info.set(mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+        }
+        return result;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return mMediaCodec.getOutputBuffer(index); // API >= 21
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        mMediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return fromMediaFormat(mMediaCodec.getOutputFormat());
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mMediaCodec.signalEndOfInputStream(); // API >= 18
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mMediaCodec.setParameters(params); // API >= 19
+    }
+
+    @Override
+    public void setVideoBitrate(final int bitRate) {
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        mMediaCodec.setParameters(params); // API >= 19
+    }
+
+    @Override
+    public void setInputSuspended(final boolean suspended) {
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+        mMediaCodec.setParameters(params); // API >= 19
+    }
+
+    private final MediaCodec.Callback mCodecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+            mCallback.onInputBufferAvailable(MediaCodecBackend.this, index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+            mCallbackInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            mCallback.onOutputBufferAvailable(MediaCodecBackend.this, index, mCallbackInfo);
+        }
+
+        @Override
+        public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+            mCallback.onError(MediaCodecBackend.this, e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+            mCallback.onOutputFormatChanged(MediaCodecBackend.this, fromMediaFormat(format));
+        }
+    };
+
+//********************************************************************************
+//********************************************************************************
+    /**
+     * convert TrackFormat into MediaFormat
+     * @param format
+     * @return
+     */
+    public static MediaFormat toMediaFormat(final TrackFormat format) {
+        final MediaFormat result = new MediaFormat();
+        for (final String key: format.getKeys()) {
+            final Object value = format.getValue(key);
+            if (value instanceof Integer) {
+                result.setInteger(key, (Integer)value);
+            } else if (value instanceof Long) {
+                result.setLong(key, (Long)value);
+            } else if (value instanceof Float) {
+                result.setFloat(key, (Float)value);
+            } else if (value instanceof String) {
+                result.setString(key, (String)value);
+            } else if (value instanceof ByteBuffer) {
+                result.setByteBuffer(key, format.getByteBuffer(key));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * convert MediaFormat into TrackFormat, only well known keys are copied
+     * @param format
+     * @return
+     */
+    public static TrackFormat fromMediaFormat(final MediaFormat format) {
+        final TrackFormat result = new TrackFormat();
+        result.setString(MediaFormat.KEY_MIME, format.getString(MediaFormat.KEY_MIME));
+        for (final String key: INTEGER_KEYS) {
+            if (format.containsKey(key)) {
+                try {
+                    result.setInteger(key, format.getInteger(key));
+                } catch (final ClassCastException e) {
+                    // some devices put float value e.g. frame-rate
+                    result.setFloat(key, format.getFloat(key));
+                }
+            }
+        }
+        for (final String key: BUFFER_KEYS) {
+            if (format.containsKey(key)) {
+                result.setByteBuffer(key, format.getByteBuffer(key));
+            }
+        }
+        return result;
+    }
+}
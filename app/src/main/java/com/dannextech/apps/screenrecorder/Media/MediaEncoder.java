@@ -1,12 +1,13 @@
 package com.dannextech.apps.screenrecorder.Media;
 
 import android.media.MediaCodec;
-import android.media.MediaFormat;
+import android.os.Debug;
 import android.util.Log;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 /**
  * Created by amoh on 12/11/2017.
@@ -19,6 +20,10 @@ public abstract class MediaEncoder implements Runnable {
     protected static final int TIMEOUT_USEC = 10000; // 10[msec]
     protected static final int MSG_FRAME_AVAILABLE = 1;
     protected static final int MSG_STOP_RECORDING = 9;
+    /**
+     * maximum duration to wait EOS from codec in callback mode
+     */
+    private static final long EOS_TIMEOUT_MS = 3000;
 
     public interface MediaEncoderListener {
         public void onPrepared(MediaEncoder encoder);
@@ -43,7 +48,7 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected boolean mIsEOS;
     /**
-     * Flag the indicate the muxer is running
+     * Flag the indicate the track is added and start of the muxer is requested
      */
     protected boolean mMuxerStarted;
     /**
@@ -51,32 +56,53 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected int mTrackIndex;
     /**
-     * MediaCodec instance for encoding
+     * codec instance for encoding, MediaCodec by default
      */
-    protected MediaCodec mMediaCodec;    // API >= 16(Android4.1.2)
+    protected CodecBackend mCodec;
+    /**
+     * create mCodec on #prepare
+     */
+    protected CodecBackend.Factory mCodecFactory = MediaCodecBackend.FACTORY;
     /**
      * Weak refarence of MediaMuxerWarapper instance
      */
     protected final WeakReference<MediaMuxerWrapper> mWeakMuxer;
     /**
-     * BufferInfo instance for dequeuing
+     * SampleInfo instance for dequeuing
      */
-    private MediaCodec.BufferInfo mBufferInfo;  // API >= 16(Android4.1.2)
+    private SampleInfo mBufferInfo;
 
     protected final MediaEncoderListener mListener;
 
     protected volatile boolean mRequestPause;
-    private long mLastPausedTimeUs;
+    /**
+     * time base shared with other encoders of the same muxer
+     */
+    protected final PresentationClock mClock;
+    /**
+     * Flag that indicate the codec delivers buffers via CodecBackend.Callback instead of polling
+     */
+    private boolean mAsyncMode = true;
+    /**
+     * indexes of input buffers that the codec handed us on callback mode, guarded by mSync
+     */
+    private final ArrayDeque<Integer> mFreeInputBuffers = new ArrayDeque<Integer>();
+    protected final EncoderStats mStats = new EncoderStats(getClass().getSimpleName());
+    /**
+     * output of TeeMuxerBackend that the track of this encoder is written to, -1 means all outputs
+     */
+    private volatile int mOutputIndex = -1;
 
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
         if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
         if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
         mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
+        mClock = muxer.getPresentationClock();
         muxer.addEncoder(this);
         mListener = listener;
         synchronized (mSync) {
-            // create BufferInfo here for effectiveness(to reduce GC)
-            mBufferInfo = new MediaCodec.BufferInfo();
+            // create SampleInfo here for effectiveness(to reduce GC)
+            mBufferInfo = new SampleInfo();
             // wait for starting thread
             new Thread(this, getClass().getSimpleName()).start();
             try {
@@ -91,6 +117,48 @@ public abstract class MediaEncoder implements Runnable {
         return muxer != null ? muxer.getOutputPath() : null;
     }
 
+    /**
+     * select how output(and input) buffers are exchanged with the codec.
+     * This should be called before #prepare, and is ignored when the codec does not support callback mode.
+     * @param async true: event driven CodecBackend.Callback mode, false: polling with TIMEOUT_USEC
+     */
+    public void setAsyncMode(final boolean async) {
+        mAsyncMode = async;
+    }
+
+    /**
+     * @return whether callback mode is used, this is only valid after #prepare
+     */
+    public boolean isAsyncMode() {
+        return mAsyncMode;
+    }
+
+    /**
+     * replace the codec implementation e.g. FakeCodecBackend, this should be called before #prepare
+     * @param factory
+     */
+    public void setCodecFactory(final CodecBackend.Factory factory) {
+        if (factory == null) throw new NullPointerException("factory is null");
+        mCodecFactory = factory;
+    }
+
+    /**
+     * write the track of this encoder only to the output of TeeMuxerBackend, this should be called before #prepare.
+     * This is ignored by other MuxerBackend.
+     * @param index index of the output, -1 means all outputs(default)
+     */
+    public void setOutputIndex(final int index) {
+        mOutputIndex = index;
+    }
+
+    public int getOutputIndex() {
+        return mOutputIndex;
+    }
+
+    public EncoderStats getStats() {
+        return mStats;
+    }
+
     /**
      * the method to indicate frame data is soon available or already available
      * @return return true if encoder is ready to encod.
@@ -134,6 +202,8 @@ public abstract class MediaEncoder implements Runnable {
                 signalEndOfInputStream();
                 // process output data again for EOS signale
                 drain();
+                // on callback mode, the codec delivers EOS on the callback thread
+                awaitEndOfStream();
                 // release all related objects
                 release();
                 break;
@@ -190,6 +260,20 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * request the codec to output a key frame soon e.g. at segment boundary
+     */
+    /*package*/ void requestSyncFrame() {
+        final CodecBackend codec = mCodec;
+        if (mIsCapturing && (codec != null)) {
+            try {
+                codec.requestSyncFrame();
+            } catch (final Exception e) {
+                Log.w(TAG, "failed to request sync frame", e);
+            }
+        }
+    }
+
     /*package*/ void pauseRecording() {
         if (DEBUG) Log.v(TAG, "pauseRecording");
         synchronized (mSync) {
@@ -197,7 +281,6 @@ public abstract class MediaEncoder implements Runnable {
                 return;
             }
             mRequestPause = true;
-            mLastPausedTimeUs = System.nanoTime() / 1000;
             mSync.notifyAll();
         }
     }
@@ -208,7 +291,6 @@ public abstract class MediaEncoder implements Runnable {
             if (!mIsCapturing || mRequestStop) {
                 return;
             }
-            offsetPTSUs = System.nanoTime() / 1000 - mLastPausedTimeUs;
             mRequestPause = false;
             mSync.notifyAll();
         }
@@ -226,16 +308,21 @@ public abstract class MediaEncoder implements Runnable {
         } catch (final Exception e) {
             Log.e(TAG, "failed onStopped", e);
         }
-        mIsCapturing = false;
-        if (mMediaCodec != null) {
+        synchronized (mSync) {
+            // wake up the thread that waits for an input buffer on callback mode
+            mIsCapturing = false;
+            mSync.notifyAll();
+        }
+        if (mCodec != null) {
             try {
-                mMediaCodec.stop();
-                mMediaCodec.release();
-                mMediaCodec = null;
+                mCodec.stop();
+                mCodec.release();
+                mCodec = null;
             } catch (final Exception e) {
-                Log.e(TAG, "failed releasing MediaCodec", e);
+                Log.e(TAG, "failed releasing codec", e);
             }
         }
+        Log.i(TAG, mStats.toString());
         if (mMuxerStarted) {
             final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
             if (muxer != null) {
@@ -253,23 +340,26 @@ public abstract class MediaEncoder implements Runnable {
         if (DEBUG) Log.d(TAG, "sending EOS to encoder");
         // signalEndOfInputStream is only avairable for video encoding with surface
         // and equivalent sending a empty buffer with BUFFER_FLAG_END_OF_STREAM flag.
-//  mMediaCodec.signalEndOfInputStream(); // API >= 18
+//  mCodec.signalEndOfInputStream(); // API >= 18
         encode(null, 0, getPTSUs());
     }
 
     /**
-     * Method to set byte array to the MediaCodec encoder
+     * Method to set byte array to the codec
      * @param buffer
      * @param length　length of byte array, zero means EOS.
      * @param presentationTimeUs
      */
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
         if (!mIsCapturing) return;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+        if (mAsyncMode) {
+            encodeAsync(buffer, length, presentationTimeUs);
+            return;
+        }
         while (mIsCapturing) {
-            final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+            final int inputBufferIndex = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
             if (inputBufferIndex >= 0) {
-                final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+                final ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferIndex);
                 inputBuffer.clear();
                 if (buffer != null) {
                     inputBuffer.put(buffer);
@@ -279,17 +369,17 @@ public abstract class MediaEncoder implements Runnable {
                     // send EOS
                     mIsEOS = true;
                     if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+                    mCodec.queueInputBuffer(inputBufferIndex, 0, 0,
                             presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                     break;
                 } else {
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
+                    mCodec.queueInputBuffer(inputBufferIndex, 0, length,
                             presentationTimeUs, 0);
                 }
                 break;
-            } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // wait for MediaCodec encoder is ready to encode
-                // nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
+            } else if (inputBufferIndex == CodecBackend.INFO_TRY_AGAIN_LATER) {
+                // wait for codec is ready to encode
+                // nothing to do here because CodecBackend#dequeueInputBuffer(TIMEOUT_USEC)
                 // will wait for maximum TIMEOUT_USEC(10msec) on each call
             }
         }
@@ -299,8 +389,17 @@ public abstract class MediaEncoder implements Runnable {
      * drain encoded data and write them to muxer
      */
     protected void drain() {
-        if (mMediaCodec == null) return;
-        ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+        // on callback mode, encoded data is written from CodecBackend.Callback
+        if ((mCodec == null) || mAsyncMode) return;
+        final long cpuStartNs = Debug.threadCpuTimeNanos();
+        try {
+            drainSync();
+        } finally {
+            mStats.addCpuTime(Debug.threadCpuTimeNanos() - cpuStartNs);
+        }
+    }
+
+    private void drainSync() {
         int encoderStatus, count = 0;
         final MediaMuxerWrapper muxer = mWeakMuxer.get();
         if (muxer == null) {
@@ -310,76 +409,42 @@ public abstract class MediaEncoder implements Runnable {
         }
         LOOP: while (mIsCapturing) {
             // get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
-            encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            encoderStatus = mCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (encoderStatus == CodecBackend.INFO_TRY_AGAIN_LATER) {
                 // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data/EOS come
                 if (!mIsEOS) {
                     if (++count > 5)
                         break LOOP;  // out of while
                 }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            } else if (encoderStatus == CodecBackend.INFO_OUTPUT_BUFFERS_CHANGED) {
                 if (DEBUG) Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
                 // this shoud not come when encoding
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // and nothing to do because output buffers are fetched by index
+            } else if (encoderStatus == CodecBackend.INFO_OUTPUT_FORMAT_CHANGED) {
                 if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
                 // this status indicate the output format of codec is changed
                 // this should come only once before actual encoded data
                 // but this status never come on Android4.3 or less
                 // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                if (mMuxerStarted) { // second time request is error
-                    throw new RuntimeException("format changed twice");
-                }
                 // get output format from codec and pass them to muxer
                 // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-                mTrackIndex = muxer.addTrack(format);
-                mMuxerStarted = true;
-                if (!muxer.start()) {
-                    // we should wait until muxer is ready
-                    synchronized (muxer) {
-                        while (!muxer.isStarted())
-                            try {
-                                muxer.wait(100);
-                            } catch (final InterruptedException e) {
-                                break LOOP;
-                            }
-                    }
-                }
+                handleOutputFormatChanged(muxer, mCodec.getOutputFormat());
             } else if (encoderStatus < 0) {
                 // unexpected status
                 if (DEBUG) Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
             } else {
-                final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                final ByteBuffer encodedData = mCodec.getOutputBuffer(encoderStatus);
                 if (encodedData == null) {
                     // this never should come...may be a MediaCodec internal error
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                 }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // You shoud set output format to muxer here when you target Android4.3 or less
-                    // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                    // therefor we should expand and prepare output format from buffer data.
-                    // This sample is for API>=18(>=Android 4.3), just ignore this flag here
-                    if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
                 if (mBufferInfo.size != 0) {
                     // encoded data is ready, clear waiting counter
                     count = 0;
-                    if (!mMuxerStarted) {
-                        // muxer is not ready...this will prrograming failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-//     if (!mRequestPause) {
-                    mBufferInfo.presentationTimeUs = getPTSUs();
-                    muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    prevOutputPTSUs = mBufferInfo.presentationTimeUs;
-//     }
                 }
+                writeEncodedData(muxer, encodedData, mBufferInfo);
                 // return buffer to encoder
-                mMediaCodec.releaseOutputBuffer(encoderStatus, false);
+                mCodec.releaseOutputBuffer(encoderStatus);
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     // when EOS come.
                     mIsCapturing = false;
@@ -389,25 +454,218 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * pass output format of codec to muxer and request to start it.
+     * This does not wait for other encoders, samples are staged in muxer until it starts.
+     * @param muxer
+     * @param format
+     */
+    private void handleOutputFormatChanged(final MediaMuxerWrapper muxer, final TrackFormat format) {
+        if (mMuxerStarted) { // second time request is error
+            throw new RuntimeException("format changed twice");
+        }
+        if (mOutputIndex >= 0) {
+            final TrackFormat routed = new TrackFormat(format);
+            routed.setInteger(TeeMuxerBackend.KEY_OUTPUT_INDEX, mOutputIndex);
+            mTrackIndex = muxer.addTrack(routed);
+        } else {
+            mTrackIndex = muxer.addTrack(format);
+        }
+        mMuxerStarted = true;
+        muxer.start();
+    }
+
+    /**
+     * write one output buffer of codec to muxer, this is shared by polling and callback mode
+     * @param muxer
+     * @param encodedData
+     * @param bufferInfo
+     */
+    private void writeEncodedData(final MediaMuxerWrapper muxer, final ByteBuffer encodedData, final SampleInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // You shoud set output format to muxer here when you target Android4.3 or less
+            // but CodecBackend#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
+            // therefor we should expand and prepare output format from buffer data.
+            // This sample is for API>=18(>=Android 4.3), just ignore this flag here
+            if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+            bufferInfo.size = 0;
+        }
+
+        if (bufferInfo.size != 0) {
+            if (!mMuxerStarted) {
+                // muxer is not ready...this will prrograming failure.
+                throw new RuntimeException("drain:muxer hasn't started");
+            }
+            bufferInfo.presentationTimeUs = toPresentationTimeUs(bufferInfo.presentationTimeUs);
+            // presentationTimeUs is the capture time on mClock's timeline that was given with the input,
+            // we only need to keep it monotonic otherwise muxer fail to write
+            final long inputPTSUs = bufferInfo.presentationTimeUs;
+            if (bufferInfo.presentationTimeUs <= prevOutputPTSUs)
+                bufferInfo.presentationTimeUs = prevOutputPTSUs + 1;
+            muxer.writeSampleData(mTrackIndex, encodedData, bufferInfo);
+            prevOutputPTSUs = bufferInfo.presentationTimeUs;
+            mStats.addSample(bufferInfo.size, mClock.nowUs() - inputPTSUs);
+            onSampleWritten(muxer, bufferInfo);
+        }
+    }
+
+    /**
+     * convert presentation time of encoded sample into mClock's timeline. Default implementation returns
+     * it as is because the input was given with the time on the timeline, sub class that lets other producer
+     * feed the codec(e.g. VirtualDisplay into the input surface) should override this.
+     * @param presentationTimeUs presentation time that the codec output
+     * @return
+     */
+    protected long toPresentationTimeUs(final long presentationTimeUs) {
+        return presentationTimeUs;
+    }
+
+    /**
+     * called on the drain thread after each encoded sample is passed to the muxer,
+     * sub class can override this to watch encoded sizes. default implementation does nothing.
+     * @param muxer
+     * @param info only valid while this method is running
+     */
+    protected void onSampleWritten(final MediaMuxerWrapper muxer, final SampleInfo info) {
+    }
+
+//********************************************************************************
+// callback mode
+//********************************************************************************
+    /**
+     * register this encoder to the codec as CodecBackend.Callback when callback mode is selected
+     * and the codec supports it. Sub class should call this between creating codec and CodecBackend#configure.
+     */
+    protected void setupCodecCallback() {
+        mAsyncMode = mAsyncMode && mCodec.isCallbackSupported();
+        mStats.setMode(mAsyncMode ? "callback" : "polling");
+        if (!mAsyncMode) return;
+        synchronized (mSync) {
+            mFreeInputBuffers.clear();
+        }
+        mCodec.setCallback(mCodecCallback);
+    }
+
+    /**
+     * wait until the codec delivers EOS on callback mode.
+     */
+    private void awaitEndOfStream() {
+        if (!mAsyncMode) return;
+        final long limit = System.currentTimeMillis() + EOS_TIMEOUT_MS;
+        synchronized (mSync) {
+            long remain;
+            while (mIsCapturing && ((remain = limit - System.currentTimeMillis()) > 0)) {
+                try {
+                    mSync.wait(remain);
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * callback mode version of #encode, wait for the input buffer that the codec handed us.
+     */
+    private void encodeAsync(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+        final int inputBufferIndex;
+        synchronized (mSync) {
+            while (mIsCapturing && mFreeInputBuffers.isEmpty()) {
+                try {
+                    mSync.wait();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+            if (!mIsCapturing) return;
+            inputBufferIndex = mFreeInputBuffers.poll();
+        }
+        final ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferIndex);
+        inputBuffer.clear();
+        if (buffer != null) {
+            inputBuffer.put(buffer);
+        }
+        if (length <= 0) {
+            // send EOS
+            mIsEOS = true;
+            if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+            mCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+                    presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        } else {
+            mCodec.queueInputBuffer(inputBufferIndex, 0, length,
+                    presentationTimeUs, 0);
+        }
+    }
+
+    private final CodecBackend.Callback mCodecCallback = new CodecBackend.Callback() {
+        @Override
+        public void onInputBufferAvailable(final CodecBackend codec, final int index) {
+            synchronized (mSync) {
+                mFreeInputBuffers.add(index);
+                mSync.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(final CodecBackend codec, final int index, final SampleInfo info) {
+            final long cpuStartNs = Debug.threadCpuTimeNanos();
+            try {
+                final MediaMuxerWrapper muxer = mWeakMuxer.get();
+                if ((muxer != null) && mIsCapturing) {
+                    writeEncodedData(muxer, codec.getOutputBuffer(index), info);
+                } else if (muxer == null) {
+                    Log.w(TAG, "muxer is unexpectedly null");
+                }
+                codec.releaseOutputBuffer(index);
+            } finally {
+                mStats.addCpuTime(Debug.threadCpuTimeNanos() - cpuStartNs);
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                synchronized (mSync) {
+                    mIsCapturing = false;
+                    mSync.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void onError(final CodecBackend codec, final Exception e) {
+            Log.e(TAG, "codec error", e);
+            // the codec is unusable, release it on the encoder thread and notify the listener with #onStopped
+            synchronized (mSync) {
+                mIsCapturing = false;
+                mRequestStop = true;
+                mSync.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(final CodecBackend codec, final TrackFormat format) {
+            if (DEBUG) Log.v(TAG, "onOutputFormatChanged");
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            if (muxer != null) {
+                handleOutputFormatChanged(muxer, format);
+            } else {
+                Log.w(TAG, "muxer is unexpectedly null");
+            }
+        }
+    };
+
     /**
      * previous presentationTimeUs for writing
      */
-    private long prevOutputPTSUs = 0;
+    private volatile long prevOutputPTSUs = 0;
 
-    private long offsetPTSUs = 0;
     /**
      * get next encoding presentationTimeUs
      * @return
      */
     protected long getPTSUs() {
-        long result;
-        synchronized (mSync) {
-            result = System.nanoTime() / 1000L - offsetPTSUs;
-        }
+        long result = mClock.nowUs();
         // presentationTimeUs should be monotonic
         // otherwise muxer fail to write
-        if (result < prevOutputPTSUs)
-            result = (prevOutputPTSUs - result) + result;
+        if (result <= prevOutputPTSUs)
+            result = prevOutputPTSUs + 1;
         return result;
     }
 
@@ -1,7 +1,5 @@
 package com.dannextech.apps.screenrecorder.Media;
 
-import android.media.MediaCodec;
-import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Environment;
 import android.text.TextUtils;
@@ -11,8 +9,13 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by amoh on 12/11/2017.
@@ -25,52 +28,120 @@ public class MediaMuxerWrapper {
     private static final String DIR_NAME = "ScreenRecSample";
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
-    private String mOutputPath;
-    private final MediaMuxer mMediaMuxer; // API >= 18
+    /**
+     * container writer, MediaMuxer by default
+     */
+    private final MuxerBackend mMuxer;
     private int mEncoderCount, mStatredCount;
     private boolean mIsStarted;
     private volatile boolean mIsPaused;
-    private MediaEncoder mVideoEncoder, mAudioEncoder;
+    /**
+     * video encoders, more than one when a capture is written as multiple profiles with TeeMuxerBackend
+     */
+    private final List<MediaEncoder> mVideoEncoders = new CopyOnWriteArrayList<MediaEncoder>();
+    private volatile MediaEncoder mAudioEncoder;
+    /**
+     * time base shared by all encoders of this muxer
+     */
+    private final PresentationClock mClock = new PresentationClock();
+    /**
+     * encoded samples are passed to mWriterThread via this queue
+     */
+    private int mQueueCapacity = SampleQueue.DEFAULT_CAPACITY;
+    private SampleQueue.Policy mQueuePolicy = SampleQueue.Policy.BLOCK;
+    private final List<Integer> mVideoTracks = new ArrayList<Integer>();
+    private int mTrackCount;
+    /**
+     * samples are reordered by presentation time on the writer thread
+     */
+    private long mInterleaveDelayUs = SampleInterleaver.DEFAULT_MAX_DELAY_US;
+    private int mInterleaveWindow = SampleInterleaver.DEFAULT_MAX_SAMPLES_PER_TRACK;
+    private volatile SampleQueue mSampleQueue;
+    private SampleInterleaver mInterleaver;
+    private Thread mWriterThread;
+    /**
+     * longest MuxerBackend#writeSampleData on the writer thread since last #takeMaxWriteLatencyUs
+     */
+    private final AtomicLong mMaxWriteLatencyUs = new AtomicLong();
+    /**
+     * samples output before the muxer starts, guarded by this
+     */
+    private SampleStaging mStaging = new SampleStaging(SampleStaging.DEFAULT_MAX_SAMPLES_PER_TRACK);
+    /**
+     * time when the first track was added and time from it until the muxer started
+     */
+    private long mFirstTrackNs = -1;
+    private long mTimeToStartUs = -1;
+    /**
+     * time when #prepare was called and time from it until the first encoded video frame
+     */
+    private long mPrepareNs = -1;
+    private long mTimeToFirstFrameUs = -1;
+    /**
+     * move moov to the front of the output file after stop
+     */
+    private boolean mFastStart;
+    private volatile Future<Boolean> mFastStartResult;
 
     /**
      * Constructor
      * @param ext extension of output file
      * @throws IOException
      */
-    public MediaMuxerWrapper(String ext) throws IOException {
-        if (TextUtils.isEmpty(ext)) ext = ".mp4";
-        try {
-            mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, ext).toString();
-        } catch (final NullPointerException e) {
-            throw new RuntimeException("This app has no permission of writing external storage");
+    public MediaMuxerWrapper(final String ext) throws IOException {
+        this(new PlatformMuxerBackend(getCaptureFilePath(ext), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+    }
+
+    /**
+     * Constructor
+     * @param muxer container writer to write encoded samples
+     */
+    public MediaMuxerWrapper(final MuxerBackend muxer) {
+        if (muxer == null) throw new NullPointerException("MuxerBackend is null");
+        mMuxer = muxer;
+        if (muxer instanceof MuxerBackend.SyncFrameAware) {
+            ((MuxerBackend.SyncFrameAware)muxer).setSyncFrameRequester(mSyncFrameRequester);
         }
-        mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
         mEncoderCount = mStatredCount = 0;
         mIsStarted = false;
     }
 
+    /**
+     * @return path of the file that is written now, this can change while recording with SegmentedMuxerBackend
+     */
     public String getOutputPath() {
-        return mOutputPath;
+        return mMuxer.getOutputPath();
+    }
+
+    /**
+     * request the video encoders to output a key frame soon
+     */
+    public void requestSyncFrame() {
+        for (final MediaEncoder encoder: mVideoEncoders)
+            encoder.requestSyncFrame();
     }
 
     public void prepare() throws IOException {
-        if (mVideoEncoder != null)
-            mVideoEncoder.prepare();
+        synchronized (this) {
+            mPrepareNs = System.nanoTime();
+        }
+        for (final MediaEncoder encoder: mVideoEncoders)
+            encoder.prepare();
         if (mAudioEncoder != null)
             mAudioEncoder.prepare();
     }
 
     public void startRecording() {
-        if (mVideoEncoder != null)
-            mVideoEncoder.startRecording();
+        for (final MediaEncoder encoder: mVideoEncoders)
+            encoder.startRecording();
         if (mAudioEncoder != null)
             mAudioEncoder.startRecording();
     }
 
     public void stopRecording() {
-        if (mVideoEncoder != null)
-            mVideoEncoder.stopRecording();
-        mVideoEncoder = null;
+        for (final MediaEncoder encoder: mVideoEncoders)
+            encoder.stopRecording();
+        mVideoEncoders.clear();
         if (mAudioEncoder != null)
             mAudioEncoder.stopRecording();
         mAudioEncoder = null;
@@ -82,17 +153,19 @@ public class MediaMuxerWrapper {
 
     public synchronized void pauseRecording() {
         mIsPaused = true;
-        if (mVideoEncoder != null)
-            mVideoEncoder.pauseRecording();
+        mClock.pause();
+        for (final MediaEncoder encoder: mVideoEncoders)
+            encoder.pauseRecording();
         if (mAudioEncoder != null)
             mAudioEncoder.pauseRecording();
     }
 
     public synchronized void resumeRecording() {
-        if (mVideoEncoder != null)
-            mVideoEncoder.resumeRecording();
+        for (final MediaEncoder encoder: mVideoEncoders)
+            encoder.resumeRecording();
         if (mAudioEncoder != null)
             mAudioEncoder.resumeRecording();
+        mClock.resume();
         mIsPaused = false;
     }
 
@@ -100,24 +173,132 @@ public class MediaMuxerWrapper {
         return mIsPaused;
     }
 
+    public PresentationClock getPresentationClock() {
+        return mClock;
+    }
+
+    /**
+     * set up the queue between encoders and the writer thread, this should be called before start recording.
+     * @param capacity maximum number of samples that can wait for writing
+     * @param policy what to do when the queue is full
+     */
+    public synchronized void setWriterQueue(final int capacity, final SampleQueue.Policy policy) {
+        if (mIsStarted)
+            throw new IllegalStateException("muxer already started");
+        if (capacity <= 0) throw new IllegalArgumentException("capacity should be positive");
+        if (policy == null) throw new NullPointerException("policy is null");
+        mQueueCapacity = capacity;
+        mQueuePolicy = policy;
+    }
+
+    /**
+     * move moov in front of mdat after recording stopped for progressive playback.
+     * This is done on background thread, use #getFastStartResult to wait for it.
+     * @param fastStart
+     */
+    public synchronized void setFastStart(final boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    /**
+     * @return result of FastStartFinalizer, null if fast start is not enabled or recording is not stopped yet
+     */
+    public Future<Boolean> getFastStartResult() {
+        return mFastStartResult;
+    }
+
+    /**
+     * set up interleaving of audio and video samples, this should be called before start recording.
+     * @param maxDelayUs samples are held at most this time(in presentation time) to wait samples of other tracks,
+     * 0 writes samples in arrival order
+     * @param maxSamplesPerTrack maximum number of held samples per track
+     */
+    public synchronized void setInterleave(final long maxDelayUs, final int maxSamplesPerTrack) {
+        if (mIsStarted)
+            throw new IllegalStateException("muxer already started");
+        if (maxDelayUs < 0) throw new IllegalArgumentException("max delay should not be negative");
+        if (maxSamplesPerTrack <= 0) throw new IllegalArgumentException("max samples should be positive");
+        mInterleaveDelayUs = maxDelayUs;
+        mInterleaveWindow = maxSamplesPerTrack;
+    }
+
+    /**
+     * set maximum number of samples per track that can be kept until the muxer starts,
+     * this should be called before start recording.
+     * @param maxSamplesPerTrack
+     */
+    public synchronized void setStagingCapacity(final int maxSamplesPerTrack) {
+        if (mIsStarted)
+            throw new IllegalStateException("muxer already started");
+        mStaging = new SampleStaging(maxSamplesPerTrack);
+    }
+
+    /**
+     * get staging of samples before the muxer starts to monitor its depth and drops
+     * @return
+     */
+    public synchronized SampleStaging getStaging() {
+        return mStaging;
+    }
+
+    /**
+     * @return time from the first track was added until the muxer started, -1 if not started yet
+     */
+    public synchronized long getTimeToStartUs() {
+        return mTimeToStartUs;
+    }
+
+    /**
+     * @return time from #prepare until the first encoded video frame, this includes codec selection
+     * and configuration, -1 if no video frame was encoded yet
+     */
+    public synchronized long getTimeToFirstFrameUs() {
+        return mTimeToFirstFrameUs;
+    }
+
+    /**
+     * get the queue to the writer thread to monitor its depth, stall time and drops
+     * @return null if the muxer is not started yet
+     */
+    public SampleQueue getWriterQueue() {
+        return mSampleQueue;
+    }
+
+    /**
+     * get and reset the longest time spent for writing one sample to MuxerBackend,
+     * this is used to detect slow storage(e.g. by BitrateController)
+     * @return 0 if no sample was written since last call
+     */
+ /*package*/ long takeMaxWriteLatencyUs() {
+        return mMaxWriteLatencyUs.getAndSet(0);
+    }
+
+    private void updateMaxWriteLatency(final long latencyUs) {
+        long current;
+        while (latencyUs > (current = mMaxWriteLatencyUs.get())) {
+            if (mMaxWriteLatencyUs.compareAndSet(current, latencyUs)) break;
+        }
+    }
+
 //**********************************************************************
 //**********************************************************************
     /**
      * assign encoder to this calss. this is called from encoder.
+     * More than one video encoder can be added, e.g. for each output of TeeMuxerBackend.
      * @param encoder instance of MediaVideoEncoderBase
      */
  /*package*/ void addEncoder(final MediaEncoder encoder) {
         if (encoder instanceof MediaVideoEncoderBase) {
-            if (mVideoEncoder != null)
+            if (mVideoEncoders.contains(encoder))
                 throw new IllegalArgumentException("Video encoder already added.");
-            mVideoEncoder = encoder;
+            mVideoEncoders.add(encoder);
         } else if (encoder instanceof MediaAudioEncoder) {
             if (mAudioEncoder != null)
-                throw new IllegalArgumentException("Video encoder already added.");
+                throw new IllegalArgumentException("Audio encoder already added.");
             mAudioEncoder = encoder;
         } else
             throw new IllegalArgumentException("unsupported encoder");
-        mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
+        mEncoderCount = mVideoEncoders.size() + (mAudioEncoder != null ? 1 : 0);
     }
 
     /**
@@ -128,8 +309,24 @@ public class MediaMuxerWrapper {
         if (DEBUG) Log.v(TAG,  "start:");
         mStatredCount++;
         if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-            mMediaMuxer.start();
+            try {
+                mMuxer.start();
+            } catch (final IOException e) {
+                throw new RuntimeException("failed to start muxer", e);
+            }
+            final SampleQueue queue = new SampleQueue(mQueueCapacity, mQueuePolicy);
+            for (final int trackIndex: mVideoTracks) {
+                queue.setSyncDependent(trackIndex);
+            }
+            mSampleQueue = queue;
+            mInterleaver = new SampleInterleaver(mTrackCount, mInterleaveDelayUs, mInterleaveWindow);
+            mWriterThread = new Thread(mWriterTask, TAG);
+            mWriterThread.start();
+            // samples that came before start are written first
+            mStaging.flushTo(queue);
             mIsStarted = true;
+            mTimeToStartUs = (System.nanoTime() - mFirstTrackNs) / 1000L;
+            Log.i(TAG, "muxer started in " + mTimeToStartUs + "us," + mStaging);
             notifyAll();
             if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
         }
@@ -143,8 +340,30 @@ public class MediaMuxerWrapper {
         if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
         mStatredCount--;
         if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-            mMediaMuxer.stop();
-            mMediaMuxer.release();
+            // let the writer thread write all queued samples before stopping MediaMuxer
+            final SampleQueue queue = mSampleQueue;
+            if (queue != null) {
+                queue.close();
+                try {
+                    mWriterThread.join();
+                } catch (final InterruptedException e) {
+                    Log.w(TAG, "interrupted while waiting writer thread");
+                }
+                mWriterThread = null;
+                Log.i(TAG, queue.toString());
+                Log.i(TAG, mInterleaver.toString());
+            }
+            try {
+                mMuxer.stop();
+            } catch (final Exception e) {
+                Log.e(TAG, "failed to stop muxer", e);
+            }
+            mMuxer.release();
+            mStaging.clear();
+            final String path = mMuxer.getOutputPath();
+            if (mFastStart && (path != null)) {
+                mFastStartResult = FastStartFinalizer.submit(new File(path));
+            }
             mIsStarted = false;
             if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
         }
@@ -155,28 +374,115 @@ public class MediaMuxerWrapper {
      * @param format
      * @return minus value indicate error
      */
- /*package*/ synchronized int addTrack(final MediaFormat format) {
+ /*package*/ synchronized int addTrack(final TrackFormat format) {
         if (mIsStarted)
             throw new IllegalStateException("muxer already started");
-        final int trackIx = mMediaMuxer.addTrack(format);
+        final int trackIx = mMuxer.addTrack(format);
+        mTrackCount = Math.max(mTrackCount, trackIx + 1);
+        if (format.isVideo()) {
+            mVideoTracks.add(trackIx);
+            mStaging.setSyncDependent(trackIx);
+        }
+        if (mFirstTrackNs < 0)
+            mFirstTrackNs = System.nanoTime();
         if (DEBUG) Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
         return trackIx;
     }
 
     /**
-     * write encoded data to muxer
+     * queue encoded data to write to muxer. The data is copied, so the caller can release
+     * the buffer as soon as this method returns. This may block when the queue is full
+     * and the policy is SampleQueue.Policy#BLOCK.
+     * Samples are staged until all tracks are added and the muxer starts, this never waits for it.
      * @param trackIndex
      * @param byteBuf
      * @param bufferInfo
      */
- /*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-        if (mStatredCount > 0) {
-            mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+ /*package*/ void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo bufferInfo) {
+        final SampleQueue queue;
+        synchronized (this) {
+            if ((mTimeToFirstFrameUs < 0) && (mPrepareNs >= 0) && mVideoTracks.contains(trackIndex)) {
+                mTimeToFirstFrameUs = (System.nanoTime() - mPrepareNs) / 1000L;
+                Log.i(TAG, "first video frame in " + mTimeToFirstFrameUs + "us");
+            }
+            if (!mIsStarted) {
+                mStaging.add(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size,
+                    bufferInfo.presentationTimeUs, bufferInfo.flags);
+                return;
+            }
+            queue = mSampleQueue;
+        }
+        if (queue != null) {
+            queue.offer(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size,
+                bufferInfo.presentationTimeUs, bufferInfo.flags);
         }
     }
 
+    private final Runnable mSyncFrameRequester = new Runnable() {
+        @Override
+        public void run() {
+            requestSyncFrame();
+        }
+    };
+
+    /**
+     * write queued samples to MuxerBackend in presentation time order on private thread,
+     * so slow storage does not block codec drains.
+     */
+    private final Runnable mWriterTask = new Runnable() {
+        @Override
+        public void run() {
+            final SampleQueue queue = mSampleQueue;
+            final SampleInterleaver interleaver = mInterleaver;
+            final SampleInfo info = new SampleInfo();
+            for ( ; ; ) {
+                EncodedSample sample;
+                try {
+                    sample = queue.take();
+                } catch (final InterruptedException e) {
+                    sample = null;
+                }
+                final boolean closed = sample == null;
+                if (closed) {
+                    // write all held samples
+                    interleaver.finish();
+                } else {
+                    interleaver.add(sample);
+                }
+                while ((sample = interleaver.poll()) != null) {
+                    info.set(0, sample.size, sample.presentationTimeUs, sample.flags);
+                    final long startNs = System.nanoTime();
+                    try {
+                        mMuxer.writeSampleData(sample.trackIndex, sample.data, info);
+                    } catch (final Exception e) {
+                        // keep draining the queue, otherwise encoders may block forever
+                        Log.e(TAG, "failed writing sample", e);
+                    }
+                    updateMaxWriteLatency((System.nanoTime() - startNs) / 1000L);
+                    queue.recycle(sample);
+                }
+                if (closed) break;
+            }
+            if (DEBUG) Log.v(TAG, "writer thread finished");
+        }
+    };
+
 //**********************************************************************
 //**********************************************************************
+    /**
+     * generate output file path in Movies directory
+     * @param ext extension of output file, ".mp4" if empty
+     * @return
+     */
+    private static String getCaptureFilePath(String ext) {
+        if (TextUtils.isEmpty(ext)) ext = ".mp4";
+        try {
+            return getCaptureFile(Environment.DIRECTORY_MOVIES, ext).toString();
+        } catch (final NullPointerException e) {
+            throw new RuntimeException("This app has no permission of writing external storage");
+        }
+    }
+
     /**
      * generate output file
      * @param type Environment.DIRECTORY_MOVIES / Environment.DIRECTORY_DCIM etc.
@@ -184,15 +490,25 @@ public class MediaMuxerWrapper {
      * @return return null when this app has no writing permission to external storage.
      */
     public static final File getCaptureFile(final String type, final String ext) {
-        final File dir = new File(Environment.getExternalStoragePublicDirectory(type), DIR_NAME);
-        Log.d(TAG, "path=" + dir.toString());
-        dir.mkdirs();
-        if (dir.canWrite()) {
+        final File dir = getCaptureDir(type);
+        if (dir != null) {
             return new File(dir, getDateTimeString() + ext);
         }
         return null;
     }
 
+    /**
+     * get directory that output files are written
+     * @param type Environment.DIRECTORY_MOVIES / Environment.DIRECTORY_DCIM etc.
+     * @return return null when this app has no writing permission to external storage.
+     */
+    public static final File getCaptureDir(final String type) {
+        final File dir = new File(Environment.getExternalStoragePublicDirectory(type), DIR_NAME);
+        Log.d(TAG, "path=" + dir.toString());
+        dir.mkdirs();
+        return dir.canWrite() ? dir : null;
+    }
+
     /**
      * get current date and time as String
      * @return
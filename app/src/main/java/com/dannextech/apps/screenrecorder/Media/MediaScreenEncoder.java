@@ -3,9 +3,11 @@ package com.dannextech.apps.screenrecorder.Media;
 import android.graphics.SurfaceTexture;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
+import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
@@ -14,9 +16,16 @@ import android.view.Surface;
 import com.dannextech.apps.screenrecorder.Glutils.EglTask;
 import com.dannextech.apps.screenrecorder.Glutils.FullFrameRect;
 import com.dannextech.apps.screenrecorder.Glutils.Texture2dProgram;
+import com.dannextech.apps.screenrecorder.Glutils.TextureOffscreen;
 import com.dannextech.apps.screenrecorder.Glutils.WindowSurface;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by amoh on 12/11/2017.
@@ -26,14 +35,48 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
     private static final boolean DEBUG = false; // TODO set false on release
     private static final String TAG = "MediaScreenEncoder";
 
-    private static final String MIME_TYPE = "video/avc";
-    // parameters for recording
-    private static final int FRAME_RATE = 25;
+    /**
+     * default keep-alive rate on a static screen[fps]
+     */
+    private static final float DEFAULT_MIN_FRAME_RATE = 1.0f;
 
     private MediaProjection mMediaProjection;
     private final int mDensity;
     private Surface mSurface;
     private final Handler mHandler;
+    /**
+     * encoders that get the same frames from the source texture with their own size and bit rate
+     */
+    private final List<MediaSurfaceEncoder> mProfileEncoders = new CopyOnWriteArrayList<MediaSurfaceEncoder>();
+    /**
+     * true if filters/overlays are drawn on captured frames, they need the GL path
+     */
+    private volatile boolean mEffectsEnabled;
+    /**
+     * true: VirtualDisplay renders into the input surface of the codec directly,
+     * false: frames are copied from SurfaceTexture into the input surface with GL
+     */
+    private volatile boolean mDirect;
+    private volatile RenderStats mRenderStats;
+    /**
+     * keep-alive rate while the screen does not change, frame rate of the profile or more means constant frame rate
+     */
+    private volatile float mMinFrameRate = DEFAULT_MIN_FRAME_RATE;
+    /**
+     * encoding options, resolved against capabilities of the encoder in #prepare
+     */
+    private volatile VideoProfile mVideoProfile = VideoProfile.createDefault();
+    private volatile boolean mResolveProfile;
+    private volatile VariableFrameRate mFrameRate;
+    private volatile FrameScheduler mScheduler;
+    /**
+     * skips captured frames whose content did not change, null means every captured frame is new
+     */
+    private volatile StaticContentDetector mStaticContentDetector;
+    /**
+     * wall-clock time when capturing started[ns]
+     */
+    private volatile long mCaptureStartNs;
 
     public MediaScreenEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
                               final MediaProjection projection, final int width, final int height, final int density) {
@@ -46,17 +89,141 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
         mHandler = new Handler(thread.getLooper());
     }
 
+    /**
+     * draw captured frames also into the encoder, e.g. low bit rate proxy in other output of TeeMuxerBackend.
+     * The encoder should be added to the same muxer, its frames are scaled from the source texture
+     * and get same presentation times as this encoder.
+     * @param encoder
+     */
+    public void addProfileEncoder(final MediaSurfaceEncoder encoder) {
+        if (encoder == null) throw new NullPointerException("encoder is null");
+        mProfileEncoders.add(encoder);
+    }
+
+    /**
+     * enable the GL path for filters/overlays, this should be called before #prepare.
+     * Without effects and profile encoders, captured frames do not pass through GL.
+     * @param enabled
+     */
+    public void setEffectsEnabled(final boolean enabled) {
+        mEffectsEnabled = enabled;
+    }
+
+    /**
+     * set keep-alive rate, frames are encoded only when the screen changed
+     * and the last frame is encoded again at this rate while nothing changes.
+     * This should be called before #prepare.
+     * @param minFrameRate 0 means no keep-alive frame, frame rate of the profile or more means constant frame rate
+     */
+    public void setMinFrameRate(final float minFrameRate) {
+        if (minFrameRate < 0) throw new IllegalArgumentException("frame rate should not be negative");
+        mMinFrameRate = minFrameRate;
+    }
+
+    /**
+     * set codec and encoding options, options that the encoder does not support are dropped in #prepare.
+     * This should be called before #prepare.
+     * @param profile
+     */
+    public void setVideoProfile(final VideoProfile profile) {
+        if (profile == null) throw new NullPointerException("profile is null");
+        mVideoProfile = new VideoProfile(profile);
+        mResolveProfile = true;
+    }
+
+    /**
+     * @return profile that is used for encoding, this is resolved after #prepare
+     */
+    public VideoProfile getVideoProfile() {
+        return mVideoProfile;
+    }
+
+    /**
+     * compare fingerprints of captured frames to skip frames whose content did not change,
+     * this needs the GL path. This should be called before #prepare.
+     * @param detector null to treat every captured frame as a new frame
+     */
+    public void setStaticContentDetector(final StaticContentDetector detector) {
+        mStaticContentDetector = detector;
+    }
+
+    public StaticContentDetector getStaticContentDetector() {
+        return mStaticContentDetector;
+    }
+
+    /**
+     * @return counts of submitted frames on the GL path, null before #prepare
+     */
+    public VariableFrameRate getVariableFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @return pacing of captured frames on the GL path, null before #prepare
+     */
+    public FrameScheduler getFrameScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * @return true if VirtualDisplay renders into the codec directly, valid after #prepare
+     */
+    public boolean isDirectPath() {
+        return mDirect;
+    }
+
+    /**
+     * @return per frame cost of the render thread, null before #prepare
+     */
+    public RenderStats getRenderStats() {
+        return mRenderStats;
+    }
+
+    @Override
+    protected long toPresentationTimeUs(final long presentationTimeUs) {
+        // on the direct path, the codec outputs timestamps of VirtualDisplay(CLOCK_MONOTONIC, same base as mClock)
+        return mDirect ? mClock.toPresentationUs(presentationTimeUs) : presentationTimeUs;
+    }
+
+    @Override
+    protected void onConfigureFormat(final TrackFormat format) {
+        mVideoProfile.applyTo(format);
+        final float minFrameRate = Math.min(mMinFrameRate, mVideoProfile.frameRate);
+        if (mDirect && (minFrameRate > 0)) {
+            // the codec repeats the last frame by itself because this class does not see each frame on the direct path
+            format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, (long)(1000000L / minFrameRate));
+        }
+    }
+
     @Override
     protected void release() {
         mHandler.getLooper().quit();
         super.release();
+        if (mCaptureStartNs > 0) {
+            final long elapsedMs = (System.nanoTime() - mCaptureStartNs) / 1000000L;
+            final long frames = mStats.getSamples();
+            Log.i(TAG, String.format(Locale.US, "encoded %d frames in %d[ms](%.2f[fps]), %d frames at constant frame rate",
+                frames, elapsedMs, elapsedMs > 0 ? frames * 1000f / elapsedMs : 0f, elapsedMs * mVideoProfile.frameRate / 1000L));
+        }
     }
 
     @Override
     void prepare() throws IOException {
         if (DEBUG) Log.i(TAG, "prepare: ");
-        mSurface = prepare_surface_encoder(MIME_TYPE, FRAME_RATE);
-        mMediaCodec.start();
+        mDirect = !mEffectsEnabled && mProfileEncoders.isEmpty() && (mStaticContentDetector == null);
+        if (mResolveProfile) {
+            mVideoProfile = mVideoProfile.resolve(CodecCapabilityCache.getDefault(), mWidth, mHeight);
+            Log.i(TAG, "prepare:" + mVideoProfile);
+        }
+        final VideoProfile profile = mVideoProfile;
+        if (profile.bitRate > 0) {
+            setBitRate(profile.bitRate);
+        }
+        mSurface = prepare_surface_encoder(profile.codec.mime, profile.frameRate);
+        mRenderStats = new RenderStats(mDirect ? "direct" : "gl");
+        mFrameRate = new VariableFrameRate(Math.min(mMinFrameRate, profile.frameRate));
+        mScheduler = new FrameScheduler(profile.frameRate, mClock.getTimeSource());
+        mCodec.start();
         mIsCapturing = true;
         new Thread(mScreenCaptureTask, "ScreenCaptureThread").start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
@@ -79,7 +246,6 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
         super.stopRecording();
     }
 
-    private boolean requestDraw;
     private final DrawTask mScreenCaptureTask = new DrawTask(null, 0);
 
     private final class DrawTask extends EglTask {
@@ -89,8 +255,23 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
         private SurfaceTexture mSourceTexture;
         private Surface mSourceSurface;
         private WindowSurface mEncoderSurface;
+        /**
+         * surfaces of mProfileEncoders, created when their codecs are ready
+         */
+        private final List<MediaSurfaceEncoder> mProfileTargets = new ArrayList<MediaSurfaceEncoder>();
+        private final List<WindowSurface> mProfileSurfaces = new ArrayList<WindowSurface>();
         private FullFrameRect mDrawer;
+        /**
+         * tiny copy of the source texture and its pixels for StaticContentDetector
+         */
+        private TextureOffscreen mFingerprint;
+        private ByteBuffer mFingerprintPixels;
         private final float[] mTexMatrix = new float[16];
+        /**
+         * capture time of the texture on mClock's timeline and presentation time of previous frame[ns]
+         */
+        private long mFramePresentationTimeNs;
+        private long mPrevPresentationTimeNs;
 
         public DrawTask(final EGLContext shared_context, final int flags) {
             super(shared_context, flags);
@@ -99,6 +280,19 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
         @Override
         protected void onStart() {
             if (DEBUG) Log.d(TAG,"mScreenCaptureTask#onStart:");
+            intervals = (long)(1000f / mVideoProfile.frameRate);
+            mCaptureStartNs = System.nanoTime();
+            if (mDirect) {
+                // no copy on GPU and no thread hop per frame, this thread only drives draining of the codec
+                display = mMediaProjection.createVirtualDisplay(
+                        "Capturing Display",
+                        mWidth, mHeight, mDensity,
+                        DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
+                        mSurface, null, null);
+                if (DEBUG) Log.v(TAG,  "direct capture:display=" + display);
+                queueEvent(mDirectTask);
+                return;
+            }
             mDrawer = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
             mTexId = mDrawer.createTextureObject();
             mSourceTexture = new SurfaceTexture(mTexId);
@@ -106,9 +300,14 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
             mSourceSurface = new Surface(mSourceTexture);
             mSourceTexture.setOnFrameAvailableListener(mOnFrameAvailableListener, mHandler);
             mEncoderSurface = new WindowSurface(getEglCore(), mSurface);
+            final StaticContentDetector detector = mStaticContentDetector;
+            if (detector != null) {
+                mFingerprint = new TextureOffscreen(detector.getWidth(), detector.getHeight(), false);
+                mFingerprintPixels = ByteBuffer.allocateDirect(detector.getWidth() * detector.getHeight() * 4)
+                    .order(ByteOrder.nativeOrder());
+            }
 
             if (DEBUG) Log.d(TAG,"setup VirtualDisplay");
-            intervals = (long)(1000f / FRAME_RATE);
             display = mMediaProjection.createVirtualDisplay(
                     "Capturing Display",
                     mWidth, mHeight, mDensity,
@@ -120,6 +319,10 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
 
         @Override
         protected void onStop() {
+            if (mFingerprint != null) {
+                mFingerprint.release();
+                mFingerprint = null;
+            }
             if (mDrawer != null) {
                 mDrawer.release();
                 mDrawer = null;
@@ -136,8 +339,22 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
                 mEncoderSurface.release();
                 mEncoderSurface = null;
             }
+            for (final WindowSurface surface: mProfileSurfaces) {
+                surface.release();
+            }
+            mProfileSurfaces.clear();
+            mProfileTargets.clear();
             makeCurrent();
             if (DEBUG) Log.v(TAG, "mScreenCaptureTask#onStop:");
+            Log.i(TAG, String.valueOf(mRenderStats));
+            if (!mDirect && (mFrameRate != null)) {
+                mFrameRate.stop(System.nanoTime());
+                Log.i(TAG, mFrameRate.toString());
+                Log.i(TAG, mScheduler.toString());
+            }
+            if (mStaticContentDetector != null) {
+                Log.i(TAG, mStaticContentDetector.toString());
+            }
             if (display != null) {
                 if (DEBUG) Log.v(TAG,  "release VirtualDisplay");
                 display.release();
@@ -165,41 +382,109 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
             public void onFrameAvailable(final SurfaceTexture surfaceTexture) {
                 if (mIsCapturing) {
                     synchronized (mSync) {
-                        requestDraw = true;
+                        mScheduler.onFrameAvailable();
                         mSync.notifyAll();
                     }
                 }
             }
         };
 
+        /**
+         * draw the same texture into the surface of each profile encoder, makeCurrent sets the viewport
+         * to the size of each surface so the frame is scaled.
+         * @param ptsNs
+         */
+        private void drawProfiles(final long ptsNs) {
+            for (final MediaSurfaceEncoder encoder: mProfileEncoders) {
+                int index = mProfileTargets.indexOf(encoder);
+                if (!encoder.isAcceptingFrames()) {
+                    if (index >= 0) {
+                        // the encoder is stopping, its surface will be released by the codec
+                        mProfileSurfaces.remove(index).release();
+                        mProfileTargets.remove(index);
+                    }
+                    continue;
+                }
+                if (index < 0) {
+                    mProfileTargets.add(encoder);
+                    mProfileSurfaces.add(new WindowSurface(getEglCore(), encoder.getInputSurface()));
+                    index = mProfileTargets.size() - 1;
+                }
+                final WindowSurface surface = mProfileSurfaces.get(index);
+                surface.makeCurrent();
+                mDrawer.drawFrame(mTexId, mTexMatrix);
+                surface.setPresentationTime(ptsNs);
+                surface.swapBuffers();
+                encoder.frameAvailableSoon();
+            }
+        }
+
+        /**
+         * render the source texture into the fingerprint and compare it with the last accepted one.
+         * The read back blocks until the GPU finished the tiny draw, only 4KB at 32x32.
+         * @param detector
+         * @param nowNs
+         * @return false if the content did not change
+         */
+        private boolean isContentChanged(final StaticContentDetector detector, final long nowNs) {
+            mFingerprint.bind();
+            mDrawer.drawFrame(mTexId, mTexMatrix);
+            mFingerprintPixels.clear();
+            GLES20.glReadPixels(0, 0, detector.getWidth(), detector.getHeight(),
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mFingerprintPixels);
+            mFingerprint.unbind();
+            return detector.onFrame(mFingerprintPixels, nowNs);
+        }
+
         private final Runnable mDrawTask = new Runnable() {
             @Override
             public void run() {
-                boolean local_request_pause;
-                boolean local_request_draw;
+                final boolean local_request_pause;
                 synchronized (mSync) {
-                    local_request_pause = mRequestPause;
-                    local_request_draw = requestDraw;
-                    if (!requestDraw) {
+                    // wait until the deadline of the pending frame,
+                    // or for a new frame until the keep-alive frame is due
+                    final long waitMs = mScheduler.hasPendingFrame()
+                        ? mScheduler.getWaitMs(intervals) : mFrameRate.getWaitMs(System.nanoTime(), 1000L);
+                    if (waitMs > 0) {
                         try {
-                            mSync.wait(intervals);
-                            local_request_pause = mRequestPause;
-                            local_request_draw = requestDraw;
-                            requestDraw = false;
+                            mSync.wait(waitMs);
                         } catch (final InterruptedException e) {
                             return;
                         }
                     }
+                    local_request_pause = mRequestPause;
                 }
+                // frames that arrived in the same slot are merged, missed slots are dropped
+                final boolean local_request_draw = mScheduler.poll();
                 if (mIsCapturing) {
+                    final long startNs = System.nanoTime();
+                    final long cpuStartNs = Debug.threadCpuTimeNanos();
                     if (local_request_draw) {
                         mSourceTexture.updateTexImage();
                         mSourceTexture.getTransformMatrix(mTexMatrix);
+                        // SurfaceTexture#getTimestamp is CLOCK_MONOTONIC, same base as mClock
+                        mFramePresentationTimeNs = mClock.toPresentationUs(mSourceTexture.getTimestamp() / 1000L) * 1000L;
+                    } else {
+                        // re-drawing the previous texture, it is shown from now
+                        mFramePresentationTimeNs = mClock.nowUs() * 1000L;
+                    }
+                    boolean newFrame = local_request_draw;
+                    final StaticContentDetector detector = mStaticContentDetector;
+                    if (newFrame && !local_request_pause && (mFingerprint != null) && (detector != null)) {
+                        newFrame = isContentChanged(detector, startNs);
                     }
-                    if (!local_request_pause) {
+                    // identical frames are not encoded except keep-alive frames
+                    if (!local_request_pause && mFrameRate.onWakeup(newFrame, startNs)) {
+                        long ptsNs = mFramePresentationTimeNs;
+                        if (ptsNs <= mPrevPresentationTimeNs)
+                            ptsNs = mPrevPresentationTimeNs + 1000L;
+                        mPrevPresentationTimeNs = ptsNs;
                         mEncoderSurface.makeCurrent();
                         mDrawer.drawFrame(mTexId, mTexMatrix);
+                        mEncoderSurface.setPresentationTime(ptsNs);
                         mEncoderSurface.swapBuffers();
+                        drawProfiles(ptsNs);
+                        mRenderStats.addFrame(Debug.threadCpuTimeNanos() - cpuStartNs, System.nanoTime() - startNs);
                     }
                     makeCurrent();
                     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
@@ -212,6 +497,40 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
             }
         };
 
+        /**
+         * direct path, VirtualDisplay renders into the codec. Pause drops frames in the codec
+         * because this thread does not see each frame.
+         */
+        private final Runnable mDirectTask = new Runnable() {
+            private boolean mSuspended;
+
+            @Override
+            public void run() {
+                final boolean local_request_pause;
+                synchronized (mSync) {
+                    try {
+                        mSync.wait(intervals);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    local_request_pause = mRequestPause;
+                }
+                if (mIsCapturing) {
+                    if (local_request_pause != mSuspended) {
+                        mSuspended = local_request_pause;
+                        try {
+                            mCodec.setInputSuspended(local_request_pause);
+                        } catch (final Exception e) {
+                            Log.w(TAG, "setInputSuspended:", e);
+                        }
+                    }
+                    frameAvailableSoon();
+                    queueEvent(this);
+                } else {
+                    releaseSelf();
+                }
+            }
+        };
     };
 
 }
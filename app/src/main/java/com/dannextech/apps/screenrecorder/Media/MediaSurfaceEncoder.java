@@ -0,0 +1,72 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * Video encoder without its own capture, frames are drawn into its input surface by
+ * another encoder that owns the source(e.g. MediaScreenEncoder#addProfileEncoder).
+ * This is used to write the same capture with other size/bit rate into other output
+ * of TeeMuxerBackend.
+ */
+public class MediaSurfaceEncoder extends MediaVideoEncoderBase {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "MediaSurfaceEncoder";
+
+    private static final String MIME_TYPE = "video/avc";
+
+    private final int mFrameRate;
+    private volatile Surface mSurface;
+
+    /**
+     * @param muxer
+     * @param listener
+     * @param width
+     * @param height
+     * @param frameRate expected frame rate, actual frame rate follows the encoder that draws frames
+     */
+    public MediaSurfaceEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+        final int width, final int height, final int frameRate) {
+
+        super(muxer, listener, width, height);
+        mFrameRate = frameRate;
+    }
+
+    @Override
+    void prepare() throws IOException {
+        if (DEBUG) Log.i(TAG, "prepare: ");
+        final Surface surface = prepare_surface_encoder(MIME_TYPE, mFrameRate);
+        mCodec.start();
+        mIsCapturing = true;
+        mSurface = surface;
+        if (mListener != null) {
+            try {
+                mListener.onPrepared(this);
+            } catch (final Exception e) {
+                Log.e(TAG, "prepare:", e);
+            }
+        }
+    }
+
+    /**
+     * @return input surface of the codec, null if not prepared yet
+     */
+    public Surface getInputSurface() {
+        return mSurface;
+    }
+
+    /**
+     * @return true if frames can be drawn into the input surface now
+     */
+    public boolean isAcceptingFrames() {
+        return (mSurface != null) && mIsCapturing && !mRequestStop;
+    }
+
+    @Override
+    protected void release() {
+        mSurface = null;
+        super.release();
+    }
+}
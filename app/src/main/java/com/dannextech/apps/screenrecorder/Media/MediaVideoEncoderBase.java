@@ -1,6 +1,5 @@
 package com.dannextech.apps.screenrecorder.Media;
 
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
@@ -22,6 +21,14 @@ public abstract class MediaVideoEncoderBase extends MediaEncoder {
 
     protected final int mWidth;
     protected final int mHeight;
+    /**
+     * bit rate of the codec, 0 means calculated from the size and frame rate
+     */
+    private int mBitRate;
+    /**
+     * adjusts bit rate of the codec while encoding, null means fixed bit rate
+     */
+    private volatile BitrateController mBitrateController;
 
     public MediaVideoEncoderBase(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final int width, final int height) {
         super(muxer, listener);
@@ -29,30 +36,72 @@ public abstract class MediaVideoEncoderBase extends MediaEncoder {
         mHeight = height;
     }
 
+    /**
+     * set bit rate instead of calculating it from the size and frame rate, this should be called before #prepare
+     * @param bitRate 0 means calculated
+     */
+    public void setBitRate(final int bitRate) {
+        if (bitRate < 0) throw new IllegalArgumentException("bit rate should not be negative");
+        mBitRate = bitRate;
+    }
+
+    /**
+     * adjust bit rate while encoding by watching encoded sizes, writer queue depth and write latency,
+     * this should be called before #prepare
+     * @param controller null to keep the bit rate fixed
+     */
+    public void setBitrateController(final BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    public BitrateController getBitrateController() {
+        return mBitrateController;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
     protected Surface prepare_surface_encoder(final String mime, final int frame_rate)
             throws IOException, IllegalArgumentException {
 
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(mime);
-        if (videoCodecInfo == null) {
-            throw new IllegalArgumentException("Unable to find an appropriate codec for " + mime);
-        }
-        if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
-
-        final MediaFormat format = MediaFormat.createVideoFormat(mime, mWidth, mHeight);
+        final TrackFormat format = TrackFormat.createVideoFormat(mime, mWidth, mHeight);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface); // API >= 18
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate(frame_rate));
+        int bitRate = mBitRate > 0 ? mBitRate : calcBitRate(frame_rate);
+        final BitrateController controller = mBitrateController;
+        if (controller != null) {
+            // start from the configured bit rate within the range of controller
+            controller.reset(bitRate);
+            bitRate = controller.getBitRate();
+        }
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, frame_rate);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+        onConfigureFormat(format);
         if (DEBUG) Log.i(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(mime);
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        // this throws IllegalArgumentException when no codec is available for mime
+        mCodec = mCodecFactory.createEncoder(mime, true);
+        if (DEBUG) Log.i(TAG, "selected codec: " + mCodec.getName());
+        setupCodecCallback();
+        mCodec.configure(format);
         // get Surface for encoder input
         // this method only can call between #configure and #start
-        return mMediaCodec.createInputSurface(); // API >= 18
+        return mCodec.createInputSurface(); // API >= 18
+    }
+
+    /**
+     * sub class can add keys to the format before the codec is configured
+     * @param format
+     */
+    protected void onConfigureFormat(final TrackFormat format) {
     }
 
     protected int calcBitRate(final int frameRate) {
@@ -145,10 +194,31 @@ public abstract class MediaVideoEncoderBase extends MediaEncoder {
         return false;
     }
 
+    @Override
+    protected void onSampleWritten(final MediaMuxerWrapper muxer, final SampleInfo info) {
+        final BitrateController controller = mBitrateController;
+        if (controller == null) return;
+        final SampleQueue queue = muxer.getWriterQueue();
+        if (queue != null) {
+            controller.onBacklog(queue.getDepth());
+        }
+        controller.onWriteLatency(muxer.takeMaxWriteLatencyUs());
+        final int bitRate = controller.onFrame(info.presentationTimeUs, info.size);
+        if (bitRate > 0) {
+            if (DEBUG) Log.v(TAG, "onSampleWritten:" + controller);
+            try {
+                mCodec.setVideoBitrate(bitRate);
+            } catch (final Exception e) {
+                // some codecs can not change bit rate while encoding
+                Log.w(TAG, "setVideoBitrate:", e);
+            }
+        }
+    }
+
     @Override
     protected void signalEndOfInputStream() {
         if (DEBUG) Log.d(TAG, "sending EOS to encoder");
-        mMediaCodec.signalEndOfInputStream(); // API >= 18
+        mCodec.signalEndOfInputStream(); // API >= 18
         mIsEOS = true;
     }
 
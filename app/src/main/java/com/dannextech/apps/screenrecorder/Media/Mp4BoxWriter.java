@@ -0,0 +1,161 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Growable big endian byte buffer to build ISO base media file format(MP4) boxes on memory.
+ * Box size is written when the box is closed with #end.
+ */
+/*package*/ class Mp4BoxWriter {
+    private byte[] mBuf;
+    private int mSize;
+
+    /*package*/ Mp4BoxWriter(final int initialCapacity) {
+        mBuf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * open a box
+     * @param type four character code
+     * @return position of the box, pass this to #end
+     */
+    public int start(final String type) {
+        final int pos = mSize;
+        u32(0);
+        fourcc(type);
+        return pos;
+    }
+
+    /**
+     * open a full box that has version and flags
+     * @param type four character code
+     * @param version
+     * @param flags 24bit flags
+     * @return position of the box, pass this to #end
+     */
+    public int startFull(final String type, final int version, final int flags) {
+        final int pos = start(type);
+        u8(version);
+        u24(flags);
+        return pos;
+    }
+
+    /**
+     * close the box that is opened at pos and write its size
+     * @param pos
+     */
+    public void end(final int pos) {
+        putU32(pos, mSize - pos);
+    }
+
+    public Mp4BoxWriter u8(final int value) {
+        ensure(1);
+        mBuf[mSize++] = (byte)value;
+        return this;
+    }
+
+    public Mp4BoxWriter u16(final int value) {
+        ensure(2);
+        mBuf[mSize++] = (byte)(value >> 8);
+        mBuf[mSize++] = (byte)value;
+        return this;
+    }
+
+    public Mp4BoxWriter u24(final int value) {
+        ensure(3);
+        mBuf[mSize++] = (byte)(value >> 16);
+        mBuf[mSize++] = (byte)(value >> 8);
+        mBuf[mSize++] = (byte)value;
+        return this;
+    }
+
+    public Mp4BoxWriter u32(final long value) {
+        ensure(4);
+        putU32(mSize, value);
+        mSize += 4;
+        return this;
+    }
+
+    public Mp4BoxWriter u64(final long value) {
+        u32(value >>> 32);
+        return u32(value);
+    }
+
+    public Mp4BoxWriter fourcc(final String type) {
+        if (type.length() != 4) throw new IllegalArgumentException("invalid box type:" + type);
+        ensure(4);
+        for (int i = 0; i < 4; i++) {
+            mBuf[mSize++] = (byte)type.charAt(i);
+        }
+        return this;
+    }
+
+    public Mp4BoxWriter zeros(final int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            mBuf[mSize++] = 0;
+        }
+        return this;
+    }
+
+    public Mp4BoxWriter bytes(final byte[] src) {
+        return bytes(src, 0, src.length);
+    }
+
+    public Mp4BoxWriter bytes(final byte[] src, final int offset, final int length) {
+        ensure(length);
+        System.arraycopy(src, offset, mBuf, mSize, length);
+        mSize += length;
+        return this;
+    }
+
+    /**
+     * copy bytes between position and limit, position of src is not changed
+     * @param src
+     * @return
+     */
+    public Mp4BoxWriter bytes(final ByteBuffer src) {
+        final int length = src.remaining();
+        ensure(length);
+        src.duplicate().get(mBuf, mSize, length);
+        mSize += length;
+        return this;
+    }
+
+    /**
+     * overwrite 32bit value at specific position e.g. data offset that is known later
+     * @param pos
+     * @param value
+     */
+    public void putU32(final int pos, final long value) {
+        mBuf[pos] = (byte)(value >> 24);
+        mBuf[pos + 1] = (byte)(value >> 16);
+        mBuf[pos + 2] = (byte)(value >> 8);
+        mBuf[pos + 3] = (byte)value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void reset() {
+        mSize = 0;
+    }
+
+    /**
+     * @return view of the written bytes, this is valid until next write
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(mBuf, 0, mSize);
+    }
+
+    private void ensure(final int length) {
+        if (mSize + length > mBuf.length) {
+            int capacity = mBuf.length;
+            while (capacity < mSize + length) capacity <<= 1;
+            final byte[] buf = new byte[capacity];
+            System.arraycopy(mBuf, 0, buf, 0, mSize);
+            mBuf = buf;
+        }
+    }
+}
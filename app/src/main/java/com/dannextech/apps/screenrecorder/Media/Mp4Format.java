@@ -0,0 +1,372 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper methods to write MP4 boxes that are common to fragmented and non fragmented files,
+ * and to convert H.264 Annex-B byte stream from MediaCodec into length prefixed NAL units.
+ * Only video/avc and audio/mp4a-latm are supported.
+ */
+/*package*/ class Mp4Format {
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    /**
+     * time scale of movie header
+     */
+    public static final int MOVIE_TIMESCALE = 1000;
+    /**
+     * time scale of video track
+     */
+    public static final int VIDEO_TIMESCALE = 90000;
+
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    /**
+     * write sample table boxes(stts, stsc, stsz, stco...) into stbl
+     */
+    public interface SampleTableWriter {
+        public void writeSampleTable(Mp4BoxWriter w);
+    }
+
+    /**
+     * writer of empty sample table for fragmented file
+     */
+    public static final SampleTableWriter EMPTY_SAMPLE_TABLE = new SampleTableWriter() {
+        @Override
+        public void writeSampleTable(final Mp4BoxWriter w) {
+            int pos = w.startFull("stts", 0, 0);
+            w.u32(0);
+            w.end(pos);
+            pos = w.startFull("stsc", 0, 0);
+            w.u32(0);
+            w.end(pos);
+            pos = w.startFull("stsz", 0, 0);
+            w.u32(0).u32(0);
+            w.end(pos);
+            pos = w.startFull("stco", 0, 0);
+            w.u32(0);
+            w.end(pos);
+        }
+    };
+
+    private Mp4Format() {
+        // never be instantiated
+    }
+
+    /**
+     * @param format
+     * @throws IllegalArgumentException if the format can not be written
+     */
+    public static void checkSupported(final TrackFormat format) {
+        final String mime = format.getMime();
+        if (MIME_AVC.equals(mime)) {
+            if (!format.containsKey(MediaFormat.KEY_WIDTH) || !format.containsKey(MediaFormat.KEY_HEIGHT))
+                throw new IllegalArgumentException("video size is not specified");
+            final List<byte[]> sps = new ArrayList<byte[]>();
+            collectParameterSets(format, sps, null);
+            if (sps.isEmpty() || (sps.get(0).length < 4))
+                throw new IllegalArgumentException("SPS not found in codec specific data");
+        } else if (MIME_AAC.equals(mime)) {
+            if (format.getByteBuffer(TrackFormat.KEY_CSD_0) == null)
+                throw new IllegalArgumentException("AudioSpecificConfig not found in codec specific data");
+        } else {
+            throw new IllegalArgumentException("unsupported mime type:" + mime);
+        }
+    }
+
+    public static int getTimescale(final TrackFormat format) {
+        return format.isVideo() ? VIDEO_TIMESCALE : format.getInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
+    }
+
+    /**
+     * convert presentation time into ticks of time scale with rounding
+     * @param timeUs
+     * @param timescale
+     * @return
+     */
+    public static long toTicks(final long timeUs, final int timescale) {
+        return (timeUs * timescale + 500000L) / 1000000L;
+    }
+
+    public static void writeFtyp(final Mp4BoxWriter w, final String majorBrand, final String... compatibleBrands) {
+        final int pos = w.start("ftyp");
+        w.fourcc(majorBrand).u32(0x200);
+        for (final String brand: compatibleBrands) {
+            w.fourcc(brand);
+        }
+        w.end(pos);
+    }
+
+    /**
+     * @param w
+     * @param duration in MOVIE_TIMESCALE
+     * @param nextTrackId
+     */
+    public static void writeMvhd(final Mp4BoxWriter w, final long duration, final int nextTrackId) {
+        final int pos = w.startFull("mvhd", 1, 0);
+        w.u64(0).u64(0);    // creation/modification time
+        w.u32(MOVIE_TIMESCALE).u64(duration);
+        w.u32(0x00010000);  // rate 1.0
+        w.u16(0x0100);      // volume 1.0
+        w.zeros(10);
+        writeMatrix(w);
+        w.zeros(24);        // pre_defined
+        w.u32(nextTrackId);
+        w.end(pos);
+    }
+
+    /**
+     * write trak box
+     * @param w
+     * @param trackId
+     * @param format
+     * @param delay start of this track from the start of the movie in MOVIE_TIMESCALE, written as empty edit
+     * @param movieDuration in MOVIE_TIMESCALE, including delay
+     * @param mediaDuration in time scale of this track
+     * @param sampleTable
+     */
+    public static void writeTrak(final Mp4BoxWriter w, final int trackId, final TrackFormat format,
+        final long delay, final long movieDuration, final long mediaDuration, final SampleTableWriter sampleTable) {
+
+        final boolean isVideo = format.isVideo();
+        final int trak = w.start("trak");
+        // tkhd, enabled and in movie
+        int pos = w.startFull("tkhd", 1, 0x000003);
+        w.u64(0).u64(0);
+        w.u32(trackId).u32(0).u64(movieDuration);
+        w.zeros(8);
+        w.u16(0).u16(isVideo ? 0 : 1);  // layer, alternate_group
+        w.u16(isVideo ? 0 : 0x0100).u16(0);
+        writeMatrix(w);
+        if (isVideo) {
+            w.u32((long)format.getInteger(MediaFormat.KEY_WIDTH) << 16);
+            w.u32((long)format.getInteger(MediaFormat.KEY_HEIGHT) << 16);
+        } else {
+            w.u32(0).u32(0);
+        }
+        w.end(pos);
+        if (delay > 0) {
+            // empty edit, then whole media from its start
+            final int edts = w.start("edts");
+            pos = w.startFull("elst", 1, 0);
+            w.u32(2);
+            w.u64(delay).u64(-1).u16(1).u16(0);
+            w.u64(movieDuration - delay).u64(0).u16(1).u16(0);
+            w.end(pos);
+            w.end(edts);
+        }
+
+        final int mdia = w.start("mdia");
+        pos = w.startFull("mdhd", 1, 0);
+        w.u64(0).u64(0);
+        w.u32(getTimescale(format)).u64(mediaDuration);
+        w.u16(0x55c4).u16(0);   // language "und"
+        w.end(pos);
+        pos = w.startFull("hdlr", 0, 0);
+        w.u32(0).fourcc(isVideo ? "vide" : "soun").zeros(12);
+        w.bytes((isVideo ? "VideoHandler" : "SoundHandler").getBytes()).u8(0);
+        w.end(pos);
+
+        final int minf = w.start("minf");
+        if (isVideo) {
+            pos = w.startFull("vmhd", 0, 1);
+            w.zeros(8);
+        } else {
+            pos = w.startFull("smhd", 0, 0);
+            w.zeros(4);
+        }
+        w.end(pos);
+        final int dinf = w.start("dinf");
+        final int dref = w.startFull("dref", 0, 0);
+        w.u32(1);
+        pos = w.startFull("url ", 0, 1);    // data is in the same file
+        w.end(pos);
+        w.end(dref);
+        w.end(dinf);
+
+        final int stbl = w.start("stbl");
+        final int stsd = w.startFull("stsd", 0, 0);
+        w.u32(1);
+        writeSampleEntry(w, format);
+        w.end(stsd);
+        sampleTable.writeSampleTable(w);
+        w.end(stbl);
+        w.end(minf);
+        w.end(mdia);
+        w.end(trak);
+    }
+
+    private static void writeMatrix(final Mp4BoxWriter w) {
+        w.u32(0x00010000).u32(0).u32(0);
+        w.u32(0).u32(0x00010000).u32(0);
+        w.u32(0).u32(0).u32(0x40000000);
+    }
+
+    private static void writeSampleEntry(final Mp4BoxWriter w, final TrackFormat format) {
+        if (format.isVideo()) {
+            final List<byte[]> sps = new ArrayList<byte[]>();
+            final List<byte[]> pps = new ArrayList<byte[]>();
+            collectParameterSets(format, sps, pps);
+            final int avc1 = w.start("avc1");
+            w.zeros(6).u16(1);  // data_reference_index
+            w.zeros(16);
+            w.u16(format.getInteger(MediaFormat.KEY_WIDTH)).u16(format.getInteger(MediaFormat.KEY_HEIGHT));
+            w.u32(0x00480000).u32(0x00480000);  // 72dpi
+            w.u32(0).u16(1);    // frame_count
+            w.zeros(32);        // compressorname
+            w.u16(0x0018).u16(0xffff);
+            final int avcC = w.start("avcC");
+            final byte[] first = sps.get(0);
+            w.u8(1).u8(first[1]).u8(first[2]).u8(first[3]);
+            w.u8(0xff);     // 4 bytes NAL unit length
+            w.u8(0xe0 | sps.size());
+            for (final byte[] nal: sps) {
+                w.u16(nal.length).bytes(nal);
+            }
+            w.u8(pps.size());
+            for (final byte[] nal: pps) {
+                w.u16(nal.length).bytes(nal);
+            }
+            w.end(avcC);
+            w.end(avc1);
+        } else {
+            final byte[] asc = format.getBytes(TrackFormat.KEY_CSD_0);
+            final int bitrate = format.getInteger(MediaFormat.KEY_BIT_RATE, 0);
+            final int mp4a = w.start("mp4a");
+            w.zeros(6).u16(1);  // data_reference_index
+            w.zeros(8);
+            w.u16(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT, 1)).u16(16);
+            w.u16(0).u16(0);
+            w.u32((long)format.getInteger(MediaFormat.KEY_SAMPLE_RATE, 44100) << 16);
+            final int esds = w.startFull("esds", 0, 0);
+            // ES_Descriptor
+            w.u8(0x03).u8(3 + 2 + 13 + 2 + asc.length + 3);
+            w.u16(0).u8(0);
+            // DecoderConfigDescriptor
+            w.u8(0x04).u8(13 + 2 + asc.length);
+            w.u8(0x40);     // MPEG-4 audio
+            w.u8(0x15);     // audio stream
+            w.u24(0).u32(bitrate).u32(bitrate);
+            // DecoderSpecificInfo
+            w.u8(0x05).u8(asc.length).bytes(asc);
+            // SLConfigDescriptor
+            w.u8(0x06).u8(1).u8(0x02);
+            w.end(esds);
+            w.end(mp4a);
+        }
+    }
+
+    /**
+     * collect SPS and PPS from csd-0 and csd-1, some codecs put both into csd-0
+     * @param format
+     * @param sps
+     * @param pps can be null
+     */
+    private static void collectParameterSets(final TrackFormat format, final List<byte[]> sps, final List<byte[]> pps) {
+        final String[] keys = { TrackFormat.KEY_CSD_0, TrackFormat.KEY_CSD_1 };
+        for (final String key: keys) {
+            final ByteBuffer csd = format.getByteBuffer(key);
+            if (csd == null) continue;
+            int start = findNalStart(csd, csd.position());
+            while (start >= 0) {
+                final int next = findStartCode(csd, start);
+                final int end = trimTrailingZeros(csd, start, next < 0 ? csd.limit() : next);
+                final byte[] nal = new byte[end - start];
+                for (int i = 0; i < nal.length; i++) {
+                    nal[i] = csd.get(start + i);
+                }
+                final int type = nal.length > 0 ? nal[0] & 0x1f : 0;
+                if (type == NAL_SPS) {
+                    sps.add(nal);
+                } else if ((type == NAL_PPS) && (pps != null)) {
+                    pps.add(nal);
+                }
+                start = next < 0 ? -1 : findNalStart(csd, next);
+            }
+        }
+    }
+
+    /**
+     * convert Annex-B byte stream of one access unit into 4 bytes length prefixed NAL units.
+     * Parameter sets and access unit delimiters are removed because they are in avcC.
+     * @param src
+     * @param offset
+     * @param size
+     * @param dst
+     * @return number of bytes written into dst
+     */
+    public static int writeLengthPrefixed(final ByteBuffer src, final int offset, final int size, final Mp4BoxWriter dst) {
+        final int limit = offset + size;
+        final int startSize = dst.size();
+        int start = findNalStart(src, offset, limit);
+        if (start < 0) {
+            // not a Annex-B stream, treat the whole data as one NAL unit
+            final ByteBuffer nal = src.duplicate();
+            nal.limit(limit).position(offset);
+            dst.u32(size).bytes(nal);
+            return dst.size() - startSize;
+        }
+        while (start >= 0) {
+            final int next = findStartCode(src, start, limit);
+            final int end = trimTrailingZeros(src, start, next < 0 ? limit : next);
+            final int type = src.get(start) & 0x1f;
+            if ((end > start) && (type != NAL_SPS) && (type != NAL_PPS) && (type != NAL_AUD)) {
+                final ByteBuffer nal = src.duplicate();
+                nal.limit(end).position(start);
+                dst.u32(end - start).bytes(nal);
+            }
+            start = next < 0 ? -1 : findNalStart(src, next, limit);
+        }
+        return dst.size() - startSize;
+    }
+
+    private static int findNalStart(final ByteBuffer buf, final int from) {
+        return findNalStart(buf, from, buf.limit());
+    }
+
+    /**
+     * @return position just after the start code, -1 if not found
+     */
+    private static int findNalStart(final ByteBuffer buf, final int from, final int limit) {
+        final int pos = findStartCode(buf, from, limit);
+        if (pos < 0) return -1;
+        // skip 00 00 01
+        int i = pos;
+        while (buf.get(i) == 0) i++;
+        return i + 1 < limit ? i + 1 : -1;
+    }
+
+    private static int findStartCode(final ByteBuffer buf, final int from) {
+        return findStartCode(buf, from, buf.limit());
+    }
+
+    /**
+     * @return position of 00 00 01 at or after from, -1 if not found
+     */
+    private static int findStartCode(final ByteBuffer buf, final int from, final int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((buf.get(i + 2) & 0xff) > 1) {
+                i += 2;
+            } else if ((buf.get(i) == 0) && (buf.get(i + 1) == 0) && (buf.get(i + 2) == 1)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * trailing zero of NAL unit belongs to next 4 bytes start code
+     */
+    private static int trimTrailingZeros(final ByteBuffer buf, final int start, final int end) {
+        int result = end;
+        while ((result > start) && (buf.get(result - 1) == 0)) result--;
+        return result;
+    }
+}
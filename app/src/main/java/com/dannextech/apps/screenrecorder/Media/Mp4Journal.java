@@ -0,0 +1,274 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sidecar journal of Mp4Writer to rebuild moov when the app dies while recording.
+ * Track formats(including codec specific data) and position, size, presentation time
+ * and flags of each sample are appended. Records are batched on memory
+ * and written when Mp4Writer flushes its output, so the journal never refers
+ * to the data that is not written yet. Incomplete record at the end is ignored when reading.
+ */
+/*package*/ class Mp4Journal {
+    private static final int MAGIC = 0x53524a31;    // "SRJ1"
+    private static final byte RECORD_MDAT = 'M';
+    private static final byte RECORD_TRACK = 'T';
+    private static final byte RECORD_SAMPLE = 'S';
+    /**
+     * tag, track, flags, size, presentation time and offset
+     */
+    /*package*/ static final int SAMPLE_RECORD_SIZE = 1 + 1 + 4 + 4 + 8 + 8;
+
+    private static final int MAX_TRACK_RECORD_SIZE = 64 * 1024;
+
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_STRING = 4;
+    private static final byte TYPE_BYTES = 5;
+
+    /**
+     * one sample in the journal
+     */
+    /*package*/ static class Sample {
+        final int trackIndex;
+        final int flags;
+        final int size;
+        final long presentationTimeUs;
+        final long offset;
+
+        private Sample(final int trackIndex, final int flags, final int size, final long presentationTimeUs, final long offset) {
+            this.trackIndex = trackIndex;
+            this.flags = flags;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.offset = offset;
+        }
+    }
+
+    private final File mFile;
+    private final FileOutputStream mOutputStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBatch;
+    private long mSize;
+
+    /**
+     * @param file this is truncated if exists
+     * @param batchSize size of on-memory batch
+     * @throws IOException
+     */
+    /*package*/ Mp4Journal(final File file, final int batchSize) throws IOException {
+        mFile = file;
+        mOutputStream = new FileOutputStream(file);
+        mChannel = mOutputStream.getChannel();
+        mBatch = ByteBuffer.allocateDirect(Math.max(batchSize, 1024));
+        mBatch.putInt(MAGIC);
+    }
+
+    /**
+     * @param mdatDataStart position of the first byte of mdat payload
+     * @param mdatHeaderStart position of mdat box, it has 64 bits size field
+     */
+    /*package*/ void writeMdat(final long mdatHeaderStart, final long mdatDataStart) throws IOException {
+        ensure(17);
+        mBatch.put(RECORD_MDAT).putLong(mdatHeaderStart).putLong(mdatDataStart);
+    }
+
+    /*package*/ void writeTrack(final int trackIndex, final TrackFormat format) throws IOException {
+        final byte[] bytes = serialize(format);
+        ensure(1 + 1 + 4 + bytes.length);
+        if ((bytes.length > MAX_TRACK_RECORD_SIZE) || (mBatch.remaining() < 6 + bytes.length)) {
+            throw new IOException("track format is too large for journal");
+        }
+        mBatch.put(RECORD_TRACK).put((byte)trackIndex).putInt(bytes.length).put(bytes);
+    }
+
+    /**
+     * @return false if the batch is full, caller should flush its data and this journal then retry
+     */
+    /*package*/ boolean writeSample(final int trackIndex, final int flags, final int size,
+        final long presentationTimeUs, final long offset) {
+
+        if (mBatch.remaining() < SAMPLE_RECORD_SIZE) return false;
+        mBatch.put(RECORD_SAMPLE).put((byte)trackIndex).putInt(flags).putInt(size)
+            .putLong(presentationTimeUs).putLong(offset);
+        return true;
+    }
+
+    /**
+     * write batched records to the file
+     * @throws IOException
+     */
+    /*package*/ void flush() throws IOException {
+        mBatch.flip();
+        while (mBatch.hasRemaining()) {
+            mSize += mChannel.write(mBatch);
+        }
+        mBatch.clear();
+    }
+
+    /**
+     * @return bytes written to the file
+     */
+    /*package*/ long getSize() {
+        return mSize;
+    }
+
+    /*package*/ void close() throws IOException {
+        mOutputStream.close();
+    }
+
+    /**
+     * close and delete the journal, e.g. moov is written successfully
+     */
+    /*package*/ void delete() {
+        try {
+            close();
+        } catch (final IOException e) {
+            // ignore
+        }
+        mFile.delete();
+    }
+
+    /**
+     * contents of a journal file
+     */
+    /*package*/ static class Contents {
+        long mdatHeaderStart = -1;
+        long mdatDataStart = -1;
+        final List<TrackFormat> tracks = new ArrayList<TrackFormat>();
+        final List<Sample> samples = new ArrayList<Sample>();
+    }
+
+    /**
+     * read journal, incomplete record at the end is ignored
+     * @param file
+     * @return
+     * @throws IOException if the file is not a journal
+     */
+    /*package*/ static Contents read(final File file) throws IOException {
+        final Contents result = new Contents();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("not a journal:" + file);
+            for ( ; ; ) {
+                final int tag = in.read();
+                if (tag < 0) break;
+                try {
+                    if (tag == RECORD_SAMPLE) {
+                        final int trackIndex = in.readUnsignedByte();
+                        final int flags = in.readInt();
+                        final int size = in.readInt();
+                        final long pts = in.readLong();
+                        final long offset = in.readLong();
+                        if (trackIndex >= result.tracks.size()) break;
+                        result.samples.add(new Sample(trackIndex, flags, size, pts, offset));
+                    } else if (tag == RECORD_TRACK) {
+                        final int trackIndex = in.readUnsignedByte();
+                        final int length = in.readInt();
+                        if ((length < 0) || (length > MAX_TRACK_RECORD_SIZE)) break;
+                        final byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        if (trackIndex != result.tracks.size()) throw new IOException("unexpected track index");
+                        result.tracks.add(deserialize(bytes));
+                    } else if (tag == RECORD_MDAT) {
+                        result.mdatHeaderStart = in.readLong();
+                        result.mdatDataStart = in.readLong();
+                    } else {
+                        break;  // broken
+                    }
+                } catch (final EOFException e) {
+                    break;  // the app died while writing this record
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private void ensure(final int size) throws IOException {
+        if (mBatch.remaining() < size) flush();
+    }
+
+    /**
+     * serialize TrackFormat including codec specific data, also used by index of elementary stream
+     */
+    /*package*/ static byte[] serialize(final TrackFormat format) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (final String key: format.getKeys()) {
+            final Object value = format.getValue(key);
+            if (value instanceof Integer) {
+                out.writeByte(TYPE_INT);
+                out.writeUTF(key);
+                out.writeInt((Integer)value);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeUTF(key);
+                out.writeLong((Long)value);
+            } else if (value instanceof Float) {
+                out.writeByte(TYPE_FLOAT);
+                out.writeUTF(key);
+                out.writeFloat((Float)value);
+            } else if (value instanceof String) {
+                out.writeByte(TYPE_STRING);
+                out.writeUTF(key);
+                out.writeUTF((String)value);
+            } else if (value instanceof ByteBuffer) {
+                final byte[] data = format.getBytes(key);
+                out.writeByte(TYPE_BYTES);
+                out.writeUTF(key);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /*package*/ static TrackFormat deserialize(final byte[] bytes) throws IOException {
+        final TrackFormat format = new TrackFormat();
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        for (int type = in.read(); type >= 0; type = in.read()) {
+            final String key = in.readUTF();
+            switch (type) {
+            case TYPE_INT:
+                format.setInteger(key, in.readInt());
+                break;
+            case TYPE_LONG:
+                format.setLong(key, in.readLong());
+                break;
+            case TYPE_FLOAT:
+                format.setFloat(key, in.readFloat());
+                break;
+            case TYPE_STRING:
+                format.setString(key, in.readUTF());
+                break;
+            case TYPE_BYTES:
+                final byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                format.setByteBuffer(key, ByteBuffer.wrap(data));
+                break;
+            default:
+                throw new IOException("unknown value type " + type);
+            }
+        }
+        return format;
+    }
+}
@@ -0,0 +1,162 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+/**
+ * Sample table of one track of progressive(non fragmented) MP4 file.
+ * Consecutive samples of the track in the file are grouped into a chunk.
+ * This writes stts, stss, stsz, stsc and stco(co64 if offsets exceed 32 bits).
+ */
+/*package*/ class Mp4SampleTable implements Mp4Format.SampleTableWriter {
+    private static final long MAX_U32 = 0xffffffffL;
+
+    private final boolean mIsVideo;
+    private final int mTimescale;
+    private long[] mTicks = new long[256];
+    private int[] mSizes = new int[256];
+    private boolean[] mSync = new boolean[256];
+    private long[] mChunkOffsets = new long[64];
+    // first sample index of each chunk
+    private int[] mChunkFirstSamples = new int[64];
+    private int mCount;
+    private int mChunkCount;
+    private long mLastEnd = -1;
+
+    /*package*/ Mp4SampleTable(final TrackFormat format) {
+        mIsVideo = format.isVideo();
+        mTimescale = Mp4Format.getTimescale(format);
+    }
+
+    /**
+     * @param ticks presentation time in time scale of this track, should be larger than previous one
+     * @param size
+     * @param offset position of the sample in the file
+     * @param isSync
+     */
+    public void add(final long ticks, final int size, final long offset, final boolean isSync) {
+        if (mCount == mTicks.length) {
+            final int n = mCount * 2;
+            final long[] ticksArray = new long[n];
+            System.arraycopy(mTicks, 0, ticksArray, 0, mCount);
+            mTicks = ticksArray;
+            final int[] sizes = new int[n];
+            System.arraycopy(mSizes, 0, sizes, 0, mCount);
+            mSizes = sizes;
+            final boolean[] sync = new boolean[n];
+            System.arraycopy(mSync, 0, sync, 0, mCount);
+            mSync = sync;
+        }
+        if (offset != mLastEnd) {
+            // not contiguous with the previous sample of this track, new chunk
+            if (mChunkCount == mChunkOffsets.length) {
+                final int n = mChunkCount * 2;
+                final long[] offsets = new long[n];
+                System.arraycopy(mChunkOffsets, 0, offsets, 0, mChunkCount);
+                mChunkOffsets = offsets;
+                final int[] first = new int[n];
+                System.arraycopy(mChunkFirstSamples, 0, first, 0, mChunkCount);
+                mChunkFirstSamples = first;
+            }
+            mChunkOffsets[mChunkCount] = offset;
+            mChunkFirstSamples[mChunkCount] = mCount;
+            mChunkCount++;
+        }
+        mTicks[mCount] = ticks;
+        mSizes[mCount] = size;
+        mSync[mCount] = isSync;
+        mCount++;
+        mLastEnd = offset + size;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getTimescale() {
+        return mTimescale;
+    }
+
+    /**
+     * @return duration in time scale of this track, duration of the last sample is estimated from previous one
+     */
+    public long getDuration() {
+        if (mCount == 0) return 0;
+        return mTicks[mCount - 1] - mTicks[0] + durationOf(mCount - 1);
+    }
+
+    @Override
+    public void writeSampleTable(final Mp4BoxWriter w) {
+        // stts, run length of sample durations
+        int pos = w.startFull("stts", 0, 0);
+        final int sttsCount = w.size();
+        w.u32(0);
+        int entries = 0;
+        for (int i = 0; i < mCount; ) {
+            final int duration = durationOf(i);
+            int n = 1;
+            while ((i + n < mCount) && (durationOf(i + n) == duration)) n++;
+            w.u32(n).u32(duration);
+            entries++;
+            i += n;
+        }
+        w.putU32(sttsCount, entries);
+        w.end(pos);
+        // stss, omitted if all samples are sync samples
+        if (mIsVideo) {
+            int syncCount = 0;
+            for (int i = 0; i < mCount; i++) {
+                if (mSync[i]) syncCount++;
+            }
+            if (syncCount < mCount) {
+                pos = w.startFull("stss", 0, 0);
+                w.u32(syncCount);
+                for (int i = 0; i < mCount; i++) {
+                    if (mSync[i]) w.u32(i + 1);
+                }
+                w.end(pos);
+            }
+        }
+        // stsz
+        pos = w.startFull("stsz", 0, 0);
+        w.u32(0).u32(mCount);
+        for (int i = 0; i < mCount; i++) {
+            w.u32(mSizes[i]);
+        }
+        w.end(pos);
+        // stsc, run length of samples per chunk
+        pos = w.startFull("stsc", 0, 0);
+        final int stscCount = w.size();
+        w.u32(0);
+        entries = 0;
+        int prevSamples = -1;
+        for (int i = 0; i < mChunkCount; i++) {
+            final int samples = (i + 1 < mChunkCount ? mChunkFirstSamples[i + 1] : mCount) - mChunkFirstSamples[i];
+            if (samples != prevSamples) {
+                w.u32(i + 1).u32(samples).u32(1);
+                entries++;
+                prevSamples = samples;
+            }
+        }
+        w.putU32(stscCount, entries);
+        w.end(pos);
+        // stco or co64
+        final boolean use64 = (mChunkCount > 0) && (mChunkOffsets[mChunkCount - 1] > MAX_U32);
+        pos = w.startFull(use64 ? "co64" : "stco", 0, 0);
+        w.u32(mChunkCount);
+        for (int i = 0; i < mChunkCount; i++) {
+            if (use64) {
+                w.u64(mChunkOffsets[i]);
+            } else {
+                w.u32(mChunkOffsets[i]);
+            }
+        }
+        w.end(pos);
+    }
+
+    private int durationOf(final int index) {
+        if (index + 1 < mCount) {
+            return (int)Math.max(1, mTicks[index + 1] - mTicks[index]);
+        }
+        // the last sample, same as previous one
+        if (index > 0) return (int)Math.max(1, mTicks[index] - mTicks[index - 1]);
+        return mIsVideo ? mTimescale / 30 : 1024;
+    }
+}
@@ -0,0 +1,360 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MuxerBackend that writes progressive MP4 file(ftyp, mdat and moov at the end) in pure Java.
+ * Unlike MediaMuxer, position of each sample in the file is known, so position, size,
+ * presentation time and flags of samples are appended to sidecar journal("xxx.mp4.journal").
+ * When the app dies while recording, #recover rebuilds moov from the journal on next launch.
+ * The journal is deleted when the file is finalized successfully.
+ */
+public class Mp4Writer implements MuxerBackend {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "Mp4Writer";
+
+    public static final String JOURNAL_SUFFIX = ".journal";
+    /**
+     * data and journal are written to the file at least this interval of presentation time,
+     * samples after the last flush are lost when the app dies
+     */
+    public static final long DEFAULT_JOURNAL_INTERVAL_US = 1000000L;
+    private static final int JOURNAL_BATCH_SIZE = 16 * 1024;
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    private static class Track {
+        final TrackFormat format;
+        final Mp4SampleTable table;
+        /**
+         * presentation time of the first sample[us], ticks of the table are relative to this
+         */
+        long firstPts = -1;
+
+        Track(final TrackFormat format) {
+            this.format = new TrackFormat(format);
+            table = new Mp4SampleTable(format);
+        }
+    }
+
+    private final String mOutputPath;
+    private final boolean mUseJournal;
+    private final BlockFileWriter.Config mOutputConfig;
+    private final List<Track> mTracks = new ArrayList<Track>();
+    private final Mp4BoxWriter mScratch = new Mp4BoxWriter(64 * 1024);
+    private long mJournalIntervalUs = DEFAULT_JOURNAL_INTERVAL_US;
+    private BlockFileWriter mOutput;
+    private Mp4Journal mJournal;
+    private long mMdatStart;
+    private long mLastFlushPts = -1;
+    private boolean mIsStarted;
+
+    public Mp4Writer(final String outputPath) {
+        this(outputPath, true, null);
+    }
+
+    /**
+     * @param outputPath
+     * @param useJournal true: write journal for crash recovery
+     * @param outputConfig write and sync policy of the output file, null means default.
+     * If bit rate is not set, it is estimated from the bit rate of tracks.
+     */
+    public Mp4Writer(final String outputPath, final boolean useJournal, final BlockFileWriter.Config outputConfig) {
+        if (outputPath == null) throw new NullPointerException("output path is null");
+        mOutputPath = outputPath;
+        mUseJournal = useJournal;
+        mOutputConfig = outputConfig != null ? outputConfig : new BlockFileWriter.Config();
+    }
+
+    /**
+     * @param intervalUs how often data and journal are written to the file in presentation time
+     */
+    public synchronized void setJournalInterval(final long intervalUs) {
+        mJournalIntervalUs = Math.max(0, intervalUs);
+    }
+
+    @Override
+    public synchronized int addTrack(final TrackFormat format) {
+        if (mIsStarted || (mOutput != null)) throw new IllegalStateException("already started");
+        Mp4Format.checkSupported(format);
+        mTracks.add(new Track(format));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (mIsStarted || (mOutput != null)) throw new IllegalStateException("already started");
+        if (mTracks.isEmpty()) throw new IllegalStateException("no track");
+        final BlockFileWriter.Config config = mOutputConfig.copy();
+        if (config.bitRate <= 0) {
+            for (final Track track: mTracks) {
+                config.bitRate += track.format.getInteger(MediaFormat.KEY_BIT_RATE, 0);
+            }
+        }
+        mOutput = new BlockFileWriter(mOutputPath, config);
+        final Mp4BoxWriter w = mScratch;
+        w.reset();
+        Mp4Format.writeFtyp(w, "isom", "isom", "iso2", "avc1", "mp41");
+        mMdatStart = w.size();
+        // 64 bits size, fixed when finishing
+        w.u32(1).fourcc("mdat").u64(0);
+        mOutput.write(w.asByteBuffer());
+        if (mUseJournal) {
+            mJournal = new Mp4Journal(journalOf(mOutputPath), JOURNAL_BATCH_SIZE);
+            mJournal.writeMdat(mMdatStart, mMdatStart + MDAT_HEADER_SIZE);
+            for (int i = 0; i < mTracks.size(); i++) {
+                mJournal.writeTrack(i, mTracks.get(i).format);
+            }
+            flush();
+        }
+        mIsStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;    // already in moov
+        if (info.size <= 0) return;
+        final Track track = mTracks.get(trackIndex);
+        final ByteBuffer data;
+        if (track.format.isVideo()) {
+            mScratch.reset();
+            Mp4Format.writeLengthPrefixed(byteBuf, info.offset, info.size, mScratch);
+            data = mScratch.asByteBuffer();
+        } else {
+            data = byteBuf.duplicate();
+            data.limit(info.offset + info.size).position(info.offset);
+        }
+        final int size = data.remaining();
+        if (size == 0) return;
+        final long offset = mOutput.getPosition();
+        mOutput.write(data);
+        if (track.firstPts < 0) track.firstPts = info.presentationTimeUs;
+        final boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        track.table.add(Mp4Format.toTicks(info.presentationTimeUs - track.firstPts, track.table.getTimescale()),
+            size, offset, isSync);
+        if (mJournal != null) {
+            if (!mJournal.writeSample(trackIndex, info.flags, size, info.presentationTimeUs, offset)) {
+                flush();
+                mJournal.writeSample(trackIndex, info.flags, size, info.presentationTimeUs, offset);
+            }
+            if (mLastFlushPts < 0) {
+                mLastFlushPts = info.presentationTimeUs;
+            } else if (info.presentationTimeUs - mLastFlushPts >= mJournalIntervalUs) {
+                flush();
+                mLastFlushPts = info.presentationTimeUs;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        mIsStarted = false;
+        final BlockFileWriter output = mOutput;
+        try {
+            final long mdatEnd = output.getPosition();
+            final ByteBuffer size = ByteBuffer.allocate(8);
+            size.putLong(0, mdatEnd - mMdatStart);
+            output.writeAt(mMdatStart + 8, size);
+            final List<TrackFormat> formats = new ArrayList<TrackFormat>();
+            final List<Mp4SampleTable> tables = new ArrayList<Mp4SampleTable>();
+            final long[] firstPts = new long[mTracks.size()];
+            for (int i = 0; i < mTracks.size(); i++) {
+                final Track track = mTracks.get(i);
+                formats.add(track.format);
+                tables.add(track.table);
+                firstPts[i] = track.firstPts;
+            }
+            output.write(buildMoov(formats, tables, firstPts).asByteBuffer());
+            output.close();
+        } finally {
+            // keep the journal if moov could not be written
+            if (output.isClosed() && (mJournal != null)) {
+                mJournal.delete();
+                mJournal = null;
+            }
+        }
+        if (DEBUG) Log.v(TAG, "stop:" + output);
+    }
+
+    @Override
+    public synchronized void release() {
+        try {
+            if ((mOutput != null) && !mOutput.isClosed()) {
+                mOutput.close();
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "release", e);
+        }
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (final IOException e) {
+                Log.w(TAG, "release", e);
+            }
+            mJournal = null;
+        }
+    }
+
+    @Override
+    public String getOutputPath() {
+        return mOutputPath;
+    }
+
+    /**
+     * @return bytes of journal written so far, 0 if journal is not used
+     */
+    public synchronized long getJournalSize() {
+        return mJournal != null ? mJournal.getSize() : 0;
+    }
+
+    /**
+     * @return output file writer for write/sync latency, null if not started
+     */
+    public synchronized BlockFileWriter getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * rebuild moov of the file that was not finalized from its journal.
+     * Samples that are not in the file are removed. The journal is deleted when this succeeds.
+     * @param path path of mp4 file
+     * @return true if the file was repaired, false if the journal does not exist or has no sample
+     * @throws IOException
+     */
+    public static boolean recover(final String path) throws IOException {
+        final File journalFile = journalOf(path);
+        if (!journalFile.exists()) return false;
+        final File file = new File(path);
+        if (!file.exists()) {
+            journalFile.delete();
+            return false;
+        }
+        final Mp4Journal.Contents journal = Mp4Journal.read(journalFile);
+        if ((journal.mdatHeaderStart < 0) || journal.tracks.isEmpty()) {
+            journalFile.delete();
+            return false;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long length = raf.length();
+            final List<Mp4SampleTable> tables = new ArrayList<Mp4SampleTable>();
+            final long[] firstPts = new long[journal.tracks.size()];
+            for (int i = 0; i < journal.tracks.size(); i++) {
+                tables.add(new Mp4SampleTable(journal.tracks.get(i)));
+                firstPts[i] = -1;
+            }
+            long end = journal.mdatDataStart;
+            int count = 0;
+            for (final Mp4Journal.Sample sample: journal.samples) {
+                if ((sample.offset < journal.mdatDataStart) || (sample.offset + sample.size > length)) break;
+                final Mp4SampleTable table = tables.get(sample.trackIndex);
+                if (firstPts[sample.trackIndex] < 0) firstPts[sample.trackIndex] = sample.presentationTimeUs;
+                table.add(Mp4Format.toTicks(sample.presentationTimeUs - firstPts[sample.trackIndex], table.getTimescale()),
+                    sample.size, sample.offset, (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                end = Math.max(end, sample.offset + sample.size);
+                count++;
+            }
+            if (count == 0) {
+                Log.w(TAG, "recover:no sample in " + path);
+                journalFile.delete();
+                return false;
+            }
+            // remove broken data and preallocated space after the last sample
+            raf.setLength(end);
+            raf.seek(journal.mdatHeaderStart + 8);
+            raf.writeLong(end - journal.mdatHeaderStart);
+            final Mp4BoxWriter moov = buildMoov(journal.tracks, tables, firstPts);
+            raf.seek(end);
+            raf.write(moov.asByteBuffer().array(), 0, moov.size());
+            raf.getFD().sync();
+            Log.i(TAG, "recover:" + path + ",samples=" + count + "/" + journal.samples.size());
+        } finally {
+            raf.close();
+        }
+        journalFile.delete();
+        return true;
+    }
+
+    /**
+     * recover all files that have journal in the directory
+     * @param dir
+     * @return paths of repaired files
+     */
+    public static List<String> recoverAll(final File dir) {
+        final List<String> result = new ArrayList<String>();
+        final File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null) return result;
+        for (final File file: files) {
+            final String name = file.getPath();
+            if (!name.endsWith(JOURNAL_SUFFIX)) continue;
+            final String path = name.substring(0, name.length() - JOURNAL_SUFFIX.length());
+            try {
+                if (recover(path)) result.add(path);
+            } catch (final IOException e) {
+                Log.e(TAG, "failed to recover " + path, e);
+            }
+        }
+        return result;
+    }
+
+//********************************************************************************
+//********************************************************************************
+    /*package*/ static File journalOf(final String path) {
+        return new File(path + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * write batched data to the file first, then the journal that refers it
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        mOutput.flush();
+        mJournal.flush();
+    }
+
+    /**
+     * Tracks share one start, the earliest first sample of all tracks.
+     * A track that starts later is delayed by an empty edit to keep A/V offset.
+     * @param formats
+     * @param tables
+     * @param firstPts presentation time of the first sample of each track[us], negative if the track has no sample
+     */
+    private static Mp4BoxWriter buildMoov(final List<TrackFormat> formats, final List<Mp4SampleTable> tables, final long[] firstPts) {
+        final Mp4BoxWriter w = new Mp4BoxWriter(64 * 1024);
+        long startPts = -1;
+        for (int i = 0; i < tables.size(); i++) {
+            if ((tables.get(i).getCount() > 0) && ((startPts < 0) || (firstPts[i] < startPts))) {
+                startPts = firstPts[i];
+            }
+        }
+        long movieDuration = 0;
+        final long[] delays = new long[tables.size()];
+        final long[] trackDurations = new long[tables.size()];
+        for (int i = 0; i < tables.size(); i++) {
+            final Mp4SampleTable table = tables.get(i);
+            if (table.getCount() == 0) continue;
+            delays[i] = Mp4Format.toTicks(firstPts[i] - startPts, Mp4Format.MOVIE_TIMESCALE);
+            trackDurations[i] = delays[i] + table.getDuration() * Mp4Format.MOVIE_TIMESCALE / table.getTimescale();
+            movieDuration = Math.max(movieDuration, trackDurations[i]);
+        }
+        final int moov = w.start("moov");
+        Mp4Format.writeMvhd(w, movieDuration, formats.size() + 1);
+        for (int i = 0; i < formats.size(); i++) {
+            final Mp4SampleTable table = tables.get(i);
+            if (table.getCount() == 0) continue;
+            Mp4Format.writeTrak(w, i + 1, formats.get(i), delays[i], trackDurations[i], table.getDuration(), table);
+        }
+        w.end(moov);
+        return w;
+    }
+}
@@ -0,0 +1,46 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Container writer that MediaMuxerWrapper writes encoded samples to.
+ * PlatformMuxerBackend is the default implementation with android.media.MediaMuxer,
+ * RecordingMuxerBackend keeps samples on memory for tests.
+ * Methods are called in order of #addTrack, #start, #writeSampleData, #stop and #release.
+ * #writeSampleData is always called from a single writer thread.
+ */
+public interface MuxerBackend {
+    /**
+     * implemented by backends that need key frames on demand e.g. at segment boundary.
+     * MediaMuxerWrapper sets the requester that asks the video encoder for a sync frame.
+     */
+    public interface SyncFrameAware {
+        public void setSyncFrameRequester(Runnable requester);
+    }
+
+    /**
+     * @param format output format of codec
+     * @return track index
+     */
+    public int addTrack(TrackFormat format);
+
+    public void start() throws IOException;
+
+    /**
+     * @param trackIndex
+     * @param byteBuf encoded data from info.offset to info.offset + info.size
+     * @param info
+     * @throws IOException
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, SampleInfo info) throws IOException;
+
+    public void stop() throws IOException;
+
+    public void release();
+
+    /**
+     * @return path of output file, null if the writer does not write to a file
+     */
+    public String getOutputPath();
+}
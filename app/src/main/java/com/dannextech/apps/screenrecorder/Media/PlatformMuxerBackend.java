@@ -0,0 +1,58 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MuxerBackend implementation with android.media.MediaMuxer
+ */
+public class PlatformMuxerBackend implements MuxerBackend {
+
+    private final String mOutputPath;
+    private final MediaMuxer mMediaMuxer; // API >= 18
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param outputPath
+     * @param outputFormat MediaMuxer.OutputFormat.MUXER_OUTPUT_XXX
+     * @throws IOException
+     */
+    public PlatformMuxerBackend(final String outputPath, final int outputFormat) throws IOException {
+        mOutputPath = outputPath;
+        mMediaMuxer = new MediaMuxer(outputPath, outputFormat);
+    }
+
+    @Override
+    public int addTrack(final TrackFormat format) {
+        return mMediaMuxer.addTrack(MediaCodecBackend.toMediaFormat(format));
+    }
+
+    @Override
+    public void start() {
+        mMediaMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+        mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        mMediaMuxer.writeSampleData(trackIndex, byteBuf, mBufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMediaMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaMuxer.release();
+    }
+
+    @Override
+    public String getOutputPath() {
+        return mOutputPath;
+    }
+}
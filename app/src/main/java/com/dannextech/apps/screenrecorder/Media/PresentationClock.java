@@ -0,0 +1,150 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+/**
+ * Presentation time base that is shared by all encoders attached to one MediaMuxerWrapper.
+ * Time stops while paused and the paused duration is excluded from the timeline,
+ * so the timeline has no gap however many times the recording is paused.
+ * Time source is pluggable so that this class can be tested without Android.
+ */
+public class PresentationClock {
+    /**
+     * monotonic time source
+     */
+    public interface TimeSource {
+        /**
+         * @return current time in nanoseconds, this should never decrease
+         */
+        public long nanoTime();
+    }
+
+    /**
+     * System#nanoTime, this is same time base as SurfaceTexture#getTimestamp and AudioTimestamp#nanoTime
+     */
+    public static final TimeSource SYSTEM_TIME_SOURCE = new TimeSource() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * number of pause periods kept to convert capture time into presentation time
+     */
+    private static final int MAX_HISTORY = 32;
+
+    private final TimeSource mTimeSource;
+    /**
+     * pause periods in source time[us] and total paused duration until end of each period
+     */
+    private final long[] mPauseStartUs = new long[MAX_HISTORY];
+    private final long[] mPauseEndUs = new long[MAX_HISTORY];
+    private final long[] mOffsetUs = new long[MAX_HISTORY];
+    private int mHistoryCount;
+    /**
+     * total paused duration before the oldest pause period in the history
+     */
+    private long mBaseOffsetUs;
+    /**
+     * source time when paused, negative value if not paused
+     */
+    private long mPausedAtUs = -1;
+    private long mLastUs = Long.MIN_VALUE;
+
+    public PresentationClock() {
+        this(SYSTEM_TIME_SOURCE);
+    }
+
+    public PresentationClock(final TimeSource timeSource) {
+        if (timeSource == null) throw new NullPointerException("timeSource is null");
+        mTimeSource = timeSource;
+    }
+
+    public TimeSource getTimeSource() {
+        return mTimeSource;
+    }
+
+    /**
+     * get current time of time source without pause adjustment
+     * @return
+     */
+    public long getSourceTimeUs() {
+        return mTimeSource.nanoTime() / 1000L;
+    }
+
+    /**
+     * get current presentation time, this never decreases and stops while paused
+     * @return
+     */
+    public synchronized long nowUs() {
+        final long result = toPresentationUs(mPausedAtUs >= 0 ? mPausedAtUs : getSourceTimeUs());
+        if (result > mLastUs)
+            mLastUs = result;
+        return mLastUs;
+    }
+
+    /**
+     * convert capture time(source time base) into presentation time.
+     * Paused duration until the capture time is subtracted,
+     * and capture time within a pause period is pinned at the start of the period.
+     * @param sourceTimeUs
+     * @return
+     */
+    public synchronized long toPresentationUs(final long sourceTimeUs) {
+        long offset = mBaseOffsetUs;
+        for (int i = 0; i < mHistoryCount; i++) {
+            if (sourceTimeUs < mPauseStartUs[i]) {
+                return sourceTimeUs - offset;
+            }
+            if (sourceTimeUs < mPauseEndUs[i]) {
+                return mPauseStartUs[i] - offset;
+            }
+            offset = mOffsetUs[i];
+        }
+        if ((mPausedAtUs >= 0) && (sourceTimeUs >= mPausedAtUs)) {
+            return mPausedAtUs - offset;
+        }
+        return sourceTimeUs - offset;
+    }
+
+    public synchronized void pause() {
+        if (mPausedAtUs < 0) {
+            mPausedAtUs = getSourceTimeUs();
+        }
+    }
+
+    public synchronized void resume() {
+        if (mPausedAtUs < 0) return;
+        final long now = getSourceTimeUs();
+        if (now > mPausedAtUs) {
+            if (mHistoryCount == MAX_HISTORY) {
+                // forget the oldest pause period
+                mBaseOffsetUs = mOffsetUs[0];
+                System.arraycopy(mPauseStartUs, 1, mPauseStartUs, 0, MAX_HISTORY - 1);
+                System.arraycopy(mPauseEndUs, 1, mPauseEndUs, 0, MAX_HISTORY - 1);
+                System.arraycopy(mOffsetUs, 1, mOffsetUs, 0, MAX_HISTORY - 1);
+                mHistoryCount--;
+            }
+            mPauseStartUs[mHistoryCount] = mPausedAtUs;
+            mPauseEndUs[mHistoryCount] = now;
+            mOffsetUs[mHistoryCount] = getPausedDurationLocked() + (now - mPausedAtUs);
+            mHistoryCount++;
+        }
+        mPausedAtUs = -1;
+    }
+
+    public synchronized boolean isPaused() {
+        return mPausedAtUs >= 0;
+    }
+
+    /**
+     * get total duration of completed pause periods
+     * @return
+     */
+    public synchronized long getPausedDurationUs() {
+        return getPausedDurationLocked();
+    }
+
+    private long getPausedDurationLocked() {
+        return mHistoryCount > 0 ? mOffsetUs[mHistoryCount - 1] : mBaseOffsetUs;
+    }
+}
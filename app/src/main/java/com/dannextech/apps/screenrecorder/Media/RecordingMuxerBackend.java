@@ -0,0 +1,125 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MuxerBackend that keeps all tracks and samples on memory instead of writing a file.
+ * This is intended for tests of the encoder/muxer pipeline on JVM.
+ */
+public class RecordingMuxerBackend implements MuxerBackend {
+
+    /**
+     * copy of one written sample
+     */
+    public static class Sample {
+        public final int trackIndex;
+        public final long presentationTimeUs;
+        public final int flags;
+        public final byte[] data;
+
+        private Sample(final int trackIndex, final long presentationTimeUs, final int flags, final byte[] data) {
+            this.trackIndex = trackIndex;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+            this.data = data;
+        }
+    }
+
+    private final List<TrackFormat> mTracks = new ArrayList<TrackFormat>();
+    private final List<Sample> mSamples = new ArrayList<Sample>();
+    private boolean mIsStarted;
+    private boolean mIsStopped;
+    private boolean mIsReleased;
+
+    @Override
+    public synchronized int addTrack(final TrackFormat format) {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        mTracks.add(new TrackFormat(format));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        mIsStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+        final byte[] data = new byte[info.size];
+        final ByteBuffer src = byteBuf.duplicate();
+        src.limit(info.offset + info.size).position(info.offset);
+        src.get(data);
+        synchronized (this) {
+            if (!mIsStarted || mIsStopped) throw new IllegalStateException("not started");
+            if ((trackIndex < 0) || (trackIndex >= mTracks.size()))
+                throw new IllegalArgumentException("invalid track index " + trackIndex);
+            mSamples.add(new Sample(trackIndex, info.presentationTimeUs, info.flags, data));
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        mIsStopped = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void release() {
+        mIsReleased = true;
+        notifyAll();
+    }
+
+    @Override
+    public String getOutputPath() {
+        return null;
+    }
+
+    public synchronized List<TrackFormat> getTracks() {
+        return new ArrayList<TrackFormat>(mTracks);
+    }
+
+    public synchronized List<Sample> getSamples() {
+        return new ArrayList<Sample>(mSamples);
+    }
+
+    /**
+     * get samples of specific track in written order
+     * @param trackIndex
+     * @return
+     */
+    public synchronized List<Sample> getSamples(final int trackIndex) {
+        final List<Sample> result = new ArrayList<Sample>();
+        for (final Sample sample: mSamples) {
+            if (sample.trackIndex == trackIndex)
+                result.add(sample);
+        }
+        return result;
+    }
+
+    public synchronized boolean isStarted() {
+        return mIsStarted;
+    }
+
+    public synchronized boolean isStopped() {
+        return mIsStopped;
+    }
+
+    /**
+     * wait until #release is called
+     * @param timeoutMs
+     * @return true if released
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitRelease(final long timeoutMs) throws InterruptedException {
+        final long limit = System.currentTimeMillis() + timeoutMs;
+        long remain;
+        while (!mIsReleased && ((remain = limit - System.currentTimeMillis()) > 0)) {
+            wait(remain);
+        }
+        return mIsReleased;
+    }
+}
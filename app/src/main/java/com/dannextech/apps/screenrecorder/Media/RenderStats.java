@@ -0,0 +1,64 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.util.Locale;
+
+/**
+ * Per frame cost of copying captured frames into the encoder on the render thread.
+ * MediaScreenEncoder collects this on the GL path, the direct path has no cost here
+ * because VirtualDisplay renders into the input surface of the codec, so the values
+ * of the GL path are the time that is saved per frame by the direct path.
+ */
+public class RenderStats {
+    private final String mPath;
+    private long mFrames;
+    private long mCpuTimeNs;
+    private long mWallTimeNs;
+    private long mMaxWallTimeNs;
+
+    /**
+     * @param path name of the render path
+     */
+    public RenderStats(final String path) {
+        mPath = path;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * account one rendered frame
+     * @param cpuTimeNs cpu time of the render thread for the frame
+     * @param wallTimeNs elapsed time for the frame, this includes waiting for GPU in swapBuffers
+     */
+    public synchronized void addFrame(final long cpuTimeNs, final long wallTimeNs) {
+        mFrames++;
+        if (cpuTimeNs > 0) mCpuTimeNs += cpuTimeNs;
+        if (wallTimeNs > 0) {
+            mWallTimeNs += wallTimeNs;
+            if (wallTimeNs > mMaxWallTimeNs) mMaxWallTimeNs = wallTimeNs;
+        }
+    }
+
+    public synchronized long getFrames() {
+        return mFrames;
+    }
+
+    public synchronized long getAverageCpuTimeUs() {
+        return mFrames > 0 ? mCpuTimeNs / 1000L / mFrames : 0;
+    }
+
+    public synchronized long getAverageWallTimeUs() {
+        return mFrames > 0 ? mWallTimeNs / 1000L / mFrames : 0;
+    }
+
+    public synchronized long getMaxWallTimeUs() {
+        return mMaxWallTimeNs / 1000L;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "RenderStats[%s]:frames=%d,cpu=%d[us/frame],wall avg=%d[us/frame],max=%d[us]",
+            mPath, mFrames, getAverageCpuTimeUs(), getAverageWallTimeUs(), getMaxWallTimeUs());
+    }
+}
@@ -0,0 +1,312 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MuxerBackend for instant replay, keeps the last N seconds of encoded samples
+ * in a fixed size off-heap ring buffer instead of writing them to storage.
+ * Samples are evicted GOP by GOP(from a video key frame to the next one), so the ring always
+ * starts with a key frame. #save writes the retained samples into another MuxerBackend
+ * from the oldest key frame, recording keeps running while saving.
+ */
+public class ReplayBufferBackend implements MuxerBackend {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "ReplayBufferBackend";
+
+    public static final long DEFAULT_DURATION_US = 60000000L;
+    /**
+     * 60 seconds of 30fps video and 44.1kHz AAC with margin
+     */
+    public static final int DEFAULT_MAX_SAMPLES = 8192;
+
+    private final long mDurationUs;
+    private final int mMaxSamples;
+    /**
+     * encoded data, off-heap and allocated once
+     */
+    private final ByteBuffer mData;
+    private final long mCapacity;
+    // index of samples, slot of sample seq is seq % mMaxSamples
+    private final int[] mTrack;
+    private final long[] mPts;
+    private final int[] mFlags;
+    private final long[] mOffset;   // total bytes written before this sample
+    private final int[] mSize;
+    // sequence numbers of samples where GOP starts, slot of n-th sync point is n % mMaxSamples
+    private final long[] mSyncSeqs;
+    private long mSyncFirst, mSyncNext;
+    private long mFirstSeq, mNextSeq;
+    private long mFirstOffset, mNextOffset;
+    /**
+     * samples at and after this sequence number are being saved and should not be evicted, -1 if not saving
+     */
+    private long mPinnedSeq = -1;
+    private final List<TrackFormat> mTracks = new ArrayList<TrackFormat>();
+    private boolean mHasVideo;
+    private boolean mIsStarted;
+    private long mDroppedSamples;
+    private long mEvictWaitNs;
+
+    public ReplayBufferBackend(final int capacityBytes) {
+        this(capacityBytes, DEFAULT_DURATION_US, DEFAULT_MAX_SAMPLES);
+    }
+
+    /**
+     * @param capacityBytes size of the ring buffer for encoded data, e.g. bitrate / 8 * duration with margin
+     * @param durationUs how long samples are retained
+     * @param maxSamples maximum number of samples in the ring
+     */
+    public ReplayBufferBackend(final int capacityBytes, final long durationUs, final int maxSamples) {
+        if (capacityBytes <= 0) throw new IllegalArgumentException("capacity should be positive");
+        if (durationUs <= 0) throw new IllegalArgumentException("duration should be positive");
+        if (maxSamples <= 0) throw new IllegalArgumentException("max samples should be positive");
+        mData = ByteBuffer.allocateDirect(capacityBytes);
+        mCapacity = capacityBytes;
+        mDurationUs = durationUs;
+        mMaxSamples = maxSamples;
+        mTrack = new int[maxSamples];
+        mPts = new long[maxSamples];
+        mFlags = new int[maxSamples];
+        mOffset = new long[maxSamples];
+        mSize = new int[maxSamples];
+        mSyncSeqs = new long[maxSamples];
+    }
+
+    @Override
+    public synchronized int addTrack(final TrackFormat format) {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        mTracks.add(new TrackFormat(format));
+        mHasVideo |= format.isVideo();
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        mIsStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;    // already in format
+        final int size = info.size;
+        if (size <= 0) return;
+        final boolean isSyncPoint = isSyncPoint(trackIndex, info.flags);
+        if ((size > mCapacity) || ((mFirstSeq == mNextSeq) && !isSyncPoint)) {
+            // samples before the first key frame can not be decoded
+            mDroppedSamples++;
+            return;
+        }
+        // make room
+        while ((mNextOffset + size - mFirstOffset > mCapacity) || (mNextSeq - mFirstSeq >= mMaxSamples)
+            || (mSyncNext - mSyncFirst >= mMaxSamples)) {
+
+            if (!evictGop(true)) {
+                mDroppedSamples++;
+                return;
+            }
+        }
+        if ((mFirstSeq == mNextSeq) && !isSyncPoint) {
+            // the ring was too small for whole GOP
+            mDroppedSamples++;
+            return;
+        }
+        // copy data into the ring, this may wrap around
+        final int pos = (int)(mNextOffset % mCapacity);
+        final ByteBuffer src = byteBuf.duplicate();
+        src.limit(info.offset + size).position(info.offset);
+        final int first = (int)Math.min(size, mCapacity - pos);
+        final ByteBuffer dst = mData.duplicate();
+        dst.clear();
+        dst.position(pos);
+        src.limit(info.offset + first);
+        dst.put(src);
+        if (first < size) {
+            src.limit(info.offset + size);
+            dst.position(0);
+            dst.put(src);
+        }
+        final int slot = (int)(mNextSeq % mMaxSamples);
+        mTrack[slot] = trackIndex;
+        mPts[slot] = info.presentationTimeUs;
+        mFlags[slot] = info.flags;
+        mOffset[slot] = mNextOffset;
+        mSize[slot] = size;
+        if (isSyncPoint) {
+            mSyncSeqs[(int)(mSyncNext % mMaxSamples)] = mNextSeq;
+            mSyncNext++;
+        }
+        mNextSeq++;
+        mNextOffset += size;
+        // drop GOPs that are older than the duration
+        while ((mSyncNext - mSyncFirst >= 2)
+            && (mPts[slotOfSync(mSyncFirst + 1)] <= info.presentationTimeUs - mDurationUs)) {
+
+            if (!evictGop(false)) break;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        mIsStarted = false;
+        Log.i(TAG, toString());
+    }
+
+    @Override
+    public synchronized void release() {
+        mFirstSeq = mNextSeq;
+        mFirstOffset = mNextOffset;
+        mSyncFirst = mSyncNext;
+        notifyAll();
+    }
+
+    @Override
+    public String getOutputPath() {
+        return null;
+    }
+
+    /**
+     * write retained samples from the oldest key frame into output, this blocks until writing finish.
+     * Recording keeps running, the writer only waits when it needs the space that is not saved yet.
+     * @param output this is started, stopped and released in this method
+     * @return duration of saved samples, 0 if nothing is retained
+     * @throws IOException
+     */
+    public long save(final MuxerBackend output) throws IOException {
+        final long startSeq, endSeq, startPts;
+        final List<TrackFormat> tracks;
+        synchronized (this) {
+            if (mPinnedSeq >= 0) throw new IllegalStateException("already saving");
+            if (mFirstSeq == mNextSeq) {
+                output.release();
+                return 0;
+            }
+            startSeq = mFirstSeq;
+            endSeq = mNextSeq;
+            startPts = mPts[(int)(startSeq % mMaxSamples)];
+            mPinnedSeq = startSeq;
+            tracks = new ArrayList<TrackFormat>(mTracks);
+        }
+        long lastPts = startPts;
+        final ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+        final SampleInfo info = new SampleInfo();
+        try {
+            for (final TrackFormat format: tracks) {
+                output.addTrack(format);
+            }
+            output.start();
+            ByteBuffer sample = buf;
+            for (long seq = startSeq; seq < endSeq; seq++) {
+                final int trackIndex;
+                synchronized (this) {
+                    final int slot = (int)(seq % mMaxSamples);
+                    trackIndex = mTrack[slot];
+                    info.set(0, mSize[slot], mPts[slot], mFlags[slot]);
+                    if (sample.capacity() < info.size) {
+                        sample = ByteBuffer.allocateDirect(SampleQueue.roundUpCapacity(info.size));
+                    }
+                    copyOut(mOffset[slot], info.size, sample);
+                    // this sample is copied, the writer can reuse its space
+                    mPinnedSeq = seq + 1;
+                    notifyAll();
+                }
+                // samples of other tracks before the first key frame are not needed
+                if (info.presentationTimeUs < startPts) continue;
+                output.writeSampleData(trackIndex, sample, info);
+                if (info.presentationTimeUs > lastPts) lastPts = info.presentationTimeUs;
+            }
+            output.stop();
+        } finally {
+            synchronized (this) {
+                mPinnedSeq = -1;
+                notifyAll();
+            }
+            output.release();
+        }
+        if (DEBUG) Log.v(TAG, "saved " + (endSeq - startSeq) + " samples to " + output.getOutputPath());
+        return lastPts - startPts;
+    }
+
+    /**
+     * @return duration from the oldest key frame to the latest sample
+     */
+    public synchronized long getRetainedDurationUs() {
+        if (mFirstSeq == mNextSeq) return 0;
+        return mPts[(int)((mNextSeq - 1) % mMaxSamples)] - mPts[(int)(mFirstSeq % mMaxSamples)];
+    }
+
+    public synchronized long getRetainedBytes() {
+        return mNextOffset - mFirstOffset;
+    }
+
+    public synchronized int getRetainedSamples() {
+        return (int)(mNextSeq - mFirstSeq);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ReplayBufferBackend{retained=%dms/%dbytes/%dsamples,dropped=%d,evictWait=%dms}",
+            getRetainedDurationUs() / 1000, getRetainedBytes(), getRetainedSamples(),
+            mDroppedSamples, mEvictWaitNs / 1000000L);
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private boolean isSyncPoint(final int trackIndex, final int flags) {
+        return !mHasVideo
+            || (mTracks.get(trackIndex).isVideo() && ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0));
+    }
+
+    private int slotOfSync(final long n) {
+        return (int)(mSyncSeqs[(int)(n % mMaxSamples)] % mMaxSamples);
+    }
+
+    /**
+     * remove the oldest GOP, if this is the last GOP, all samples are removed
+     * @param wait wait while the GOP is being saved, otherwise give up
+     * @return false if could not evict
+     */
+    private boolean evictGop(final boolean wait) {
+        long nextSync;
+        for ( ; ; ) {
+            if (mFirstSeq == mNextSeq) return false;
+            nextSync = mSyncNext - mSyncFirst >= 2
+                ? mSyncSeqs[(int)((mSyncFirst + 1) % mMaxSamples)] : mNextSeq;
+            if ((mPinnedSeq < 0) || (nextSync <= mPinnedSeq)) break;
+            if (!wait) return false;
+            final long startNs = System.nanoTime();
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                return false;
+            } finally {
+                mEvictWaitNs += System.nanoTime() - startNs;
+            }
+        }
+        mFirstSeq = nextSync;
+        mFirstOffset = nextSync < mNextSeq ? mOffset[(int)(nextSync % mMaxSamples)] : mNextOffset;
+        mSyncFirst = nextSync < mNextSeq ? mSyncFirst + 1 : mSyncNext;
+        return true;
+    }
+
+    private void copyOut(final long offset, final int size, final ByteBuffer dst) {
+        final int pos = (int)(offset % mCapacity);
+        final int first = (int)Math.min(size, mCapacity - pos);
+        final ByteBuffer src = mData.duplicate();
+        dst.clear();
+        src.limit(pos + first).position(pos);
+        dst.put(src);
+        if (first < size) {
+            src.limit(size - first).position(0);
+            dst.put(src);
+        }
+        dst.flip();
+    }
+}
@@ -0,0 +1,23 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+/**
+ * Plain java counterpart of MediaCodec.BufferInfo.
+ * flags are same as MediaCodec.BUFFER_FLAG_XXX.
+ */
+public class SampleInfo {
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(final int offset, final int size, final long presentationTimeUs, final int flags) {
+        this.offset = offset;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    public void set(final SampleInfo src) {
+        set(src.offset, src.size, src.presentationTimeUs, src.flags);
+    }
+}
@@ -0,0 +1,120 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reorders samples of multiple tracks into global presentation time order before writing,
+ * so that audio and video are well interleaved in the output file.
+ * Samples of each track should come in presentation time order, arrival order
+ * across tracks is arbitrary. A sample is held until every track has a pending sample
+ * (then the earliest one can be released safely), or until it is older than
+ * the latest arrived sample by maxDelayUs, or until the window of the track is full.
+ * This class is not thread safe, it is used only on the writer thread of MediaMuxerWrapper.
+ */
+public class SampleInterleaver {
+    public static final long DEFAULT_MAX_DELAY_US = 500000L;
+    public static final int DEFAULT_MAX_SAMPLES_PER_TRACK = 64;
+
+    private final long mMaxDelayUs;
+    private final int mMaxSamplesPerTrack;
+    private final List<ArrayDeque<EncodedSample>> mTracks;
+    private long mLatestPts = Long.MIN_VALUE;
+    private int mHeldCount;
+    private boolean mIsFinished;
+    // statistics
+    private int mMaxHeld;
+    private long mReleasedCount;
+    private long mForcedCount;
+
+    /**
+     * @param trackCount
+     * @param maxDelayUs maximum difference of presentation time between the held sample and the latest arrived sample
+     * @param maxSamplesPerTrack maximum number of held samples per track
+     */
+    @SuppressWarnings("unchecked")
+    public SampleInterleaver(final int trackCount, final long maxDelayUs, final int maxSamplesPerTrack) {
+        if (trackCount <= 0) throw new IllegalArgumentException("track count should be positive");
+        if (maxDelayUs < 0) throw new IllegalArgumentException("max delay should not be negative");
+        if (maxSamplesPerTrack <= 0) throw new IllegalArgumentException("max samples should be positive");
+        mMaxDelayUs = maxDelayUs;
+        mMaxSamplesPerTrack = maxSamplesPerTrack;
+        mTracks = new ArrayList<ArrayDeque<EncodedSample>>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            mTracks.add(new ArrayDeque<EncodedSample>());
+        }
+    }
+
+    /**
+     * hold the sample, call #poll after this to get samples that can be written
+     * @param sample
+     */
+    public void add(final EncodedSample sample) {
+        if (mIsFinished) throw new IllegalStateException("already finished");
+        mTracks.get(sample.trackIndex).add(sample);
+        mHeldCount++;
+        if (mHeldCount > mMaxHeld) mMaxHeld = mHeldCount;
+        if (sample.presentationTimeUs > mLatestPts)
+            mLatestPts = sample.presentationTimeUs;
+    }
+
+    /**
+     * no more samples come, all held samples are released by #poll
+     */
+    public void finish() {
+        mIsFinished = true;
+    }
+
+    /**
+     * @return next sample to write, null if samples should be held more
+     */
+    public EncodedSample poll() {
+        int earliest = -1;
+        boolean allTracksReady = true;
+        boolean windowFull = false;
+        for (int i = 0; i < mTracks.size(); i++) {
+            final EncodedSample head = mTracks.get(i).peekFirst();
+            if (head == null) {
+                allTracksReady = false;
+                continue;
+            }
+            if (mTracks.get(i).size() >= mMaxSamplesPerTrack) windowFull = true;
+            if ((earliest < 0) || (head.presentationTimeUs < mTracks.get(earliest).peekFirst().presentationTimeUs))
+                earliest = i;
+        }
+        if (earliest < 0) return null;
+        final EncodedSample result = mTracks.get(earliest).peekFirst();
+        if (!allTracksReady && !mIsFinished) {
+            // other track may still have earlier sample
+            if (!windowFull && (mLatestPts - result.presentationTimeUs < mMaxDelayUs)) return null;
+            mForcedCount++;
+        }
+        mTracks.get(earliest).pollFirst();
+        mHeldCount--;
+        mReleasedCount++;
+        return result;
+    }
+
+    public int getHeldCount() {
+        return mHeldCount;
+    }
+
+    public int getMaxHeld() {
+        return mMaxHeld;
+    }
+
+    /**
+     * @return number of samples that were released before all tracks had a sample
+     */
+    public long getForcedCount() {
+        return mForcedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "SampleInterleaver(%d,%d[ms]):released=%d,forced=%d,held=%d,maxHeld=%d",
+            mMaxSamplesPerTrack, mMaxDelayUs / 1000, mReleasedCount, mForcedCount, mHeldCount, mMaxHeld);
+    }
+}
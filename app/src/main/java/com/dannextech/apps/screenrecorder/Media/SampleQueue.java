@@ -0,0 +1,239 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Bounded queue of encoded samples between the codec drains and the muxer writer thread.
+ * Encoded data is copied into pooled direct buffers, so that the codec output buffers
+ * can be released immediately and storage stalls don't reach the codecs.
+ */
+public class SampleQueue {
+    /**
+     * what to do when the queue is full
+     */
+    public enum Policy {
+        /**
+         * wait until the writer makes room(backpressure to the codec drain)
+         */
+        BLOCK,
+        /**
+         * drop the incoming sample, and for key frame dependent(video) tracks
+         * also drop following samples of the track until next key frame
+         */
+        DROP,
+    }
+
+    public static final int DEFAULT_CAPACITY = 120;
+    private static final int MIN_SAMPLE_CAPACITY = 4096;
+
+    private final Object mSync = new Object();
+    private final int mCapacity;
+    private final Policy mPolicy;
+    private final ArrayDeque<EncodedSample> mQueue;
+    private final ArrayDeque<EncodedSample> mPool;
+    private boolean mIsClosed;
+    // number of samples that are being copied outside of the lock
+    private int mPending;
+    // bit set of key frame dependent tracks and tracks that are waiting next key frame after drop
+    private int mSyncDependentTracks;
+    private int mWaitKeyFrameTracks;
+    // statistics
+    private int mMaxDepth;
+    private long mQueuedCount;
+    private long mDropCount;
+    private long mStallTimeNs;
+    private long mMaxStallTimeNs;
+
+    public SampleQueue(final int capacity, final Policy policy) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity should be positive");
+        if (policy == null) throw new NullPointerException("policy is null");
+        mCapacity = capacity;
+        mPolicy = policy;
+        mQueue = new ArrayDeque<EncodedSample>(capacity);
+        mPool = new ArrayDeque<EncodedSample>(capacity);
+    }
+
+    /**
+     * mark the track as key frame dependent(e.g. video), it is only meaningful for Policy#DROP
+     * @param trackIndex
+     */
+    public void setSyncDependent(final int trackIndex) {
+        synchronized (mSync) {
+            mSyncDependentTracks |= (1 << trackIndex);
+        }
+    }
+
+    /**
+     * copy encoded data and append it to the queue.
+     * @param trackIndex
+     * @param data encoded data, position and limit of this buffer are not changed
+     * @param offset
+     * @param size
+     * @param presentationTimeUs
+     * @param flags MediaCodec.BUFFER_FLAG_XXX
+     * @return false if the sample was dropped or the queue is already closed
+     */
+    public boolean offer(final int trackIndex, final ByteBuffer data, final int offset, final int size,
+        final long presentationTimeUs, final int flags) {
+
+        final int trackBit = 1 << trackIndex;
+        final boolean isKeyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        EncodedSample sample;
+        synchronized (mSync) {
+            if (mIsClosed) return false;
+            if ((mWaitKeyFrameTracks & trackBit) != 0) {
+                if (!isKeyFrame) {
+                    mDropCount++;
+                    return false;
+                }
+                mWaitKeyFrameTracks &= ~trackBit;
+            }
+            if (mQueue.size() + mPending >= mCapacity) {
+                if (mPolicy == Policy.DROP) {
+                    if ((mSyncDependentTracks & trackBit) != 0)
+                        mWaitKeyFrameTracks |= trackBit;
+                    mDropCount++;
+                    return false;
+                }
+                final long startNs = System.nanoTime();
+                while (!mIsClosed && (mQueue.size() + mPending >= mCapacity)) {
+                    try {
+                        mSync.wait();
+                    } catch (final InterruptedException e) {
+                        break;
+                    }
+                }
+                final long stallNs = System.nanoTime() - startNs;
+                mStallTimeNs += stallNs;
+                if (stallNs > mMaxStallTimeNs)
+                    mMaxStallTimeNs = stallNs;
+                if (mIsClosed || (mQueue.size() + mPending >= mCapacity)) {
+                    mDropCount++;
+                    return false;
+                }
+            }
+            mPending++;
+            sample = mPool.poll();
+        }
+        // copying is done outside of the lock so that the writer thread is never blocked by it
+        if (sample == null) {
+            sample = new EncodedSample(roundUpCapacity(size));
+        }
+        sample.set(trackIndex, data, offset, size, presentationTimeUs, flags);
+        synchronized (mSync) {
+            mPending--;
+            mQueue.add(sample);
+            mQueuedCount++;
+            if (mQueue.size() > mMaxDepth)
+                mMaxDepth = mQueue.size();
+            mSync.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * get next sample, wait until a sample is queued or this queue is closed.
+     * The sample should be returned with #recycle after use.
+     * @return null if the queue is closed and all samples are already taken
+     * @throws InterruptedException
+     */
+    public EncodedSample take() throws InterruptedException {
+        synchronized (mSync) {
+            while (mQueue.isEmpty() && (!mIsClosed || (mPending > 0))) {
+                mSync.wait();
+            }
+            final EncodedSample result = mQueue.poll();
+            if (result != null)
+                mSync.notifyAll();
+            return result;
+        }
+    }
+
+    /**
+     * return the sample to the pool
+     * @param sample
+     */
+    public void recycle(final EncodedSample sample) {
+        if (sample == null) return;
+        synchronized (mSync) {
+            // keep at most mCapacity buffers, this bounds the off-heap memory
+            if (mPool.size() < mCapacity) {
+                mPool.add(sample);
+            }
+        }
+    }
+
+    /**
+     * reject further samples, samples already queued can be taken.
+     */
+    public void close() {
+        synchronized (mSync) {
+            mIsClosed = true;
+            mSync.notifyAll();
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public int getDepth() {
+        synchronized (mSync) {
+            return mQueue.size();
+        }
+    }
+
+    public int getMaxDepth() {
+        synchronized (mSync) {
+            return mMaxDepth;
+        }
+    }
+
+    public long getDropCount() {
+        synchronized (mSync) {
+            return mDropCount;
+        }
+    }
+
+    /**
+     * total time that producers were blocked because the queue was full
+     * @return
+     */
+    public long getStallTimeNs() {
+        synchronized (mSync) {
+            return mStallTimeNs;
+        }
+    }
+
+    public long getMaxStallTimeNs() {
+        synchronized (mSync) {
+            return mMaxStallTimeNs;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mSync) {
+            return String.format(Locale.US,
+                "SampleQueue(%s,%d):queued=%d,depth=%d,maxDepth=%d,dropped=%d,stall=%.2f[ms],maxStall=%.2f[ms]",
+                mPolicy, mCapacity, mQueuedCount, mQueue.size(), mMaxDepth, mDropCount,
+                mStallTimeNs / 1000000f, mMaxStallTimeNs / 1000000f);
+        }
+    }
+
+    /*package*/ static int roundUpCapacity(final int size) {
+        int capacity = MIN_SAMPLE_CAPACITY;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,165 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps encoded samples that are output before the muxer starts,
+ * e.g. audio encoder outputs samples while video encoder does not report its format yet.
+ * Codec drains never wait for the muxer, samples are staged here per track
+ * and passed to SampleQueue in timestamp order when the muxer starts.
+ * The number of staged samples per track is bounded, when the track is full the oldest samples
+ * are dropped(up to the next key frame for key frame dependent tracks).
+ * This class is not thread safe, MediaMuxerWrapper guards it with its lock.
+ */
+public class SampleStaging {
+    public static final int DEFAULT_MAX_SAMPLES_PER_TRACK = 64;
+
+    private final int mMaxSamplesPerTrack;
+    private final List<ArrayDeque<EncodedSample>> mTracks = new ArrayList<ArrayDeque<EncodedSample>>();
+    private final ArrayDeque<EncodedSample> mPool = new ArrayDeque<EncodedSample>();
+    // bit set of key frame dependent tracks
+    private int mSyncDependentTracks;
+    // statistics
+    private int mDepth;
+    private int mMaxDepth;
+    private long mStagedCount;
+    private long mDropCount;
+
+    public SampleStaging(final int maxSamplesPerTrack) {
+        if (maxSamplesPerTrack <= 0) throw new IllegalArgumentException("max samples should be positive");
+        mMaxSamplesPerTrack = maxSamplesPerTrack;
+    }
+
+    /**
+     * mark the track as key frame dependent(e.g. video)
+     * @param trackIndex
+     */
+    public void setSyncDependent(final int trackIndex) {
+        mSyncDependentTracks |= (1 << trackIndex);
+    }
+
+    /**
+     * copy encoded data and stage it
+     * @param trackIndex
+     * @param data encoded data, position and limit of this buffer are not changed
+     * @param offset
+     * @param size
+     * @param presentationTimeUs
+     * @param flags
+     * @return false if the sample was dropped
+     */
+    public boolean add(final int trackIndex, final ByteBuffer data, final int offset, final int size,
+        final long presentationTimeUs, final int flags) {
+
+        final ArrayDeque<EncodedSample> track = getTrack(trackIndex);
+        final boolean syncDependent = (mSyncDependentTracks & (1 << trackIndex)) != 0;
+        final boolean isKeyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (syncDependent && track.isEmpty() && !isKeyFrame) {
+            // can not be decoded without preceding key frame
+            mDropCount++;
+            return false;
+        }
+        if (track.size() >= mMaxSamplesPerTrack) {
+            drop(track);
+            if (syncDependent) {
+                while (!track.isEmpty() && ((track.peekFirst().flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0)) {
+                    drop(track);
+                }
+                if (track.isEmpty() && !isKeyFrame) {
+                    mDropCount++;
+                    return false;
+                }
+            }
+        }
+        EncodedSample sample = mPool.poll();
+        if (sample == null) {
+            sample = new EncodedSample(SampleQueue.roundUpCapacity(size));
+        }
+        sample.set(trackIndex, data, offset, size, presentationTimeUs, flags);
+        track.add(sample);
+        mStagedCount++;
+        mDepth++;
+        if (mDepth > mMaxDepth) mMaxDepth = mDepth;
+        return true;
+    }
+
+    /**
+     * pass all staged samples to the queue in timestamp order, buffers are handed over to its pool.
+     * @param queue
+     */
+    public void flushTo(final SampleQueue queue) {
+        final List<EncodedSample> samples = new ArrayList<EncodedSample>(mDepth);
+        for (final ArrayDeque<EncodedSample> track: mTracks) {
+            samples.addAll(track);
+            track.clear();
+        }
+        // stable, so the order in each track is kept
+        Collections.sort(samples, PTS_ORDER);
+        for (final EncodedSample sample: samples) {
+            queue.offer(sample.trackIndex, sample.data, 0, sample.size, sample.presentationTimeUs, sample.flags);
+            queue.recycle(sample);
+        }
+        mDepth = 0;
+        mPool.clear();
+    }
+
+    /**
+     * discard all staged samples and pooled buffers
+     */
+    public void clear() {
+        for (final ArrayDeque<EncodedSample> track: mTracks) {
+            track.clear();
+        }
+        mDepth = 0;
+        mPool.clear();
+    }
+
+    public int getDepth() {
+        return mDepth;
+    }
+
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public long getDropCount() {
+        return mDropCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "SampleStaging(%d):staged=%d,depth=%d,maxDepth=%d,dropped=%d",
+            mMaxSamplesPerTrack, mStagedCount, mDepth, mMaxDepth, mDropCount);
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private static final Comparator<EncodedSample> PTS_ORDER = new Comparator<EncodedSample>() {
+        @Override
+        public int compare(final EncodedSample a, final EncodedSample b) {
+            return a.presentationTimeUs < b.presentationTimeUs ? -1
+                : (a.presentationTimeUs == b.presentationTimeUs ? 0 : 1);
+        }
+    };
+
+    private ArrayDeque<EncodedSample> getTrack(final int trackIndex) {
+        while (mTracks.size() <= trackIndex) {
+            mTracks.add(new ArrayDeque<EncodedSample>());
+        }
+        return mTracks.get(trackIndex);
+    }
+
+    private void drop(final ArrayDeque<EncodedSample> track) {
+        mPool.add(track.poll());
+        mDepth--;
+        mDropCount++;
+    }
+}
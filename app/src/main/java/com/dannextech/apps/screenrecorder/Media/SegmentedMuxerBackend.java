@@ -0,0 +1,251 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * MuxerBackend that splits a recording into segments of fixed duration and/or size.
+ * A sync frame is requested from the video encoder shortly before the boundary
+ * and the output is switched to the next segment on that key frame, codecs keep running.
+ * So segments are slightly shorter/smaller than the limit unless the codec ignores the request.
+ * Every sample is written to exactly one segment and presentation times are passed through,
+ * so the time line continues from one segment to the next.
+ */
+public class SegmentedMuxerBackend implements MuxerBackend, MuxerBackend.SyncFrameAware {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "SegmentedMuxerBackend";
+
+    /**
+     * sync frame is requested this time before the boundary, this should be close to
+     * the latency of the codec and the writer queue so that the key frame comes near the boundary
+     */
+    public static final long DEFAULT_SYNC_FRAME_LEAD_US = 250000L;
+
+    /**
+     * create writer of each segment
+     */
+    public interface SegmentFactory {
+        /**
+         * @param index zero based index of segment
+         * @return
+         * @throws IOException
+         */
+        public MuxerBackend createSegment(int index) throws IOException;
+    }
+
+    public interface Listener {
+        /**
+         * called on the writer thread after the segment is finalized
+         * @param index
+         * @param path output path of the segment, null if the segment is not a file
+         * @param durationUs
+         * @param bytes size of encoded data in the segment
+         */
+        public void onSegmentFinished(int index, String path, long durationUs, long bytes);
+    }
+
+    /**
+     * create factory that writes segments into files like "basePath-000.mp4", "basePath-001.mp4"...
+     * @param basePath output path without extension
+     * @param fragmented true: FragmentedMp4Writer, false: MediaMuxer
+     * @return
+     */
+    public static SegmentFactory fileSegments(final String basePath, final boolean fragmented) {
+        return new SegmentFactory() {
+            @Override
+            public MuxerBackend createSegment(final int index) throws IOException {
+                final String path = String.format(Locale.US, "%s-%03d.mp4", basePath, index);
+                return fragmented ? new FragmentedMp4Writer(path)
+                    : new PlatformMuxerBackend(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            }
+        };
+    }
+
+    private final SegmentFactory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final List<TrackFormat> mTracks = new ArrayList<TrackFormat>();
+    private long mSyncFrameLeadUs = DEFAULT_SYNC_FRAME_LEAD_US;
+    private Runnable mSyncFrameRequester;
+    private Listener mListener;
+    private MuxerBackend mSegment;
+    private int mSegmentIndex = -1;
+    private boolean mHasVideo;
+    /**
+     * presentation time of the first sample of current segment, -1 if no sample yet
+     */
+    private long mSegmentStartUs;
+    private long mSegmentLastUs;
+    private long mSegmentBytes;
+    private long mSyncFrameRequestedUs;
+    private boolean mIsStarted;
+
+    /**
+     * @param factory
+     * @param maxDurationUs maximum duration of each segment, 0 means no limit
+     * @param maxBytes maximum size of encoded data in each segment, 0 means no limit
+     */
+    public SegmentedMuxerBackend(final SegmentFactory factory, final long maxDurationUs, final long maxBytes) {
+        if (factory == null) throw new NullPointerException("factory is null");
+        if ((maxDurationUs <= 0) && (maxBytes <= 0))
+            throw new IllegalArgumentException("either duration or size should be limited");
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized void setListener(final Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param leadUs how long before the boundary a sync frame is requested
+     */
+    public synchronized void setSyncFrameLead(final long leadUs) {
+        mSyncFrameLeadUs = Math.max(0, leadUs);
+    }
+
+    @Override
+    public synchronized void setSyncFrameRequester(final Runnable requester) {
+        mSyncFrameRequester = requester;
+    }
+
+    @Override
+    public synchronized int addTrack(final TrackFormat format) {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        mTracks.add(new TrackFormat(format));
+        mHasVideo |= format.isVideo();
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        startSegment();
+        mIsStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        final long pts = info.presentationTimeUs;
+        if (mSegmentStartUs < 0) {
+            mSegmentStartUs = pts;
+        } else if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            final boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            final boolean canSplit = mHasVideo ? mTracks.get(trackIndex).isVideo() && isSync : true;
+            // switch on the requested key frame, or any key frame after the limit
+            if (canSplit && ((mSyncFrameRequestedUs >= 0) || isLimitReached(pts, 0))) {
+                finishSegment();
+                startSegment();
+                mSegmentStartUs = pts;
+            } else if (mHasVideo && shouldRequestSyncFrame(pts)) {
+                mSyncFrameRequestedUs = pts;
+                if (DEBUG) Log.v(TAG, "request sync frame at " + pts);
+                if (mSyncFrameRequester != null) {
+                    mSyncFrameRequester.run();
+                }
+            }
+        }
+        mSegment.writeSampleData(trackIndex, byteBuf, info);
+        mSegmentBytes += info.size;
+        if (pts > mSegmentLastUs) mSegmentLastUs = pts;
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        mIsStarted = false;
+        finishSegment();
+    }
+
+    @Override
+    public synchronized void release() {
+        if (mSegment != null) {
+            mSegment.release();
+            mSegment = null;
+        }
+    }
+
+    /**
+     * @return output path of current segment
+     */
+    @Override
+    public synchronized String getOutputPath() {
+        return mSegment != null ? mSegment.getOutputPath() : null;
+    }
+
+    /**
+     * @return zero based index of current segment, -1 if not started yet
+     */
+    public synchronized int getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+//********************************************************************************
+//********************************************************************************
+    /**
+     * @param pts
+     * @param leadUs
+     * @return true if the duration or size of current segment reaches the limit leadUs later
+     */
+    private boolean isLimitReached(final long pts, final long leadUs) {
+        final long durationUs = pts - mSegmentStartUs;
+        if ((mMaxDurationUs > 0) && (durationUs + leadUs >= mMaxDurationUs))
+            return true;
+        if (mMaxBytes > 0) {
+            // estimate the size after leadUs from average bit rate of this segment
+            final long expected = durationUs > 0 ? mSegmentBytes + mSegmentBytes * leadUs / durationUs : mSegmentBytes;
+            if (expected >= mMaxBytes) return true;
+        }
+        return false;
+    }
+
+    private boolean shouldRequestSyncFrame(final long pts) {
+        if (!isLimitReached(pts, mSyncFrameLeadUs)) return false;
+        // request again if the key frame did not come within lead time
+        return (mSyncFrameRequestedUs < 0) || (pts - mSyncFrameRequestedUs >= Math.max(mSyncFrameLeadUs, 1));
+    }
+
+    private void startSegment() throws IOException {
+        mSegmentIndex++;
+        final MuxerBackend segment = mFactory.createSegment(mSegmentIndex);
+        for (int i = 0; i < mTracks.size(); i++) {
+            final int trackIndex = segment.addTrack(mTracks.get(i));
+            if (trackIndex != i)
+                throw new IllegalStateException("unexpected track index " + trackIndex + " of segment");
+        }
+        segment.start();
+        mSegment = segment;
+        mSegmentStartUs = mSegmentLastUs = mSyncFrameRequestedUs = -1;
+        mSegmentBytes = 0;
+        if (DEBUG) Log.v(TAG, "segment " + mSegmentIndex + " started:" + segment.getOutputPath());
+    }
+
+    private void finishSegment() throws IOException {
+        final MuxerBackend segment = mSegment;
+        if (segment == null) return;
+        mSegment = null;
+        try {
+            segment.stop();
+        } finally {
+            segment.release();
+        }
+        final long durationUs = mSegmentStartUs >= 0 ? mSegmentLastUs - mSegmentStartUs : 0;
+        if (DEBUG) Log.v(TAG, "segment " + mSegmentIndex + " finished:duration=" + durationUs + ",bytes=" + mSegmentBytes);
+        if (mListener != null) {
+            try {
+                mListener.onSegmentFinished(mSegmentIndex, segment.getOutputPath(), durationUs, mSegmentBytes);
+            } catch (final Exception e) {
+                Log.w(TAG, "onSegmentFinished", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Detect captured frames whose content did not change, SurfaceTexture notifies a new frame
+ * also on a compositor refresh or a blinking cursor. Frames are compared with a tiny
+ * downsampled copy(fingerprint) that MediaScreenEncoder renders and reads back with GL.
+ * Each fingerprint is compared with the last accepted one, not with the previous frame,
+ * so a slow fade is still detected when the accumulated difference grows.
+ */
+public class StaticContentDetector {
+
+    public static class Config {
+        /**
+         * size of fingerprint
+         */
+        public int width = 32;
+        public int height = 32;
+        /**
+         * luma difference per pixel that is treated as noise(scaling, dithering)
+         */
+        public int noiseThreshold = 2;
+        /**
+         * frames with this number of changed pixels or less are near-identical, e.g. blinking cursor
+         */
+        public int minorPixels = 4;
+        /**
+         * near-identical frames are accepted at most once in this interval[ns]
+         */
+        public long minorIntervalNs = 200000000L;
+    }
+
+    public enum Change {
+        /** same as the last accepted frame */
+        STATIC,
+        /** near-identical to the last accepted frame */
+        MINOR,
+        CHANGED,
+    }
+
+    private final Config mConfig;
+    private final int mPixels;
+    /**
+     * luma of the last accepted frame and of the current frame
+     */
+    private int[] mReference;
+    private int[] mCurrent;
+    private boolean mHasReference;
+    private long mLastAcceptNs;
+    private Change mLastChange = Change.CHANGED;
+    private int mLastChangedPixels;
+    private final long[] mCounts = new long[Change.values().length];
+    private long mAccepted;
+
+    public StaticContentDetector(final Config config) {
+        if ((config.width <= 0) || (config.height <= 0)) throw new IllegalArgumentException("invalid size");
+        mConfig = config;
+        mPixels = config.width * config.height;
+        mReference = new int[mPixels];
+        mCurrent = new int[mPixels];
+    }
+
+    public int getWidth() {
+        return mConfig.width;
+    }
+
+    public int getHeight() {
+        return mConfig.height;
+    }
+
+    /**
+     * forget the reference, next frame is always accepted
+     */
+    public synchronized void reset() {
+        mHasReference = false;
+    }
+
+    /**
+     * compare the fingerprint with the last accepted one
+     * @param rgba pixels of the fingerprint in RGBA order from the current position, width * height * 4 bytes
+     * @param nowNs
+     * @return true if the frame should be treated as a new frame, false if it can be skipped
+     */
+    public synchronized boolean onFrame(final ByteBuffer rgba, final long nowNs) {
+        if (rgba.remaining() < mPixels * 4) throw new IllegalArgumentException("fingerprint is too small");
+        final int[] current = mCurrent;
+        final int base = rgba.position();
+        for (int i = 0; i < mPixels; i++) {
+            final int offset = base + i * 4;
+            current[i] = ((rgba.get(offset) & 0xff) * 77
+                + (rgba.get(offset + 1) & 0xff) * 150
+                + (rgba.get(offset + 2) & 0xff) * 29) >> 8;
+        }
+        final Change change;
+        if (mHasReference) {
+            change = classify(mReference, current);
+        } else {
+            change = Change.CHANGED;
+            mLastChangedPixels = mPixels;
+        }
+        mLastChange = change;
+        mCounts[change.ordinal()]++;
+        final boolean accept;
+        switch (change) {
+        case CHANGED:
+            accept = true;
+            break;
+        case MINOR:
+            accept = nowNs - mLastAcceptNs >= mConfig.minorIntervalNs;
+            break;
+        default:
+            accept = false;
+            break;
+        }
+        if (accept) {
+            mAccepted++;
+            mLastAcceptNs = nowNs;
+            mHasReference = true;
+            mCurrent = mReference;
+            mReference = current;
+        }
+        return accept;
+    }
+
+    /**
+     * @return classification of the last frame
+     */
+    public synchronized Change getLastChange() {
+        return mLastChange;
+    }
+
+    /**
+     * @return number of pixels over the noise threshold in the last comparison,
+     *      counting stops at minorPixels + 1 because it is enough to classify
+     */
+    public synchronized int getLastChangedPixels() {
+        return mLastChangedPixels;
+    }
+
+    public synchronized long getCount(final Change change) {
+        return mCounts[change.ordinal()];
+    }
+
+    public synchronized long getAccepted() {
+        return mAccepted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "StaticContentDetector:static=%d,minor=%d,changed=%d,accepted=%d",
+            mCounts[Change.STATIC.ordinal()], mCounts[Change.MINOR.ordinal()],
+            mCounts[Change.CHANGED.ordinal()], mAccepted);
+    }
+
+//********************************************************************************
+//********************************************************************************
+    private Change classify(final int[] reference, final int[] current) {
+        final int noise = mConfig.noiseThreshold;
+        final int minor = mConfig.minorPixels;
+        int changed = 0;
+        for (int i = 0; i < mPixels; i++) {
+            final int diff = current[i] - reference[i];
+            if ((diff > noise) || (diff < -noise)) {
+                if (++changed > minor) break;
+            }
+        }
+        mLastChangedPixels = changed;
+        return changed == 0 ? Change.STATIC : (changed <= minor ? Change.MINOR : Change.CHANGED);
+    }
+}
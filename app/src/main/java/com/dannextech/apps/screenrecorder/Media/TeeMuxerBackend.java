@@ -0,0 +1,164 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MuxerBackend that writes one capture into multiple outputs, e.g. full quality archive
+ * and low bit rate proxy. Track whose format has KEY_OUTPUT_INDEX(set by MediaEncoder#setOutputIndex)
+ * is written only to that output, other tracks(e.g. audio) are shared and their encoded samples
+ * are written to every output without re-encoding.
+ */
+public class TeeMuxerBackend implements MuxerBackend {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "TeeMuxerBackend";
+
+    /**
+     * int key of TrackFormat, index of the output that the track is written to.
+     * This is removed before the format is passed to the output.
+     */
+    public static final String KEY_OUTPUT_INDEX = "tee-output-index";
+
+    /**
+     * outputs and their track index of one track
+     */
+    private static class Route {
+        final int[] outputs;
+        final int[] tracks;
+
+        Route(final int[] outputs, final int[] tracks) {
+            this.outputs = outputs;
+            this.tracks = tracks;
+        }
+    }
+
+    private final List<MuxerBackend> mOutputs;
+    private final List<Route> mRoutes = new ArrayList<Route>();
+
+    public TeeMuxerBackend(final MuxerBackend... outputs) {
+        this(Arrays.asList(outputs));
+    }
+
+    public TeeMuxerBackend(final List<MuxerBackend> outputs) {
+        if ((outputs == null) || outputs.isEmpty()) throw new IllegalArgumentException("no output");
+        for (final MuxerBackend output: outputs) {
+            if (output == null) throw new NullPointerException("output is null");
+        }
+        mOutputs = new ArrayList<MuxerBackend>(outputs);
+    }
+
+    public int getOutputCount() {
+        return mOutputs.size();
+    }
+
+    public MuxerBackend getOutput(final int index) {
+        return mOutputs.get(index);
+    }
+
+    @Override
+    public synchronized int addTrack(final TrackFormat format) {
+        final TrackFormat trackFormat = new TrackFormat(format);
+        final int target = trackFormat.getInteger(KEY_OUTPUT_INDEX, -1);
+        trackFormat.removeKey(KEY_OUTPUT_INDEX);
+        final Route route;
+        if (target >= 0) {
+            if (target >= mOutputs.size()) throw new IllegalArgumentException("no output " + target);
+            route = new Route(new int[] { target }, new int[] { mOutputs.get(target).addTrack(trackFormat) });
+        } else {
+            // shared track
+            final int n = mOutputs.size();
+            final int[] outputs = new int[n];
+            final int[] tracks = new int[n];
+            for (int i = 0; i < n; i++) {
+                outputs[i] = i;
+                tracks[i] = mOutputs.get(i).addTrack(trackFormat);
+            }
+            route = new Route(outputs, tracks);
+        }
+        mRoutes.add(route);
+        if (DEBUG) Log.v(TAG, "addTrack:" + (mRoutes.size() - 1) + ",output=" + target);
+        return mRoutes.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        for (final MuxerBackend output: mOutputs) {
+            output.start();
+        }
+    }
+
+    /**
+     * write the sample to every output of the track. Failure of one output does not stop others,
+     * the first exception is thrown after all outputs are tried.
+     */
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        final Route route;
+        synchronized (this) {
+            route = mRoutes.get(trackIndex);
+        }
+        final int position = byteBuf.position();
+        final int limit = byteBuf.limit();
+        IOException error = null;
+        for (int i = 0; i < route.outputs.length; i++) {
+            try {
+                mOutputs.get(route.outputs[i]).writeSampleData(route.tracks[i], byteBuf, info);
+            } catch (final IOException e) {
+                if (error == null) error = e;
+            }
+            // outputs may consume the buffer
+            byteBuf.limit(limit).position(position);
+        }
+        if (error != null) throw error;
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        IOException error = null;
+        for (final MuxerBackend output: mOutputs) {
+            try {
+                output.stop();
+            } catch (final IOException e) {
+                if (error == null) error = e;
+            } catch (final IllegalStateException e) {
+                Log.w(TAG, "stop:", e);
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    @Override
+    public synchronized void release() {
+        for (final MuxerBackend output: mOutputs) {
+            try {
+                output.release();
+            } catch (final Exception e) {
+                Log.w(TAG, "release:", e);
+            }
+        }
+    }
+
+    /**
+     * @return output path of the first output
+     */
+    @Override
+    public String getOutputPath() {
+        return mOutputs.get(0).getOutputPath();
+    }
+
+    /**
+     * @return output paths of all outputs, null for outputs that are not files
+     */
+    public List<String> getOutputPaths() {
+        final List<String> result = new ArrayList<String>();
+        for (final MuxerBackend output: mOutputs) {
+            result.add(output.getOutputPath());
+        }
+        return result;
+    }
+}
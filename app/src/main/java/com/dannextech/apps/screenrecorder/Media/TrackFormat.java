@@ -0,0 +1,167 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plain java counterpart of MediaFormat that is passed between encoders, codec backends
+ * and muxers. Keys are same as MediaFormat.KEY_XXX.
+ * Unlike MediaFormat, this can be used on JVM without Android framework.
+ */
+public class TrackFormat {
+    /**
+     * codec specific data, same as "csd-0", "csd-1" of MediaFormat
+     */
+    public static final String KEY_CSD_0 = "csd-0";
+    public static final String KEY_CSD_1 = "csd-1";
+
+    private final Map<String, Object> mValues = new LinkedHashMap<String, Object>();
+
+    public TrackFormat() {
+    }
+
+    public TrackFormat(final TrackFormat src) {
+        synchronized (src) {
+            mValues.putAll(src.mValues);
+        }
+    }
+
+    public static TrackFormat createVideoFormat(final String mime, final int width, final int height) {
+        final TrackFormat result = new TrackFormat();
+        result.setString(MediaFormat.KEY_MIME, mime);
+        result.setInteger(MediaFormat.KEY_WIDTH, width);
+        result.setInteger(MediaFormat.KEY_HEIGHT, height);
+        return result;
+    }
+
+    public static TrackFormat createAudioFormat(final String mime, final int sampleRate, final int channelCount) {
+        final TrackFormat result = new TrackFormat();
+        result.setString(MediaFormat.KEY_MIME, mime);
+        result.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
+        result.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount);
+        return result;
+    }
+
+    public String getMime() {
+        return getString(MediaFormat.KEY_MIME);
+    }
+
+    public boolean isVideo() {
+        final String mime = getMime();
+        return (mime != null) && mime.startsWith("video/");
+    }
+
+    public boolean isAudio() {
+        final String mime = getMime();
+        return (mime != null) && mime.startsWith("audio/");
+    }
+
+    public synchronized boolean containsKey(final String key) {
+        return mValues.containsKey(key);
+    }
+
+    public synchronized Set<String> getKeys() {
+        return new LinkedHashSet<String>(mValues.keySet());
+    }
+
+    public synchronized Object getValue(final String key) {
+        return mValues.get(key);
+    }
+
+    public synchronized void setInteger(final String key, final int value) {
+        mValues.put(key, value);
+    }
+
+    public synchronized void setLong(final String key, final long value) {
+        mValues.put(key, value);
+    }
+
+    public synchronized void setFloat(final String key, final float value) {
+        mValues.put(key, value);
+    }
+
+    public synchronized void setString(final String key, final String value) {
+        mValues.put(key, value);
+    }
+
+    /**
+     * the content of buffer between position and limit is copied
+     * @param key
+     * @param value
+     */
+    public synchronized void setByteBuffer(final String key, final ByteBuffer value) {
+        if (value == null) {
+            mValues.remove(key);
+            return;
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+        copy.put(value.duplicate());
+        copy.flip();
+        mValues.put(key, copy);
+    }
+
+    public synchronized void removeKey(final String key) {
+        mValues.remove(key);
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException if the key does not exist
+     */
+    public synchronized int getInteger(final String key) {
+        return ((Number)mValues.get(key)).intValue();
+    }
+
+    public synchronized int getInteger(final String key, final int defaultValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Number ? ((Number)value).intValue() : defaultValue;
+    }
+
+    public synchronized long getLong(final String key, final long defaultValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Number ? ((Number)value).longValue() : defaultValue;
+    }
+
+    public synchronized float getFloat(final String key, final float defaultValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Number ? ((Number)value).floatValue() : defaultValue;
+    }
+
+    public synchronized String getString(final String key) {
+        final Object value = mValues.get(key);
+        return value instanceof String ? (String)value : null;
+    }
+
+    /**
+     * @param key
+     * @return read only view of the buffer, null if the key does not exist
+     */
+    public synchronized ByteBuffer getByteBuffer(final String key) {
+        final Object value = mValues.get(key);
+        return value instanceof ByteBuffer ? ((ByteBuffer)value).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * get the content of byte buffer as a new byte array
+     * @param key
+     * @return null if the key does not exist
+     */
+    public byte[] getBytes(final String key) {
+        final ByteBuffer buf = getByteBuffer(key);
+        if (buf == null) return null;
+        final byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TrackFormat" + mValues;
+    }
+}
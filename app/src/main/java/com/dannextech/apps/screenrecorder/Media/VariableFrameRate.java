@@ -0,0 +1,112 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import java.util.Locale;
+
+/**
+ * Decide whether a captured frame is submitted to the encoder on variable frame rate capture.
+ * Frames are submitted only when the source delivered a new buffer, and the previous frame
+ * is submitted again when nothing came within the keep-alive interval so that players
+ * do not stall on a static screen. Counts of submitted frames are kept to compare them
+ * with wall-clock time.
+ */
+public class VariableFrameRate {
+    private final long mKeepAliveIntervalNs;
+    private long mStartNs = -1;
+    private long mStopNs = -1;
+    private long mLastSubmitNs;
+    private long mNewFrames;
+    private long mKeepAliveFrames;
+    private long mSkipped;
+
+    /**
+     * @param minFrameRate keep-alive rate[fps], 0 or less disables keep-alive frames
+     */
+    public VariableFrameRate(final float minFrameRate) {
+        mKeepAliveIntervalNs = minFrameRate > 0 ? (long)(1000000000L / minFrameRate) : -1;
+    }
+
+    /**
+     * @return keep-alive interval[ns], negative if disabled
+     */
+    public long getKeepAliveIntervalNs() {
+        return mKeepAliveIntervalNs;
+    }
+
+    /**
+     * called when the render thread wakes up
+     * @param newFrame true if the source delivered a new buffer since last call
+     * @param nowNs
+     * @return true if a frame should be submitted to the encoder
+     */
+    public synchronized boolean onWakeup(final boolean newFrame, final long nowNs) {
+        if (mStartNs < 0) {
+            mStartNs = mLastSubmitNs = nowNs;
+        }
+        if (newFrame) {
+            mNewFrames++;
+        } else if ((mKeepAliveIntervalNs >= 0) && (nowNs - mLastSubmitNs >= mKeepAliveIntervalNs)) {
+            mKeepAliveFrames++;
+        } else {
+            mSkipped++;
+            return false;
+        }
+        mLastSubmitNs = nowNs;
+        return true;
+    }
+
+    /**
+     * @param nowNs
+     * @param maxWaitMs
+     * @return time to wait for a new frame until the next keep-alive frame is due[ms], at least 1
+     */
+    public synchronized long getWaitMs(final long nowNs, final long maxWaitMs) {
+        if ((mStartNs < 0) || (mKeepAliveIntervalNs < 0)) return Math.max(1, maxWaitMs);
+        final long remainNs = mLastSubmitNs + mKeepAliveIntervalNs - nowNs;
+        return Math.max(1, Math.min(maxWaitMs, (remainNs + 999999L) / 1000000L));
+    }
+
+    /**
+     * end of capture, elapsed time is fixed at this time
+     * @param nowNs
+     */
+    public synchronized void stop(final long nowNs) {
+        if (mStopNs < 0) mStopNs = nowNs;
+    }
+
+    public synchronized long getNewFrames() {
+        return mNewFrames;
+    }
+
+    public synchronized long getKeepAliveFrames() {
+        return mKeepAliveFrames;
+    }
+
+    /**
+     * @return number of wake ups without submitting a frame
+     */
+    public synchronized long getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * @return wall-clock time from the first wake up until #stop(or the last submitted frame if not stopped)
+     */
+    public synchronized long getElapsedNs() {
+        if (mStartNs < 0) return 0;
+        return (mStopNs >= 0 ? mStopNs : mLastSubmitNs) - mStartNs;
+    }
+
+    /**
+     * @return submitted frames per second of wall-clock time
+     */
+    public synchronized float getFrameRate() {
+        final long elapsedNs = getElapsedNs();
+        return elapsedNs > 0 ? (mNewFrames + mKeepAliveFrames) * 1000000000f / elapsedNs : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "VariableFrameRate:new=%d,keep-alive=%d,skipped=%d in %d[ms](%.2f[fps])",
+            mNewFrames, mKeepAliveFrames, mSkipped, getElapsedNs() / 1000000L, getFrameRate());
+    }
+}
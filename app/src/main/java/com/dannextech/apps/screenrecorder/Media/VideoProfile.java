@@ -0,0 +1,282 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Encoding options of recorded video: codec, profile/level, rate control, GOP and operating rate.
+ * Options are validated against CodecCapabilityCache, #resolve drops options that the encoder
+ * does not support and falls back to AVC when the codec is not available.
+ * 0 or DEFAULT of each option means the default of the encoder.
+ */
+public class VideoProfile {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "VideoProfile";
+
+    public static final String NAME_DEFAULT = "avc";
+    public static final String NAME_AVC_CBR = "avc-cbr";
+    public static final String NAME_HEVC_VBR = "hevc";
+    public static final String NAME_HEVC_CQ = "hevc-cq";
+    public static final String NAME_VP9 = "vp9";
+
+    /**
+     * MediaFormat#KEY_QUALITY(API 28) is newer than compileSdkVersion
+     */
+    /*package*/ static final String KEY_QUALITY = "quality";
+
+    public enum Codec {
+        AVC(MediaFormat.MIMETYPE_VIDEO_AVC),
+        HEVC(MediaFormat.MIMETYPE_VIDEO_HEVC),
+        VP9(MediaFormat.MIMETYPE_VIDEO_VP9);
+
+        public final String mime;
+
+        Codec(final String mime) {
+            this.mime = mime;
+        }
+    }
+
+    public enum RateControl {
+        DEFAULT(-1),
+        CBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR),
+        VBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR),
+        /** constant quality, bit rate is ignored */
+        CQ(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ);
+
+        /**
+         * BITRATE_MODE_XXX, negative for DEFAULT
+         */
+        public final int mode;
+
+        RateControl(final int mode) {
+            this.mode = mode;
+        }
+    }
+
+    public String name = NAME_DEFAULT;
+    public Codec codec = Codec.AVC;
+    /**
+     * MediaCodecInfo.CodecProfileLevel.XXX, 0 means the default of the encoder
+     */
+    public int profile;
+    /**
+     * MediaCodecInfo.CodecProfileLevel.XXX, 0 means the default of the encoder, this needs #profile
+     */
+    public int level;
+    public RateControl rateControl = RateControl.DEFAULT;
+    /**
+     * 0 means calculated from the size and frame rate
+     */
+    public int bitRate;
+    /**
+     * quality of RateControl.CQ, negative means the middle of the range of the encoder
+     */
+    public int quality = -1;
+    public int frameRate = 25;
+    /**
+     * interval of key frames[s]
+     */
+    public int iFrameInterval = 10;
+    /**
+     * should be 0, B-frames are refused by #validate and cleared by #resolve.
+     * MediaEncoder, SampleStaging and the MP4 writers assume that decode order is presentation order
+     * and they do not write composition offsets(ctts/trun), so reordered frames would break timing.
+     */
+    public int maxBFrames;
+    /**
+     * rate that the encoder should run at[fps], 0 means not set
+     */
+    public float operatingRate;
+
+    public VideoProfile() {
+    }
+
+    public VideoProfile(final VideoProfile src) {
+        name = src.name;
+        codec = src.codec;
+        profile = src.profile;
+        level = src.level;
+        rateControl = src.rateControl;
+        bitRate = src.bitRate;
+        quality = src.quality;
+        frameRate = src.frameRate;
+        iFrameInterval = src.iFrameInterval;
+        maxBFrames = src.maxBFrames;
+        operatingRate = src.operatingRate;
+    }
+
+    /**
+     * @return same as the encoder settings before profiles were introduced
+     */
+    public static VideoProfile createDefault() {
+        return new VideoProfile();
+    }
+
+    /**
+     * @param name NAME_XXX
+     * @return null if the name is unknown
+     */
+    public static VideoProfile forName(final String name) {
+        for (final VideoProfile profile: getPresets()) {
+            if (profile.name.equals(name)) return profile;
+        }
+        return null;
+    }
+
+    /**
+     * @return new instances of built-in profiles, used by the comparison run
+     */
+    public static List<VideoProfile> getPresets() {
+        final List<VideoProfile> result = new ArrayList<VideoProfile>();
+        result.add(createDefault());
+
+        VideoProfile profile = new VideoProfile();
+        profile.name = NAME_AVC_CBR;
+        profile.rateControl = RateControl.CBR;
+        profile.profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+        profile.iFrameInterval = 2;
+        result.add(profile);
+
+        profile = new VideoProfile();
+        profile.name = NAME_HEVC_VBR;
+        profile.codec = Codec.HEVC;
+        profile.rateControl = RateControl.VBR;
+        profile.profile = MediaCodecInfo.CodecProfileLevel.HEVCProfileMain;
+        result.add(profile);
+
+        profile = new VideoProfile();
+        profile.name = NAME_HEVC_CQ;
+        profile.codec = Codec.HEVC;
+        profile.rateControl = RateControl.CQ;
+        profile.profile = MediaCodecInfo.CodecProfileLevel.HEVCProfileMain;
+        result.add(profile);
+
+        profile = new VideoProfile();
+        profile.name = NAME_VP9;
+        profile.codec = Codec.VP9;
+        profile.rateControl = RateControl.VBR;
+        profile.profile = MediaCodecInfo.CodecProfileLevel.VP9Profile0;
+        result.add(profile);
+        return result;
+    }
+
+    /**
+     * check the options against capabilities of the encoder
+     * @param entry null if no encoder is available for the codec
+     * @param width
+     * @param height
+     * @return problems, empty if the encoder supports all options
+     */
+    public List<String> validate(final CodecCapabilityCache.Entry entry, final int width, final int height) {
+        final List<String> result = new ArrayList<String>();
+        if ((frameRate <= 0) || (iFrameInterval < 0) || (maxBFrames < 0) || (operatingRate < 0)) {
+            result.add("negative or zero option");
+        }
+        if (maxBFrames > 0) {
+            result.add("B-frames are not supported");
+        }
+        if (entry == null) {
+            result.add("no encoder for " + codec.mime);
+            return result;
+        }
+        if (!entry.mime.equalsIgnoreCase(codec.mime)) {
+            result.add(entry.name + " is not an encoder for " + codec.mime);
+        }
+        if (!entry.isSizeSupported(width, height)) {
+            result.add(String.format(Locale.US, "%dx%d is not supported", width, height));
+        }
+        if ((profile != 0) && !entry.isProfileLevelSupported(profile, level)) {
+            result.add(String.format(Locale.US, "profile %d level %d is not supported", profile, level));
+        }
+        if ((rateControl != RateControl.DEFAULT) && !entry.isBitrateModeSupported(rateControl.mode)) {
+            result.add(rateControl + " is not supported");
+        }
+        if ((bitRate > 0) && (entry.maxBitRate > 0)
+            && ((bitRate < entry.minBitRate) || (bitRate > entry.maxBitRate))) {
+            result.add("bit rate " + bitRate + " is out of range");
+        }
+        if ((rateControl == RateControl.CQ) && (quality >= 0) && (entry.maxQuality > 0)
+            && ((quality < entry.minQuality) || (quality > entry.maxQuality))) {
+            result.add("quality " + quality + " is out of range");
+        }
+        return result;
+    }
+
+    /**
+     * @param cache
+     * @param width
+     * @param height
+     * @return copy of this profile that the encoder of #findEncoder supports,
+     *      AVC profile with the same frame rate and GOP if the codec is not available
+     */
+    public VideoProfile resolve(final CodecCapabilityCache cache, final int width, final int height) {
+        CodecCapabilityCache.Entry entry = cache.findEncoder(codec.mime, true);
+        final VideoProfile result;
+        if ((entry == null) || !entry.isSizeSupported(width, height)) {
+            Log.w(TAG, "resolve:" + name + " is not available, fall back to " + NAME_DEFAULT);
+            result = createDefault();
+            result.frameRate = frameRate;
+            result.iFrameInterval = iFrameInterval;
+            result.bitRate = bitRate;
+            entry = cache.findEncoder(result.codec.mime, true);
+            if (entry == null) return result;
+        } else {
+            result = new VideoProfile(this);
+        }
+        for (final String problem: result.validate(entry, width, height)) {
+            Log.w(TAG, "resolve:" + result.name + ":" + problem);
+        }
+        if ((result.profile != 0) && !entry.isProfileLevelSupported(result.profile, result.level)) {
+            result.profile = result.level = 0;
+        }
+        if ((result.rateControl != RateControl.DEFAULT) && !entry.isBitrateModeSupported(result.rateControl.mode)) {
+            result.rateControl = RateControl.DEFAULT;
+        }
+        if ((result.bitRate > 0) && (entry.maxBitRate > 0)) {
+            result.bitRate = Math.max(entry.minBitRate, Math.min(entry.maxBitRate, result.bitRate));
+        }
+        if ((result.rateControl == RateControl.CQ) && (entry.maxQuality > 0)) {
+            result.quality = result.quality >= 0
+                ? Math.max(entry.minQuality, Math.min(entry.maxQuality, result.quality))
+                : (entry.minQuality + entry.maxQuality) / 2;
+        }
+        result.maxBFrames = 0;
+        if (DEBUG) Log.v(TAG, "resolve:" + this + "->" + result + " with " + entry.name);
+        return result;
+    }
+
+    /**
+     * set options to the format of the encoder, MIME type, size and bit rate are not changed
+     * @param format
+     */
+    public void applyTo(final TrackFormat format) {
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        if (profile != 0) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile);
+            if (level != 0) {
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+            }
+        }
+        if (rateControl != RateControl.DEFAULT) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, rateControl.mode);
+        }
+        if ((rateControl == RateControl.CQ) && (quality >= 0)) {
+            format.setInteger(KEY_QUALITY, quality);
+        }
+        if (operatingRate > 0) {
+            format.setFloat(MediaFormat.KEY_OPERATING_RATE, operatingRate);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s(%s,profile=%d,level=%d,%s,bitrate=%d,quality=%d,%d[fps],gop=%d[s],bframes=%d,operating=%.1f)",
+            name, codec, profile, level, rateControl, bitRate, quality, frameRate, iFrameInterval, maxBFrames, operatingRate);
+    }
+}
@@ -41,6 +41,16 @@ public class MainActivity extends Activity{
         updateRecording(false, false);
         if (mReceiver == null)
             mReceiver = new MyBroadcastReceiver(this);
+        if (savedInstanceState == null) {
+            // repair recordings that were interrupted last time
+            final Intent intent = new Intent(this, ScreenRecorderService.class);
+            intent.setAction(ScreenRecorderService.ACTION_RECOVER);
+            startService(intent);
+            // pick the fastest encoder, this runs only once per build
+            final Intent probe = new Intent(this, ScreenRecorderService.class);
+            probe.setAction(ScreenRecorderService.ACTION_PROBE_ENCODERS);
+            startService(probe);
+        }
     }
 
     @Override
@@ -3,17 +3,33 @@ package com.dannextech.apps.screenrecorder.Service;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
+import android.media.MediaMuxer;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.os.Environment;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
+import com.dannextech.apps.screenrecorder.Media.BitrateController;
+import com.dannextech.apps.screenrecorder.Media.CodecCapabilityCache;
+import com.dannextech.apps.screenrecorder.Media.ElementaryStreamBackend;
+import com.dannextech.apps.screenrecorder.Media.EncoderProbe;
 import com.dannextech.apps.screenrecorder.Media.MediaAudioEncoder;
 import com.dannextech.apps.screenrecorder.Media.MediaEncoder;
 import com.dannextech.apps.screenrecorder.Media.MediaMuxerWrapper;
 import com.dannextech.apps.screenrecorder.Media.MediaScreenEncoder;
+import com.dannextech.apps.screenrecorder.Media.MediaSurfaceEncoder;
+import com.dannextech.apps.screenrecorder.Media.Mp4Writer;
+import com.dannextech.apps.screenrecorder.Media.MuxerBackend;
+import com.dannextech.apps.screenrecorder.Media.PlatformMuxerBackend;
+import com.dannextech.apps.screenrecorder.Media.ReplayBufferBackend;
+import com.dannextech.apps.screenrecorder.Media.StaticContentDetector;
+import com.dannextech.apps.screenrecorder.Media.TeeMuxerBackend;
+import com.dannextech.apps.screenrecorder.Media.VideoProfile;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Created by amoh on 12/8/2017.
@@ -30,14 +46,84 @@ public class ScreenRecorderService extends IntentService {
     public static final String ACTION_STOP = BASE + "ACTION_STOP";
     public static final String ACTION_PAUSE = BASE + "ACTION_PAUSE";
     public static final String ACTION_RESUME = BASE + "ACTION_RESUME";
+    /**
+     * start recording into the replay buffer instead of file, stop with ACTION_STOP
+     */
+    public static final String ACTION_START_REPLAY = BASE + "ACTION_START_REPLAY";
+    /**
+     * save the last seconds in the replay buffer into new .mp4 file
+     */
+    public static final String ACTION_SAVE_REPLAY = BASE + "ACTION_SAVE_REPLAY";
+    /**
+     * rebuild recordings that were not finalized because the app died while recording
+     */
+    public static final String ACTION_RECOVER = BASE + "ACTION_RECOVER";
+    /**
+     * measure frame rate of each video encoder at the screen size once per build,
+     * the fastest one is used for recording after this
+     */
+    public static final String ACTION_PROBE_ENCODERS = BASE + "ACTION_PROBE_ENCODERS";
+    /**
+     * encode a short synthetic clip with each built-in VideoProfile and log size and encode time
+     */
+    public static final String ACTION_COMPARE_PROFILES = BASE + "ACTION_COMPARE_PROFILES";
     public static final String ACTION_QUERY_STATUS = BASE + "ACTION_QUERY_STATUS";
     public static final String ACTION_QUERY_STATUS_RESULT = BASE + "ACTION_QUERY_STATUS_RESULT";
     public static final String EXTRA_RESULT_CODE = BASE + "EXTRA_RESULT_CODE";
+    /**
+     * boolean extra of ACTION_START, true: write raw H.264/AAC elementary streams instead of .mp4
+     * to minimize the overhead, use ElementaryStreamRemuxer to convert them later
+     */
+    public static final String EXTRA_ELEMENTARY_STREAM = BASE + "EXTRA_ELEMENTARY_STREAM";
+    /**
+     * boolean extra of ACTION_START, true: also write low bit rate proxy("xxx-proxy.mp4") of half size
+     * from the same capture for quick review
+     */
+    public static final String EXTRA_PROXY = BASE + "EXTRA_PROXY";
+    /**
+     * boolean extra of ACTION_START, true: write AVC recordings with Mp4Writer and its journal
+     * so that ACTION_RECOVER can rebuild them when the app dies while recording,
+     * false(default): write with MediaMuxer
+     */
+    public static final String EXTRA_CRASH_RECOVERY = BASE + "EXTRA_CRASH_RECOVERY";
+    /**
+     * boolean extra of ACTION_START, true: adjust bit rate of the screen encoder while recording
+     * by encoded sizes and write latency, see BitrateController
+     */
+    public static final String EXTRA_ADAPTIVE_BITRATE = BASE + "EXTRA_ADAPTIVE_BITRATE";
+    /**
+     * boolean extra of ACTION_START, true: copy captured frames with GL even without effects,
+     * to compare render cost with the direct path(see RenderStats in log)
+     */
+    public static final String EXTRA_FORCE_GL_PATH = BASE + "EXTRA_FORCE_GL_PATH";
+    /**
+     * float extra of ACTION_START, keep-alive rate[fps] while the screen does not change,
+     * frames are encoded only when the screen changed(see MediaScreenEncoder#setMinFrameRate)
+     */
+    public static final String EXTRA_MIN_FRAME_RATE = BASE + "EXTRA_MIN_FRAME_RATE";
+    /**
+     * boolean extra of ACTION_START, true: skip captured frames whose content did not change,
+     * this uses the GL path(see StaticContentDetector)
+     */
+    public static final String EXTRA_DETECT_STATIC_CONTENT = BASE + "EXTRA_DETECT_STATIC_CONTENT";
+    /**
+     * string extra of ACTION_START/ACTION_START_REPLAY, name of built-in VideoProfile(VideoProfile.NAME_XXX).
+     * Options that the encoder does not support are dropped, VP9 falls back to AVC
+     * because MP4 with AAC can not hold VP9.
+     */
+    public static final String EXTRA_VIDEO_PROFILE = BASE + "EXTRA_VIDEO_PROFILE";
     public static final String EXTRA_QUERY_RESULT_RECORDING = BASE + "EXTRA_QUERY_RESULT_RECORDING";
     public static final String EXTRA_QUERY_RESULT_PAUSING = BASE + "EXTRA_QUERY_RESULT_PAUSING";
 
     private static Object sSync = new Object();
     private static MediaMuxerWrapper sMuxer;
+    private static ReplayBufferBackend sReplay;
+    /**
+     * about 60 seconds of the screen and audio at 6Mbps
+     */
+    private static final int REPLAY_BUFFER_BYTES = 48 * 1024 * 1024;
+    private static final int PROXY_BIT_RATE = 1000000;
+    private static final int PROXY_FRAME_RATE = 25;
 
     private MediaProjectionManager mMediaProjectionManager;
 
@@ -50,6 +136,8 @@ public class ScreenRecorderService extends IntentService {
         super.onCreate();
         if (DEBUG) Log.v(TAG, "onCreate:");
         mMediaProjectionManager = (MediaProjectionManager)getSystemService(Context.MEDIA_PROJECTION_SERVICE);
+        // load encoder capabilities before the first recording starts
+        CodecCapabilityCache.init(this);
     }
 
     @Override
@@ -57,11 +145,22 @@ public class ScreenRecorderService extends IntentService {
         if (DEBUG) Log.v(TAG, "onHandleIntent:intent=" + intent);
         final String action = intent.getAction();
         if (ACTION_START.equals(action)) {
-            startScreenRecord(intent);
+            startScreenRecord(intent, false);
+            updateStatus();
+        } else if (ACTION_START_REPLAY.equals(action)) {
+            startScreenRecord(intent, true);
             updateStatus();
+        } else if (ACTION_SAVE_REPLAY.equals(action)) {
+            saveReplay();
         } else if (ACTION_STOP.equals(action)) {
             stopScreenRecord();
             updateStatus();
+        } else if (ACTION_RECOVER.equals(action)) {
+            recover();
+        } else if (ACTION_PROBE_ENCODERS.equals(action)) {
+            probeEncoders();
+        } else if (ACTION_COMPARE_PROFILES.equals(action)) {
+            compareProfiles();
         } else if (ACTION_QUERY_STATUS.equals(action)) {
             updateStatus();
         } else if (ACTION_PAUSE.equals(action)) {
@@ -88,8 +187,9 @@ public class ScreenRecorderService extends IntentService {
     /**
      * start screen recording as .mp4 file
      * @param intent
+     * @param replay true: keep the last seconds in memory until ACTION_SAVE_REPLAY
      */
-    private void startScreenRecord(final Intent intent) {
+    private void startScreenRecord(final Intent intent, final boolean replay) {
         if (DEBUG) Log.v(TAG, "startScreenRecord:sMuxer=" + sMuxer);
         synchronized (sSync) {
             if (sMuxer == null) {
@@ -101,12 +201,70 @@ public class ScreenRecorderService extends IntentService {
                     final int density = metrics.densityDpi;
 
                     if (DEBUG) Log.v(TAG, "startRecording:");
+                    // the replay buffer keeps only one output
+                    final boolean proxy = !replay && intent.getBooleanExtra(EXTRA_PROXY, false);
+                    VideoProfile profile = null;
+                    if (intent.hasExtra(EXTRA_VIDEO_PROFILE)) {
+                        profile = VideoProfile.forName(intent.getStringExtra(EXTRA_VIDEO_PROFILE));
+                        if ((profile == null) || (profile.codec == VideoProfile.Codec.VP9)) {
+                            Log.w(TAG, "startScreenRecord:profile is not available for recording:" + profile);
+                            profile = null;
+                        }
+                    }
+                    // Mp4Writer and ElementaryStreamBackend write only AVC
+                    final boolean avc = (profile == null) || (profile.codec == VideoProfile.Codec.AVC);
                     try {
-                        sMuxer = new MediaMuxerWrapper(".mp4"); // if you record audio only, ".m4a" is also OK.
+                        if (replay) {
+                            sReplay = new ReplayBufferBackend(REPLAY_BUFFER_BYTES);
+                            sMuxer = new MediaMuxerWrapper(sReplay);
+                        } else {
+                            final boolean elementaryStream = avc && intent.getBooleanExtra(EXTRA_ELEMENTARY_STREAM, false);
+                            final File file = MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_MOVIES,
+                                elementaryStream ? "" : ".mp4");
+                            if (file == null) {
+                                Log.w(TAG, "startScreenRecord:no permission of writing external storage");
+                                projection.stop();
+                                return;
+                            }
+                            // Mp4Writer writes journal so that the file can be recovered when the app dies
+                            final boolean journal = avc && intent.getBooleanExtra(EXTRA_CRASH_RECOVERY, false);
+                            final MuxerBackend archive = elementaryStream
+                                ? new ElementaryStreamBackend(file.toString())
+                                : createMp4Backend(file.toString(), journal);
+                            if (proxy) {
+                                final String base = file.toString().replaceFirst("\\.mp4$", "");
+                                sMuxer = new MediaMuxerWrapper(new TeeMuxerBackend(archive,
+                                    createMp4Backend(base + "-proxy.mp4", journal)));
+                            } else {
+                                sMuxer = new MediaMuxerWrapper(archive);
+                            }
+                        }
                         if (true) {
                             // for screen capturing
-                            new MediaScreenEncoder(sMuxer, mMediaEncoderListener,
+                            final MediaScreenEncoder screen = new MediaScreenEncoder(sMuxer, mMediaEncoderListener,
                                     projection, metrics.widthPixels, metrics.heightPixels, density);
+                            screen.setEffectsEnabled(intent.getBooleanExtra(EXTRA_FORCE_GL_PATH, false));
+                            if (profile != null) {
+                                screen.setVideoProfile(profile);
+                            }
+                            if (intent.getBooleanExtra(EXTRA_DETECT_STATIC_CONTENT, false)) {
+                                screen.setStaticContentDetector(new StaticContentDetector(new StaticContentDetector.Config()));
+                            }
+                            if (intent.hasExtra(EXTRA_MIN_FRAME_RATE)) {
+                                screen.setMinFrameRate(intent.getFloatExtra(EXTRA_MIN_FRAME_RATE, 1.0f));
+                            }
+                            if (intent.getBooleanExtra(EXTRA_ADAPTIVE_BITRATE, false)) {
+                                screen.setBitrateController(new BitrateController(new BitrateController.Config()));
+                            }
+                            if (proxy) {
+                                // same frames in half size at low bit rate into the second output
+                                screen.setOutputIndex(0);
+                                final MediaSurfaceEncoder proxyEncoder = new MediaSurfaceEncoder(sMuxer, mMediaEncoderListener,
+                                    (metrics.widthPixels / 2) & ~1, (metrics.heightPixels / 2) & ~1, PROXY_FRAME_RATE);
+                                proxyEncoder.setBitRate(PROXY_BIT_RATE);
+                                proxyEncoder.setOutputIndex(1);
+                                screen.addProfileEncoder(proxyEncoder);
+                            }
                         }
                         if (true) {
                             // for audio capturing
@@ -129,13 +287,91 @@ public class ScreenRecorderService extends IntentService {
         if (DEBUG) Log.v(TAG, "stopScreenRecord:sMuxer=" + sMuxer);
         synchronized (sSync) {
             if (sMuxer != null) {
+                // compare cold(scanned) and warm(loaded) start of encoders
+                Log.i(TAG, "time to first frame=" + sMuxer.getTimeToFirstFrameUs() + "us,"
+                    + CodecCapabilityCache.getDefault());
                 sMuxer.stopRecording();
                 sMuxer = null;
+                sReplay = null;
                 // you should not wait here
             }
         }
     }
 
+    /**
+     * save the replay buffer, recording into the buffer continues while saving
+     */
+    private void saveReplay() {
+        final ReplayBufferBackend replay;
+        synchronized (sSync) {
+            replay = sReplay;
+        }
+        if (DEBUG) Log.v(TAG, "saveReplay:replay=" + replay);
+        if (replay == null) return;
+        final File file = MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_MOVIES, ".mp4");
+        if (file == null) {
+            Log.w(TAG, "saveReplay:no permission of writing external storage");
+            return;
+        }
+        try {
+            final long durationUs = replay.save(new PlatformMuxerBackend(file.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+            if (DEBUG) Log.v(TAG, "saveReplay:saved " + durationUs + "us to " + file);
+        } catch (final IOException e) {
+            Log.e(TAG, "saveReplay:", e);
+        } catch (final IllegalStateException e) {
+            Log.e(TAG, "saveReplay:", e);
+        }
+    }
+
+    /**
+     * @param journal true: write with journal for crash recovery, only for AVC
+     */
+    private static MuxerBackend createMp4Backend(final String path, final boolean journal) throws IOException {
+        return journal ? new Mp4Writer(path)
+            : new PlatformMuxerBackend(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    /**
+     * rebuild moov of the files that have journal, e.g. the app was killed while recording
+     */
+    private void recover() {
+        synchronized (sSync) {
+            // the journal of current recording is still in use
+            if (sMuxer != null) return;
+        }
+        final File dir = MediaMuxerWrapper.getCaptureDir(Environment.DIRECTORY_MOVIES);
+        final List<String> recovered = Mp4Writer.recoverAll(dir);
+        if (DEBUG) Log.v(TAG, "recover:" + recovered);
+    }
+
+    /**
+     * probe encoders at the sizes of the recording and the proxy, this does nothing
+     * when they were probed before on this build
+     */
+    private void probeEncoders() {
+        synchronized (sSync) {
+            // the encoder of current recording would slow down the probe
+            if (sMuxer != null) return;
+        }
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final List<EncoderProbe.Result> results = new EncoderProbe().probeAll(CodecCapabilityCache.getDefault(),
+            "video/avc", metrics.widthPixels, metrics.heightPixels,
+            (metrics.widthPixels / 2) & ~1, (metrics.heightPixels / 2) & ~1);
+        if (DEBUG) Log.v(TAG, "probeEncoders:" + results);
+    }
+
+    private void compareProfiles() {
+        synchronized (sSync) {
+            // the encoder of current recording would disturb encode time
+            if (sMuxer != null) return;
+        }
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final List<EncoderProbe.Comparison> results = new EncoderProbe().compare(CodecCapabilityCache.getDefault(),
+            VideoProfile.getPresets(), metrics.widthPixels & ~1, metrics.heightPixels & ~1);
+        if (DEBUG) Log.v(TAG, "compareProfiles:" + results);
+    }
+
     private void pauseScreenRecord() {
         synchronized (sSync) {
             if (sMuxer != null) {
@@ -0,0 +1,109 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of AudioTimestampTracker with simulated jittered reads.
+ */
+public class AudioTimestampTrackerTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAMES_PER_READ = 512;
+    private static final long START_US = 1000000000L;
+
+    private static long framesToUs(final long frames, final double rate) {
+        return (long)(frames * 1000000.0 / rate);
+    }
+
+    @Test
+    public void jitteredReads_produceLinearTimestamps() throws Exception {
+        final AudioTimestampTracker tracker = new AudioTimestampTracker(SAMPLE_RATE);
+        final Random random = new Random(1234);
+        tracker.reset();
+        long prev = Long.MIN_VALUE;
+        long frames = 0;
+        // one hour of audio
+        final int reads = (int)(3600L * SAMPLE_RATE / FRAMES_PER_READ);
+        for (int i = 0; i < reads; i++) {
+            frames += FRAMES_PER_READ;
+            // the read returns when the data is complete plus scheduling jitter up to 20ms
+            final long readTime = START_US + framesToUs(frames, SAMPLE_RATE) + random.nextInt(20000);
+            final long pts = tracker.onRead(FRAMES_PER_READ, readTime);
+            if (prev != Long.MIN_VALUE) {
+                final long delta = pts - prev;
+                // one read is 11610us, only small slew is allowed
+                assertTrue("delta=" + delta, Math.abs(delta - 11610) <= AudioTimestampTracker.DEFAULT_MAX_SLEW_US + 1);
+            }
+            prev = pts;
+        }
+        // jitter must not accumulate, the error is bounded by the minimum jitter
+        final long expected = START_US + framesToUs(frames - FRAMES_PER_READ, SAMPLE_RATE);
+        assertTrue("error=" + (prev - expected), Math.abs(prev - expected) < 2000);
+        assertTrue(tracker.getResyncCount() > 3000);
+    }
+
+    @Test
+    public void timestamps_withoutDrift_areExactlySampleCount() throws Exception {
+        final AudioTimestampTracker tracker = new AudioTimestampTracker(SAMPLE_RATE);
+        tracker.reset();
+        final long first = tracker.onRead(FRAMES_PER_READ, START_US);
+        long frames = FRAMES_PER_READ;
+        for (int i = 1; i < 1000; i++) {
+            // jitter less than drift tolerance
+            final long readTime = START_US + framesToUs(frames, SAMPLE_RATE) + (i % 2) * 100;
+            final long pts = tracker.onRead(FRAMES_PER_READ, readTime);
+            assertEquals(first + frames * 1000000L / SAMPLE_RATE, pts);
+            frames += FRAMES_PER_READ;
+        }
+        assertEquals(0, tracker.getTotalCorrectionUs());
+    }
+
+    @Test
+    public void hardwareTimestamps_correctClockDrift() throws Exception {
+        final AudioTimestampTracker tracker = new AudioTimestampTracker(SAMPLE_RATE);
+        // audio clock is 200ppm faster than system clock
+        final double actualRate = SAMPLE_RATE * 1.0002;
+        tracker.reset();
+        long frames = 0;
+        long pts = 0;
+        final int reads = (int)(600L * SAMPLE_RATE / FRAMES_PER_READ);
+        for (int i = 0; i < reads; i++) {
+            pts = tracker.onRead(FRAMES_PER_READ, START_US + framesToUs(frames + FRAMES_PER_READ, actualRate) + 5000);
+            frames += FRAMES_PER_READ;
+            if (i % 16 == 0) {
+                tracker.onHardwareTimestamp(frames, START_US + framesToUs(frames, actualRate));
+            }
+        }
+        assertTrue(tracker.isHardwareTimestampUsed());
+        // 10 minutes with 200ppm is 120ms of drift without correction
+        final long expected = START_US + framesToUs(frames - FRAMES_PER_READ, actualRate);
+        assertTrue("error=" + (pts - expected), Math.abs(pts - expected) < 3000);
+        assertTrue(tracker.getTotalCorrectionUs() < -100000);
+    }
+
+    @Test
+    public void reset_withNonZeroHardwarePosition() throws Exception {
+        final AudioTimestampTracker tracker = new AudioTimestampTracker(SAMPLE_RATE);
+        // hardware position keeps counting over pause/resume, here 10 minutes were recorded before
+        final long positionOffset = 600L * SAMPLE_RATE;
+        final long resumeUs = START_US + 700000000L;
+        tracker.reset();
+        long frames = 0;
+        long pts = 0;
+        final int reads = (int)(60L * SAMPLE_RATE / FRAMES_PER_READ);
+        for (int i = 0; i < reads; i++) {
+            pts = tracker.onRead(FRAMES_PER_READ, resumeUs + framesToUs(frames + FRAMES_PER_READ, SAMPLE_RATE));
+            frames += FRAMES_PER_READ;
+            if (i % 16 == 0) {
+                tracker.onHardwareTimestamp(positionOffset + frames, resumeUs + framesToUs(frames, SAMPLE_RATE));
+            }
+        }
+        assertTrue(tracker.isHardwareTimestampUsed());
+        assertEquals(resumeUs + framesToUs(frames - FRAMES_PER_READ, SAMPLE_RATE), pts, 1);
+        assertTrue("correction=" + tracker.getTotalCorrectionUs(),
+            Math.abs(tracker.getTotalCorrectionUs()) <= AudioTimestampTracker.DEFAULT_MAX_SLEW_US);
+    }
+}
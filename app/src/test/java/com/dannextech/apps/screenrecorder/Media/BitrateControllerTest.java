@@ -0,0 +1,183 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of BitrateController, closed loop tests run with FakeCodecBackend.
+ */
+public class BitrateControllerTest {
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000L / FRAME_RATE;
+    private static final int MIN_BIT_RATE = 500000;
+    private static final int MAX_BIT_RATE = 6000000;
+
+    private static class FakeTimeSource implements PresentationClock.TimeSource {
+        long nowNs;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+
+        void advanceUs(final long us) {
+            nowNs += us * 1000L;
+        }
+    }
+
+    private FakeTimeSource mTime;
+    private BitrateController.Config mConfig;
+    private long mPts;
+
+    @Before
+    public void setUp() throws Exception {
+        mTime = new FakeTimeSource();
+        mTime.nowNs = 1000000000L;
+        mConfig = new BitrateController.Config();
+        mConfig.minBitRate = MIN_BIT_RATE;
+        mConfig.maxBitRate = MAX_BIT_RATE;
+        mPts = 0;
+    }
+
+    private FakeCodecBackend createVideo(final int bitRate) throws Exception {
+        final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+        config.timeSource = mTime;
+        config.latencyUs = 10000;
+        config.outputBufferCount = 4;
+        final FakeCodecBackend codec = new FakeCodecBackend("video/avc", true, config);
+        final TrackFormat format = TrackFormat.createVideoFormat("video/avc", 1280, 720);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        codec.configure(format);
+        codec.start();
+        return codec;
+    }
+
+    /**
+     * encode frames for the duration and apply decisions of the controller to the codec
+     */
+    private void runLoop(final FakeCodecBackend codec, final BitrateController controller, final long durationUs) {
+        final SampleInfo info = new SampleInfo();
+        for (final long end = mPts + durationUs; mPts < end; mPts += FRAME_INTERVAL_US) {
+            codec.submitFrame(mPts);
+            mTime.advanceUs(FRAME_INTERVAL_US);
+            for (int index; (index = codec.dequeueOutputBuffer(info, 0)) != CodecBackend.INFO_TRY_AGAIN_LATER; ) {
+                if (index < 0) continue;
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    final int bitRate = controller.onFrame(info.presentationTimeUs, info.size);
+                    if (bitRate > 0) codec.setVideoBitrate(bitRate);
+                }
+                codec.releaseOutputBuffer(index);
+            }
+        }
+    }
+
+    @Test
+    public void staticContent_decreasesThenFollowsMotion() throws Exception {
+        final FakeCodecBackend codec = createVideo(4000000);
+        final BitrateController controller = new BitrateController(mConfig, 4000000);
+        // static screen needs only 1Mbps
+        codec.setContentBitRate(1000000);
+        runLoop(codec, controller, 5000000L);
+        final int lowered = codec.getBitRate();
+        assertEquals(controller.getBitRate(), lowered);
+        assertTrue(lowered < 2000000);
+        assertTrue(lowered >= 1000000);
+        final List<BitrateController.Decision> trace = controller.getTrace();
+        assertEquals(1, trace.size());
+        assertEquals(BitrateController.Reason.UNDERUSED, trace.get(0).reason);
+        assertEquals(4000000, trace.get(0).oldBitRate);
+
+        // scrolling needs more than max
+        codec.setContentBitRate(20000000);
+        runLoop(codec, controller, 20000000L);
+        assertEquals(MAX_BIT_RATE, codec.getBitRate());
+        final List<BitrateController.Decision> after = controller.getTrace();
+        assertTrue(after.size() > 2);
+        for (int i = 1; i < after.size(); i++) {
+            final BitrateController.Decision decision = after.get(i);
+            assertEquals(BitrateController.Reason.SATURATED, decision.reason);
+            assertTrue(decision.newBitRate > decision.oldBitRate);
+            assertEquals(after.get(i - 1).newBitRate, decision.oldBitRate);
+            assertTrue(decision.timeUs > after.get(i - 1).timeUs);
+        }
+        codec.release();
+    }
+
+    @Test
+    public void congestion_decreasesToMin() throws Exception {
+        final BitrateController controller = new BitrateController(mConfig, 4000000);
+        final int frameSize = 4000000 / 8 / FRAME_RATE;
+        int prev = controller.getBitRate();
+        int changes = 0;
+        for (int i = 0; i < FRAME_RATE * 10; i++) {
+            controller.onBacklog(mConfig.maxBacklog + 1);
+            final int bitRate = controller.onFrame(i * FRAME_INTERVAL_US, frameSize);
+            if (bitRate > 0) {
+                assertTrue(bitRate < prev);
+                prev = bitRate;
+                changes++;
+            }
+        }
+        assertEquals(MIN_BIT_RATE, controller.getBitRate());
+        assertEquals(changes, controller.getDecisionCount());
+        for (final BitrateController.Decision decision: controller.getTrace()) {
+            assertEquals(BitrateController.Reason.CONGESTION, decision.reason);
+            assertTrue(decision.backlog > mConfig.maxBacklog);
+        }
+
+        // slow write also means congestion
+        final BitrateController slow = new BitrateController(mConfig, 4000000);
+        for (int i = 0; i <= FRAME_RATE + 1; i++) {
+            slow.onWriteLatency(i == 10 ? mConfig.maxWriteLatencyUs * 2 : 1000);
+            slow.onFrame(i * FRAME_INTERVAL_US, frameSize);
+        }
+        assertEquals(2800000, slow.getBitRate());
+        assertEquals(mConfig.maxWriteLatencyUs * 2, slow.getTrace().get(0).writeLatencyUs);
+    }
+
+    @Test
+    public void steadyContent_noChange() throws Exception {
+        final FakeCodecBackend codec = createVideo(3000000);
+        final BitrateController controller = new BitrateController(mConfig, 3000000);
+        // between underused and saturated ratio
+        codec.setContentBitRate(2000000);
+        runLoop(codec, controller, 10000000L);
+        assertEquals(0, controller.getDecisionCount());
+        assertEquals(3000000, codec.getBitRate());
+        codec.release();
+    }
+
+    @Test
+    public void trace_isBounded() throws Exception {
+        mConfig.traceSize = 4;
+        final BitrateController controller = new BitrateController(mConfig);
+        assertEquals(MAX_BIT_RATE, controller.getBitRate());
+        controller.reset(3000000);
+        final int frameSize = 100;
+        for (int i = 0; i < FRAME_RATE * 20; i++) {
+            // alternate congestion and idle every second
+            if ((i / FRAME_RATE) % 2 == 0) controller.onBacklog(mConfig.maxBacklog + 1);
+            controller.onFrame(i * FRAME_INTERVAL_US, frameSize);
+        }
+        assertTrue(controller.getDecisionCount() > 4);
+        final List<BitrateController.Decision> trace = controller.getTrace();
+        assertEquals(4, trace.size());
+        assertEquals(controller.getBitRate(), trace.get(3).newBitRate);
+        assertTrue(controller.toString().contains(trace.get(3).toString()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRange() throws Exception {
+        mConfig.maxBitRate = mConfig.minBitRate - 1;
+        new BitrateController(mConfig);
+    }
+}
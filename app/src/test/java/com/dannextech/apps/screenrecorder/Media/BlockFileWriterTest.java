@@ -0,0 +1,116 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of BlockFileWriter and LatencyHistogram.
+ */
+public class BlockFileWriterTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("block", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private static byte[] readAll(final File file) throws IOException {
+        final byte[] result = new byte[(int)file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < result.length) {
+                n += in.read(result, n, result.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    @Test
+    public void writesSameBytes() throws Exception {
+        final BlockFileWriter.Config config = new BlockFileWriter.Config();
+        config.blockSize = 5000;    // rounded up to 8192
+        final BlockFileWriter writer = new BlockFileWriter(mFile.getPath(), config);
+        final Random random = new Random(1);
+        final byte[] expected = new byte[100000];
+        random.nextBytes(expected);
+        int pos = 0;
+        while (pos < expected.length) {
+            final int n = Math.min(expected.length - pos, random.nextInt(3000) + 1);
+            writer.write(ByteBuffer.wrap(expected, pos, n), ByteBuffer.allocate(0));
+            pos += n;
+            if (random.nextInt(10) == 0) {
+                writer.flush();
+            }
+        }
+        assertEquals(expected.length, writer.getPosition());
+        // overwrite ranges that are already in the file, on memory and across both
+        final long[] positions = { 10, 8190, writer.getPosition() - 100, 98300 };
+        for (final long p: positions) {
+            final byte[] patch = new byte[50];
+            random.nextBytes(patch);
+            System.arraycopy(patch, 0, expected, (int)p, patch.length);
+            writer.writeAt(p, ByteBuffer.wrap(patch));
+        }
+        writer.close();
+        assertTrue(writer.isClosed());
+        // preallocated space is truncated
+        assertArrayEquals(expected, readAll(mFile));
+        assertTrue(writer.getWriteLatency().getCount() >= expected.length / 8192);
+    }
+
+    @Test
+    public void syncPolicy() throws Exception {
+        final BlockFileWriter.Config config = new BlockFileWriter.Config();
+        config.blockSize = 4096;
+        config.syncBytes = 4096 * 4;
+        config.syncIntervalMs = 0;
+        config.minPreallocateBytes = 0;
+        final BlockFileWriter writer = new BlockFileWriter(mFile.getPath(), config);
+        writer.write(ByteBuffer.allocate(4096 * 10 + 100));
+        // 10 blocks are written, synced every 4 blocks
+        assertEquals(2, writer.getSyncCount());
+        assertEquals(0, writer.getAllocatedBytes());
+        writer.close();
+        assertEquals(3, writer.getSyncCount());
+        assertEquals(3, writer.getSyncLatency().getCount());
+        assertEquals(4096 * 10 + 100, mFile.length());
+    }
+
+    @Test
+    public void latencyPercentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getPercentileUs(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 10);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(10000, histogram.getMaxUs());
+        assertEquals(5005, histogram.getAverageUs());
+        final double[] percentiles = { 50, 90, 99 };
+        for (final double p: percentiles) {
+            final long expected = (long)(p * 100);
+            final long actual = histogram.getPercentileUs(p);
+            assertTrue(p + ":" + actual, (actual >= expected) && (actual <= expected * 1.13));
+        }
+        assertEquals(10000, histogram.getPercentileUs(100));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+}
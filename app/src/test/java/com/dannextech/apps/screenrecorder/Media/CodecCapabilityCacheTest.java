@@ -0,0 +1,161 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodecInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of CodecCapabilityCache with a fake scanner.
+ */
+public class CodecCapabilityCacheTest {
+    private static final String FINGERPRINT = "vendor/device/device:8.0.0/OPR1/1234:user/release-keys";
+    private static final int SURFACE = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+
+    /**
+     * returns fixed entries, slow like MediaCodecList on some devices
+     */
+    private static class FakeScanner implements CodecCapabilityCache.Scanner {
+        int scanCount;
+        long delayMs;
+
+        @Override
+        public List<CodecCapabilityCache.Entry> scan() {
+            scanCount++;
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (final InterruptedException e) {
+                    // ignore
+                }
+            }
+            final List<CodecCapabilityCache.Entry> result = new ArrayList<CodecCapabilityCache.Entry>();
+            result.add(new CodecCapabilityCache.Entry("OMX.google.h264.encoder", "video/avc",
+                new int[] { 19, 21 }, new int[] { 1, 0x200 }, 16, 2048, 16, 2048, 1, 12000000));
+            result.add(new CodecCapabilityCache.Entry("OMX.vendor.avc.encoder", "video/avc",
+                new int[] { 21, SURFACE }, new int[] { 1, 0x1000, 8, 0x1000 }, 96, 1920, 96, 1088, 1, 40000000,
+                (1 << MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR) | (1 << MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR),
+                0, 0));
+            result.add(new CodecCapabilityCache.Entry("c2.android.avc.encoder", "video/avc",
+                new int[] { SURFACE }, null, 16, 2048, 16, 2048, 1, 12000000));
+            result.add(new CodecCapabilityCache.Entry("OMX.google.aac.encoder", "audio/mp4a-latm",
+                null, new int[] { 2, 0 }, 0, 0, 0, 0, 8000, 960000));
+            return result;
+        }
+    }
+
+    private File mDir;
+    private File mFile;
+    private FakeScanner mScanner;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("codeccache", "");
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+        mFile = new File(mDir, CodecCapabilityCache.FILE_NAME);
+        mScanner = new FakeScanner();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (final File file: files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void scanOnce_thenLoad() throws Exception {
+        final CodecCapabilityCache cold = CodecCapabilityCache.load(mFile, FINGERPRINT, mScanner);
+        assertFalse(cold.isFromFile());
+        assertEquals(1, mScanner.scanCount);
+        assertTrue(mFile.isFile());
+
+        final CodecCapabilityCache warm = CodecCapabilityCache.load(mFile, FINGERPRINT, mScanner);
+        assertTrue(warm.isFromFile());
+        assertEquals(1, mScanner.scanCount);
+        assertEquals(cold.getEntries().size(), warm.getEntries().size());
+        for (int i = 0; i < cold.getEntries().size(); i++) {
+            final CodecCapabilityCache.Entry expected = cold.getEntries().get(i);
+            final CodecCapabilityCache.Entry actual = warm.getEntries().get(i);
+            assertEquals(expected.name, actual.name);
+            assertEquals(expected.mime, actual.mime);
+            assertArrayEquals(expected.colorFormats, actual.colorFormats);
+            assertArrayEquals(expected.profileLevels, actual.profileLevels);
+            assertEquals(expected.maxWidth, actual.maxWidth);
+            assertEquals(expected.minHeight, actual.minHeight);
+            assertEquals(expected.maxBitRate, actual.maxBitRate);
+            assertEquals(expected.bitrateModes, actual.bitrateModes);
+            assertEquals(expected.maxQuality, actual.maxQuality);
+        }
+        final CodecCapabilityCache.Entry vendor = warm.getEntries().get(1);
+        assertTrue(vendor.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR));
+        assertFalse(vendor.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ));
+        assertTrue(vendor.isProfileLevelSupported(8, 0x800));
+        assertFalse(vendor.isProfileLevelSupported(8, 0x2000));
+        assertFalse(vendor.isProfileLevelSupported(2, 0));
+    }
+
+    @Test
+    public void osUpdate_rescans() throws Exception {
+        CodecCapabilityCache.load(mFile, FINGERPRINT, mScanner);
+        final CodecCapabilityCache updated = CodecCapabilityCache.load(mFile, FINGERPRINT + ".2", mScanner);
+        assertFalse(updated.isFromFile());
+        assertEquals(2, mScanner.scanCount);
+        // the file is rewritten for the new build
+        assertTrue(CodecCapabilityCache.load(mFile, FINGERPRINT + ".2", mScanner).isFromFile());
+        assertEquals(2, mScanner.scanCount);
+    }
+
+    @Test
+    public void brokenFile_rescans() throws Exception {
+        CodecCapabilityCache.load(mFile, FINGERPRINT, mScanner);
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        final CodecCapabilityCache cache = CodecCapabilityCache.load(mFile, FINGERPRINT, mScanner);
+        assertFalse(cache.isFromFile());
+        assertEquals(4, cache.getEntries().size());
+        assertEquals(2, mScanner.scanCount);
+    }
+
+    @Test
+    public void findEncoder() throws Exception {
+        final CodecCapabilityCache cache = CodecCapabilityCache.load(null, FINGERPRINT, mScanner);
+        // software encoder without surface input is skipped
+        assertEquals("OMX.vendor.avc.encoder", cache.findEncoder("video/avc", true).name);
+        assertEquals("OMX.google.h264.encoder", cache.findEncoder("video/avc", false).name);
+        assertEquals(2, cache.findEncoders("VIDEO/AVC", true).size());
+        assertEquals("OMX.google.aac.encoder", cache.findEncoder("audio/mp4a-latm", false).name);
+        assertNull(cache.findEncoder("video/hevc", true));
+        final CodecCapabilityCache.Entry vendor = cache.findEncoder("video/avc", true);
+        assertTrue(vendor.isSizeSupported(1920, 1080));
+        assertFalse(vendor.isSizeSupported(2560, 1440));
+        assertTrue(cache.findEncoder("audio/mp4a-latm", false).isSizeSupported(1920, 1080));
+    }
+
+    @Test
+    public void coldVsWarm() throws Exception {
+        mScanner.delayMs = 100;
+        final CodecCapabilityCache cold = CodecCapabilityCache.load(mFile, FINGERPRINT, mScanner);
+        final CodecCapabilityCache warm = CodecCapabilityCache.load(mFile, FINGERPRINT, mScanner);
+        System.out.println("CodecCapabilityCache:cold=" + cold.getLoadTimeUs() + "[us],warm=" + warm.getLoadTimeUs()
+            + "[us],file=" + mFile.length() + "[bytes]");
+        assertTrue(cold.getLoadTimeUs() >= mScanner.delayMs * 1000L);
+        assertTrue(warm.getLoadTimeUs() < cold.getLoadTimeUs());
+        assertTrue(mFile.length() < 1024);
+    }
+}
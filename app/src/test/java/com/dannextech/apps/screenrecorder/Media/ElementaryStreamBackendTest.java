@@ -0,0 +1,190 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of ElementaryStreamBackend and ElementaryStreamRemuxer.
+ */
+public class ElementaryStreamBackendTest {
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000L / FRAME_RATE;
+    private static final long AUDIO_INTERVAL_US = 1024L * 1000000L / 44100;
+    private static final int AUDIO_SIZE = 100;
+
+    private File mDir;
+    private String mBasePath;
+    private TrackFormat mVideoFormat;
+    private TrackFormat mAudioFormat;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("estream", "");
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+        mBasePath = new File(mDir, "test").getPath();
+        final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+        final FakeCodecBackend video = new FakeCodecBackend("video/avc", true, config);
+        final TrackFormat format = TrackFormat.createVideoFormat("video/avc", 320, 240);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 500000);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        video.configure(format);
+        mVideoFormat = video.getOutputFormat();
+        final FakeCodecBackend audio = new FakeCodecBackend("audio/mp4a-latm", false, config);
+        audio.configure(TrackFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+        mAudioFormat = audio.getOutputFormat();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (final File file: files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    /**
+     * @return number of samples of {video, audio}
+     */
+    private static int[] feed(final MuxerBackend backend, final long durationUs) throws Exception {
+        final int[] result = new int[2];
+        final SampleInfo info = new SampleInfo();
+        final ByteBuffer buf = ByteBuffer.allocate(1024);
+        long videoPts = 0, audioPts = 0;
+        int frame = 0;
+        while ((videoPts < durationUs) || (audioPts < durationUs)) {
+            buf.clear();
+            if (videoPts <= audioPts) {
+                final boolean key = frame % FRAME_RATE == 0;
+                buf.put(new byte[] { 0, 0, 0, 1, (byte)(key ? 0x65 : 0x41) });
+                for (int i = 0; i < 200; i++) buf.put((byte)(0x80 | i));
+                buf.flip();
+                info.set(0, buf.limit(), videoPts, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                backend.writeSampleData(0, buf, info);
+                videoPts += FRAME_INTERVAL_US;
+                frame++;
+                result[0]++;
+            } else {
+                for (int i = 0; i < AUDIO_SIZE; i++) buf.put((byte)i);
+                buf.flip();
+                info.set(0, buf.limit(), audioPts, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                backend.writeSampleData(1, buf, info);
+                audioPts += AUDIO_INTERVAL_US;
+                result[1]++;
+            }
+        }
+        return result;
+    }
+
+    private ElementaryStreamBackend createBackend() throws Exception {
+        final ElementaryStreamBackend backend = new ElementaryStreamBackend(mBasePath);
+        assertEquals(0, backend.addTrack(mVideoFormat));
+        assertEquals(1, backend.addTrack(mAudioFormat));
+        backend.start();
+        return backend;
+    }
+
+    private static byte[] readAll(final String path) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            final byte[] result = new byte[(int)raf.length()];
+            raf.readFully(result);
+            return result;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void writeStreams() throws Exception {
+        final ElementaryStreamBackend backend = createBackend();
+        final int[] counts = feed(backend, 3000000L);
+        backend.stop();
+        backend.release();
+
+        // Annex-B, starts with SPS
+        final byte[] h264 = readAll(mBasePath + ElementaryStreamBackend.EXT_H264);
+        assertEquals(0, h264[0]);
+        assertEquals(0, h264[1]);
+        assertEquals(0, h264[2]);
+        assertEquals(1, h264[3]);
+        assertEquals(7, h264[4] & 0x1f);
+        // ADTS frames are contiguous
+        final byte[] aac = readAll(mBasePath + ElementaryStreamBackend.EXT_AAC);
+        int frames = 0;
+        for (int pos = 0; pos < aac.length; ) {
+            assertEquals(0xff, aac[pos] & 0xff);
+            assertEquals(0xf0, aac[pos + 1] & 0xf0);
+            // AAC-LC, 44100Hz, mono
+            assertEquals(1, (aac[pos + 2] & 0xc0) >> 6);
+            assertEquals(4, (aac[pos + 2] & 0x3c) >> 2);
+            assertEquals(1, ((aac[pos + 2] & 0x01) << 2) | ((aac[pos + 3] & 0xc0) >> 6));
+            final int length = ((aac[pos + 3] & 0x03) << 11) | ((aac[pos + 4] & 0xff) << 3) | ((aac[pos + 5] & 0xe0) >> 5);
+            assertEquals(ElementaryStreamBackend.ADTS_HEADER_SIZE + AUDIO_SIZE, length);
+            pos += length;
+            frames++;
+        }
+        assertEquals(counts[1], frames);
+        final long indexBytes = new File(mBasePath + ElementaryStreamBackend.EXT_H264 + ElementaryStreamBackend.EXT_INDEX).length()
+            + new File(mBasePath + ElementaryStreamBackend.EXT_AAC + ElementaryStreamBackend.EXT_INDEX).length();
+        assertEquals(backend.getIndexSize(), indexBytes);
+
+        final String mp4 = mBasePath + ".mp4";
+        assertEquals(counts[0] + counts[1], ElementaryStreamRemuxer.remux(mBasePath, mp4));
+        assertTrue(new File(mp4).length() > h264.length + counts[1] * AUDIO_SIZE);
+    }
+
+    @Test
+    public void remux_truncatedStreams() throws Exception {
+        final ElementaryStreamBackend backend = createBackend();
+        final int[] counts = feed(backend, 5000000L);
+        backend.stop();
+        backend.release();
+        // cut both streams and indexes at arbitrary bytes
+        final String[] paths = {
+            mBasePath + ElementaryStreamBackend.EXT_H264,
+            mBasePath + ElementaryStreamBackend.EXT_AAC,
+            mBasePath + ElementaryStreamBackend.EXT_H264 + ElementaryStreamBackend.EXT_INDEX,
+            mBasePath + ElementaryStreamBackend.EXT_AAC + ElementaryStreamBackend.EXT_INDEX,
+        };
+        final double[] ratios = { 0.61, 0.83, 0.9, 0.5 };
+        for (int i = 0; i < paths.length; i++) {
+            final RandomAccessFile raf = new RandomAccessFile(paths[i], "rw");
+            try {
+                raf.setLength((long)(raf.length() * ratios[i]) | 1);
+            } finally {
+                raf.close();
+            }
+        }
+        final String mp4 = mBasePath + ".mp4";
+        final int samples = ElementaryStreamRemuxer.remux(mBasePath, mp4);
+        assertTrue(samples > 0);
+        assertTrue(samples < counts[0] + counts[1]);
+        // about 60% of video and 50% of audio remain
+        assertTrue(samples > (counts[0] + counts[1]) * 4 / 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void remux_noStream() throws Exception {
+        ElementaryStreamRemuxer.remux(mBasePath, mBasePath + ".mp4");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyOneTrackPerType() throws Exception {
+        final ElementaryStreamBackend backend = new ElementaryStreamBackend(mBasePath);
+        backend.addTrack(mVideoFormat);
+        backend.addTrack(mVideoFormat);
+    }
+}
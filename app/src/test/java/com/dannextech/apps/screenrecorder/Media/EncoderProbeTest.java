@@ -0,0 +1,194 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodecInfo;
+import android.view.Surface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of EncoderProbe, FakeCodecBackend with limited output rate simulates a slow encoder.
+ */
+public class EncoderProbeTest {
+    private static final String FINGERPRINT = "vendor/device/device:8.0.0/OPR1/1234:user/release-keys";
+    private static final String SOFTWARE = "c2.android.avc.encoder";
+    private static final String HARDWARE = "OMX.vendor.avc.encoder";
+    private static final String NO_SURFACE = "OMX.google.h264.encoder";
+    private static final int SURFACE = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+
+    private static final CodecCapabilityCache.Scanner SCANNER = new CodecCapabilityCache.Scanner() {
+        @Override
+        public List<CodecCapabilityCache.Entry> scan() {
+            final List<CodecCapabilityCache.Entry> result = new ArrayList<CodecCapabilityCache.Entry>();
+            result.add(new CodecCapabilityCache.Entry(NO_SURFACE, "video/avc",
+                new int[] { 21 }, null, 16, 2048, 16, 2048, 1, 12000000));
+            result.add(new CodecCapabilityCache.Entry(SOFTWARE, "video/avc",
+                new int[] { SURFACE }, null, 16, 4096, 16, 4096, 1, 12000000));
+            result.add(new CodecCapabilityCache.Entry(HARDWARE, "video/avc",
+                new int[] { SURFACE }, null, 96, 1920, 96, 1088, 1, 40000000));
+            return result;
+        }
+    };
+
+    /**
+     * software encoder is slow, hardware encoder is fast
+     */
+    private static class FakeCreator implements EncoderProbe.CodecCreator {
+        final List<String> created = new ArrayList<String>();
+
+        @Override
+        public CodecBackend create(final String name) throws IOException {
+            created.add(name);
+            final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+            config.latencyUs = 2000;
+            config.maxOutputFps = SOFTWARE.equals(name) ? 100 : 0;
+            return new FakeCodecBackend("video/avc", true, config);
+        }
+    }
+
+    private static final EncoderProbe.FrameSourceFactory FAKE_SOURCE = new EncoderProbe.FrameSourceFactory() {
+        @Override
+        public EncoderProbe.FrameSource create() {
+            return new EncoderProbe.FrameSource() {
+                private FakeCodecBackend mCodec;
+
+                @Override
+                public void prepare(final CodecBackend codec, final Surface surface, final int width, final int height) {
+                    mCodec = (FakeCodecBackend)codec;
+                }
+
+                @Override
+                public void render(final int frame, final long presentationTimeUs) {
+                    mCodec.submitFrame(presentationTimeUs);
+                }
+
+                @Override
+                public void release() {
+                }
+            };
+        }
+    };
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("encprobe", "");
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+        mFile = new File(mDir, CodecCapabilityCache.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (final File file: files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void measure_slowEncoder() throws Exception {
+        final EncoderProbe probe = new EncoderProbe(new FakeCreator(), FAKE_SOURCE);
+        probe.setFrameCount(30);
+        final float slow = probe.measure(SOFTWARE, "video/avc", 1280, 720);
+        final float fast = probe.measure(HARDWARE, "video/avc", 1280, 720);
+        System.out.println("EncoderProbe:software=" + slow + "[fps],hardware=" + fast + "[fps]");
+        assertTrue(slow > 50);
+        assertTrue(slow < 110);
+        assertTrue(fast > slow * 2);
+    }
+
+    @Test
+    public void probeAll_picksFastestAndPersists() throws Exception {
+        final CodecCapabilityCache cache = CodecCapabilityCache.load(mFile, FINGERPRINT, SCANNER);
+        // first surface encoder before probing
+        assertEquals(SOFTWARE, cache.findEncoder("video/avc", true).name);
+
+        final FakeCreator creator = new FakeCreator();
+        final EncoderProbe probe = new EncoderProbe(creator, FAKE_SOURCE);
+        probe.setFrameCount(20);
+        final List<EncoderProbe.Result> results = probe.probeAll(cache, "video/avc", 1920, 1080, 2560, 1440);
+        assertEquals(4, results.size());
+        // encoder without surface input is not probed, unsupported size is not encoded
+        assertFalse(creator.created.contains(NO_SURFACE));
+        assertEquals(3, creator.created.size());
+        assertEquals(0, cache.getProbedFps(HARDWARE, 2560, 1440), 0);
+        assertTrue(cache.getProbedFps(SOFTWARE, 2560, 1440) > 0);
+        // the largest size is probed only with the software encoder that can encode it
+        assertEquals(SOFTWARE, cache.findEncoder("video/avc", true).name);
+
+        // results survive restart, and the probe does not run again
+        final CodecCapabilityCache reloaded = CodecCapabilityCache.load(mFile, FINGERPRINT, SCANNER);
+        assertTrue(reloaded.isFromFile());
+        assertEquals(cache.getProbedFps(HARDWARE, 1920, 1080), reloaded.getProbedFps(HARDWARE, 1920, 1080), 0);
+        final FakeCreator again = new FakeCreator();
+        assertTrue(new EncoderProbe(again, FAKE_SOURCE).probeAll(reloaded, "video/avc", 1920, 1080, 2560, 1440).isEmpty());
+        assertTrue(again.created.isEmpty());
+
+        // OS update drops the results
+        final CodecCapabilityCache updated = CodecCapabilityCache.load(mFile, FINGERPRINT + ".2", SCANNER);
+        assertEquals(-1, updated.getProbedFps(HARDWARE, 1920, 1080), 0);
+    }
+
+    @Test
+    public void probeAll_hardwareIsFaster() throws Exception {
+        final CodecCapabilityCache cache = CodecCapabilityCache.load(mFile, FINGERPRINT, SCANNER);
+        final EncoderProbe probe = new EncoderProbe(new FakeCreator(), FAKE_SOURCE);
+        probe.setFrameCount(20);
+        probe.probeAll(cache, "video/avc", 1280, 720, 640, 360);
+        assertTrue(cache.getProbedFps(HARDWARE, 1280, 720) > cache.getProbedFps(SOFTWARE, 1280, 720));
+        assertEquals(HARDWARE, cache.findEncoder("video/avc", true).name);
+        assertEquals(HARDWARE, CodecCapabilityCache.load(mFile, FINGERPRINT, SCANNER).findEncoder("video/avc", true).name);
+    }
+
+    @Test
+    public void compare_profiles() throws Exception {
+        final CodecCapabilityCache cache = CodecCapabilityCache.load(mFile, FINGERPRINT, SCANNER);
+        final FakeCreator creator = new FakeCreator();
+        final EncoderProbe probe = new EncoderProbe(creator, FAKE_SOURCE);
+        probe.setFrameCount(20);
+        final List<VideoProfile> profiles = new ArrayList<VideoProfile>();
+        final VideoProfile low = VideoProfile.createDefault();
+        low.name = "low";
+        low.bitRate = 1000000;
+        profiles.add(low);
+        final VideoProfile high = VideoProfile.createDefault();
+        high.name = "high";
+        high.bitRate = 4000000;
+        profiles.add(high);
+        profiles.add(VideoProfile.forName(VideoProfile.NAME_HEVC_CQ));
+        final List<EncoderProbe.Comparison> results = probe.compare(cache, profiles, 1280, 720);
+        System.out.println("EncoderProbe:" + results);
+        assertEquals(3, results.size());
+        assertEquals(SOFTWARE, results.get(0).name);
+        assertEquals(20, results.get(0).frames);
+        assertTrue(results.get(1).bytes > results.get(0).bytes * 2);
+        assertTrue(results.get(0).encodeTimeMs >= 0);
+        // no HEVC encoder, nothing is encoded
+        assertNull(results.get(2).name);
+        assertEquals(0, results.get(2).bytes);
+        assertEquals(2, creator.created.size());
+    }
+
+    @Test
+    public void measure_failure() throws Exception {
+        final EncoderProbe probe = new EncoderProbe(new EncoderProbe.CodecCreator() {
+            @Override
+            public CodecBackend create(final String name) throws IOException {
+                throw new IOException("no such codec");
+            }
+        }, FAKE_SOURCE);
+        assertEquals(0, probe.measure(HARDWARE, "video/avc", 1280, 720), 0);
+    }
+}
@@ -0,0 +1,250 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FakeCodecBackend with a fake time source.
+ */
+public class FakeCodecBackendTest {
+    private static final String VIDEO_MIME = "video/avc";
+    private static final String AUDIO_MIME = "audio/mp4a-latm";
+    private static final int FRAME_RATE = 30;
+
+    private static class FakeTimeSource implements PresentationClock.TimeSource {
+        long nowNs;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+
+        void advanceUs(final long us) {
+            nowNs += us * 1000L;
+        }
+    }
+
+    private FakeTimeSource mTime;
+    private FakeCodecBackend.Config mConfig;
+
+    @Before
+    public void setUp() throws Exception {
+        mTime = new FakeTimeSource();
+        mTime.nowNs = 1000000000L;
+        mConfig = new FakeCodecBackend.Config();
+        mConfig.timeSource = mTime;
+        mConfig.latencyUs = 30000;
+    }
+
+    private FakeCodecBackend createVideo() throws Exception {
+        final FakeCodecBackend codec = (FakeCodecBackend)FakeCodecBackend.factory(mConfig).createEncoder(VIDEO_MIME, true);
+        final TrackFormat format = TrackFormat.createVideoFormat(VIDEO_MIME, 640, 480);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 2000000);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        codec.configure(format);
+        codec.start();
+        return codec;
+    }
+
+    @Test
+    public void video_outputsAfterLatency() throws Exception {
+        final FakeCodecBackend codec = createVideo();
+        final SampleInfo info = new SampleInfo();
+        assertEquals(CodecBackend.INFO_OUTPUT_FORMAT_CHANGED, codec.dequeueOutputBuffer(info, 0));
+        assertNotNull(codec.getOutputFormat().getByteBuffer(TrackFormat.KEY_CSD_0));
+        assertNotNull(codec.getOutputFormat().getByteBuffer(TrackFormat.KEY_CSD_1));
+
+        codec.submitFrame(1000);
+        assertEquals(CodecBackend.INFO_TRY_AGAIN_LATER, codec.dequeueOutputBuffer(info, 0));
+        mTime.advanceUs(30000);
+
+        // codec specific data comes first like MediaCodec
+        int index = codec.dequeueOutputBuffer(info, 0);
+        assertTrue(index >= 0);
+        assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, info.flags);
+        codec.releaseOutputBuffer(index);
+
+        index = codec.dequeueOutputBuffer(info, 0);
+        assertTrue(index >= 0);
+        assertEquals(1000, info.presentationTimeUs);
+        assertTrue((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        final ByteBuffer buf = codec.getOutputBuffer(index);
+        assertEquals(info.size, buf.remaining());
+        assertEquals(0, buf.get(0));
+        assertEquals(1, buf.get(3));
+        assertEquals(0x65, buf.get(4));
+        codec.releaseOutputBuffer(index);
+        assertEquals(CodecBackend.INFO_TRY_AGAIN_LATER, codec.dequeueOutputBuffer(info, 0));
+        codec.release();
+    }
+
+    @Test
+    public void video_keyFrameInterval() throws Exception {
+        final FakeCodecBackend codec = createVideo();
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < FRAME_RATE * 3; i++) {
+            codec.submitFrame(i * 33333L);
+        }
+        mTime.advanceUs(mConfig.latencyUs);
+        final List<Long> keyFrames = new ArrayList<Long>();
+        long prevPts = -1;
+        int count = 0;
+        for (int index; (index = codec.dequeueOutputBuffer(info, 0)) != CodecBackend.INFO_TRY_AGAIN_LATER; ) {
+            if (index < 0) continue;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                assertTrue(info.presentationTimeUs > prevPts);
+                prevPts = info.presentationTimeUs;
+                if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+                    keyFrames.add(info.presentationTimeUs);
+                count++;
+            }
+            codec.releaseOutputBuffer(index);
+        }
+        assertEquals(FRAME_RATE * 3, count);
+        assertEquals(3, keyFrames.size());
+        assertEquals(FRAME_RATE * 33333L, (long)keyFrames.get(1));
+        codec.release();
+    }
+
+    @Test
+    public void jitter_isDeterministic() throws Exception {
+        mConfig.jitterUs = 10000;
+        mConfig.seed = 1234;
+        final FakeCodecBackend codec1 = createVideo();
+        final FakeCodecBackend codec2 = createVideo();
+        final SampleInfo info1 = new SampleInfo();
+        final SampleInfo info2 = new SampleInfo();
+        for (int i = 0; i < 60; i++) {
+            codec1.submitFrame(i * 33333L);
+            codec2.submitFrame(i * 33333L);
+            mTime.advanceUs(33333);
+            for ( ; ; ) {
+                final int index1 = codec1.dequeueOutputBuffer(info1, 0);
+                final int index2 = codec2.dequeueOutputBuffer(info2, 0);
+                assertEquals(index1, index2);
+                if (index1 == CodecBackend.INFO_TRY_AGAIN_LATER) break;
+                if (index1 >= 0) {
+                    assertEquals(info1.size, info2.size);
+                    assertEquals(info1.presentationTimeUs, info2.presentationTimeUs);
+                    codec1.releaseOutputBuffer(index1);
+                    codec2.releaseOutputBuffer(index2);
+                }
+            }
+        }
+        assertEquals(codec1.getOutputCount(), codec2.getOutputCount());
+        assertTrue(codec1.getOutputCount() > 50);
+    }
+
+    @Test
+    public void extraFormatChange() throws Exception {
+        mConfig.extraFormatChangeAt = 2;
+        final FakeCodecBackend codec = createVideo();
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 5; i++) {
+            codec.submitFrame(i * 33333L);
+        }
+        mTime.advanceUs(mConfig.latencyUs);
+        int formatChanged = 0;
+        for (int index; (index = codec.dequeueOutputBuffer(info, 0)) != CodecBackend.INFO_TRY_AGAIN_LATER; ) {
+            if (index == CodecBackend.INFO_OUTPUT_FORMAT_CHANGED) {
+                formatChanged++;
+            } else {
+                codec.releaseOutputBuffer(index);
+            }
+        }
+        assertEquals(2, formatChanged);
+    }
+
+    @Test
+    public void suspendedInput_dropsFrames() throws Exception {
+        final FakeCodecBackend codec = createVideo();
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 10; i++) {
+            codec.setInputSuspended((i >= 3) && (i < 7));
+            codec.submitFrame(i * 33333L);
+        }
+        mTime.advanceUs(mConfig.latencyUs);
+        final List<Long> outputs = new ArrayList<Long>();
+        for (int index; (index = codec.dequeueOutputBuffer(info, 0)) != CodecBackend.INFO_TRY_AGAIN_LATER; ) {
+            if (index < 0) continue;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                outputs.add(info.presentationTimeUs);
+            }
+            codec.releaseOutputBuffer(index);
+        }
+        assertEquals(6, outputs.size());
+        assertEquals(2 * 33333L, (long)outputs.get(2));
+        assertEquals(7 * 33333L, (long)outputs.get(3));
+        codec.release();
+    }
+
+    @Test
+    public void audio_callbackMode() throws Exception {
+        final FakeCodecBackend codec = (FakeCodecBackend)FakeCodecBackend.factory(mConfig).createEncoder(AUDIO_MIME, false);
+        final List<Integer> inputs = new ArrayList<Integer>();
+        final List<Long> outputs = new ArrayList<Long>();
+        final boolean[] eos = new boolean[1];
+        final TrackFormat[] format = new TrackFormat[1];
+        codec.setCallback(new CodecBackend.Callback() {
+            @Override
+            public void onInputBufferAvailable(final CodecBackend codec, final int index) {
+                inputs.add(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(final CodecBackend codec, final int index, final SampleInfo info) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    eos[0] = true;
+                } else if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    outputs.add(info.presentationTimeUs);
+                }
+                codec.releaseOutputBuffer(index);
+            }
+
+            @Override
+            public void onOutputFormatChanged(final CodecBackend codec, final TrackFormat f) {
+                format[0] = f;
+            }
+
+            @Override
+            public void onError(final CodecBackend codec, final Exception e) {
+                fail(e.toString());
+            }
+        });
+        codec.configure(TrackFormat.createAudioFormat(AUDIO_MIME, 44100, 1));
+        codec.start();
+        codec.pump();
+        assertEquals(4, inputs.size());
+        assertNotNull(format[0]);
+        // AAC-LC, 44100Hz, mono
+        final ByteBuffer asc = format[0].getByteBuffer(TrackFormat.KEY_CSD_0);
+        assertEquals(0x12, asc.get(0));
+        assertEquals(0x08, asc.get(1));
+
+        for (int i = 0; i < 3; i++) {
+            final int index = inputs.remove(0);
+            codec.getInputBuffer(index).clear();
+            codec.queueInputBuffer(index, 0, 2048, i * 23220L, 0);
+        }
+        final int index = inputs.remove(0);
+        codec.queueInputBuffer(index, 0, 0, 3 * 23220L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        codec.pump();
+        assertTrue(outputs.isEmpty());
+        mTime.advanceUs(mConfig.latencyUs);
+        codec.pump();
+        assertEquals(3, outputs.size());
+        assertEquals(2 * 23220L, (long)outputs.get(2));
+        assertTrue(eos[0]);
+        codec.release();
+    }
+}
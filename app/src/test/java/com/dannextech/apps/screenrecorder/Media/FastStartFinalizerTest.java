@@ -0,0 +1,214 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test and benchmark of FastStartFinalizer.
+ * Size of the benchmark file can be changed with -Dfaststart.benchmark.mb=4096,
+ * offsets are checked with co64 when the file exceeds 4GB.
+ */
+public class FastStartFinalizerTest {
+    private static final long MAX_U32 = 0xffffffffL;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("faststart", ".mp4");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".faststart").delete();
+    }
+
+    private static void writeOffsets(final Mp4BoxWriter w, final String type, final List<Long> offsets) {
+        final int trak = w.start("trak");
+        final int mdia = w.start("mdia");
+        final int minf = w.start("minf");
+        final int stbl = w.start("stbl");
+        final int box = w.startFull(type, 0, 0);
+        w.u32(offsets.size());
+        for (final long offset: offsets) {
+            if ("co64".equals(type)) {
+                w.u64(offset);
+            } else {
+                w.u32(offset);
+            }
+        }
+        w.end(box);
+        w.end(stbl);
+        w.end(minf);
+        w.end(mdia);
+        w.end(trak);
+    }
+
+    /**
+     * create ftyp, mdat and moov like MediaMuxer. mdat is sparse and has 8 bytes marker
+     * at each chunk offset that holds the offset itself.
+     * @return chunk offsets of stco track and co64 track
+     */
+    private static List<List<Long>> createFile(final File file, final long mdatPayloadSize, final int chunks) throws Exception {
+        final Mp4BoxWriter w = new Mp4BoxWriter(1024);
+        Mp4Format.writeFtyp(w, "isom", "isom", "mp41");
+        final boolean large = mdatPayloadSize + 8 > MAX_U32;
+        final long mdatStart = w.size();
+        final long payloadStart = mdatStart + (large ? 16 : 8);
+        if (large) {
+            w.u32(1).fourcc("mdat").u64(mdatPayloadSize + 16);
+        } else {
+            w.u32(mdatPayloadSize + 8).fourcc("mdat");
+        }
+        final List<Long> stco = new ArrayList<Long>();
+        final List<Long> co64 = new ArrayList<Long>();
+        final long step = (mdatPayloadSize - 8) / (chunks * 2);
+        for (int i = 0; i < chunks * 2; i++) {
+            final long offset = payloadStart + step * i;
+            if ((i % 2 == 0) && (offset + 8 <= MAX_U32)) {
+                stco.add(offset);
+            } else {
+                co64.add(offset);
+            }
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(w.asByteBuffer().array(), 0, w.size());
+            raf.setLength(payloadStart + mdatPayloadSize);
+            final List<Long> all = new ArrayList<Long>(stco);
+            all.addAll(co64);
+            for (final long offset: all) {
+                raf.seek(offset);
+                raf.writeLong(offset);
+            }
+            w.reset();
+            final int moov = w.start("moov");
+            Mp4Format.writeMvhd(w, 0, 3);
+            writeOffsets(w, "stco", stco);
+            writeOffsets(w, "co64", co64);
+            final int udta = w.start("udta");
+            w.bytes("not a container".getBytes());
+            w.end(udta);
+            w.end(moov);
+            raf.seek(payloadStart + mdatPayloadSize);
+            raf.write(w.asByteBuffer().array(), 0, w.size());
+        } finally {
+            raf.close();
+        }
+        final List<List<Long>> result = new ArrayList<List<Long>>();
+        result.add(stco);
+        result.add(co64);
+        return result;
+    }
+
+    /**
+     * @return chunk offsets of each trak in moov of the file and checks the order of top level boxes
+     */
+    private static List<Long> readOffsets(final RandomAccessFile raf) throws Exception {
+        long pos = 0;
+        final List<String> order = new ArrayList<String>();
+        byte[] moov = null;
+        while (pos < raf.length()) {
+            raf.seek(pos);
+            long size = raf.readInt() & MAX_U32;
+            final byte[] type = new byte[4];
+            raf.readFully(type);
+            if (size == 1) size = raf.readLong();
+            order.add(new String(type));
+            if ("moov".equals(new String(type))) {
+                moov = new byte[(int)size];
+                raf.seek(pos);
+                raf.readFully(moov);
+            }
+            pos += size;
+        }
+        assertEquals(pos, raf.length());
+        assertEquals("ftyp", order.get(0));
+        assertEquals("moov", order.get(1));
+        assertEquals("mdat", order.get(2));
+        final List<Long> result = new ArrayList<Long>();
+        collectOffsets(ByteBuffer.wrap(moov), 8, moov.length, result);
+        return result;
+    }
+
+    private static void collectOffsets(final ByteBuffer buf, final int offset, final int end, final List<Long> result) {
+        int pos = offset;
+        while (pos < end) {
+            final int size = buf.getInt(pos);
+            final String type = new String(buf.array(), pos + 4, 4);
+            if ("trak mdia minf stbl".contains(type)) {
+                collectOffsets(buf, pos + 8, pos + size, result);
+            } else if ("stco".equals(type) || "co64".equals(type)) {
+                final int count = buf.getInt(pos + 12);
+                for (int i = 0; i < count; i++) {
+                    result.add("co64".equals(type) ? buf.getLong(pos + 16 + i * 8) : buf.getInt(pos + 16 + i * 4) & MAX_U32);
+                }
+            } else if ("udta".equals(type)) {
+                assertEquals("not a container", new String(buf.array(), pos + 8, size - 8));
+            }
+            pos += size;
+        }
+    }
+
+    private void checkFastStart(final List<List<Long>> original) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            final List<Long> offsets = readOffsets(raf);
+            final int count = original.get(0).size() + original.get(1).size();
+            assertEquals(count, offsets.size());
+            int i = 0;
+            for (final List<Long> track: original) {
+                for (final long originalOffset: track) {
+                    final long offset = offsets.get(i++);
+                    raf.seek(offset);
+                    // the marker written at the original offset is found at the relocated offset
+                    assertEquals(originalOffset, raf.readLong());
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void moveMoovToFront() throws Exception {
+        final List<List<Long>> original = createFile(mFile, 1024 * 1024, 100);
+        final long size = mFile.length();
+        assertTrue(FastStartFinalizer.process(mFile));
+        assertEquals(size, mFile.length());
+        checkFastStart(original);
+        // already faststart
+        assertFalse(FastStartFinalizer.process(mFile));
+        assertFalse(new File(mFile.getPath() + ".faststart").exists());
+    }
+
+    @Test
+    public void submit() throws Exception {
+        final List<List<Long>> original = createFile(mFile, 256 * 1024, 10);
+        assertTrue(FastStartFinalizer.submit(mFile).get());
+        checkFastStart(original);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final long mb = Long.parseLong(System.getProperty("faststart.benchmark.mb", "64"));
+        final List<List<Long>> original = createFile(mFile, mb * 1024 * 1024, 1000);
+        final long startNs = System.nanoTime();
+        assertTrue(FastStartFinalizer.process(mFile));
+        final long elapsedMs = Math.max(1, (System.nanoTime() - startNs) / 1000000L);
+        System.out.println(String.format("FastStartFinalizer:%d[MB] in %d[ms], %.1f[MB/s]",
+            mb, elapsedMs, mb * 1000.0 / elapsedMs));
+        checkFastStart(original);
+    }
+}
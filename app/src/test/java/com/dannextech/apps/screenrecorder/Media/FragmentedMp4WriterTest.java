@@ -0,0 +1,366 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FragmentedMp4Writer that parses the written boxes.
+ */
+public class FragmentedMp4WriterTest {
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000L / FRAME_RATE;
+    private static final long AUDIO_INTERVAL_US = 1024L * 1000000L / 44100;
+
+    /**
+     * box on memory, children are parsed for container boxes
+     */
+    private static class Box {
+        final String type;
+        final long offset;
+        final ByteBuffer payload;
+        final List<Box> children = new ArrayList<Box>();
+
+        Box(final String type, final long offset, final ByteBuffer payload) {
+            this.type = type;
+            this.offset = offset;
+            this.payload = payload;
+        }
+
+        Box find(final String path) {
+            Box result = this;
+            for (final String name: path.split("/")) {
+                Box found = null;
+                for (final Box child: result.children) {
+                    if (child.type.equals(name)) {
+                        found = child;
+                        break;
+                    }
+                }
+                if (found == null) return null;
+                result = found;
+            }
+            return result;
+        }
+
+        List<Box> findAll(final String type) {
+            final List<Box> result = new ArrayList<Box>();
+            for (final Box child: children) {
+                if (child.type.equals(type)) result.add(child);
+            }
+            return result;
+        }
+    }
+
+    private static final String CONTAINERS = "moov trak mdia minf stbl mvex moof traf dinf";
+
+    private static List<Box> parse(final ByteBuffer buf, final long baseOffset) {
+        final List<Box> result = new ArrayList<Box>();
+        while (buf.remaining() >= 8) {
+            final int start = buf.position();
+            final long size = buf.getInt() & 0xffffffffL;
+            final byte[] type = new byte[4];
+            buf.get(type);
+            assertTrue("box size " + size, (size >= 8) && (start + size <= buf.limit()));
+            final ByteBuffer payload = buf.slice();
+            payload.limit((int)size - 8);
+            final Box box = new Box(new String(type), baseOffset + start, payload);
+            if (CONTAINERS.contains(box.type)) {
+                box.children.addAll(parse(payload.duplicate(), baseOffset + start + 8));
+            }
+            result.add(box);
+            buf.position(start + (int)size);
+        }
+        assertEquals("trailing bytes", 0, buf.remaining());
+        return result;
+    }
+
+    private File mFile;
+    private TrackFormat mVideoFormat;
+    private TrackFormat mAudioFormat;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("fmp4", ".mp4");
+        final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+        final FakeCodecBackend video = new FakeCodecBackend("video/avc", true, config);
+        final TrackFormat format = TrackFormat.createVideoFormat("video/avc", 320, 240);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 500000);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        video.configure(format);
+        mVideoFormat = video.getOutputFormat();
+        final FakeCodecBackend audio = new FakeCodecBackend("audio/mp4a-latm", false, config);
+        audio.configure(TrackFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+        mAudioFormat = audio.getOutputFormat();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    /**
+     * feed synthetic samples in presentation time order
+     * @return number of samples of {video, audio}
+     */
+    private int[] feed(final FragmentedMp4Writer writer, final int videoTrack, final int audioTrack, final long durationUs) throws Exception {
+        return feed(writer, videoTrack, audioTrack, 0, 0, durationUs);
+    }
+
+    /**
+     * @param videoFromUs presentation time of the first video sample
+     * @param audioFromUs presentation time of the first audio sample
+     * @return number of samples of {video, audio}
+     */
+    private int[] feed(final FragmentedMp4Writer writer, final int videoTrack, final int audioTrack,
+        final long videoFromUs, final long audioFromUs, final long durationUs) throws Exception {
+
+        final int[] result = new int[2];
+        final SampleInfo info = new SampleInfo();
+        final ByteBuffer buf = ByteBuffer.allocate(65536);
+        long videoPts = videoFromUs, audioPts = audioFromUs;
+        int frame = 0;
+        while ((videoPts < videoFromUs + durationUs) || (audioPts < audioFromUs + durationUs)) {
+            buf.clear();
+            if ((videoPts < videoFromUs + durationUs) && ((videoPts <= audioPts) || (audioPts >= audioFromUs + durationUs))) {
+                final boolean key = frame % FRAME_RATE == 0;
+                buf.put(new byte[] { 0, 0, 0, 1, (byte)(key ? 0x65 : 0x41) });
+                for (int i = 0; i < 200; i++) buf.put((byte)(0x80 | i));
+                buf.flip();
+                info.set(0, buf.limit(), videoPts, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                writer.writeSampleData(videoTrack, buf, info);
+                videoPts += FRAME_INTERVAL_US;
+                frame++;
+                result[0]++;
+            } else {
+                for (int i = 0; i < 100; i++) buf.put((byte)i);
+                buf.flip();
+                info.set(0, buf.limit(), audioPts, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                writer.writeSampleData(audioTrack, buf, info);
+                audioPts += AUDIO_INTERVAL_US;
+                result[1]++;
+            }
+        }
+        return result;
+    }
+
+    private List<Box> readFile() throws Exception {
+        final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            final ByteBuffer buf = ByteBuffer.allocate((int)file.length());
+            file.getChannel().read(buf);
+            buf.flip();
+            return parse(buf, 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void fragments_areKeyFrameAligned() throws Exception {
+        final FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile.getPath(), 2000000L, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+        final int videoTrack = writer.addTrack(mVideoFormat);
+        final int audioTrack = writer.addTrack(mAudioFormat);
+        writer.start();
+        final int[] counts = feed(writer, videoTrack, audioTrack, 5000000L);
+        writer.stop();
+        writer.release();
+        assertEquals(3, writer.getFragmentCount());
+
+        final List<Box> boxes = readFile();
+        assertEquals("ftyp", boxes.get(0).type);
+        final Box moov = boxes.get(1);
+        assertEquals("moov", moov.type);
+        assertEquals(2, moov.findAll("trak").size());
+        assertEquals(2, moov.find("mvex").findAll("trex").size());
+        final Box stsd = moov.find("trak/mdia/minf/stbl/stsd");
+        assertNotNull(stsd);
+        final ByteBuffer stsdPayload = stsd.payload.duplicate();
+        stsdPayload.position(8);
+        final List<Box> entries = parse(stsdPayload.slice(), 0);
+        assertEquals("avc1", entries.get(0).type);
+        final ByteBuffer avc1 = entries.get(0).payload.duplicate();
+        avc1.position(78);
+        final Box avcC = parse(avc1.slice(), 0).get(0);
+        assertEquals("avcC", avcC.type);
+        assertEquals(1, avcC.payload.get(0));
+        assertEquals(0x42, avcC.payload.get(1));
+
+        int videoSamples = 0, audioSamples = 0;
+        long nextVideoTicks = 0;
+        int sequence = 0;
+        for (int i = 2; i < boxes.size(); i += 2) {
+            final Box moof = boxes.get(i);
+            final Box mdat = boxes.get(i + 1);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+            assertEquals(++sequence, moof.find("mfhd").payload.getInt(4));
+            long dataSize = 0;
+            for (final Box traf: moof.findAll("traf")) {
+                final int trackId = traf.find("tfhd").payload.getInt(4);
+                final long baseTicks = traf.find("tfdt").payload.getLong(4);
+                final ByteBuffer trun = traf.find("trun").payload;
+                final int count = trun.getInt(4);
+                final int dataOffset = trun.getInt(8);
+                long duration = 0;
+                int size = 0;
+                for (int j = 0; j < count; j++) {
+                    duration += trun.getInt(12 + j * 12);
+                    size += trun.getInt(16 + j * 12);
+                }
+                // data is inside of following mdat
+                final long dataStart = moof.offset + dataOffset;
+                assertTrue(dataStart >= mdat.offset + 8);
+                assertTrue(dataStart + size <= mdat.offset + 8 + mdat.payload.limit());
+                dataSize += size;
+                if (trackId == 1) {
+                    // video fragment starts with key frame and decode times are continuous
+                    assertEquals(0x02000000, trun.getInt(20));
+                    assertEquals(nextVideoTicks, baseTicks);
+                    nextVideoTicks = baseTicks + duration;
+                    final int nalSize = mdat.payload.getInt((int)(dataStart - mdat.offset - 8));
+                    assertEquals(trun.getInt(16) - 4, nalSize);
+                    assertEquals(0x65, mdat.payload.get((int)(dataStart - mdat.offset - 8 + 4)));
+                    videoSamples += count;
+                } else {
+                    assertEquals(2, trackId);
+                    audioSamples += count;
+                }
+            }
+            assertEquals(mdat.payload.limit(), dataSize);
+        }
+        assertEquals(counts[0], videoSamples);
+        assertEquals(counts[1], audioSamples);
+        // duration of the last frame is estimated from previous one
+        assertTrue(Math.abs(counts[0] * FRAME_INTERVAL_US * 90000 / 1000000 - nextVideoTicks) < 10);
+    }
+
+    @Test
+    public void decodeTime_isRelativeToSharedStart() throws Exception {
+        final FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile.getPath(), 2000000L, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+        final int videoTrack = writer.addTrack(mVideoFormat);
+        final int audioTrack = writer.addTrack(mAudioFormat);
+        writer.start();
+        // presentation time is uptime, audio starts 500ms after video
+        final long startUs = 1000000000L;
+        feed(writer, videoTrack, audioTrack, startUs, startUs + 500000L, 3000000L);
+        writer.stop();
+        writer.release();
+        final Box moof = readFile().get(2);
+        assertEquals("moof", moof.type);
+        final List<Box> trafs = moof.findAll("traf");
+        assertEquals(2, trafs.size());
+        for (final Box traf: trafs) {
+            final int trackId = traf.find("tfhd").payload.getInt(4);
+            final long baseTicks = traf.find("tfdt").payload.getLong(4);
+            assertEquals(trackId == 1 ? 0 : 44100 / 2, baseTicks);
+        }
+    }
+
+    @Test
+    public void forcedRelease_keepsEarlierTrack() throws Exception {
+        final FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile.getPath(), 2000000L, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+        final int videoTrack = writer.addTrack(mVideoFormat);
+        final int audioTrack = writer.addTrack(mAudioFormat);
+        writer.start();
+        // first audio sample is 200ms before video, but arrives after 10 video frames
+        final long startUs = 1000000000L;
+        final SampleInterleaver interleaver = new SampleInterleaver(2, 100000L, 4);
+        final SampleInfo info = new SampleInfo();
+        long videoPts = startUs, audioPts = startUs - 200000L;
+        int frame = 0;
+        while ((videoPts < startUs + 3000000L) || (audioPts < startUs + 3000000L)) {
+            final EncodedSample sample = new EncodedSample(256);
+            if ((frame < 10) || (videoPts <= audioPts)) {
+                final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, (byte)(frame % FRAME_RATE == 0 ? 0x65 : 0x41), 1, 2, 3 });
+                sample.set(videoTrack, buf, 0, buf.limit(), videoPts, frame % FRAME_RATE == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                videoPts += FRAME_INTERVAL_US;
+                frame++;
+            } else {
+                final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+                sample.set(audioTrack, buf, 0, buf.limit(), audioPts, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                audioPts += AUDIO_INTERVAL_US;
+            }
+            interleaver.add(sample);
+            EncodedSample out;
+            while ((out = interleaver.poll()) != null) {
+                info.set(0, out.size, out.presentationTimeUs, out.flags);
+                writer.writeSampleData(out.trackIndex, out.data, info);
+            }
+        }
+        assertTrue(interleaver.getForcedCount() > 0);
+        writer.stop();
+        writer.release();
+        final Box moof = readFile().get(2);
+        assertEquals("moof", moof.type);
+        for (final Box traf: moof.findAll("traf")) {
+            final int trackId = traf.find("tfhd").payload.getInt(4);
+            final long baseTicks = traf.find("tfdt").payload.getLong(4);
+            final ByteBuffer trun = traf.find("trun").payload;
+            if (trackId == 1) {
+                assertEquals(200000L * 90000 / 1000000, baseTicks);
+            } else {
+                // audio starts the file, samples keep their durations
+                assertEquals(0, baseTicks);
+                for (int j = 0; j < trun.getInt(4); j++) {
+                    assertTrue(Math.abs(trun.getInt(12 + j * 12) - 1024) <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void crash_keepsWrittenFragments() throws Exception {
+        final FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile.getPath(), 1000000L, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+        final int videoTrack = writer.addTrack(mVideoFormat);
+        final int audioTrack = writer.addTrack(mAudioFormat);
+        writer.start();
+        final SampleInfo info = new SampleInfo();
+        int maxBuffered = 0;
+        for (int sec = 0; sec < 30; sec++) {
+            feedSecond(writer, videoTrack, audioTrack, sec, info);
+            maxBuffered = Math.max(maxBuffered, writer.getBufferedBytes());
+        }
+        // process is killed without stop
+        final int fragments = writer.getFragmentCount();
+        assertTrue(fragments >= 29);
+        // memory is bounded by fragment duration
+        assertTrue("buffered " + maxBuffered, maxBuffered < 2 * FRAME_RATE * 300 + 100 * 100);
+        final List<Box> boxes = readFile();
+        assertEquals(2 + fragments * 2, boxes.size());
+        assertEquals("mdat", boxes.get(boxes.size() - 1).type);
+        writer.release();
+    }
+
+    private void feedSecond(final FragmentedMp4Writer writer, final int videoTrack, final int audioTrack, final int sec, final SampleInfo info) throws Exception {
+        final ByteBuffer buf = ByteBuffer.allocate(1024);
+        for (int i = 0; i < FRAME_RATE; i++) {
+            buf.clear();
+            buf.put(new byte[] { 0, 0, 0, 1, (byte)(i == 0 ? 0x65 : 0x41), 1, 2, 3 }).flip();
+            info.set(0, buf.limit(), sec * 1000000L + i * FRAME_INTERVAL_US, i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            writer.writeSampleData(videoTrack, buf, info);
+            buf.clear();
+            buf.put(new byte[] { 1, 2, 3, 4 }).flip();
+            info.set(0, buf.limit(), sec * 1000000L + i * FRAME_INTERVAL_US + 1000, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+            writer.writeSampleData(audioTrack, buf, info);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedFormat() throws Exception {
+        final FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile.getPath());
+        writer.addTrack(TrackFormat.createVideoFormat("video/x-vnd.on2.vp8", 320, 240));
+    }
+}
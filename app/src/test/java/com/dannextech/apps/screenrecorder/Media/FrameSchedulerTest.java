@@ -0,0 +1,132 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FrameScheduler with a fake clock.
+ */
+public class FrameSchedulerTest {
+    private static final long MS = 1000000L;
+    private static final long PERIOD_NS = 40 * MS;  // 25fps
+
+    private static class FakeTimeSource implements PresentationClock.TimeSource {
+        long nowNs = 1000 * MS;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+    }
+
+    @Test
+    public void firstFrame_isDueImmediately() {
+        final FakeTimeSource time = new FakeTimeSource();
+        final FrameScheduler scheduler = new FrameScheduler(25, time);
+        assertEquals(PERIOD_NS, scheduler.getPeriodNs());
+        assertFalse(scheduler.hasPendingFrame());
+        assertFalse(scheduler.poll());
+        assertEquals(100, scheduler.getWaitMs(100));
+        scheduler.onFrameAvailable();
+        assertEquals(0, scheduler.getWaitMs(100));
+        assertTrue(scheduler.poll());
+        assertFalse(scheduler.hasPendingFrame());
+        assertEquals(1, scheduler.getFrames());
+    }
+
+    @Test
+    public void deadlines_doNotDrift() {
+        final FakeTimeSource time = new FakeTimeSource();
+        final FrameScheduler scheduler = new FrameScheduler(25, time);
+        final long start = time.nowNs;
+        for (int i = 0; i < 100; i++) {
+            // a new frame right after each slot, render thread wakes up 3ms late
+            scheduler.onFrameAvailable();
+            final long deadline = scheduler.getDeadlineNs();
+            assertEquals(start + i * PERIOD_NS, deadline);
+            time.nowNs = deadline + 3 * MS;
+            assertTrue(scheduler.poll());
+            time.nowNs += MS;
+        }
+        assertEquals(100, scheduler.getFrames());
+        assertEquals(0, scheduler.getDropped());
+        assertEquals(3000, scheduler.getLateness().getMaxUs());
+        assertEquals(0, scheduler.getJitter().getMaxUs());
+    }
+
+    @Test
+    public void waitUntilDeadline() {
+        final FakeTimeSource time = new FakeTimeSource();
+        final FrameScheduler scheduler = new FrameScheduler(25, time);
+        scheduler.onFrameAvailable();
+        assertTrue(scheduler.poll());
+        time.nowNs += 10 * MS;
+        scheduler.onFrameAvailable();
+        assertEquals(30, scheduler.getWaitMs(100));
+        assertEquals(20, scheduler.getWaitMs(20));
+        // too early
+        assertFalse(scheduler.poll());
+        assertTrue(scheduler.hasPendingFrame());
+        time.nowNs += 30 * MS;
+        assertEquals(0, scheduler.getWaitMs(100));
+        assertTrue(scheduler.poll());
+    }
+
+    @Test
+    public void framesInSameSlot_areMerged() {
+        final FakeTimeSource time = new FakeTimeSource();
+        final FrameScheduler scheduler = new FrameScheduler(25, time);
+        scheduler.onFrameAvailable();
+        assertTrue(scheduler.poll());
+        // 60fps source into 25fps slots
+        int drawn = 0;
+        for (int i = 1; i <= 60; i++) {
+            time.nowNs = 1000 * MS + i * 1000 * MS / 60;
+            scheduler.onFrameAvailable();
+            if (scheduler.poll()) drawn++;
+        }
+        assertTrue(scheduler.getMerged() > 0);
+        assertEquals(60, drawn + scheduler.getMerged() + (scheduler.hasPendingFrame() ? 1 : 0));
+        assertTrue(drawn <= 25);
+        assertTrue(drawn >= 24);
+    }
+
+    @Test
+    public void lateFrame_dropsMissedSlots() {
+        final FakeTimeSource time = new FakeTimeSource();
+        final FrameScheduler scheduler = new FrameScheduler(25, time);
+        final long start = time.nowNs;
+        scheduler.onFrameAvailable();
+        assertTrue(scheduler.poll());
+        time.nowNs += MS;
+        scheduler.onFrameAvailable();
+        assertEquals(start + PERIOD_NS, scheduler.getDeadlineNs());
+        // render thread stalled for 3 slots
+        time.nowNs = start + 4 * PERIOD_NS + 5 * MS;
+        assertTrue(scheduler.poll());
+        assertEquals(3, scheduler.getDropped());
+        assertEquals(3 * PERIOD_NS / 1000 + 5000, scheduler.getLateness().getMaxUs());
+        assertTrue(scheduler.getJitter().getMaxUs() > 0);
+        // next frame is scheduled after the slot that the late frame took, not in a burst
+        scheduler.onFrameAvailable();
+        assertEquals(start + 5 * PERIOD_NS, scheduler.getDeadlineNs());
+        assertFalse(scheduler.poll());
+    }
+
+    @Test
+    public void idleSource_alignsToGrid() {
+        final FakeTimeSource time = new FakeTimeSource();
+        final FrameScheduler scheduler = new FrameScheduler(25, time);
+        final long start = time.nowNs;
+        scheduler.onFrameAvailable();
+        assertTrue(scheduler.poll());
+        // nothing for a while, then a frame in the middle of a slot
+        time.nowNs = start + 10 * PERIOD_NS + 15 * MS;
+        scheduler.onFrameAvailable();
+        assertEquals(start + 11 * PERIOD_NS, scheduler.getDeadlineNs());
+        time.nowNs = scheduler.getDeadlineNs();
+        assertTrue(scheduler.poll());
+        assertEquals(0, scheduler.getDropped());
+    }
+}
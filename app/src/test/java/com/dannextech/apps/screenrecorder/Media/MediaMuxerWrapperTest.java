@@ -0,0 +1,269 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the encoder/muxer pipeline with FakeCodecBackend and RecordingMuxerBackend.
+ * The benchmark compares CPU time and drain latency of the polling mode and the callback mode,
+ * number of frames can be changed with -Dencoder.benchmark.frames=3000.
+ */
+public class MediaMuxerWrapperTest {
+    private static final String MIME_TYPE = "video/avc";
+    private static final int FRAME_RATE = 30;
+    private static final int NUM_FRAMES = 60;
+
+    /**
+     * video encoder that simulates frames rendered into the input surface
+     */
+    private static class FakeVideoEncoder extends MediaVideoEncoderBase {
+        FakeVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final CodecBackend.Factory factory) {
+            super(muxer, listener, 320, 240);
+            setCodecFactory(factory);
+        }
+
+        @Override
+        void prepare() throws IOException {
+            prepare_surface_encoder(MIME_TYPE, FRAME_RATE);
+            mCodec.start();
+            mListener.onPrepared(this);
+        }
+
+        boolean renderFrame() {
+            if (!mIsCapturing) return false;
+            ((FakeCodecBackend)mCodec).submitFrame(getPTSUs());
+            return frameAvailableSoon();
+        }
+    }
+
+    /**
+     * encoder with buffer input that simulates the capture loop of MediaAudioEncoder
+     */
+    private static class FakeBufferEncoder extends MediaVideoEncoderBase {
+        FakeBufferEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final CodecBackend.Factory factory) {
+            super(muxer, listener, 320, 240);
+            setCodecFactory(factory);
+        }
+
+        @Override
+        void prepare() throws IOException {
+            mTrackIndex = -1;
+            mMuxerStarted = mIsEOS = false;
+            mCodec = mCodecFactory.createEncoder(MIME_TYPE, false);
+            setupCodecCallback();
+            mCodec.configure(TrackFormat.createVideoFormat(MIME_TYPE, 320, 240));
+            mCodec.start();
+            mListener.onPrepared(this);
+        }
+
+        /**
+         * capture loop like MediaAudioEncoder
+         * @return number of buffers that were passed to the codec
+         */
+        int capture() {
+            final ByteBuffer buf = ByteBuffer.allocateDirect(2048);
+            int result = 0;
+            while (mIsCapturing && !mRequestStop) {
+                buf.clear();
+                buf.put(new byte[2048]).flip();
+                encode(buf, 2048, getPTSUs());
+                frameAvailableSoon();
+                result++;
+            }
+            return result;
+        }
+    }
+
+    private static final MediaEncoder.MediaEncoderListener LISTENER = new MediaEncoder.MediaEncoderListener() {
+        @Override
+        public void onPrepared(final MediaEncoder encoder) {
+        }
+
+        @Override
+        public void onStopped(final MediaEncoder encoder) {
+        }
+    };
+
+    private RecordingMuxerBackend record(final boolean async) throws Exception {
+        final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+        config.latencyUs = 5000;
+        config.jitterUs = 2000;
+        final RecordingMuxerBackend backend = new RecordingMuxerBackend();
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(backend);
+        final FakeVideoEncoder encoder = new FakeVideoEncoder(muxer, LISTENER, FakeCodecBackend.factory(config));
+        encoder.setAsyncMode(async);
+        muxer.prepare();
+        assertEquals(async, encoder.isAsyncMode());
+        muxer.startRecording();
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            assertTrue(encoder.renderFrame());
+            Thread.sleep(1000 / FRAME_RATE / 4);
+        }
+        muxer.stopRecording();
+        assertTrue(backend.awaitRelease(5000));
+        assertTrue(muxer.getTimeToFirstFrameUs() >= 0);
+        return backend;
+    }
+
+    private void check(final RecordingMuxerBackend backend) {
+        assertTrue(backend.isStopped());
+        final List<TrackFormat> tracks = backend.getTracks();
+        assertEquals(1, tracks.size());
+        assertTrue(tracks.get(0).isVideo());
+        assertNotNull(tracks.get(0).getByteBuffer(TrackFormat.KEY_CSD_0));
+        final List<RecordingMuxerBackend.Sample> samples = backend.getSamples(0);
+        // codec config and EOS buffer are not written
+        assertEquals(NUM_FRAMES, samples.size());
+        assertTrue((samples.get(0).flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        long prevPts = -1;
+        for (final RecordingMuxerBackend.Sample sample: samples) {
+            assertTrue(sample.presentationTimeUs > prevPts);
+            assertTrue(sample.data.length > 0);
+            assertEquals(0, sample.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            prevPts = sample.presentationTimeUs;
+        }
+    }
+
+    @Test
+    public void pipeline_tee() throws Exception {
+        final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+        final RecordingMuxerBackend archive = new RecordingMuxerBackend();
+        final RecordingMuxerBackend proxy = new RecordingMuxerBackend();
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(new TeeMuxerBackend(archive, proxy));
+        final FakeVideoEncoder archiveEncoder = new FakeVideoEncoder(muxer, LISTENER, FakeCodecBackend.factory(config));
+        archiveEncoder.setOutputIndex(0);
+        final FakeVideoEncoder proxyEncoder = new FakeVideoEncoder(muxer, LISTENER, FakeCodecBackend.factory(config));
+        proxyEncoder.setOutputIndex(1);
+        proxyEncoder.setBitRate(100000);
+        muxer.prepare();
+        muxer.startRecording();
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            // same frame is drawn into both encoders
+            assertTrue(archiveEncoder.renderFrame());
+            assertTrue(proxyEncoder.renderFrame());
+            Thread.sleep(1000 / FRAME_RATE / 4);
+        }
+        muxer.stopRecording();
+        assertTrue(archive.awaitRelease(5000));
+        assertTrue(proxy.awaitRelease(5000));
+        check(archive);
+        check(proxy);
+        assertEquals(100000, proxy.getTracks().get(0).getInteger("bitrate"));
+        assertTrue(archive.getTracks().get(0).getInteger("bitrate") > 100000);
+    }
+
+    @Test
+    public void callbackMode_codecError_releasesCaptureThread() throws Exception {
+        final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+        config.latencyUs = 5000;
+        config.inputBufferCount = 2;
+        config.errorAt = 10;
+        final RecordingMuxerBackend backend = new RecordingMuxerBackend();
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(backend);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final FakeBufferEncoder encoder = new FakeBufferEncoder(muxer, new MediaEncoder.MediaEncoderListener() {
+            @Override
+            public void onPrepared(final MediaEncoder encoder) {
+            }
+
+            @Override
+            public void onStopped(final MediaEncoder encoder) {
+                stopped.countDown();
+            }
+        }, FakeCodecBackend.factory(config));
+        encoder.setAsyncMode(true);
+        muxer.prepare();
+        muxer.startRecording();
+        final int[] captured = new int[1];
+        final Thread capture = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                captured[0] = encoder.capture();
+            }
+        }, "capture");
+        capture.start();
+        // the capture thread waits for an input buffer when the codec fails
+        capture.join(5000);
+        assertFalse(capture.isAlive());
+        assertTrue(captured[0] >= 10);
+        assertTrue(stopped.await(5000, TimeUnit.MILLISECONDS));
+        assertTrue(backend.awaitRelease(5000));
+        assertTrue(backend.isStopped());
+    }
+
+    @Test
+    public void pipeline_pollingMode() throws Exception {
+        check(record(false));
+    }
+
+    @Test
+    public void pipeline_callbackMode() throws Exception {
+        check(record(true));
+    }
+
+    @Test
+    public void pollingVsCallback_benchmark() throws Exception {
+        final int frames = Integer.parseInt(System.getProperty("encoder.benchmark.frames", "300"));
+        // warm up
+        benchmark(false, 30);
+        benchmark(true, 30);
+        final EncoderStats polling = benchmark(false, frames);
+        final EncoderStats callback = benchmark(true, frames);
+        assertEquals(frames, polling.getSamples());
+        assertEquals(frames, callback.getSamples());
+        assertTrue(polling.getAverageLatencyUs() > 0);
+        assertTrue(callback.getAverageLatencyUs() > 0);
+    }
+
+    /**
+     * record frames at the frame rate, CPU time of the process is reported
+     * because Debug#threadCpuTimeNanos is not available on JVM
+     * @return statistics of the encoder
+     */
+    private static EncoderStats benchmark(final boolean async, final int frames) throws Exception {
+        final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+        config.latencyUs = 10000;
+        config.jitterUs = 5000;
+        final RecordingMuxerBackend backend = new RecordingMuxerBackend();
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(backend);
+        final FakeVideoEncoder encoder = new FakeVideoEncoder(muxer, LISTENER, FakeCodecBackend.factory(config));
+        encoder.setAsyncMode(async);
+        muxer.prepare();
+        muxer.startRecording();
+        final long cpuStartNs = processCpuTimeNs();
+        final long startNs = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            assertTrue(encoder.renderFrame());
+            final long waitNs = startNs + (i + 1) * 1000000000L / FRAME_RATE - System.nanoTime();
+            if (waitNs > 0) Thread.sleep(waitNs / 1000000L, (int)(waitNs % 1000000L));
+        }
+        muxer.stopRecording();
+        assertTrue(backend.awaitRelease(5000));
+        final long cpuNs = processCpuTimeNs() - cpuStartNs;
+        final EncoderStats stats = encoder.getStats();
+        System.out.println(String.format("MediaEncoder:%s,frames=%d,cpu=%.1f[us/frame],latency avg=%d[us],max=%d[us]",
+            async ? "callback" : "polling", frames, cpuNs / 1000f / frames,
+            stats.getAverageLatencyUs(), stats.getMaxLatencyUs()));
+        return stats;
+    }
+
+    /**
+     * @return CPU time of this process[ns], 0 if the JVM does not provide it
+     */
+    private static long processCpuTimeNs() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof com.sun.management.OperatingSystemMXBean
+            ? ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime() : 0;
+    }
+}
@@ -0,0 +1,364 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of Mp4Writer and its crash recovery journal.
+ * The benchmark compares bytes and time spent for the journal with the media data.
+ */
+public class Mp4WriterTest {
+    private static final long MAX_U32 = 0xffffffffL;
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000L / FRAME_RATE;
+    private static final long AUDIO_INTERVAL_US = 1024L * 1000000L / 44100;
+
+    private File mDir;
+    private File mFile;
+    private TrackFormat mVideoFormat;
+    private TrackFormat mAudioFormat;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("mp4writer", "");
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+        mFile = new File(mDir, "test.mp4");
+        final FakeCodecBackend.Config config = new FakeCodecBackend.Config();
+        final FakeCodecBackend video = new FakeCodecBackend("video/avc", true, config);
+        final TrackFormat format = TrackFormat.createVideoFormat("video/avc", 320, 240);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 500000);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        video.configure(format);
+        mVideoFormat = video.getOutputFormat();
+        final FakeCodecBackend audio = new FakeCodecBackend("audio/mp4a-latm", false, config);
+        audio.configure(TrackFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+        mAudioFormat = audio.getOutputFormat();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+        Mp4Writer.journalOf(mFile.getPath()).delete();
+        mDir.delete();
+    }
+
+    /**
+     * feed synthetic samples in presentation time order
+     * @return number of samples of {video, audio}
+     */
+    private static int[] feed(final Mp4Writer writer, final long fromUs, final long durationUs, final int videoSize) throws Exception {
+        return feed(writer, fromUs, fromUs, durationUs, videoSize);
+    }
+
+    /**
+     * @param videoFromUs presentation time of the first video sample
+     * @param audioFromUs presentation time of the first audio sample
+     * @return number of samples of {video, audio}
+     */
+    private static int[] feed(final Mp4Writer writer, final long videoFromUs, final long audioFromUs,
+        final long durationUs, final int videoSize) throws Exception {
+
+        final int[] result = new int[2];
+        final SampleInfo info = new SampleInfo();
+        final ByteBuffer buf = ByteBuffer.allocate(videoSize + 64);
+        long videoPts = videoFromUs, audioPts = audioFromUs;
+        int frame = (int)(videoFromUs / FRAME_INTERVAL_US);
+        while ((videoPts < videoFromUs + durationUs) || (audioPts < audioFromUs + durationUs)) {
+            buf.clear();
+            if ((videoPts < videoFromUs + durationUs) && ((videoPts <= audioPts) || (audioPts >= audioFromUs + durationUs))) {
+                final boolean key = frame % FRAME_RATE == 0;
+                buf.put(new byte[] { 0, 0, 0, 1, (byte)(key ? 0x65 : 0x41) });
+                for (int i = 0; i < videoSize; i++) buf.put((byte)(0x80 | i));
+                buf.flip();
+                info.set(0, buf.limit(), videoPts, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                writer.writeSampleData(0, buf, info);
+                videoPts += FRAME_INTERVAL_US;
+                frame++;
+                result[0]++;
+            } else {
+                for (int i = 0; i < 100; i++) buf.put((byte)i);
+                buf.flip();
+                info.set(0, buf.limit(), audioPts, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                writer.writeSampleData(1, buf, info);
+                audioPts += AUDIO_INTERVAL_US;
+                result[1]++;
+            }
+        }
+        return result;
+    }
+
+    private Mp4Writer createWriter() throws Exception {
+        final Mp4Writer writer = new Mp4Writer(mFile.getPath());
+        assertEquals(0, writer.addTrack(mVideoFormat));
+        assertEquals(1, writer.addTrack(mAudioFormat));
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * check top level boxes and sample tables of the file
+     * @param expected number of samples of {video, audio}
+     */
+    private void checkFile(final int[] expected) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            long pos = 0;
+            long mdatStart = -1, mdatEnd = -1;
+            ByteBuffer moov = null;
+            int index = 0;
+            while (pos < raf.length()) {
+                raf.seek(pos);
+                long size = raf.readInt() & MAX_U32;
+                final byte[] type = new byte[4];
+                raf.readFully(type);
+                if (size == 1) size = raf.readLong();
+                final String name = new String(type);
+                assertEquals(new String[] { "ftyp", "mdat", "moov" }[index++], name);
+                if ("mdat".equals(name)) {
+                    mdatStart = pos + 16;
+                    mdatEnd = pos + size;
+                } else if ("moov".equals(name)) {
+                    final byte[] bytes = new byte[(int)size];
+                    raf.seek(pos);
+                    raf.readFully(bytes);
+                    moov = ByteBuffer.wrap(bytes);
+                }
+                pos += size;
+            }
+            assertEquals(raf.length(), pos);
+            assertNotNull(moov);
+            int trak = 0;
+            for (int p = 8; p < moov.limit(); p += moov.getInt(p)) {
+                if (!"trak".equals(new String(moov.array(), p + 4, 4))) continue;
+                final ByteBuffer stbl = find(moov, p, "trak/mdia/minf/stbl");
+                final ByteBuffer stsz = find(stbl, 0, "stbl/stsz");
+                final ByteBuffer stco = find(stbl, 0, "stbl/stco");
+                assertEquals(expected[trak], stsz.getInt(16));
+                // each chunk is inside of mdat
+                final int chunks = stco.getInt(12);
+                assertTrue(chunks > 0);
+                for (int i = 0; i < chunks; i++) {
+                    final long offset = stco.getInt(16 + i * 4) & MAX_U32;
+                    assertTrue((offset >= mdatStart) && (offset < mdatEnd));
+                    if (trak == 0) {
+                        // video sample starts with length prefixed NAL unit
+                        raf.seek(offset + 4);
+                        final int nal = raf.read() & 0x1f;
+                        assertTrue((nal == 5) || (nal == 1));
+                    }
+                }
+                if (trak == 0) {
+                    // one sync sample per second
+                    final ByteBuffer stss = find(stbl, 0, "stbl/stss");
+                    assertEquals((expected[0] + FRAME_RATE - 1) / FRAME_RATE, stss.getInt(12));
+                }
+                trak++;
+            }
+            assertEquals(2, trak);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return slice of the box at the path, first element is the box at offset
+     */
+    private static ByteBuffer find(final ByteBuffer buf, final int offset, final String path) {
+        final String[] names = path.split("/");
+        int start = offset;
+        int end = offset + buf.getInt(offset);
+        assertEquals(names[0], new String(buf.array(), buf.arrayOffset() + start + 4, 4));
+        for (int i = 1; i < names.length; i++) {
+            int p = start + 8;
+            int found = -1;
+            while (p < end) {
+                if (names[i].equals(new String(buf.array(), buf.arrayOffset() + p + 4, 4))) {
+                    found = p;
+                    break;
+                }
+                p += buf.getInt(p);
+            }
+            assertTrue("not found " + path, found >= 0);
+            start = found;
+            end = found + buf.getInt(found);
+        }
+        final ByteBuffer result = buf.duplicate();
+        result.limit(end).position(start);
+        return result.slice();
+    }
+
+    @Test
+    public void writeAndStop_deletesJournal() throws Exception {
+        final Mp4Writer writer = createWriter();
+        assertTrue(Mp4Writer.journalOf(mFile.getPath()).exists());
+        final int[] counts = feed(writer, 0, 5000000L, 200);
+        writer.stop();
+        writer.release();
+        assertFalse(Mp4Writer.journalOf(mFile.getPath()).exists());
+        checkFile(counts);
+        assertFalse(Mp4Writer.recover(mFile.getPath()));
+    }
+
+    @Test
+    public void crash_recoversFlushedSamples() throws Exception {
+        final Mp4Writer writer = createWriter();
+        final int[] counts = feed(writer, 0, 10000000L, 200);
+        // samples written after the last flush are lost
+        feed(writer, counts[0] * FRAME_INTERVAL_US, 500000L, 200);
+        // process is killed without stop, keep the file as it is on the storage
+        writer.getOutput().flush();
+        final long partial = mFile.length();
+        assertTrue(Mp4Writer.journalOf(mFile.getPath()).exists());
+        // append broken data like preallocated space
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(partial + 4096);
+        raf.close();
+
+        final List<String> recoveredFiles = Mp4Writer.recoverAll(mDir);
+        assertEquals(1, recoveredFiles.size());
+        assertEquals(mFile.getPath(), recoveredFiles.get(0));
+        assertFalse(Mp4Writer.journalOf(mFile.getPath()).exists());
+        assertTrue(Mp4Writer.recoverAll(mDir).isEmpty());
+        // samples are flushed at least every second of presentation time
+        final int[] recovered = countSamples();
+        assertTrue(recovered[0] >= counts[0] - FRAME_RATE);
+        assertTrue(recovered[1] >= counts[1] - 1000000L / AUDIO_INTERVAL_US);
+        checkFile(recovered);
+        writer.release();
+    }
+
+    /**
+     * @return number of samples of {video, audio} in stsz of the file
+     */
+    private int[] countSamples() throws Exception {
+        final ByteBuffer moov = readMoov();
+        final int[] result = new int[2];
+        int trak = 0;
+        for (int p = 8; p < moov.limit(); p += moov.getInt(p)) {
+            if (!"trak".equals(new String(moov.array(), p + 4, 4))) continue;
+            result[trak++] = find(moov, p, "trak/mdia/minf/stbl/stsz").getInt(16);
+        }
+        return result;
+    }
+
+    @Test
+    public void lateAudio_keepsOffset() throws Exception {
+        // presentation time is uptime, audio starts 500ms after video
+        final long startUs = 1000000000L;
+        final Mp4Writer writer = createWriter();
+        final int[] counts = feed(writer, startUs, startUs + 500000L, 3000000L, 200);
+        writer.stop();
+        writer.release();
+        checkFile(counts);
+        assertArrayEquals(new long[] { 0, 500 }, getDelays());
+    }
+
+    @Test
+    public void lateAudio_recoversOffset() throws Exception {
+        final long startUs = 1000000000L;
+        final Mp4Writer writer = createWriter();
+        feed(writer, startUs, startUs + 500000L, 5000000L, 200);
+        writer.getOutput().flush();
+        assertTrue(Mp4Writer.recover(mFile.getPath()));
+        checkFile(countSamples());
+        assertArrayEquals(new long[] { 0, 500 }, getDelays());
+        writer.release();
+    }
+
+    /**
+     * @return empty edit of {video, audio} in MOVIE_TIMESCALE, 0 if the track has no edit list
+     */
+    private long[] getDelays() throws Exception {
+        final ByteBuffer moov = readMoov();
+        final long[] result = new long[2];
+        int trak = 0;
+        for (int p = 8; p < moov.limit(); p += moov.getInt(p)) {
+            if (!"trak".equals(new String(moov.array(), p + 4, 4))) continue;
+            for (int q = p + 8; q < p + moov.getInt(p); q += moov.getInt(q)) {
+                if (!"edts".equals(new String(moov.array(), q + 4, 4))) continue;
+                final ByteBuffer elst = find(moov, q, "edts/elst");
+                // version 1, empty edit then media from 0
+                assertEquals(1, elst.get(8));
+                assertEquals(2, elst.getInt(12));
+                assertEquals(-1, elst.getLong(24));
+                assertEquals(0, elst.getLong(44));
+                result[trak] = elst.getLong(16);
+            }
+            trak++;
+        }
+        return result;
+    }
+
+    private ByteBuffer readMoov() throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            long pos = 0;
+            while (pos < raf.length()) {
+                raf.seek(pos);
+                long size = raf.readInt() & MAX_U32;
+                final byte[] type = new byte[4];
+                raf.readFully(type);
+                if (size == 1) size = raf.readLong();
+                if ("moov".equals(new String(type))) {
+                    final byte[] bytes = new byte[(int)size];
+                    raf.seek(pos);
+                    raf.readFully(bytes);
+                    return ByteBuffer.wrap(bytes);
+                }
+                pos += size;
+            }
+        } finally {
+            raf.close();
+        }
+        fail("moov not found");
+        return null;
+    }
+
+    @Test
+    public void journal_overheadBenchmark() throws Exception {
+        // about 2Mbps video and audio
+        final long durationUs = 60000000L;
+        final int videoSize = 2000000 / 8 / FRAME_RATE;
+        long startNs = System.nanoTime();
+        Mp4Writer writer = new Mp4Writer(mFile.getPath(), false, null);
+        writer.addTrack(mVideoFormat);
+        writer.addTrack(mAudioFormat);
+        writer.start();
+        feed(writer, 0, durationUs, videoSize);
+        writer.stop();
+        writer.release();
+        final long withoutNs = System.nanoTime() - startNs;
+
+        startNs = System.nanoTime();
+        writer = createWriter();
+        feed(writer, 0, durationUs, videoSize);
+        final long journalBytes = writer.getJournalSize();
+        writer.stop();
+        writer.release();
+        final long withNs = System.nanoTime() - startNs;
+        final long mediaBytes = mFile.length();
+        final double ratio = journalBytes * 100.0 / mediaBytes;
+        System.out.println(String.format("Mp4Writer:media=%d[bytes],journal=%d[bytes](%.2f%%),time=%d/%d[ms]",
+            mediaBytes, journalBytes, ratio, withNs / 1000000L, withoutNs / 1000000L));
+        assertTrue("journal " + ratio + "%", ratio < 3.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedFormat() throws Exception {
+        final Mp4Writer writer = new Mp4Writer(mFile.getPath());
+        writer.addTrack(TrackFormat.createVideoFormat("video/x-vnd.on2.vp8", 320, 240));
+    }
+}
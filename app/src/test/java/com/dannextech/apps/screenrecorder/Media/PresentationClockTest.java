@@ -0,0 +1,99 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of PresentationClock with a fake time source.
+ */
+public class PresentationClockTest {
+
+    private static class FakeTimeSource implements PresentationClock.TimeSource {
+        long nowNs;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+
+        void advanceUs(final long us) {
+            nowNs += us * 1000L;
+        }
+    }
+
+    private FakeTimeSource mTime;
+    private PresentationClock mClock;
+
+    @Before
+    public void setUp() throws Exception {
+        mTime = new FakeTimeSource();
+        mTime.nowNs = 5000000000L;
+        mClock = new PresentationClock(mTime);
+    }
+
+    @Test
+    public void time_advancesWithSource() throws Exception {
+        final long start = mClock.nowUs();
+        mTime.advanceUs(40000);
+        assertEquals(start + 40000, mClock.nowUs());
+    }
+
+    @Test
+    public void time_stopsWhilePaused() throws Exception {
+        mTime.advanceUs(1000);
+        final long paused = mClock.nowUs();
+        mClock.pause();
+        assertTrue(mClock.isPaused());
+        mTime.advanceUs(500000);
+        assertEquals(paused, mClock.nowUs());
+        mClock.resume();
+        assertEquals(paused, mClock.nowUs());
+        mTime.advanceUs(10);
+        assertEquals(paused + 10, mClock.nowUs());
+    }
+
+    @Test
+    public void pausedDuration_accumulatesOverPauses() throws Exception {
+        final long start = mClock.nowUs();
+        for (int i = 0; i < 3; i++) {
+            mTime.advanceUs(100000);
+            mClock.pause();
+            mTime.advanceUs(250000);
+            mClock.resume();
+        }
+        assertEquals(750000, mClock.getPausedDurationUs());
+        // only the running time is on the timeline
+        assertEquals(start + 300000, mClock.nowUs());
+    }
+
+    @Test
+    public void captureTime_usesOffsetInEffectAtCapture() throws Exception {
+        final long t0 = mClock.getSourceTimeUs();
+        mTime.advanceUs(100000);
+        mClock.pause();
+        mTime.advanceUs(200000);
+        mClock.resume();
+        mTime.advanceUs(100000);
+        // captured before the pause, converted after resume
+        assertEquals(t0 + 50000, mClock.toPresentationUs(t0 + 50000));
+        // captured while paused is pinned to the pause point
+        assertEquals(t0 + 100000, mClock.toPresentationUs(t0 + 150000));
+        // captured after resume
+        assertEquals(t0 + 150000, mClock.toPresentationUs(t0 + 350000));
+    }
+
+    @Test
+    public void time_isMonotonic() throws Exception {
+        long prev = Long.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            mTime.advanceUs(i % 7);
+            if (i % 10 == 3) mClock.pause();
+            if (i % 10 == 8) mClock.resume();
+            final long now = mClock.nowUs();
+            assertTrue(now >= prev);
+            prev = now;
+        }
+    }
+}
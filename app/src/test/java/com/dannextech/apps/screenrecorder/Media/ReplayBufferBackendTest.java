@@ -0,0 +1,142 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of ReplayBufferBackend.
+ */
+public class ReplayBufferBackendTest {
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000L / FRAME_RATE;
+    private static final long AUDIO_INTERVAL_US = 23220L;
+
+    private long mVideoPts, mAudioPts;
+    private int mFrame;
+
+    private ReplayBufferBackend create(final int capacity, final long durationUs) {
+        final ReplayBufferBackend backend = new ReplayBufferBackend(capacity, durationUs, ReplayBufferBackend.DEFAULT_MAX_SAMPLES);
+        backend.addTrack(TrackFormat.createVideoFormat("video/avc", 320, 240));
+        backend.addTrack(TrackFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+        backend.start();
+        return backend;
+    }
+
+    /**
+     * feed interleaved samples, video key frame every second. Payload is filled with a value
+     * derived from pts, so that copy out of the ring can be checked.
+     */
+    private void feed(final ReplayBufferBackend backend, final long durationUs) {
+        final SampleInfo info = new SampleInfo();
+        final ByteBuffer buf = ByteBuffer.allocate(4000);
+        final long end = Math.max(mVideoPts, mAudioPts) + durationUs;
+        while ((mVideoPts < end) || (mAudioPts < end)) {
+            buf.clear();
+            final boolean video = mVideoPts <= mAudioPts;
+            final long pts = video ? mVideoPts : mAudioPts;
+            final boolean key = video && (mFrame % FRAME_RATE == 0);
+            buf.limit(video ? (key ? 4000 : 1000) : 200);
+            fill(buf, pts);
+            info.set(0, buf.limit(), pts, (key || !video) ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            backend.writeSampleData(video ? 0 : 1, buf, info);
+            if (video) {
+                mVideoPts += FRAME_INTERVAL_US;
+                mFrame++;
+            } else {
+                mAudioPts += AUDIO_INTERVAL_US;
+            }
+        }
+    }
+
+    private static void fill(final ByteBuffer buf, final long pts) {
+        for (int i = 0; i < buf.limit(); i++) {
+            buf.put(i, (byte)(pts + i));
+        }
+    }
+
+    private static void checkSaved(final RecordingMuxerBackend saved) {
+        assertTrue(saved.isStopped());
+        final List<RecordingMuxerBackend.Sample> video = saved.getSamples(0);
+        assertTrue((video.get(0).flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        final long startPts = video.get(0).presentationTimeUs;
+        long[] prev = { -1, -1 };
+        for (final RecordingMuxerBackend.Sample sample: saved.getSamples()) {
+            assertTrue(sample.presentationTimeUs >= startPts);
+            assertTrue(sample.presentationTimeUs > prev[sample.trackIndex]);
+            prev[sample.trackIndex] = sample.presentationTimeUs;
+            for (int i = 0; i < sample.data.length; i++) {
+                assertEquals((byte)(sample.presentationTimeUs + i), sample.data[i]);
+            }
+        }
+    }
+
+    @Test
+    public void retainsDuration() throws Exception {
+        final ReplayBufferBackend backend = create(8 * 1024 * 1024, 5000000L);
+        feed(backend, 20000000L);
+        final long retained = backend.getRetainedDurationUs();
+        assertTrue("retained " + retained, (retained >= 5000000L) && (retained < 6000000L));
+
+        final RecordingMuxerBackend saved = new RecordingMuxerBackend();
+        final long duration = backend.save(saved);
+        assertEquals(retained, duration);
+        checkSaved(saved);
+        // the first sample is the oldest key frame within the duration
+        final List<RecordingMuxerBackend.Sample> samples = saved.getSamples();
+        final long first = samples.get(0).presentationTimeUs;
+        assertEquals(first + retained, samples.get(samples.size() - 1).presentationTimeUs);
+        assertEquals(0, (first / FRAME_INTERVAL_US) % FRAME_RATE);
+        // recording continues after save
+        feed(backend, 1000000L);
+        assertTrue(backend.getRetainedDurationUs() >= 5000000L);
+    }
+
+    @Test
+    public void memoryIsBounded() throws Exception {
+        final int capacity = 200 * 1024;
+        final ReplayBufferBackend backend = create(capacity, 60000000L);
+        feed(backend, 30000000L);
+        assertTrue(backend.getRetainedBytes() <= capacity);
+        assertTrue(backend.getRetainedDurationUs() > 1000000L);
+        final RecordingMuxerBackend saved = new RecordingMuxerBackend();
+        backend.save(saved);
+        checkSaved(saved);
+    }
+
+    @Test
+    public void saveWhileRecording() throws Exception {
+        final ReplayBufferBackend backend = create(150 * 1024, 60000000L);
+        feed(backend, 10000000L);
+        final RecordingMuxerBackend saved = new RecordingMuxerBackend() {
+            @Override
+            public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+                super.writeSampleData(trackIndex, byteBuf, info);
+                Thread.yield();
+            }
+        };
+        final Throwable[] error = new Throwable[1];
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    feed(backend, 10000000L);
+                } catch (final Throwable e) {
+                    error[0] = e;
+                }
+            }
+        });
+        writer.start();
+        backend.save(saved);
+        writer.join(10000);
+        assertFalse(writer.isAlive());
+        assertNull(error[0]);
+        checkSaved(saved);
+        assertTrue(backend.getRetainedBytes() <= 150 * 1024);
+    }
+}
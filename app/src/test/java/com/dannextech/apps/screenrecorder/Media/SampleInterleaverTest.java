@@ -0,0 +1,107 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of SampleInterleaver with randomized arrival order.
+ */
+public class SampleInterleaverTest {
+    private static final long[] INTERVALS_US = { 33333L, 23220L };
+
+    private static EncodedSample sample(final int trackIndex, final long pts) {
+        final EncodedSample sample = new EncodedSample(16);
+        sample.set(trackIndex, ByteBuffer.allocate(16), 0, 16, pts, 0);
+        return sample;
+    }
+
+    /**
+     * generate samples of 2 tracks, arrival order across tracks is random
+     * but a track does not lag behind the other more than maxSkewUs
+     */
+    private static List<EncodedSample> arrivals(final Random random, final int count, final long maxSkewUs) {
+        final List<EncodedSample> result = new ArrayList<EncodedSample>();
+        final long[] next = new long[2];
+        next[1] = random.nextInt(50000);
+        while (result.size() < count) {
+            final int track = random.nextInt(2);
+            final int other = 1 - track;
+            // bursts of one track
+            final int burst = random.nextInt(5) + 1;
+            for (int i = 0; i < burst; i++) {
+                if (next[track] - next[other] > maxSkewUs) break;
+                result.add(sample(track, next[track]));
+                // jitter of interval keeps the track monotonic
+                next[track] += INTERVALS_US[track] + random.nextInt(1000) - 500;
+            }
+        }
+        return result;
+    }
+
+    private static List<EncodedSample> run(final SampleInterleaver interleaver, final List<EncodedSample> arrivals) {
+        final List<EncodedSample> result = new ArrayList<EncodedSample>();
+        EncodedSample sample;
+        for (final EncodedSample arrival: arrivals) {
+            interleaver.add(arrival);
+            while ((sample = interleaver.poll()) != null) {
+                result.add(sample);
+            }
+        }
+        interleaver.finish();
+        while ((sample = interleaver.poll()) != null) {
+            result.add(sample);
+        }
+        assertEquals(0, interleaver.getHeldCount());
+        return result;
+    }
+
+    @Test
+    public void randomArrival_globalOrder() throws Exception {
+        for (int seed = 0; seed < 50; seed++) {
+            final Random random = new Random(seed);
+            final List<EncodedSample> arrivals = arrivals(random, 500, 200000L);
+            final SampleInterleaver interleaver = new SampleInterleaver(2, 300000L, 1000);
+            final List<EncodedSample> output = run(interleaver, arrivals);
+            assertEquals(arrivals.size(), output.size());
+            long prevPts = Long.MIN_VALUE;
+            for (final EncodedSample sample: output) {
+                assertTrue("seed " + seed, sample.presentationTimeUs >= prevPts);
+                prevPts = sample.presentationTimeUs;
+            }
+        }
+    }
+
+    @Test
+    public void randomArrival_boundedWindow() throws Exception {
+        for (int seed = 0; seed < 50; seed++) {
+            final Random random = new Random(seed);
+            // skew is larger than the delay, so global order is not guaranteed
+            final List<EncodedSample> arrivals = arrivals(random, 500, 1000000L);
+            final SampleInterleaver interleaver = new SampleInterleaver(2, 100000L, 8);
+            final List<EncodedSample> output = run(interleaver, arrivals);
+            assertEquals(arrivals.size(), output.size());
+            // held samples are bounded by the window
+            assertTrue(interleaver.getMaxHeld() <= 2 * 8);
+            // order in each track is kept
+            final long[] prevPts = { Long.MIN_VALUE, Long.MIN_VALUE };
+            for (final EncodedSample sample: output) {
+                assertTrue(sample.presentationTimeUs > prevPts[sample.trackIndex]);
+                prevPts[sample.trackIndex] = sample.presentationTimeUs;
+            }
+        }
+    }
+
+    @Test
+    public void singleTrack_passThrough() throws Exception {
+        final SampleInterleaver interleaver = new SampleInterleaver(1, 500000L, 10);
+        interleaver.add(sample(0, 0));
+        assertNotNull(interleaver.poll());
+        assertNull(interleaver.poll());
+    }
+}
@@ -0,0 +1,186 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of SampleQueue with producer(codec drain) and consumer(writer) threads.
+ */
+public class SampleQueueTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private static ByteBuffer data(final int value) {
+        final ByteBuffer result = ByteBuffer.allocate(8);
+        result.putInt(value).putInt(~value).flip();
+        return result;
+    }
+
+    private static boolean offer(final SampleQueue queue, final int trackIndex, final int value, final int flags) {
+        final ByteBuffer buf = data(value);
+        return queue.offer(trackIndex, buf, 0, buf.limit(), value * 1000L, flags);
+    }
+
+    /**
+     * offer a sample on other thread
+     * @param result true is set if the sample was queued
+     */
+    private static Thread offerAsync(final SampleQueue queue, final int value, final AtomicBoolean result) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(offer(queue, 0, value, 0));
+            }
+        }, "producer");
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void full_blocksProducer() throws Exception {
+        final SampleQueue queue = new SampleQueue(2, SampleQueue.Policy.BLOCK);
+        assertTrue(offer(queue, 0, 0, 0));
+        assertTrue(offer(queue, 0, 1, 0));
+        final AtomicBoolean result = new AtomicBoolean();
+        final Thread producer = offerAsync(queue, 2, result);
+        producer.join(200);
+        // producer waits for room
+        assertTrue(producer.isAlive());
+        assertEquals(2, queue.getDepth());
+        queue.recycle(queue.take());
+        producer.join(TIMEOUT_MS);
+        assertFalse(producer.isAlive());
+        assertTrue(result.get());
+        assertEquals(2, queue.getDepth());
+        assertEquals(0, queue.getDropCount());
+        assertTrue(queue.getStallTimeNs() >= 100 * 1000000L);
+        assertEquals(queue.getStallTimeNs(), queue.getMaxStallTimeNs());
+    }
+
+    @Test
+    public void full_dropsUntilKeyFrame() throws Exception {
+        final SampleQueue queue = new SampleQueue(1, SampleQueue.Policy.DROP);
+        queue.setSyncDependent(0);
+        assertTrue(offer(queue, 0, 0, MediaCodec.BUFFER_FLAG_KEY_FRAME));
+        // video is dropped and waits next key frame, audio is only dropped while the queue is full
+        assertFalse(offer(queue, 0, 1, 0));
+        assertFalse(offer(queue, 1, 2, 0));
+        assertEquals(2, queue.getDropCount());
+        queue.recycle(queue.take());
+        assertTrue(offer(queue, 1, 3, 0));
+        queue.recycle(queue.take());
+        assertFalse(offer(queue, 0, 4, 0));
+        assertTrue(offer(queue, 0, 5, MediaCodec.BUFFER_FLAG_KEY_FRAME));
+        assertEquals(3, queue.getDropCount());
+    }
+
+    @Test
+    public void recycle_reusesBuffers() throws Exception {
+        final SampleQueue queue = new SampleQueue(4, SampleQueue.Policy.BLOCK);
+        assertTrue(offer(queue, 0, 1, 0));
+        final EncodedSample first = queue.take();
+        final ByteBuffer buffer = first.data;
+        assertTrue(buffer.isDirect());
+        queue.recycle(first);
+        assertTrue(offer(queue, 0, 2, 0));
+        final EncodedSample second = queue.take();
+        assertSame(first, second);
+        assertSame(buffer, second.data);
+        assertEquals(2, second.data.getInt(0));
+        queue.recycle(second);
+        // pooled buffer is expanded for a larger sample
+        final ByteBuffer large = ByteBuffer.allocate(SampleQueue.roundUpCapacity(1) * 2 + 1);
+        assertTrue(queue.offer(0, large, 0, large.capacity(), 3000, 0));
+        final EncodedSample third = queue.take();
+        assertSame(first, third);
+        assertTrue(third.data.capacity() >= large.capacity());
+        assertEquals(large.capacity(), third.data.limit());
+    }
+
+    @Test
+    public void producerConsumer_keepsOrder() throws Exception {
+        final int count = 10000;
+        final SampleQueue queue = new SampleQueue(8, SampleQueue.Policy.BLOCK);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    if (!offer(queue, i & 1, i, 0)) break;
+                }
+                queue.close();
+            }
+        }, "producer");
+        producer.start();
+        // consumer is slower at first so that the producer is blocked
+        Thread.sleep(50);
+        int expected = 0;
+        EncodedSample sample;
+        while ((sample = queue.take()) != null) {
+            assertEquals(expected & 1, sample.trackIndex);
+            assertEquals(expected * 1000L, sample.presentationTimeUs);
+            assertEquals(8, sample.size);
+            assertEquals(0, sample.data.position());
+            assertEquals(expected, sample.data.getInt(0));
+            assertEquals(~expected, sample.data.getInt(4));
+            queue.recycle(sample);
+            expected++;
+        }
+        producer.join(TIMEOUT_MS);
+        assertEquals(count, expected);
+        assertEquals(0, queue.getDropCount());
+        assertEquals(8, queue.getMaxDepth());
+        assertTrue(queue.getStallTimeNs() > 0);
+    }
+
+    @Test
+    public void close_releasesBlockedProducer() throws Exception {
+        final SampleQueue queue = new SampleQueue(1, SampleQueue.Policy.BLOCK);
+        assertTrue(offer(queue, 0, 0, 0));
+        final AtomicBoolean result = new AtomicBoolean(true);
+        final Thread producer = offerAsync(queue, 1, result);
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        queue.close();
+        producer.join(TIMEOUT_MS);
+        assertFalse(producer.isAlive());
+        assertFalse(result.get());
+        assertEquals(1, queue.getDropCount());
+        // samples that were queued before close are still taken, then end of stream
+        assertFalse(offer(queue, 0, 2, 0));
+        assertEquals(0, queue.take().data.getInt(0));
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void close_releasesBlockedConsumer() throws Exception {
+        final SampleQueue queue = new SampleQueue(4, SampleQueue.Policy.BLOCK);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean isEndOfStream = new AtomicBoolean();
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    isEndOfStream.set(queue.take() == null);
+                } catch (final InterruptedException e) {
+                    // fall through
+                }
+                finished.countDown();
+            }
+        }, "consumer");
+        consumer.start();
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(finished.await(100, TimeUnit.MILLISECONDS));
+        queue.close();
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(isEndOfStream.get());
+    }
+}
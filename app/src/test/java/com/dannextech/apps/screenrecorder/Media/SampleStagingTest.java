@@ -0,0 +1,88 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of SampleStaging.
+ */
+public class SampleStagingTest {
+
+    private static boolean add(final SampleStaging staging, final int trackIndex, final long pts, final boolean key) {
+        final ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.putLong(0, pts);
+        return staging.add(trackIndex, buf, 0, 16, pts, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    }
+
+    @Test
+    public void flushInTimestampOrder() throws Exception {
+        final SampleStaging staging = new SampleStaging(100);
+        staging.setSyncDependent(0);
+        // audio comes first, then video
+        for (int i = 0; i < 10; i++) {
+            assertTrue(add(staging, 1, i * 23000L, true));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertTrue(add(staging, 0, 5000L + i * 33333L, i == 0));
+        }
+        assertEquals(15, staging.getDepth());
+        final SampleQueue queue = new SampleQueue(100, SampleQueue.Policy.BLOCK);
+        staging.flushTo(queue);
+        queue.close();
+        assertEquals(0, staging.getDepth());
+        assertEquals(15, staging.getMaxDepth());
+        long prevPts = -1;
+        int count = 0;
+        for (EncodedSample sample = queue.take(); sample != null; sample = queue.take()) {
+            assertTrue(sample.presentationTimeUs >= prevPts);
+            assertEquals(sample.presentationTimeUs, sample.data.getLong(0));
+            prevPts = sample.presentationTimeUs;
+            queue.recycle(sample);
+            count++;
+        }
+        assertEquals(15, count);
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        final SampleStaging staging = new SampleStaging(10);
+        staging.setSyncDependent(0);
+        // video without preceding key frame is useless
+        assertFalse(add(staging, 0, 0, false));
+        // key frame every 4 frames
+        for (int i = 1; i <= 20; i++) {
+            assertTrue(add(staging, 0, i * 33333L, i % 4 == 1));
+        }
+        for (int i = 0; i < 30; i++) {
+            assertTrue(add(staging, 1, i * 23000L, true));
+        }
+        assertTrue(staging.getDepth() <= 20);
+        final SampleQueue queue = new SampleQueue(100, SampleQueue.Policy.BLOCK);
+        staging.flushTo(queue);
+        queue.close();
+        boolean firstVideo = true;
+        int audio = 0;
+        for (EncodedSample sample = queue.take(); sample != null; sample = queue.take()) {
+            if (sample.trackIndex == 0) {
+                if (firstVideo) {
+                    // staged video starts with key frame
+                    assertTrue((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    firstVideo = false;
+                }
+            } else {
+                // the latest samples are kept
+                assertTrue(sample.presentationTimeUs >= 20 * 23000L);
+                audio++;
+            }
+        }
+        assertFalse(firstVideo);
+        assertEquals(10, audio);
+        // 1 video without key frame, at least 10 video and 20 audio are dropped
+        assertTrue(staging.getDropCount() >= 1 + 10 + 20);
+    }
+}
@@ -0,0 +1,171 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of SegmentedMuxerBackend with RecordingMuxerBackend segments.
+ */
+public class SegmentedMuxerBackendTest {
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000L / FRAME_RATE;
+    private static final long AUDIO_INTERVAL_US = 23220L;
+    /**
+     * the encoder outputs the key frame this number of frames after the request
+     */
+    private static final int SYNC_FRAME_DELAY = 5;
+
+    private final List<RecordingMuxerBackend> mSegments = new ArrayList<RecordingMuxerBackend>();
+    private final List<Long> mFinishedDurations = new ArrayList<Long>();
+    private int mKeyFrameCountdown;
+    private int mRequests;
+
+    private final SegmentedMuxerBackend.SegmentFactory mFactory = new SegmentedMuxerBackend.SegmentFactory() {
+        @Override
+        public MuxerBackend createSegment(final int index) {
+            assertEquals(mSegments.size(), index);
+            final RecordingMuxerBackend segment = new RecordingMuxerBackend();
+            mSegments.add(segment);
+            return segment;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mSegments.clear();
+        mFinishedDurations.clear();
+        mKeyFrameCountdown = -1;
+        mRequests = 0;
+    }
+
+    private SegmentedMuxerBackend create(final long maxDurationUs, final long maxBytes) {
+        final SegmentedMuxerBackend backend = new SegmentedMuxerBackend(mFactory, maxDurationUs, maxBytes);
+        backend.setSyncFrameLead(500000L);
+        backend.setSyncFrameRequester(new Runnable() {
+            @Override
+            public void run() {
+                mRequests++;
+                if (mKeyFrameCountdown < 0)
+                    mKeyFrameCountdown = SYNC_FRAME_DELAY;
+            }
+        });
+        backend.setListener(new SegmentedMuxerBackend.Listener() {
+            @Override
+            public void onSegmentFinished(final int index, final String path, final long durationUs, final long bytes) {
+                assertEquals(mFinishedDurations.size(), index);
+                mFinishedDurations.add(durationUs);
+            }
+        });
+        backend.addTrack(TrackFormat.createVideoFormat("video/avc", 320, 240));
+        final TrackFormat audio = TrackFormat.createAudioFormat("audio/mp4a-latm", 44100, 1);
+        audio.setInteger(MediaFormat.KEY_BIT_RATE, 64000);
+        backend.addTrack(audio);
+        return backend;
+    }
+
+    /**
+     * feed interleaved video and audio, key frame comes only every 10 seconds or on request
+     * @return number of samples
+     */
+    private int feed(final SegmentedMuxerBackend backend, final long durationUs) throws Exception {
+        final SampleInfo info = new SampleInfo();
+        final ByteBuffer buf = ByteBuffer.allocate(1000);
+        long videoPts = 0, audioPts = 0;
+        int frame = 0, count = 0;
+        while ((videoPts < durationUs) || (audioPts < durationUs)) {
+            buf.clear();
+            if (videoPts <= audioPts) {
+                boolean key = frame % (FRAME_RATE * 10) == 0;
+                if (mKeyFrameCountdown >= 0 && (mKeyFrameCountdown-- == 0)) {
+                    key = true;
+                }
+                buf.limit(key ? 1000 : 200);
+                info.set(0, buf.limit(), videoPts, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                backend.writeSampleData(0, buf, info);
+                videoPts += FRAME_INTERVAL_US;
+                frame++;
+            } else {
+                buf.limit(180);
+                info.set(0, buf.limit(), audioPts, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                backend.writeSampleData(1, buf, info);
+                audioPts += AUDIO_INTERVAL_US;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private void checkSegments(final int total) {
+        final Set<Long> videoPts = new HashSet<Long>();
+        final Set<Long> audioPts = new HashSet<Long>();
+        int count = 0;
+        long prevLastVideoPts = -1;
+        for (final RecordingMuxerBackend segment: mSegments) {
+            assertTrue(segment.isStopped());
+            assertEquals(2, segment.getTracks().size());
+            final List<RecordingMuxerBackend.Sample> video = segment.getSamples(0);
+            assertFalse(video.isEmpty());
+            // each segment starts with key frame
+            assertTrue((video.get(0).flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            // time line is continuous
+            if (prevLastVideoPts >= 0) {
+                assertEquals(prevLastVideoPts + FRAME_INTERVAL_US, video.get(0).presentationTimeUs);
+            }
+            prevLastVideoPts = video.get(video.size() - 1).presentationTimeUs;
+            for (final RecordingMuxerBackend.Sample sample: segment.getSamples()) {
+                // no sample is written twice
+                assertTrue((sample.trackIndex == 0 ? videoPts : audioPts).add(sample.presentationTimeUs));
+                count++;
+            }
+        }
+        // no sample is dropped
+        assertEquals(total, count);
+        assertEquals(mSegments.size(), mFinishedDurations.size());
+    }
+
+    @Test
+    public void rollover_byDuration() throws Exception {
+        final SegmentedMuxerBackend backend = create(3000000L, 0);
+        backend.start();
+        final int total = feed(backend, 10000000L);
+        backend.stop();
+        backend.release();
+        assertEquals(4, mSegments.size());
+        checkSegments(total);
+        // rollover happens on the requested key frame just before the boundary
+        for (int i = 0; i < 3; i++) {
+            final long duration = mFinishedDurations.get(i);
+            assertTrue("duration " + duration, (duration >= 2500000L) && (duration < 3000000L));
+        }
+        assertTrue(mRequests >= 3);
+    }
+
+    @Test
+    public void rollover_bySize() throws Exception {
+        final SegmentedMuxerBackend backend = create(0, 40000);
+        backend.start();
+        final int total = feed(backend, 10000000L);
+        backend.stop();
+        backend.release();
+        assertTrue(mSegments.size() >= 3);
+        checkSegments(total);
+        for (final RecordingMuxerBackend segment: mSegments) {
+            int bytes = 0;
+            for (final RecordingMuxerBackend.Sample sample: segment.getSamples()) {
+                bytes += sample.data.length;
+            }
+            assertTrue("bytes " + bytes, bytes <= 40000);
+        }
+    }
+}
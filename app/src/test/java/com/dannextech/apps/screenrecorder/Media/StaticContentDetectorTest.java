@@ -0,0 +1,127 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test and benchmark of StaticContentDetector with synthetic fingerprints.
+ * Iterations of the benchmark can be changed with -Dstaticcontent.benchmark.frames=1000000.
+ */
+public class StaticContentDetectorTest {
+    private static final long MS = 1000000L;
+    private static final int SIZE = 32;
+
+    private static ByteBuffer fill(final int gray) {
+        final ByteBuffer result = ByteBuffer.allocate(SIZE * SIZE * 4);
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            result.put((byte)gray).put((byte)gray).put((byte)gray).put((byte)0xff);
+        }
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer setPixel(final ByteBuffer pixels, final int index, final int gray) {
+        final ByteBuffer result = ByteBuffer.allocate(pixels.capacity());
+        result.put(pixels.duplicate()).flip();
+        result.put(index * 4, (byte)gray).put(index * 4 + 1, (byte)gray).put(index * 4 + 2, (byte)gray);
+        return result;
+    }
+
+    @Test
+    public void identical_isStatic() {
+        final StaticContentDetector detector = new StaticContentDetector(new StaticContentDetector.Config());
+        final ByteBuffer frame = fill(100);
+        assertTrue(detector.onFrame(frame, 0));
+        assertEquals(StaticContentDetector.Change.CHANGED, detector.getLastChange());
+        for (int i = 1; i <= 10; i++) {
+            assertFalse(detector.onFrame(frame, i * 40 * MS));
+            assertEquals(StaticContentDetector.Change.STATIC, detector.getLastChange());
+        }
+        // position of the buffer is not changed
+        assertEquals(0, frame.position());
+        assertEquals(10, detector.getCount(StaticContentDetector.Change.STATIC));
+        assertEquals(1, detector.getAccepted());
+    }
+
+    @Test
+    public void noise_isStatic() {
+        final StaticContentDetector detector = new StaticContentDetector(new StaticContentDetector.Config());
+        assertTrue(detector.onFrame(fill(100), 0));
+        assertFalse(detector.onFrame(fill(102), 40 * MS));
+        assertEquals(StaticContentDetector.Change.STATIC, detector.getLastChange());
+        assertTrue(detector.onFrame(fill(110), 80 * MS));
+        assertEquals(StaticContentDetector.Change.CHANGED, detector.getLastChange());
+    }
+
+    @Test
+    public void blinkingCursor_isDownRated() {
+        final StaticContentDetector detector = new StaticContentDetector(new StaticContentDetector.Config());
+        final ByteBuffer off = fill(255);
+        final ByteBuffer on = setPixel(off, 100, 200);
+        assertTrue(detector.onFrame(off, 0));
+        int accepted = 0;
+        // cursor toggles every 40ms for 1 second, accepted at most every 200ms
+        for (int i = 1; i <= 25; i++) {
+            if (detector.onFrame((i & 1) != 0 ? on : off, i * 40 * MS)) accepted++;
+            assertNotEquals(StaticContentDetector.Change.CHANGED, detector.getLastChange());
+        }
+        assertTrue(accepted >= 4);
+        assertTrue(accepted <= 5);
+    }
+
+    @Test
+    public void slowFade_accumulates() {
+        final StaticContentDetector detector = new StaticContentDetector(new StaticContentDetector.Config());
+        assertTrue(detector.onFrame(fill(100), 0));
+        // each step is noise against the previous frame, but not against the accepted one
+        assertFalse(detector.onFrame(fill(101), 40 * MS));
+        assertFalse(detector.onFrame(fill(102), 80 * MS));
+        assertTrue(detector.onFrame(fill(103), 120 * MS));
+        assertEquals(StaticContentDetector.Change.CHANGED, detector.getLastChange());
+        assertFalse(detector.onFrame(fill(104), 160 * MS));
+    }
+
+    @Test
+    public void reset_acceptsNextFrame() {
+        final StaticContentDetector detector = new StaticContentDetector(new StaticContentDetector.Config());
+        final ByteBuffer frame = fill(50);
+        assertTrue(detector.onFrame(frame, 0));
+        assertFalse(detector.onFrame(frame, 40 * MS));
+        detector.reset();
+        assertTrue(detector.onFrame(frame, 80 * MS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooSmall() {
+        new StaticContentDetector(new StaticContentDetector.Config()).onFrame(ByteBuffer.allocate(16), 0);
+    }
+
+    @Test
+    public void benchmark() {
+        final int frames = Integer.parseInt(System.getProperty("staticcontent.benchmark.frames", "100000"));
+        final StaticContentDetector detector = new StaticContentDetector(new StaticContentDetector.Config());
+        final Random random = new Random(1);
+        final ByteBuffer[] pixels = new ByteBuffer[4];
+        pixels[0] = fill(128);
+        pixels[1] = pixels[0].duplicate();  // static
+        pixels[2] = setPixel(pixels[0], random.nextInt(SIZE * SIZE), 0);    // minor
+        pixels[3] = ByteBuffer.allocateDirect(SIZE * SIZE * 4);  // changed
+        for (int i = 0; i < SIZE * SIZE * 4; i++) pixels[3].put((byte)random.nextInt(256));
+        pixels[3].flip();
+        // warm up
+        for (int i = 0; i < 10000; i++) detector.onFrame(pixels[i & 3], i * 40 * MS);
+        final long startNs = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            detector.onFrame(pixels[i & 3], i * 40 * MS);
+        }
+        final long elapsedNs = Math.max(1, System.nanoTime() - startNs);
+        System.out.println(String.format("StaticContentDetector:%d frames in %d[ms], %.2f[us/frame]",
+            frames, elapsedNs / 1000000L, elapsedNs / 1000f / frames));
+        assertEquals(10000 + frames, detector.getCount(StaticContentDetector.Change.STATIC)
+            + detector.getCount(StaticContentDetector.Change.MINOR) + detector.getCount(StaticContentDetector.Change.CHANGED));
+    }
+}
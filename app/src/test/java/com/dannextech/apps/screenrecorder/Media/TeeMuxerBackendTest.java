@@ -0,0 +1,78 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of TeeMuxerBackend with RecordingMuxerBackend.
+ */
+public class TeeMuxerBackendTest {
+
+    private static TrackFormat videoFormat(final int width, final int height, final int output) {
+        final TrackFormat format = TrackFormat.createVideoFormat("video/avc", width, height);
+        format.setInteger(TeeMuxerBackend.KEY_OUTPUT_INDEX, output);
+        return format;
+    }
+
+    @Test
+    public void routesTracks() throws Exception {
+        final RecordingMuxerBackend archive = new RecordingMuxerBackend();
+        final RecordingMuxerBackend proxy = new RecordingMuxerBackend();
+        final TeeMuxerBackend tee = new TeeMuxerBackend(archive, proxy);
+        final int proxyVideo = tee.addTrack(videoFormat(640, 360, 1));
+        final int audio = tee.addTrack(TrackFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+        final int archiveVideo = tee.addTrack(videoFormat(1280, 720, 0));
+        tee.start();
+        assertTrue(archive.isStarted());
+        assertTrue(proxy.isStarted());
+
+        final ByteBuffer buf = ByteBuffer.allocate(64);
+        for (int i = 0; i < 16; i++) buf.put((byte)i);
+        buf.flip();
+        final SampleInfo info = new SampleInfo();
+        info.set(4, 8, 1000, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        tee.writeSampleData(archiveVideo, buf, info);
+        tee.writeSampleData(proxyVideo, buf, info);
+        info.set(0, 16, 2000, 0);
+        tee.writeSampleData(audio, buf, info);
+        // the buffer is not consumed
+        assertEquals(0, buf.position());
+        assertEquals(16, buf.limit());
+        tee.stop();
+        tee.release();
+
+        // each output has own video and shared audio, the routing key is removed
+        final List<TrackFormat> archiveTracks = archive.getTracks();
+        assertEquals(2, archiveTracks.size());
+        assertEquals(44100, archiveTracks.get(0).getInteger("sample-rate"));
+        assertEquals(1280, archiveTracks.get(1).getInteger("width"));
+        assertFalse(archiveTracks.get(1).containsKey(TeeMuxerBackend.KEY_OUTPUT_INDEX));
+        final List<TrackFormat> proxyTracks = proxy.getTracks();
+        assertEquals(2, proxyTracks.size());
+        assertEquals(640, proxyTracks.get(0).getInteger("width"));
+        assertFalse(proxyTracks.get(0).containsKey(TeeMuxerBackend.KEY_OUTPUT_INDEX));
+
+        assertEquals(1, archive.getSamples(1).size());
+        assertEquals(8, archive.getSamples(1).get(0).data.length);
+        assertEquals(4, archive.getSamples(1).get(0).data[0]);
+        assertEquals(1, archive.getSamples(0).size());
+        assertEquals(16, archive.getSamples(0).get(0).data.length);
+        assertEquals(1, proxy.getSamples(0).size());
+        assertEquals(1, proxy.getSamples(1).size());
+        assertEquals(2000, proxy.getSamples(1).get(0).presentationTimeUs);
+        assertTrue(archive.isStopped());
+        assertTrue(proxy.isStopped());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownOutput() throws Exception {
+        final TeeMuxerBackend tee = new TeeMuxerBackend(new RecordingMuxerBackend());
+        tee.addTrack(videoFormat(640, 360, 1));
+    }
+}
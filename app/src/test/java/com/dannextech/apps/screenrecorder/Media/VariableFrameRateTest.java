@@ -0,0 +1,77 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of VariableFrameRate, wake ups of the render thread are simulated with explicit times.
+ */
+public class VariableFrameRateTest {
+    private static final long MS = 1000000L;
+    private static final long FRAME_NS = 40 * MS;  // 25fps
+
+    @Test
+    public void staticScreen_onlyKeepAliveFrames() {
+        final VariableFrameRate vfr = new VariableFrameRate(1.0f);
+        // 10 seconds without new frames, woken up every frame interval like the old draw loop
+        int submitted = 0;
+        for (long t = 0; t <= 10000 * MS; t += FRAME_NS) {
+            if (vfr.onWakeup(t == 0, t)) submitted++;
+        }
+        vfr.stop(10000 * MS);
+        assertEquals(1, vfr.getNewFrames());
+        assertEquals(10, vfr.getKeepAliveFrames());
+        assertEquals(11, submitted);
+        assertEquals(250 - 10, vfr.getSkipped());
+        assertEquals(10000 * MS, vfr.getElapsedNs());
+        assertEquals(1.1f, vfr.getFrameRate(), 0.01f);
+    }
+
+    @Test
+    public void changingScreen_everyNewFrame() {
+        final VariableFrameRate vfr = new VariableFrameRate(1.0f);
+        for (long t = 0; t < 1000 * MS; t += FRAME_NS) {
+            assertTrue(vfr.onWakeup(true, t));
+        }
+        vfr.stop(1000 * MS);
+        assertEquals(25, vfr.getNewFrames());
+        assertEquals(0, vfr.getKeepAliveFrames());
+        assertEquals(0, vfr.getSkipped());
+        assertEquals(25f, vfr.getFrameRate(), 0.01f);
+    }
+
+    @Test
+    public void keepAlive_countsFromLastSubmittedFrame() {
+        final VariableFrameRate vfr = new VariableFrameRate(2.0f);
+        assertTrue(vfr.onWakeup(true, 0));
+        assertFalse(vfr.onWakeup(false, 300 * MS));
+        assertTrue(vfr.onWakeup(true, 400 * MS));
+        // 500ms since the start, but only 100ms since the last new frame
+        assertFalse(vfr.onWakeup(false, 500 * MS));
+        assertTrue(vfr.onWakeup(false, 900 * MS));
+        assertEquals(1, vfr.getKeepAliveFrames());
+    }
+
+    @Test
+    public void noKeepAlive() {
+        final VariableFrameRate vfr = new VariableFrameRate(0);
+        assertTrue(vfr.getKeepAliveIntervalNs() < 0);
+        assertTrue(vfr.onWakeup(true, 0));
+        assertFalse(vfr.onWakeup(false, 60000 * MS));
+        assertEquals(1000, vfr.getWaitMs(60000 * MS, 1000));
+    }
+
+    @Test
+    public void waitUntilKeepAlive() {
+        final VariableFrameRate vfr = new VariableFrameRate(2.0f);
+        // not started yet
+        assertEquals(40, vfr.getWaitMs(0, 40));
+        vfr.onWakeup(true, 0);
+        assertEquals(500, vfr.getWaitMs(0, 1000));
+        assertEquals(200, vfr.getWaitMs(300 * MS, 1000));
+        assertEquals(100, vfr.getWaitMs(300 * MS, 100));
+        // overdue, but never wait(0) because it waits forever
+        assertEquals(1, vfr.getWaitMs(700 * MS, 1000));
+    }
+}
@@ -0,0 +1,152 @@
+package com.dannextech.apps.screenrecorder.Media;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of VideoProfile against capabilities of fake encoders.
+ */
+public class VideoProfileTest {
+    private static final int SURFACE = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+    private static final int CQ = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+    private static final int VBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+    private static final int CBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+    /**
+     * MediaFormat#KEY_MAX_B_FRAMES(API 29)
+     */
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
+
+    private static final CodecCapabilityCache.Entry AVC = new CodecCapabilityCache.Entry("OMX.vendor.avc.encoder",
+        MediaFormat.MIMETYPE_VIDEO_AVC, new int[] { SURFACE },
+        new int[] { MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline, MediaCodecInfo.CodecProfileLevel.AVCLevel41,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileMain, MediaCodecInfo.CodecProfileLevel.AVCLevel41 },
+        96, 1920, 96, 1088, 1, 40000000, (1 << VBR) | (1 << CBR), 0, 0);
+    private static final CodecCapabilityCache.Entry HEVC = new CodecCapabilityCache.Entry("OMX.vendor.hevc.encoder",
+        MediaFormat.MIMETYPE_VIDEO_HEVC, new int[] { SURFACE },
+        new int[] { MediaCodecInfo.CodecProfileLevel.HEVCProfileMain, MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel41 },
+        96, 1920, 96, 1088, 1, 20000000, (1 << VBR) | (1 << CQ), 0, 100);
+
+    private static CodecCapabilityCache createCache(final CodecCapabilityCache.Entry... entries) {
+        return CodecCapabilityCache.load(null, "fingerprint", new CodecCapabilityCache.Scanner() {
+            @Override
+            public List<CodecCapabilityCache.Entry> scan() {
+                final List<CodecCapabilityCache.Entry> result = new ArrayList<CodecCapabilityCache.Entry>();
+                for (final CodecCapabilityCache.Entry entry: entries) result.add(entry);
+                return result;
+            }
+        });
+    }
+
+    @Test
+    public void presets() {
+        final List<VideoProfile> presets = VideoProfile.getPresets();
+        assertEquals(VideoProfile.NAME_DEFAULT, presets.get(0).name);
+        for (final VideoProfile profile: presets) {
+            assertEquals(profile.name, VideoProfile.forName(profile.name).name);
+        }
+        assertNull(VideoProfile.forName("av1"));
+        // instances are not shared
+        VideoProfile.forName(VideoProfile.NAME_HEVC_CQ).quality = 10;
+        assertEquals(-1, VideoProfile.forName(VideoProfile.NAME_HEVC_CQ).quality);
+    }
+
+    @Test
+    public void default_sameAsBefore() {
+        final TrackFormat format = TrackFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720);
+        VideoProfile.createDefault().applyTo(format);
+        assertEquals(25, format.getInteger(MediaFormat.KEY_FRAME_RATE));
+        assertEquals(10, format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL));
+        assertFalse(format.containsKey(MediaFormat.KEY_PROFILE));
+        assertFalse(format.containsKey(MediaFormat.KEY_BITRATE_MODE));
+        assertFalse(format.containsKey(KEY_MAX_B_FRAMES));
+        assertFalse(format.containsKey(MediaFormat.KEY_OPERATING_RATE));
+        assertTrue(VideoProfile.createDefault().validate(AVC, 1280, 720).isEmpty());
+    }
+
+    @Test
+    public void validate() {
+        final VideoProfile profile = VideoProfile.forName(VideoProfile.NAME_HEVC_CQ);
+        assertTrue(profile.validate(HEVC, 1920, 1080).isEmpty());
+        // wrong codec, size, rate control and bit rate
+        profile.bitRate = 50000000;
+        assertEquals(4, profile.validate(AVC, 2560, 1440).size());
+        assertFalse(profile.validate(null, 1920, 1080).isEmpty());
+
+        final VideoProfile avc = VideoProfile.createDefault();
+        avc.profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+        avc.rateControl = VideoProfile.RateControl.CQ;
+        assertEquals(2, avc.validate(AVC, 1280, 720).size());
+        avc.profile = MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+        avc.rateControl = VideoProfile.RateControl.CBR;
+        assertTrue(avc.validate(AVC, 1280, 720).isEmpty());
+        // writers do not support reordered frames
+        avc.profile = MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+        avc.maxBFrames = 2;
+        assertEquals(1, avc.validate(AVC, 1280, 720).size());
+    }
+
+    @Test
+    public void resolve_dropsUnsupportedOptions() {
+        final CodecCapabilityCache cache = createCache(AVC, HEVC);
+        final VideoProfile src = VideoProfile.forName(VideoProfile.NAME_AVC_CBR);
+        src.maxBFrames = 1;
+        src.bitRate = 80000000;
+        final VideoProfile profile = src.resolve(cache, 1280, 720);
+        // High profile is not supported, CBR is
+        assertEquals(0, profile.profile);
+        assertEquals(VideoProfile.RateControl.CBR, profile.rateControl);
+        assertEquals(40000000, profile.bitRate);
+        assertEquals(0, profile.maxBFrames);
+        assertTrue(profile.validate(AVC, 1280, 720).isEmpty());
+        // source is not changed
+        assertEquals(MediaCodecInfo.CodecProfileLevel.AVCProfileHigh, src.profile);
+
+        final VideoProfile cq = VideoProfile.forName(VideoProfile.NAME_HEVC_CQ).resolve(cache, 1280, 720);
+        assertEquals(VideoProfile.Codec.HEVC, cq.codec);
+        assertEquals(VideoProfile.RateControl.CQ, cq.rateControl);
+        assertEquals(50, cq.quality);
+        final TrackFormat format = TrackFormat.createVideoFormat(cq.codec.mime, 1280, 720);
+        cq.applyTo(format);
+        assertEquals(CQ, format.getInteger(MediaFormat.KEY_BITRATE_MODE));
+        assertEquals(50, format.getInteger(VideoProfile.KEY_QUALITY));
+        assertEquals(MediaCodecInfo.CodecProfileLevel.HEVCProfileMain, format.getInteger(MediaFormat.KEY_PROFILE));
+    }
+
+    @Test
+    public void resolve_fallsBackToAvc() {
+        final CodecCapabilityCache cache = createCache(AVC);
+        final VideoProfile src = VideoProfile.forName(VideoProfile.NAME_VP9);
+        src.frameRate = 30;
+        src.iFrameInterval = 2;
+        final VideoProfile profile = src.resolve(cache, 1280, 720);
+        assertEquals(VideoProfile.Codec.AVC, profile.codec);
+        assertEquals(VideoProfile.NAME_DEFAULT, profile.name);
+        assertEquals(30, profile.frameRate);
+        assertEquals(2, profile.iFrameInterval);
+        // HEVC encoder can not encode the size
+        assertEquals(VideoProfile.Codec.AVC,
+            VideoProfile.forName(VideoProfile.NAME_HEVC_VBR).resolve(createCache(AVC, HEVC), 2560, 1440).codec);
+    }
+
+    @Test
+    public void applyTo_options() {
+        final VideoProfile profile = VideoProfile.forName(VideoProfile.NAME_HEVC_VBR);
+        profile.level = MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel41;
+        profile.maxBFrames = 2;
+        profile.operatingRate = 60;
+        final TrackFormat format = TrackFormat.createVideoFormat(profile.codec.mime, 1920, 1080);
+        profile.applyTo(format);
+        assertEquals(VBR, format.getInteger(MediaFormat.KEY_BITRATE_MODE));
+        assertEquals(MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel41, format.getInteger(MediaFormat.KEY_LEVEL));
+        assertFalse(format.containsKey(KEY_MAX_B_FRAMES));
+        assertEquals(60f, format.getFloat(MediaFormat.KEY_OPERATING_RATE, 0), 0);
+        assertFalse(format.containsKey(VideoProfile.KEY_QUALITY));
+    }
+}